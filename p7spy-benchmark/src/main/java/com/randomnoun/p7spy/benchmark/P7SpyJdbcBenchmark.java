@@ -0,0 +1,241 @@
+package com.randomnoun.p7spy.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** Measures the overhead of the p7spy JDBC wrappers, by running the same JDBC operations
+ * against an in-memory derby database, both directly and through p7spy.
+ *
+ * <p>Each benchmark is run in the following modes:
+ * <ul>
+ * <li><tt>derby</tt> - using the derby driver directly
+ * <li><tt>p7spyOff</tt> - through p7spy, with the <tt>com.randomnoun.p7spy</tt> logger at INFO
+ * <li><tt>p7spyDebug</tt> - through p7spy, with the <tt>com.randomnoun.p7spy</tt> logger at DEBUG, logging to a NullAppender
+ * <li><tt>p7spyTrap</tt> - as for <tt>p7spyDebug</tt>, with a (non-matching) trap pattern in <tt>p7spy-config.properties</tt>
+ * </ul>
+ *
+ * <p>Each thread uses its own connection and statements. Run the {@link P7SpyJdbcThreadedBenchmark}
+ * benchmarks (or supply the <tt>-t</tt> option to JMH) to measure contention between threads.
+ *
+ * <p>Run with
+ * <pre>
+ * java -jar target/benchmarks.jar -prof gc
+ * </pre>
+ *
+ * or run the {@link #main(String[])} method of this class, which includes the gc profiler.
+ *
+ * @author knoxg
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class P7SpyJdbcBenchmark {
+
+	/** Number of rows in the table read by the row loop benchmark */
+	public static final int ROWS = 100;
+
+	/** Number of statements in each batch */
+	public static final int BATCH_SIZE = 10;
+
+	/** Name of the in-memory database */
+	public static final String DATABASE = "p7spyBenchmarkDB";
+
+	public static final String SQL_CREATE_TABLE =
+		"CREATE TABLE bench_item ( " +
+		"  item_id INT NOT NULL GENERATED ALWAYS AS IDENTITY CONSTRAINT bench_item_pk PRIMARY KEY, " +
+		"  item_name VARCHAR(32) NOT NULL, " +
+		"  item_value INT NOT NULL) ";
+	public static final String SQL_INSERT_ITEM = "INSERT INTO bench_item ( item_name, item_value ) VALUES ( ?, ? )";
+	public static final String SQL_SELECT_ITEMS = "SELECT item_id, item_name, item_value FROM bench_item WHERE item_name = ?";
+	public static final String SQL_UPDATE_ITEM = "UPDATE bench_item SET item_value = ? WHERE item_id = ?";
+
+	/** State shared by all threads; configures log4j and creates the database */
+	@State(Scope.Benchmark)
+	public static class Configuration {
+
+		/** The benchmark mode */
+		@Param({"derby", "p7spyOff", "p7spyDebug", "p7spyTrap"})
+		public String mode;
+
+		/** The JDBC URL used by each thread */
+		String url;
+
+		/** Trap configuration file created by this benchmark, or null */
+		File trapConfig;
+
+		@Setup
+		public void setUp() throws SQLException, IOException {
+			Properties props = new Properties();
+			props.put("log4j.rootCategory", "INFO, NULL");
+			props.put("log4j.appender.NULL", "org.apache.log4j.varia.NullAppender");
+			PropertyConfigurator.configure(props);
+			Logger.getLogger("com.randomnoun.p7spy").setLevel(
+				mode.equals("p7spyDebug") || mode.equals("p7spyTrap") ? Level.DEBUG : Level.INFO);
+
+			if (mode.equals("p7spyTrap")) {
+				File file = new File("p7spy-config.properties");
+				if (!file.exists()) {
+					OutputStream os = new FileOutputStream(file);
+					os.write("matchText=.*\\\\s+FROM\\\\s+no_such_table.*\n".getBytes("ISO-8859-1"));
+					os.close();
+					trapConfig = file;
+				}
+			}
+
+			Connection conn = DriverManager.getConnection("jdbc:derby:memory:" + DATABASE + ";create=true");
+			Statement s = conn.createStatement();
+			try {
+				s.execute("DROP TABLE bench_item");
+			} catch (SQLException sqle) {
+				// table didn't exist
+			}
+			s.execute(SQL_CREATE_TABLE);
+			s.close();
+			PreparedStatement ps = conn.prepareStatement(SQL_INSERT_ITEM);
+			for (int i = 0; i < ROWS; i++) {
+				ps.setString(1, "thing");
+				ps.setInt(2, i);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+			ps.close();
+			conn.close();
+
+			url = mode.equals("derby") ? "jdbc:derby:memory:" + DATABASE :
+				"jdbc:p7spy#org.apache.derby.iapi.jdbc.AutoloadedDriver:derby:memory:" + DATABASE;
+		}
+
+		@TearDown
+		public void tearDown() {
+			if (trapConfig != null) {
+				trapConfig.delete();
+			}
+		}
+	}
+
+	/** Per-thread connection and statements */
+	@State(Scope.Thread)
+	public static class Session {
+
+		Connection conn;
+
+		/** Statement used by the setString, executeQuery and row loop benchmarks */
+		PreparedStatement selectPs;
+
+		/** Statement used by the executeBatch benchmark */
+		PreparedStatement updatePs;
+
+		/** Incremented on each batch, so that updates aren't no-ops */
+		int batchValue;
+
+		@Setup
+		public void setUp(Configuration config) throws SQLException {
+			conn = DriverManager.getConnection(config.url);
+			selectPs = conn.prepareStatement(SQL_SELECT_ITEMS);
+			selectPs.setString(1, "thing");
+			updatePs = conn.prepareStatement(SQL_UPDATE_ITEM);
+		}
+
+		@TearDown
+		public void tearDown() throws SQLException {
+			selectPs.close();
+			updatePs.close();
+			conn.close();
+		}
+	}
+
+	@Benchmark
+	public PreparedStatement prepareStatement(Session session) throws SQLException {
+		PreparedStatement ps = session.conn.prepareStatement(SQL_SELECT_ITEMS);
+		ps.close();
+		return ps;
+	}
+
+	@Benchmark
+	public PreparedStatement setString(Session session) throws SQLException {
+		session.selectPs.setString(1, "thing");
+		return session.selectPs;
+	}
+
+	@Benchmark
+	public ResultSet executeQuery(Session session) throws SQLException {
+		ResultSet rs = session.selectPs.executeQuery();
+		rs.close();
+		return rs;
+	}
+
+	@Benchmark
+	public int rowLoop(Session session, Blackhole bh) throws SQLException {
+		int rows = 0;
+		ResultSet rs = session.selectPs.executeQuery();
+		while (rs.next()) {
+			bh.consume(rs.getObject(1));
+			bh.consume(rs.getObject(2));
+			bh.consume(rs.getObject(3));
+			rows++;
+		}
+		rs.close();
+		return rows;
+	}
+
+	@Benchmark
+	public int[] executeBatch(Session session) throws SQLException {
+		PreparedStatement ps = session.updatePs;
+		int value = session.batchValue++;
+		for (int i = 1; i <= BATCH_SIZE; i++) {
+			ps.setInt(1, value);
+			ps.setInt(2, i);
+			ps.addBatch();
+		}
+		return ps.executeBatch();
+	}
+
+	/** Runs all p7spy benchmarks, with the gc profiler enabled. Any arguments are ignored.
+	 *
+	 * @param args command-line arguments
+	 *
+	 * @throws RunnerException if the benchmarks could not be run
+	 */
+	public static void main(String args[]) throws RunnerException {
+		Options opt = new OptionsBuilder()
+			.include(P7SpyJdbcBenchmark.class.getPackage().getName() + ".*")
+			.addProfiler(GCProfiler.class)
+			.build();
+		new Runner(opt).run();
+	}
+
+}
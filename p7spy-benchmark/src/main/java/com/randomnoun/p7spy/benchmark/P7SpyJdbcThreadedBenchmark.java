@@ -0,0 +1,14 @@
+package com.randomnoun.p7spy.benchmark;
+
+import org.openjdk.jmh.annotations.Threads;
+
+/** Runs the {@link P7SpyJdbcBenchmark} benchmarks from 4 threads concurrently, each with its
+ * own connection, to expose any contention introduced by the p7spy wrappers (e.g. in log4j,
+ * the trap configuration or the statistics collectors).
+ *
+ * @author knoxg
+ */
+@Threads(4)
+public class P7SpyJdbcThreadedBenchmark extends P7SpyJdbcBenchmark {
+
+}
@@ -0,0 +1,479 @@
+package com.randomnoun.p7spy.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+import com.randomnoun.p7spy.stats.P7SpyHistogram;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+
+/** A load-test harness which drives many threads through the p7spy JDBC wrappers at once, to
+ * determine whether p7spy serialises threads or pins the carrier threads of virtual threads.
+ *
+ * <p>Unlike the JMH benchmarks, which run a single operation on a few threads, this harness starts
+ * thousands of threads, each of which repeatedly borrows a connection from a fixed-size (and fair) pool of
+ * <tt>jdbc:p7spy:derby:memory:</tt> connections and runs a mixed workload on it: a PreparedStatement
+ * query and row loop, a Statement query containing literals, an update, and an occasional batch.
+ * The same workload is run once on virtual threads and once on platform threads.
+ *
+ * <p>For each run, the following are reported:
+ * <ul>
+ * <li>throughput, in units of work per second
+ * <li>latency percentiles of each unit of work, excluding the time spent waiting for a connection
+ * <li>latency percentiles of waiting for a connection from the pool
+ * <li><tt>jdk.VirtualThreadPinned</tt> JFR events, grouped by the frame that pinned the carrier
+ * <li><tt>jdk.JavaMonitorEnter</tt> (contended <tt>synchronized</tt>) and <tt>jdk.ThreadPark</tt>
+ *   (contended <tt>java.util.concurrent</tt> locks) JFR events, grouped by the monitor class and the
+ *   first frame outside the JDK
+ * </ul>
+ *
+ * <p>The harness is compiled for Java 11, so virtual threads are created reflectively; on JVMs without
+ * virtual threads (before Java 21, or 19 without <tt>--enable-preview</tt>) only the platform thread run is
+ * performed. Percentiles are estimated with a {@link P7SpyHistogram}, so are accurate to within 12.5%.
+ *
+ * <p>Run with
+ * <pre>
+ * java -cp target/benchmarks.jar com.randomnoun.p7spy.benchmark.P7SpyStressHarness [options]
+ * </pre>
+ *
+ * where options are
+ * <ul>
+ * <li><tt>--mode m</tt> - one of the {@link P7SpyJdbcBenchmark} modes: <tt>derby</tt>, <tt>p7spyOff</tt>,
+ *   <tt>p7spyDebug</tt> or <tt>p7spyTrap</tt>. Defaults to <tt>p7spyDebug</tt>.
+ * <li><tt>--type t</tt> - <tt>virtual</tt>, <tt>platform</tt> or <tt>both</tt>. Defaults to <tt>both</tt>.
+ * <li><tt>--threads n</tt> - the number of threads in each run. Defaults to 2000.
+ * <li><tt>--connections n</tt> - the number of pooled connections. Defaults to 32.
+ * <li><tt>--warmup s</tt> - seconds to run before measuring. Defaults to 3.
+ * <li><tt>--duration s</tt> - seconds to measure. Defaults to 10.
+ * <li><tt>--jfr file</tt> - keep the JFR recording of each run, in <tt>file</tt> with the thread type
+ *   appended to its name. By default recordings are deleted once they have been summarised.
+ * </ul>
+ *
+ * @author knoxg
+ */
+public class P7SpyStressHarness {
+
+	/** Number of rows in the table */
+	public static final int ROWS = 1000;
+
+	/** Number of rows with the same name, i.e. the number of rows read by each row loop */
+	public static final int ROWS_PER_NAME = 10;
+
+	/** Number of statements in each batch */
+	public static final int BATCH_SIZE = 10;
+
+	/** Number of distinct literal values used in Statement queries */
+	public static final int LITERALS = 20;
+
+	/** Name of the in-memory database */
+	public static final String DATABASE = "p7spyStressDB";
+
+	public static final String SQL_CREATE_TABLE =
+		"CREATE TABLE stress_item ( " +
+		"  item_id INT NOT NULL GENERATED ALWAYS AS IDENTITY CONSTRAINT stress_item_pk PRIMARY KEY, " +
+		"  item_name VARCHAR(32) NOT NULL, " +
+		"  item_value INT NOT NULL) ";
+	public static final String SQL_CREATE_INDEX = "CREATE INDEX stress_item_name ON stress_item ( item_name )";
+	public static final String SQL_INSERT_ITEM = "INSERT INTO stress_item ( item_name, item_value ) VALUES ( ?, ? )";
+	public static final String SQL_SELECT_ITEMS = "SELECT item_id, item_name, item_value FROM stress_item WHERE item_name = ?";
+	public static final String SQL_UPDATE_ITEM = "UPDATE stress_item SET item_value = ? WHERE item_id = ?";
+
+	/** Number of events included in each section of the JFR summary */
+	private static final int TOP_N = 10;
+
+	/** Percentiles reported */
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+	private String mode = "p7spyDebug";
+	private String type = "both";
+	private int threadCount = 2000;
+	private int connectionCount = 32;
+	private int warmupSeconds = 3;
+	private int durationSeconds = 10;
+	private String jfrFile;
+
+	/** The JDBC URL of each pooled connection */
+	private String url;
+
+	/** A pooled connection and its prepared statements */
+	static class Session {
+		Connection conn;
+		Statement s;
+		PreparedStatement selectPs;
+		PreparedStatement updatePs;
+
+		Session(String url) throws SQLException {
+			conn = DriverManager.getConnection(url);
+			s = conn.createStatement();
+			selectPs = conn.prepareStatement(SQL_SELECT_ITEMS);
+			updatePs = conn.prepareStatement(SQL_UPDATE_ITEM);
+		}
+
+		void close() throws SQLException {
+			selectPs.close();
+			updatePs.close();
+			s.close();
+			conn.close();
+		}
+	}
+
+	/** The results of a single run */
+	static class Run {
+		final String name;
+		final P7SpyHistogram latency = new P7SpyHistogram();
+		final P7SpyHistogram poolWait = new P7SpyHistogram();
+		final LongAdder operations = new LongAdder();
+		final LongAdder errors = new LongAdder();
+		final AtomicLong maxLatency = new AtomicLong();
+
+		/** True while the warmup period is in progress; results aren't recorded */
+		volatile boolean warmup = true;
+
+		/** True when threads should stop */
+		volatile boolean stopped;
+
+		Run(String name) {
+			this.name = name;
+		}
+	}
+
+	/** Returns a factory for virtual threads, or null if this JVM doesn't support them */
+	static ThreadFactory getVirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "p7spy-stress-", 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// NoSuchMethodException before Java 19, UnsupportedOperationException in 19 and 20 without --enable-preview
+			return null;
+		}
+	}
+
+	/** Returns a factory for platform threads */
+	static ThreadFactory getPlatformThreadFactory() {
+		final AtomicLong counter = new AtomicLong();
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(null, r, "p7spy-stress-" + counter.getAndIncrement(), 256 * 1024);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/** Configure log4j and create the database, in the same way as {@link P7SpyJdbcBenchmark} */
+	void setUp() throws SQLException, IOException {
+		Properties props = new Properties();
+		props.put("log4j.rootCategory", "INFO, NULL");
+		props.put("log4j.appender.NULL", "org.apache.log4j.varia.NullAppender");
+		PropertyConfigurator.configure(props);
+		Logger.getLogger("com.randomnoun.p7spy").setLevel(
+			mode.equals("p7spyDebug") || mode.equals("p7spyTrap") ? Level.DEBUG : Level.INFO);
+
+		if (mode.equals("p7spyTrap")) {
+			File file = new File("p7spy-config.properties");
+			if (!file.exists()) {
+				OutputStream os = new FileOutputStream(file);
+				os.write("matchText=.*\\\\s+FROM\\\\s+no_such_table.*\n".getBytes("ISO-8859-1"));
+				os.close();
+				file.deleteOnExit();
+			}
+		}
+
+		Connection conn = DriverManager.getConnection("jdbc:derby:memory:" + DATABASE + ";create=true");
+		Statement s = conn.createStatement();
+		s.execute(SQL_CREATE_TABLE);
+		s.execute(SQL_CREATE_INDEX);
+		s.close();
+		PreparedStatement ps = conn.prepareStatement(SQL_INSERT_ITEM);
+		for (int i = 0; i < ROWS; i++) {
+			ps.setString(1, "thing " + (i / ROWS_PER_NAME));
+			ps.setInt(2, i);
+			ps.addBatch();
+		}
+		ps.executeBatch();
+		ps.close();
+		conn.close();
+
+		url = mode.equals("derby") ? "jdbc:derby:memory:" + DATABASE :
+			"jdbc:p7spy#org.apache.derby.iapi.jdbc.AutoloadedDriver:derby:memory:" + DATABASE;
+	}
+
+	/** Run one unit of the mixed workload on a session */
+	static void runWorkload(Session session) throws SQLException {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int choice = random.nextInt(100);
+		if (choice < 60) {
+			session.selectPs.setString(1, "thing " + random.nextInt(ROWS / ROWS_PER_NAME));
+			ResultSet rs = session.selectPs.executeQuery();
+			while (rs.next()) {
+				rs.getObject(1);
+				rs.getObject(2);
+				rs.getObject(3);
+			}
+			rs.close();
+		} else if (choice < 80) {
+			// a small number of distinct literals, so that derby's statement cache is effective
+			ResultSet rs = session.s.executeQuery("SELECT COUNT(*) FROM stress_item WHERE item_value < " + random.nextInt(LITERALS) * (ROWS / LITERALS));
+			rs.next();
+			rs.getInt(1);
+			rs.close();
+		} else if (choice < 95) {
+			session.updatePs.setInt(1, random.nextInt(ROWS));
+			session.updatePs.setInt(2, random.nextInt(ROWS) + 1);
+			session.updatePs.executeUpdate();
+		} else {
+			for (int i = 0; i < BATCH_SIZE; i++) {
+				session.updatePs.setInt(1, random.nextInt(ROWS));
+				session.updatePs.setInt(2, random.nextInt(ROWS) + 1);
+				session.updatePs.addBatch();
+			}
+			session.updatePs.executeBatch();
+		}
+	}
+
+	/** The body of each thread; runs the workload until the run is stopped */
+	static void work(Run run, BlockingQueue<Session> pool) {
+		while (!run.stopped) {
+			long start = System.nanoTime();
+			Session session;
+			try {
+				session = pool.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			long acquired = System.nanoTime();
+			try {
+				runWorkload(session);
+			} catch (SQLException e) {
+				run.errors.increment();
+			} finally {
+				pool.add(session);
+			}
+			long end = System.nanoTime();
+			if (!run.warmup) {
+				run.operations.increment();
+				run.poolWait.record(acquired - start);
+				run.latency.record(end - acquired);
+				long latency = end - acquired;
+				long max = run.maxLatency.get();
+				while (latency > max && !run.maxLatency.compareAndSet(max, latency)) {
+					max = run.maxLatency.get();
+				}
+			}
+		}
+	}
+
+	/** Run the workload on threads created by the supplied factory, and print the results */
+	void run(String name, ThreadFactory factory) throws Exception {
+		final BlockingQueue<Session> pool = new ArrayBlockingQueue<Session>(connectionCount, true);
+		for (int i = 0; i < connectionCount; i++) {
+			pool.add(new Session(url));
+		}
+		final Run run = new Run(name);
+
+		Recording recording = new Recording();
+		recording.setName("p7spy-stress-" + name);
+		recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO).withStackTrace();
+		recording.enable("jdk.JavaMonitorEnter").withThreshold(Duration.ZERO).withStackTrace();
+		recording.enable("jdk.ThreadPark").withThreshold(Duration.ofMillis(1)).withStackTrace();
+
+		List<Thread> threads = new ArrayList<Thread>(threadCount);
+		for (int i = 0; i < threadCount; i++) {
+			threads.add(factory.newThread(new Runnable() {
+				public void run() {
+					work(run, pool);
+				}
+			}));
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+		Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+		recording.start();
+		run.warmup = false;
+		long start = System.nanoTime();
+		Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+		run.stopped = true;
+		long elapsed = System.nanoTime() - start;
+		recording.stop();
+		for (Thread t : threads) {
+			t.join();
+		}
+		for (Session session : pool) {
+			session.close();
+		}
+
+		Path path = jfrFile == null ? Files.createTempFile("p7spy-stress-", ".jfr") : new File(jfrFile + "-" + name + ".jfr").toPath();
+		recording.dump(path);
+		recording.close();
+		List<RecordedEvent> events = RecordingFile.readAllEvents(path);
+		if (jfrFile == null) {
+			Files.delete(path);
+		}
+
+		System.out.println(name + " threads: " + threadCount + " threads, " + connectionCount + " connections, mode " + mode +
+			", " + durationSeconds + "s");
+		long operations = run.operations.sum();
+		System.out.println(String.format("  throughput       %.0f ops/s (%d ops, %d errors)",
+			operations * 1e9 / elapsed, operations, run.errors.sum()));
+		System.out.println("  latency (ms)     " + formatPercentiles(run.latency) + String.format(" max=%.3f", run.maxLatency.get() / 1e6));
+		System.out.println("  pool wait (ms)   " + formatPercentiles(run.poolWait));
+		printEvents("  pinned", events, "jdk.VirtualThreadPinned", null);
+		printEvents("  monitor enter", events, "jdk.JavaMonitorEnter", "monitorClass");
+		printEvents("  thread park", events, "jdk.ThreadPark", "parkedClass");
+		System.out.println();
+	}
+
+	/** Returns the estimated percentiles of a histogram, in milliseconds */
+	private static String formatPercentiles(P7SpyHistogram histogram) {
+		long[] values = histogram.getPercentiles(PERCENTILES);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < PERCENTILES.length; i++) {
+			if (i > 0) { sb.append(' '); }
+			sb.append(String.format("p%s=%.3f", PERCENTILES[i] == Math.floor(PERCENTILES[i]) ?
+				String.valueOf((int) PERCENTILES[i]) : String.valueOf(PERCENTILES[i]), values[i] / 1e6));
+		}
+		return sb.toString();
+	}
+
+	/** Print the number and total duration of JFR events of the supplied type, and the most frequent
+	 * (class, frame) pairs
+	 *
+	 * @param label label for the events
+	 * @param events all events in the recording
+	 * @param eventType the name of the event type
+	 * @param classField the name of the field containing the monitor or parked class, or null
+	 */
+	private static void printEvents(String label, List<RecordedEvent> events, String eventType, String classField) {
+		Map<String, long[]> groups = new HashMap<String, long[]>();
+		long count = 0;
+		long totalNanos = 0;
+		for (RecordedEvent event : events) {
+			if (!event.getEventType().getName().equals(eventType)) { continue; }
+			long nanos = event.getDuration().toNanos();
+			count++;
+			totalNanos += nanos;
+			String key = getFrame(event.getStackTrace());
+			if (classField != null) {
+				RecordedClass c = event.getValue(classField);
+				key = (c == null ? "(unknown)" : c.getName()) + " at " + key;
+			}
+			long[] group = groups.get(key);
+			if (group == null) {
+				group = new long[2];
+				groups.put(key, group);
+			}
+			group[0]++;
+			group[1] += nanos;
+		}
+		System.out.println(String.format("%-18s %d events, %.3f ms total", label, count, totalNanos / 1e6));
+		List<Map.Entry<String, long[]>> sorted = new ArrayList<Map.Entry<String, long[]>>(groups.entrySet());
+		sorted.sort((a, b) -> Long.compare(b.getValue()[1], a.getValue()[1]));
+		for (Map.Entry<String, long[]> e : sorted.subList(0, Math.min(TOP_N, sorted.size()))) {
+			System.out.println(String.format("    %d events, %.3f ms : %s", e.getValue()[0], e.getValue()[1] / 1e6, e.getKey()));
+		}
+	}
+
+	/** Returns the first frame of a stack trace outside the JDK, or the first frame if all frames are in the JDK */
+	private static String getFrame(RecordedStackTrace stackTrace) {
+		if (stackTrace == null || stackTrace.getFrames().isEmpty()) { return "(no stack trace)"; }
+		RecordedFrame first = stackTrace.getFrames().get(0);
+		for (RecordedFrame frame : stackTrace.getFrames()) {
+			String className = frame.getMethod().getType().getName();
+			if (!(className.startsWith("java.") || className.startsWith("jdk.") || className.startsWith("sun."))) {
+				first = frame;
+				break;
+			}
+		}
+		return first.getMethod().getType().getName() + "." + first.getMethod().getName() + ":" + first.getLineNumber();
+	}
+
+	/** Runs the harness; see the class documentation for options.
+	 *
+	 * @param args command-line arguments
+	 *
+	 * @throws Exception if the harness could not be run
+	 */
+	public static void main(String args[]) throws Exception {
+		P7SpyStressHarness harness = new P7SpyStressHarness();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.startsWith("--") && i == args.length - 1) {
+				harness.type = null;
+				break;
+			} else if (arg.equals("--mode")) {
+				harness.mode = args[++i];
+			} else if (arg.equals("--type")) {
+				harness.type = args[++i];
+			} else if (arg.equals("--threads")) {
+				harness.threadCount = Integer.parseInt(args[++i]);
+			} else if (arg.equals("--connections")) {
+				harness.connectionCount = Integer.parseInt(args[++i]);
+			} else if (arg.equals("--warmup")) {
+				harness.warmupSeconds = Integer.parseInt(args[++i]);
+			} else if (arg.equals("--duration")) {
+				harness.durationSeconds = Integer.parseInt(args[++i]);
+			} else if (arg.equals("--jfr")) {
+				harness.jfrFile = args[++i];
+			} else {
+				harness.type = null;
+				break;
+			}
+		}
+		if (harness.type == null || !(harness.type.equals("virtual") || harness.type.equals("platform") || harness.type.equals("both"))) {
+			System.err.println("Usage: java " + P7SpyStressHarness.class.getName() +
+				" [--mode derby|p7spyOff|p7spyDebug|p7spyTrap] [--type virtual|platform|both] [--threads n]" +
+				" [--connections n] [--warmup s] [--duration s] [--jfr file]");
+			System.exit(1);
+		}
+
+		harness.setUp();
+		if (!harness.type.equals("platform")) {
+			ThreadFactory factory = getVirtualThreadFactory();
+			if (factory == null) {
+				System.out.println("virtual threads are not supported by this JVM (" + System.getProperty("java.version") + "); skipping");
+				System.out.println();
+			} else {
+				harness.run("virtual", factory);
+			}
+		}
+		if (!harness.type.equals("virtual")) {
+			harness.run("platform", getPlatformThreadFactory());
+		}
+	}
+
+}
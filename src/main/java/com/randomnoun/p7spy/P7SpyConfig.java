@@ -0,0 +1,134 @@
+package com.randomnoun.p7spy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.PatternSyntaxException;
+
+import com.randomnoun.p7spy.slow.P7SpySlowThresholds;
+import com.randomnoun.p7spy.trap.P7SpyTrap;
+import com.randomnoun.p7spy.trap.P7SpyTrapMatcher;
+
+/** An immutable snapshot of the p7spy runtime configuration, as read from the
+ * <tt>p7spy-config.properties</tt> file.
+ *
+ * <p>SQL traps are defined by the <tt>matchText</tt> property, and any number of named
+ * <tt>matchText.<i>name</i></tt> properties (e.g. <tt>matchText.1</tt>, <tt>matchText.2</tt>). The action
+ * performed when each trap matches is set by the corresponding <tt>matchAction</tt> or
+ * <tt>matchAction.<i>name</i></tt> property, which may be <tt>stack</tt> (log a stack trace; the default),
+ * <tt>count</tt> (only count matches) or <tt>once</tt> (log a stack trace the first time the trap matches).
+ *
+ * <p>The thresholds used to log slow method invocations are defined by the <tt>slowThreshold</tt> properties;
+ * see {@link P7SpySlowThresholds}.
+ *
+ * <p>A new instance is created each time the configuration file changes, and is published
+ * to the wrapper classes through {@link P7SpyTrace#setConfig(P7SpyConfig)}; instances are never modified,
+ * so they can be read by any number of threads without locking.
+ *
+ * @see P7SpyConfigWatcher
+ *
+ * @author knoxg
+ */
+public class P7SpyConfig {
+
+	/** Orders trap names numerically if they are numbers, and alphabetically otherwise */
+	private static final Comparator<String> TRAP_NAME_COMPARATOR = new Comparator<String>() {
+		public int compare(String a, String b) {
+			boolean aNumeric = isNumeric(a), bNumeric = isNumeric(b);
+			if (aNumeric && bNumeric) {
+				return a.length() != b.length() ? a.length() - b.length() : a.compareTo(b);
+			} else if (aNumeric != bNumeric) {
+				return aNumeric ? -1 : 1;
+			}
+			return a.compareTo(b);
+		}
+		private boolean isNumeric(String s) {
+			for (int i = 0; i < s.length(); i++) {
+				if (!Character.isDigit(s.charAt(i))) { return false; }
+			}
+			return true;
+		}
+	};
+
+	/** A configuration with no properties set */
+	public static final P7SpyConfig EMPTY = new P7SpyConfig(new Properties());
+
+	/** The properties this configuration was created from */
+	private final Properties properties;
+
+	/** Matches SQL against the traps defined in this configuration */
+	private final P7SpyTrapMatcher trapMatcher;
+
+	/** Thresholds used to log slow method invocations */
+	private final P7SpySlowThresholds slowThresholds;
+
+	/** Create a new configuration
+	 *
+	 * @param properties the configuration properties. The properties are copied, so later changes
+	 *   to this object do not affect the configuration.
+	 *
+	 * @throws PatternSyntaxException if a <tt>matchText</tt> property is not a valid regular expression
+	 * @throws IllegalArgumentException if a <tt>matchAction</tt> or <tt>slowThreshold</tt> property is not valid
+	 */
+	public P7SpyConfig(Properties properties) {
+		this.properties = new Properties();
+		this.properties.putAll(properties);
+
+		List<P7SpyTrap> traps = new ArrayList<P7SpyTrap>();
+		String matchText = properties.getProperty("matchText");
+		if (matchText != null) {
+			traps.add(new P7SpyTrap(null, matchText, P7SpyTrap.parseAction(properties.getProperty("matchAction"))));
+		}
+		List<String> names = new ArrayList<String>();
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith("matchText.") && key.length() > 10) {
+				names.add(key.substring(10));
+			}
+		}
+		Collections.sort(names, TRAP_NAME_COMPARATOR);
+		for (String name : names) {
+			traps.add(new P7SpyTrap(name, properties.getProperty("matchText." + name),
+				P7SpyTrap.parseAction(properties.getProperty("matchAction." + name))));
+		}
+		this.trapMatcher = traps.isEmpty() ? P7SpyTrapMatcher.EMPTY : new P7SpyTrapMatcher(traps);
+		this.slowThresholds = new P7SpySlowThresholds(properties);
+	}
+
+	/** Returns a configuration property
+	 *
+	 * @param name the property name
+	 *
+	 * @return the property value, or null if it is not set
+	 */
+	public String getProperty(String name) {
+		return properties.getProperty(name);
+	}
+
+	/** Returns a copy of the properties this configuration was created from
+	 *
+	 * @return the configuration properties
+	 */
+	public Properties getProperties() {
+		Properties copy = new Properties();
+		copy.putAll(properties);
+		return copy;
+	}
+
+	/** Returns the unnamed regex used to test against SQL, or null if it is not set */
+	public String getMatchText() {
+		return properties.getProperty("matchText");
+	}
+
+	/** Returns the object used to match SQL against the traps defined in this configuration */
+	public P7SpyTrapMatcher getTrapMatcher() {
+		return trapMatcher;
+	}
+
+	/** Returns the thresholds used to log slow method invocations */
+	public P7SpySlowThresholds getSlowThresholds() {
+		return slowThresholds;
+	}
+
+}
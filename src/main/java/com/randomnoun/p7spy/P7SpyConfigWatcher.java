@@ -0,0 +1,236 @@
+package com.randomnoun.p7spy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.randomnoun.p7spy.trap.P7SpyTrap;
+import com.randomnoun.p7spy.trap.P7SpyTrapMatcher;
+import com.randomnoun.p7spy.trap.P7SpyTrapStack;
+
+/** Loads the <tt>p7spy-config.properties</tt> file, and reloads it whenever it changes.
+ *
+ * <p>The file is read on a background daemon thread, which is notified of changes by a
+ * {@link WatchService} on the directory containing the file. Since some filesystems (e.g. network
+ * filesystems) don't generate change events, the thread also checks the file's modification time
+ * and size periodically. Each time the file is read, a new {@link P7SpyConfig} snapshot is created and
+ * published through {@link P7SpyTrace#setConfig(P7SpyConfig)}, so application threads never perform
+ * file I/O or acquire locks to read the configuration.
+ *
+ * <p>If the file cannot be read, or contains an invalid regular expression or action, a warning is logged and
+ * the previous configuration is retained. If the file is deleted, the empty configuration is used.
+ * When a configuration is replaced, the number of times each of its traps matched, in total and at each
+ * stack, is logged at INFO level.
+ *
+ * <p>The following system properties are read when this class is loaded:
+ * <ul>
+ * <li><tt>p7spy.config.reloadInterval</tt> - the time between modification checks, in seconds,
+ *   or 0 to read the file only once. Defaults to 30.
+ * </ul>
+ *
+ * <p>The location of the file is set by the <tt>p7spy.config</tt> system property; see {@link P7SpyTrace}.
+ *
+ * @author knoxg
+ */
+public class P7SpyConfigWatcher {
+
+	/** Logger instance for this class */
+	static Logger logger = Logger.getLogger(P7SpyConfigWatcher.class);
+
+	/** Time to wait after a change event before reading the file, in msec, so that a file
+	 * being written by an editor is read once it is complete */
+	private static final long SETTLE_TIME = 100;
+
+	/** Time between modification checks, in seconds */
+	private static long reloadInterval = Long.getLong("p7spy.config.reloadInterval", 30);
+
+	/** The configuration file being watched */
+	private static volatile File configFile;
+
+	/** True if the configuration file existed when it was last read */
+	private static boolean loadedExists;
+
+	/** Modification time of the configuration file when it was last read */
+	private static long loadedLastModified;
+
+	/** Size of the configuration file when it was last read */
+	private static long loadedLength;
+
+	/** Background thread which reloads the configuration file */
+	private static Thread watcherThread;
+
+	/** Read the configuration file, and start the background thread which reloads it when it changes.
+	 * If the thread is already running, this has the same effect as {@link #setConfigFile(File)}.
+	 *
+	 * @param file the configuration file
+	 */
+	public static synchronized void start(File file) {
+		configFile = file;
+		reload();
+		if (reloadInterval > 0 && watcherThread == null) {
+			watcherThread = new Thread(new Runnable() {
+				public void run() { watch(); }
+			}, "p7spy-config-watcher");
+			watcherThread.setDaemon(true);
+			watcherThread.start();
+		}
+	}
+
+	/** Returns the configuration file being watched
+	 *
+	 * @return the configuration file being watched
+	 */
+	public static File getConfigFile() {
+		return configFile;
+	}
+
+	/** Watch a different configuration file. The new file is read immediately.
+	 *
+	 * @param file the configuration file
+	 */
+	public static synchronized void setConfigFile(File file) {
+		configFile = file;
+		reload();
+		if (watcherThread != null) {
+			// re-register the watch service
+			watcherThread.interrupt();
+		}
+	}
+
+	/** Read the configuration file, and publish the new configuration. This is normally performed
+	 * by the background thread, but can be invoked directly to force the file to be read.
+	 */
+	public static synchronized void reload() {
+		File file = configFile;
+		loadedExists = file.exists();
+		loadedLastModified = file.lastModified();
+		loadedLength = file.length();
+
+		P7SpyConfig newConfig;
+		if (!loadedExists) {
+			logger.debug("Config file '" + file.getAbsolutePath() + "' does not exist");
+			newConfig = P7SpyConfig.EMPTY;
+		} else {
+			logger.debug("Reloading config from '" + file.getAbsolutePath() + "'");
+			try {
+				Properties props = new Properties();
+				InputStream is = new FileInputStream(file);
+				try {
+					props.load(is);
+				} finally {
+					is.close();
+				}
+				newConfig = new P7SpyConfig(props);
+			} catch (IOException ioe) {
+				logger.warn("Could not read '" + file.getAbsolutePath() + "'; configuration unchanged: " + ioe.getMessage());
+				return;
+			} catch (IllegalArgumentException iae) {
+				// includes PatternSyntaxException
+				logger.warn("Invalid configuration in '" + file.getAbsolutePath() + "'; configuration unchanged: " + iae.getMessage());
+				return;
+			}
+		}
+
+		P7SpyTrapMatcher oldTraps = P7SpyTrace.getConfig().getTrapMatcher();
+		P7SpyTrapMatcher newTraps = newConfig.getTrapMatcher();
+		for (P7SpyTrap trap : oldTraps.getTraps()) {
+			long hitCount = trap.getHitCount();
+			if (hitCount > 0) {
+				StringBuilder sb = new StringBuilder();
+				sb.append("SQL trap ").append(trap).append(" matched ").append(hitCount).append(" time").append(hitCount == 1 ? "" : "s");
+				for (P7SpyTrapStack stack : trap.getStacks()) {
+					sb.append("\n\tstack ").append(stack.getId()).append(": ").append(stack.getHitCount());
+				}
+				logger.info(sb.toString());
+			}
+		}
+		if (newTraps.isEmpty() && !oldTraps.isEmpty()) {
+			logger.debug("Disabling SQL matching");
+		} else if (!newTraps.getTraps().toString().equals(oldTraps.getTraps().toString())) {
+			logger.debug("Enabling SQL matching on " + newTraps.getTraps());
+		}
+		P7SpyTrace.setConfig(newConfig);
+	}
+
+	/** Returns true if the configuration file has been created, modified or deleted since it was last read */
+	private static synchronized boolean isModified() {
+		File file = configFile;
+		return file.exists() != loadedExists || file.lastModified() != loadedLastModified || file.length() != loadedLength;
+	}
+
+	/** Reloads the configuration file whenever it changes. Runs on the background thread. */
+	private static void watch() {
+		WatchService watchService = null;
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+		} catch (IOException ioe) {
+			logger.warn("Could not create WatchService; config file will be polled every " + reloadInterval + " seconds: " + ioe.getMessage());
+		}
+		Path watchedDir = null;
+		WatchKey watchKey = null;
+		while (true) {
+			File file = configFile;
+			Path dir = file.getAbsoluteFile().getParentFile().toPath();
+			if (watchService != null && !dir.equals(watchedDir)) {
+				if (watchKey != null) { watchKey.cancel(); }
+				watchedDir = dir;
+				try {
+					watchKey = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+				} catch (IOException ioe) {
+					logger.debug("Could not watch '" + dir + "'; config file will be polled: " + ioe.getMessage());
+					watchKey = null;
+				}
+				// the file may have changed before the directory was registered
+				if (isModified()) {
+					reload();
+				}
+			}
+
+			boolean changed = false;
+			try {
+				if (watchKey != null) {
+					WatchKey key = watchService.poll(reloadInterval, TimeUnit.SECONDS);
+					if (key != null) {
+						for (WatchEvent<?> event : key.pollEvents()) {
+							if (event.kind() == StandardWatchEventKinds.OVERFLOW ||
+								file.getName().equals(String.valueOf(event.context())))
+							{
+								changed = true;
+							}
+						}
+						if (!key.reset()) {
+							// directory no longer accessible; try to register it again
+							watchedDir = null;
+							watchKey = null;
+						}
+						if (changed) {
+							Thread.sleep(SETTLE_TIME);
+						}
+					}
+				} else {
+					Thread.sleep(TimeUnit.SECONDS.toMillis(reloadInterval));
+				}
+			} catch (InterruptedException ie) {
+				// config file changed by setConfigFile(); already reloaded
+				continue;
+			}
+
+			if (changed || isModified()) {
+				reload();
+			}
+		}
+	}
+
+}
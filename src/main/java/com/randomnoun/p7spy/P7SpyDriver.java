@@ -7,10 +7,16 @@ import java.sql.DriverManager;
 import java.sql.DriverPropertyInfo;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Properties;
+import java.util.WeakHashMap;
 
 import org.apache.log4j.Logger;
 
+import com.randomnoun.p7spy.datasource.P7SpyPooledConnection;
+import com.randomnoun.p7spy.sample.P7SpySampler;
+
 /** A JDBC tracing driver based loosely on the p6spy toolkit.  
  * 
  * <p>This driver intercepts calls to other JDBC drivers, and performs logging via log4j. 
@@ -81,6 +87,10 @@ public class P7SpyDriver implements Driver {
 	
     /** Logger used to dump method invocations */
     private static final Logger logger = Logger.getLogger(P7SpyDriver.class);
+    
+    /** Drivers which have been returned by {@link #getDriver(String)}. Drivers are held weakly, so that drivers 
+     * which have been deregistered from the DriverManager (and their classloaders) can be garbage collected. */
+    private static final Map<Driver, Boolean> drivers = Collections.synchronizedMap(new WeakHashMap<Driver, Boolean>());
 
     /** {@inheritDoc} */
 	public Connection connect(String url, Properties info) throws SQLException {
@@ -134,13 +144,72 @@ public class P7SpyDriver implements Driver {
 		}
 		*/
 		
-		Connection wrappedConnection = DriverManager.getConnection(wrappedUrl, info);
+		Connection wrappedConnection = getDriver(wrappedUrl).connect(wrappedUrl, info);
+		if (wrappedConnection == null) {
+			throw new SQLException("No suitable driver found for '" + wrappedUrl + "'", "08001");
+		}
+		return wrapConnection(wrappedConnection);
+	}
+	
+	/** Returns the driver which accepts the supplied URL. Drivers that have previously accepted a URL are 
+	 * asked first, so that the DriverManager doesn't have to ask every registered driver whether it accepts the 
+	 * URL each time a connection is created. URLs aren't cached, as they may contain credentials. A cached 
+	 * driver is only returned if it is still registered with the DriverManager.
+	 * 
+	 * @param url a JDBC URL
+	 * 
+	 * @return the driver which accepts the URL
+	 * 
+	 * @throws SQLException if no registered driver accepts the URL
+	 */
+	public static Driver getDriver(String url) throws SQLException {
+		Driver driver = null;
+		synchronized (drivers) {
+			for (Driver cachedDriver : drivers.keySet()) {
+				if (cachedDriver.acceptsURL(url)) { driver = cachedDriver; break; }
+			}
+		}
+		if (driver != null) {
+			Driver cachedDriver = driver;
+			if (DriverManager.drivers().anyMatch(d -> d == cachedDriver)) { return driver; }
+			drivers.remove(driver);
+		}
+		driver = DriverManager.getDriver(url);
+		drivers.put(driver, Boolean.TRUE);
+		return driver;
+	}
+	
+	/** Wrap a connection in a p7spy Connection wrapper. The connection is subject to connection sampling 
+	 * (see {@link P7SpySampler}).
+	 * 
+	 * @param wrappedConnection the connection to wrap
+	 * 
+	 * @return a p7spy Connection wrapper
+	 * 
+	 * @throws SQLException if the wrapper class could not be instantiated
+	 */
+	public static Connection wrapConnection(Connection wrappedConnection) throws SQLException {
+		return wrapConnection(wrappedConnection, null);
+	}
+	
+	/** Wrap a logical connection supplied by a PooledConnection in a p7spy Connection wrapper. The connection is 
+	 * subject to connection sampling (see {@link P7SpySampler}).
+	 * 
+	 * @param wrappedConnection the connection to wrap
+	 * @param pooledConnection the PooledConnection wrapper that supplied the connection, or null
+	 * 
+	 * @return a p7spy Connection wrapper
+	 * 
+	 * @throws SQLException if the wrapper class could not be instantiated
+	 */
+	public static Connection wrapConnection(Connection wrappedConnection, P7SpyPooledConnection pooledConnection) throws SQLException {
 		String connectionClass = "com.randomnoun.p7spy.jdbc_4_3.P7Connection"; // JDK 9+
 		
 		Connection conn = null;
 		try {
 			Class clazz = Class.forName(connectionClass);
-			conn = (Connection) clazz.getConstructor(new Class[] { Connection.class }).newInstance( new Object[] { wrappedConnection });
+			conn = (Connection) clazz.getConstructor(new Class[] { Connection.class, boolean.class, P7SpyPooledConnection.class }).newInstance( 
+				new Object[] { wrappedConnection, P7SpySampler.sampleConnection(), pooledConnection });
 		} catch (ClassNotFoundException cnfe) {
 			throw (SQLException) new SQLException("Could not initialise '" + connectionClass + "' wrapper").initCause(cnfe);
 		} catch (IllegalArgumentException iae) {
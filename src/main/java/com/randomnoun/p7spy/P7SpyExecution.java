@@ -0,0 +1,79 @@
+package com.randomnoun.p7spy;
+
+import com.randomnoun.p7spy.repeat.P7SpyRepeatDetector;
+import com.randomnoun.p7spy.stats.P7SpyAttribution;
+import com.randomnoun.p7spy.stats.P7SpyStatistics;
+
+/** Receives notifications from the generated wrapper classes whenever SQL is executed through a
+ * Statement, PreparedStatement or CallableStatement (i.e. whenever an <tt>execute*</tt> method is invoked).
+ *
+ * <p>Unlike the method logging performed by the wrappers, these notifications are generated regardless
+ * of the log4j level of the wrapper classes, which allows SQL to be aggregated without logging every
+ * method invocation. Notifications are passed on to whichever collectors are enabled.
+ *
+ * @author knoxg
+ */
+public class P7SpyExecution {
+
+	/** Returns true if any collectors are interested in SQL executions. If this method returns false,
+	 * the wrappers will not time <tt>execute*</tt> methods or call {@link #onExecute(Object, Object, int, String, Object, Throwable, long)}.
+	 *
+	 * @return true if any collectors are interested in SQL executions
+	 */
+	public static boolean isEnabled() {
+		return P7SpyStatistics.isEnabled() || P7SpyStatistics.isTablesEnabled() || P7SpyRepeatDetector.isEnabled() ||
+			P7SpyAttribution.isEnabled();
+	}
+
+	/** Called by the generated wrapper classes after an <tt>execute*</tt> method has completed
+	 *
+	 * @param source the statement wrapper
+	 * @param connection the connection wrapper that created the statement, or null if not known
+	 * @param methodId the id of the method invoked, as registered in {@link P7SpyMethods}
+	 * @param sql the SQL executed, or null if it is not known
+	 * @param result the value returned by the method, or null
+	 * @param throwable the exception thrown by the method, or null
+	 * @param startNanos the System.nanoTime() when the method was invoked
+	 */
+	public static void onExecute(Object source, Object connection, int methodId, String sql, Object result, Throwable throwable, long startNanos) {
+		long durationNanos = System.nanoTime() - startNanos;
+		if (P7SpyStatistics.isEnabled() || P7SpyStatistics.isTablesEnabled()) {
+			P7SpyStatistics.record(sql, durationNanos, getRowCount(result), throwable != null);
+		}
+		if (P7SpyRepeatDetector.isEnabled()) {
+			P7SpyRepeatDetector.record(connection, sql, startNanos, durationNanos);
+		}
+		if (P7SpyAttribution.isEnabled()) {
+			P7SpyAttribution.record(sql, durationNanos, getRowCount(result), throwable != null);
+		}
+	}
+
+	/** Returns the number of rows affected by a statement, from the value returned by an
+	 * <tt>executeUpdate</tt>, <tt>executeLargeUpdate</tt>, <tt>executeBatch</tt> or
+	 * <tt>executeLargeBatch</tt> method.
+	 *
+	 * @param result the value returned by an <tt>execute*</tt> method
+	 *
+	 * @return the number of rows affected, or -1 if not known
+	 */
+	static long getRowCount(Object result) {
+		if (result instanceof Integer || result instanceof Long) {
+			return ((Number) result).longValue();
+		} else if (result instanceof int[]) {
+			// batch results may include SUCCESS_NO_INFO (-2) or EXECUTE_FAILED (-3)
+			long rowCount = 0;
+			for (int count : (int[]) result) {
+				if (count > 0) { rowCount += count; }
+			}
+			return rowCount;
+		} else if (result instanceof long[]) {
+			long rowCount = 0;
+			for (long count : (long[]) result) {
+				if (count > 0) { rowCount += count; }
+			}
+			return rowCount;
+		}
+		return -1;
+	}
+
+}
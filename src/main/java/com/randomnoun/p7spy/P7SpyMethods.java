@@ -0,0 +1,86 @@
+package com.randomnoun.p7spy;
+
+/** Maps the method ids used in the generated JDBC wrappers to interface and method names.
+ *
+ * <p>Method ids are assigned by the {@link com.randomnoun.p7spy.generator.ClassStubGenerator} when
+ * the wrappers are generated, and are registered by each wrapper class in a static initialiser. This allows
+ * a method invocation to be recorded as a single <tt>int</tt>, rather than as a formatted String.
+ *
+ * @author knoxg
+ */
+public class P7SpyMethods {
+
+	/** Information about a single stubbed method */
+	public static class P7SpyMethod {
+
+		/** The method id */
+		private final int methodId;
+
+		/** The unqualified name of the JDBC interface being wrapped (e.g. "ResultSet") */
+		private final String interfaceName;
+
+		/** The name of the method, or "&lt;init&gt;" for wrapper constructors */
+		private final String methodName;
+
+		/** True if the method returns a value */
+		private final boolean hasReturnValue;
+
+		public P7SpyMethod(int methodId, String interfaceName, String methodName, boolean hasReturnValue) {
+			this.methodId = methodId;
+			this.interfaceName = interfaceName;
+			this.methodName = methodName;
+			this.hasReturnValue = hasReturnValue;
+		}
+
+		/** Returns the method id */
+		public int getMethodId() { return methodId; }
+
+		/** Returns the unqualified name of the JDBC interface being wrapped (e.g. "ResultSet") */
+		public String getInterfaceName() { return interfaceName; }
+
+		/** Returns the name of the method, or "&lt;init&gt;" for wrapper constructors */
+		public String getMethodName() { return methodName; }
+
+		/** Returns true if the method returns a value */
+		public boolean hasReturnValue() { return hasReturnValue; }
+
+		/** Returns true if this method represents the construction of a wrapper */
+		public boolean isConstructor() { return methodName.equals("<init>"); }
+
+		public String toString() {
+			return interfaceName + "." + methodName;
+		}
+	}
+
+	/** Registered methods, indexed by method id */
+	private static volatile P7SpyMethod[] methods = new P7SpyMethod[256];
+
+	/** Register a method id. Called from the static initialisers of the generated wrapper classes.
+	 *
+	 * @param methodId the method id
+	 * @param interfaceName the unqualified name of the JDBC interface being wrapped (e.g. "ResultSet")
+	 * @param methodName the name of the method, or "&lt;init&gt;" for wrapper constructors
+	 * @param hasReturnValue true if the method returns a value
+	 */
+	public static synchronized void register(int methodId, String interfaceName, String methodName, boolean hasReturnValue) {
+		P7SpyMethod[] newMethods = methods;
+		if (methodId >= newMethods.length) {
+			newMethods = new P7SpyMethod[Math.max(methodId + 1, newMethods.length * 2)];
+			System.arraycopy(methods, 0, newMethods, 0, methods.length);
+		}
+		newMethods[methodId] = new P7SpyMethod(methodId, interfaceName, methodName, hasReturnValue);
+		methods = newMethods; // volatile write publishes the new entry
+	}
+
+	/** Returns the method with the supplied id, or null if that method id has not been registered
+	 *
+	 * @param methodId the method id
+	 *
+	 * @return the method with the supplied id, or null
+	 */
+	public static P7SpyMethod getMethod(int methodId) {
+		P7SpyMethod[] m = methods;
+		return (methodId < 0 || methodId >= m.length) ? null : m[methodId];
+	}
+
+}
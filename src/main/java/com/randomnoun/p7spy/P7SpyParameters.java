@@ -0,0 +1,396 @@
+package com.randomnoun.p7spy;
+
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+import com.randomnoun.p7spy.slow.P7SpySlowLog;
+
+/** The parameters set on a PreparedStatement or CallableStatement, as recorded by the generated wrapper classes.
+ *
+ * <p>Values are stored as they are passed to the <tt>set*</tt> methods, and are only formatted when
+ * {@link #appendTo(StringBuilder)} or {@link #appendInlined(StringBuilder, String)} is called. Primitive values
+ * are stored in a <tt>long[]</tt> rather than being boxed. Each statement wrapper creates a single instance the first
+ * time a parameter is recorded, which is reused for each execution of the statement;
+ * <tt>clearParameters()</tt> resets it.
+ *
+ * <p>Parameters are only recorded whilst {@link #isCaptureEnabled()} returns true; i.e. whilst parameter
+ * logging or slow-call logging is enabled. Instances are not thread-safe, which matches the JDBC statements that
+ * they belong to.
+ *
+ * <p>If parameter logging is enabled, the <tt>set*</tt> and <tt>clearParameters</tt> methods are not logged,
+ * and each <tt>execute*</tt> and <tt>addBatch</tt> method on a PreparedStatement or CallableStatement is logged
+ * with the statement's SQL and parameters, as either a list of parameters:
+ * <pre>
+ * executeUpdate() sql="INSERT INTO wish_list (wish_item) VALUES (?)" parameters={1="thing"}: 1
+ * </pre>
+ * or with the parameters inlined into the SQL:
+ * <pre>
+ * executeUpdate() [INSERT INTO wish_list (wish_item) VALUES ('thing')]: 1
+ * </pre>
+ *
+ * <p>Parameters that can't be represented as SQL literals (e.g. streams) are left as '<tt>?</tt>' placeholders
+ * in inlined SQL.
+ *
+ * <p>The following system properties are read when this class is loaded:
+ * <ul>
+ * <li><tt>p7spy.parameters</tt> - one of <tt>off</tt>, <tt>list</tt> or <tt>inline</tt>. Defaults to <tt>off</tt>,
+ *   which logs each <tt>set*</tt> method separately.
+ * </ul>
+ *
+ * @author knoxg
+ */
+public class P7SpyParameters {
+
+	/** Logger instance for this class */
+	static Logger logger = Logger.getLogger(P7SpyParameters.class);
+
+	/** How parameters are logged */
+	public enum LogMode {
+		/** Each <tt>set*</tt> method is logged separately */
+		OFF,
+		/** Parameters are logged as a list after the SQL */
+		LIST,
+		/** Parameters are inlined into the SQL */
+		INLINE
+	}
+
+	// parameter types
+	private static final byte UNSET = 0;
+	private static final byte OBJECT = 1;
+	private static final byte INT = 2;
+	private static final byte LONG = 3;
+	private static final byte SHORT = 4;
+	private static final byte BYTE = 5;
+	private static final byte BOOLEAN = 6;
+	private static final byte FLOAT = 7;
+	private static final byte DOUBLE = 8;
+
+	/** How parameters are logged */
+	private static volatile LogMode logMode = parseLogMode(System.getProperty("p7spy.parameters", "off"));
+
+	static {
+		P7SpyTrace.setFeatureEnabled(P7SpyTrace.FEATURE_PARAMETERS, logMode != LogMode.OFF);
+	}
+
+	/** Parameter types, indexed by parameter index - 1 */
+	private byte[] types = new byte[8];
+
+	/** Primitive parameter values, indexed by parameter index - 1; floats and doubles are stored as their raw bits */
+	private long[] primitives = new long[8];
+
+	/** Object parameter values, indexed by parameter index - 1 */
+	private Object[] objects = new Object[8];
+
+	/** One more than the highest parameter index set */
+	private int size = 0;
+
+	/** Convert a <tt>p7spy.parameters</tt> property value into a LogMode
+	 *
+	 * @param mode one of "off", "list" or "inline"
+	 *
+	 * @return the LogMode for that value, or LogMode.OFF if it could not be parsed
+	 */
+	static LogMode parseLogMode(String mode) {
+		if (mode.equalsIgnoreCase("off") || mode.equalsIgnoreCase("false")) { return LogMode.OFF; }
+		else if (mode.equalsIgnoreCase("list") || mode.equalsIgnoreCase("true")) { return LogMode.LIST; }
+		else if (mode.equalsIgnoreCase("inline")) { return LogMode.INLINE; }
+		logger.warn("Unknown p7spy.parameters '" + mode + "'; using 'off'");
+		return LogMode.OFF;
+	}
+
+	/** Returns how parameters are logged
+	 *
+	 * @return how parameters are logged
+	 */
+	public static LogMode getLogMode() {
+		return logMode;
+	}
+
+	/** Set how parameters are logged
+	 *
+	 * @param logMode how parameters are logged
+	 */
+	public static synchronized void setLogMode(LogMode logMode) {
+		P7SpyParameters.logMode = logMode;
+		P7SpyTrace.setFeatureEnabled(P7SpyTrace.FEATURE_PARAMETERS, logMode != LogMode.OFF);
+	}
+
+	/** Returns true if <tt>set*</tt> methods are logged as part of the following <tt>execute*</tt> or <tt>addBatch</tt>
+	 * method, rather than separately
+	 *
+	 * @return true if parameter logging is enabled
+	 */
+	public static boolean isLogEnabled() {
+		return logMode != LogMode.OFF;
+	}
+
+	/** Returns true if the generated wrapper classes should record the parameters set on statements
+	 *
+	 * @return true if parameters should be recorded
+	 */
+	public static boolean isCaptureEnabled() {
+		return logMode != LogMode.OFF || P7SpySlowLog.isEnabled();
+	}
+
+	/** Returns the array index for a parameter index, growing the arrays if necessary */
+	private int slot(int index) {
+		if (index > types.length) {
+			int length = Math.max(index, types.length * 2);
+			types = Arrays.copyOf(types, length);
+			primitives = Arrays.copyOf(primitives, length);
+			objects = Arrays.copyOf(objects, length);
+		}
+		if (index > size) { size = index; }
+		return index - 1;
+	}
+
+	/** Record a primitive parameter value */
+	private void setPrimitive(int index, byte type, long value) {
+		if (index < 1) { return; }
+		int i = slot(index);
+		types[i] = type;
+		primitives[i] = value;
+		objects[i] = null;
+	}
+
+	/** Record a parameter value
+	 *
+	 * @param index the parameter index, starting at 1
+	 * @param value the parameter value
+	 */
+	public void set(int index, Object value) {
+		if (index < 1) { return; }
+		int i = slot(index);
+		types[i] = OBJECT;
+		objects[i] = value;
+	}
+
+	/** Record an int parameter value */
+	public void set(int index, int value) { setPrimitive(index, INT, value); }
+
+	/** Record a long parameter value */
+	public void set(int index, long value) { setPrimitive(index, LONG, value); }
+
+	/** Record a short parameter value */
+	public void set(int index, short value) { setPrimitive(index, SHORT, value); }
+
+	/** Record a byte parameter value */
+	public void set(int index, byte value) { setPrimitive(index, BYTE, value); }
+
+	/** Record a boolean parameter value */
+	public void set(int index, boolean value) { setPrimitive(index, BOOLEAN, value ? 1 : 0); }
+
+	/** Record a float parameter value */
+	public void set(int index, float value) { setPrimitive(index, FLOAT, Float.floatToRawIntBits(value)); }
+
+	/** Record a double parameter value */
+	public void set(int index, double value) { setPrimitive(index, DOUBLE, Double.doubleToRawLongBits(value)); }
+
+	/** Record a null parameter value
+	 *
+	 * @param index the parameter index, starting at 1
+	 */
+	public void setNull(int index) {
+		set(index, (Object) null);
+	}
+
+	/** Remove all parameter values */
+	public void clear() {
+		Arrays.fill(types, 0, size, UNSET);
+		Arrays.fill(objects, 0, size, null);
+		size = 0;
+	}
+
+	/** Returns the highest parameter index set, or 0 if no parameters have been set
+	 *
+	 * @return the highest parameter index set
+	 */
+	public int size() {
+		return size;
+	}
+
+	/** Returns true if a parameter has been set
+	 *
+	 * @param index the parameter index, starting at 1
+	 *
+	 * @return true if the parameter has been set
+	 */
+	public boolean isSet(int index) {
+		return index >= 1 && index <= size && types[index - 1] != UNSET;
+	}
+
+	/** Returns a parameter value. Primitive values are boxed.
+	 *
+	 * @param index the parameter index, starting at 1
+	 *
+	 * @return the parameter value, or null if it has not been set
+	 */
+	public Object get(int index) {
+		if (!isSet(index)) { return null; }
+		int i = index - 1;
+		long p = primitives[i];
+		switch (types[i]) {
+			case INT: return (int) p;
+			case LONG: return p;
+			case SHORT: return (short) p;
+			case BYTE: return (byte) p;
+			case BOOLEAN: return p != 0;
+			case FLOAT: return Float.intBitsToFloat((int) p);
+			case DOUBLE: return Double.longBitsToDouble(p);
+			default: return objects[i];
+		}
+	}
+
+	/** Append a primitive parameter value to a log message or SQL statement
+	 *
+	 * @param sb the StringBuilder to append to
+	 * @param i the array index of the parameter
+	 */
+	private void appendPrimitive(StringBuilder sb, int i) {
+		long p = primitives[i];
+		switch (types[i]) {
+			case BOOLEAN: sb.append(p != 0); break;
+			case FLOAT: sb.append(Float.intBitsToFloat((int) p)); break;
+			case DOUBLE: sb.append(Double.longBitsToDouble(p)); break;
+			default: sb.append(p);
+		}
+	}
+
+	/** Append the parameters to a log message, in the form <tt>{1=123, 2="abc"}</tt>. Parameters
+	 * that have not been set are omitted.
+	 *
+	 * @param sb the log message being generated
+	 */
+	public void appendTo(StringBuilder sb) {
+		sb.append('{');
+		boolean first = true;
+		for (int i = 0; i < size; i++) {
+			if (types[i] == UNSET) { continue; }
+			if (!first) { sb.append(", "); }
+			sb.append(i + 1).append('=');
+			if (types[i] == OBJECT) {
+				P7SpyTrace.appendResult(sb, objects[i]);
+			} else {
+				appendPrimitive(sb, i);
+			}
+			first = false;
+		}
+		sb.append('}');
+	}
+
+	/** Append SQL to a log message, with each '<tt>?</tt>' placeholder replaced by the corresponding parameter
+	 * as a SQL literal. Placeholders within string literals, quoted identifiers and comments are ignored.
+	 *
+	 * @param sb the log message being generated
+	 * @param sql the SQL used to prepare the statement
+	 */
+	public void appendInlined(StringBuilder sb, String sql) {
+		int len = sql.length();
+		int index = 0;
+		int i = 0;
+		while (i < len) {
+			char ch = sql.charAt(i);
+			int end = i + 1;
+			if (ch == '\'' || ch == '"') {
+				// quoted text; doubled quotes are escaped quotes, which the loop handles as two quoted sections
+				end = sql.indexOf(ch, i + 1);
+				end = (end == -1) ? len : end + 1;
+			} else if (ch == '-' && i + 1 < len && sql.charAt(i + 1) == '-') {
+				end = sql.indexOf('\n', i);
+				end = (end == -1) ? len : end;
+			} else if (ch == '/' && i + 1 < len && sql.charAt(i + 1) == '*') {
+				end = sql.indexOf("*/", i + 2);
+				end = (end == -1) ? len : end + 2;
+			} else if (ch == '?') {
+				index++;
+				if (!appendLiteral(sb, index)) { sb.append('?'); }
+				i = end;
+				continue;
+			}
+			sb.append(sql, i, end);
+			i = end;
+		}
+	}
+
+	/** Append a parameter as a SQL literal
+	 *
+	 * @param sb the StringBuilder to append to
+	 * @param index the parameter index, starting at 1
+	 *
+	 * @return false if the parameter has not been set, or can't be represented as a literal
+	 */
+	private boolean appendLiteral(StringBuilder sb, int index) {
+		if (!isSet(index)) { return false; }
+		int i = index - 1;
+		if (types[i] == BOOLEAN) {
+			sb.append(primitives[i] != 0 ? "TRUE" : "FALSE");
+			return true;
+		} else if (types[i] != OBJECT) {
+			appendPrimitive(sb, i);
+			return true;
+		}
+		Object value = objects[i];
+		if (value == null) {
+			sb.append("NULL");
+		} else if (value instanceof Number) {
+			sb.append(value.toString());
+		} else if (value instanceof Boolean) {
+			sb.append(((Boolean) value).booleanValue() ? "TRUE" : "FALSE");
+		} else if (value instanceof java.sql.Timestamp) {
+			appendQuoted(sb.append("TIMESTAMP "), value.toString());
+		} else if (value instanceof java.sql.Date) {
+			appendQuoted(sb.append("DATE "), value.toString());
+		} else if (value instanceof java.sql.Time) {
+			appendQuoted(sb.append("TIME "), value.toString());
+		} else if (value instanceof String || value instanceof Character) {
+			appendQuoted(sb, value.toString());
+		} else if (value instanceof byte[]) {
+			sb.append("X'");
+			for (byte b : (byte[]) value) {
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			sb.append('\'');
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	/** Append a SQL string literal, doubling any embedded quotes */
+	private static void appendQuoted(StringBuilder sb, String s) {
+		sb.append('\'');
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			char ch = s.charAt(i);
+			if (ch == '\'') { sb.append('\''); }
+			sb.append(ch);
+		}
+		sb.append('\'');
+	}
+
+	/** Append the SQL and parameters of a statement to the log message of an <tt>execute*</tt> or <tt>addBatch</tt>
+	 * method, in the format set by the <tt>p7spy.parameters</tt> system property. Called by the generated wrapper classes.
+	 *
+	 * @param sb the log message being generated
+	 * @param sql the SQL used to prepare the statement, or null if not known
+	 * @param parameters the parameters set on the statement, or null if none have been recorded
+	 */
+	public static void appendExecution(StringBuilder sb, String sql, P7SpyParameters parameters) {
+		LogMode mode = logMode;
+		if (mode == LogMode.OFF) {
+			return;
+		} else if (mode == LogMode.INLINE && sql != null) {
+			sb.append(" [");
+			if (parameters == null) {
+				sb.append(sql);
+			} else {
+				parameters.appendInlined(sb, sql);
+			}
+			sb.append(']');
+		} else {
+			P7SpySlowLog.appendContext(sb, sql, parameters);
+		}
+	}
+
+}
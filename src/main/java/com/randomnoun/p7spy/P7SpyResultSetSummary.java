@@ -0,0 +1,146 @@
+package com.randomnoun.p7spy;
+
+import java.math.BigDecimal;
+
+/** Summarises the rows read through a ResultSet, instead of logging each <tt>next()</tt> and <tt>get*</tt> method.
+ *
+ * <p>Whilst result set summaries are enabled, ResultSet wrappers that are created with DEBUG logging enabled
+ * don't log their row navigation methods (<tt>next()</tt>, <tt>previous()</tt>, <tt>absolute()</tt> etc),
+ * column getters or <tt>wasNull()</tt>. Instead they count:
+ * <ul>
+ * <li>the number of rows read
+ * <li>the number of column values read
+ * <li>the time between the result set being created and the first row being read
+ * <li>the total time spent inside the row navigation methods
+ * <li>the approximate number of bytes read, by getter type
+ * </ul>
+ *
+ * <p>and log a single line when the result set is closed, when the statement that created it is closed or
+ * re-executed, or when the connection is closed; e.g.
+ * <pre>
+ * summary: rows=100000, columnReads=200000, firstRowTime=3, nextTime=412, bytes={string=2400000, number=800000}
+ * </pre>
+ *
+ * <p>Counters are held in primitive fields on the wrapper, so nothing is allocated per row. Bytes are approximate:
+ * strings are counted at two bytes per character, numbers and dates at the size of the corresponding Java primitive,
+ * and streams and LOBs aren't counted at all.
+ *
+ * <p>The following system properties are read when this class is loaded:
+ * <ul>
+ * <li><tt>p7spy.resultSetSummary</tt> - if set to <tt>true</tt>, enables result set summaries
+ * </ul>
+ *
+ * @author knoxg
+ */
+public class P7SpyResultSetSummary {
+
+	/** If true, ResultSet wrappers log a summary instead of each row */
+	private static volatile boolean enabled = Boolean.getBoolean("p7spy.resultSetSummary");
+
+	/** Returns true if ResultSet wrappers should log a summary instead of each row
+	 *
+	 * @return true if result set summaries are enabled
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/** Enable or disable result set summaries. Only affects ResultSets created after this method is called.
+	 *
+	 * @param enabled if true, ResultSet wrappers log a summary instead of each row
+	 */
+	public static void setEnabled(boolean enabled) {
+		P7SpyResultSetSummary.enabled = enabled;
+	}
+
+	/** Returns the approximate size of a String column value
+	 *
+	 * @param value the value returned by the column getter
+	 *
+	 * @return the approximate size of the value, in bytes
+	 */
+	public static long sizeOf(String value) {
+		return value == null ? 0 : value.length() * 2L;
+	}
+
+	/** Returns the size of a binary column value
+	 *
+	 * @param value the value returned by the column getter
+	 *
+	 * @return the size of the value, in bytes
+	 */
+	public static long sizeOf(byte[] value) {
+		return value == null ? 0 : value.length;
+	}
+
+	/** Returns the approximate size of a decimal column value
+	 *
+	 * @param value the value returned by the column getter
+	 *
+	 * @return the approximate size of the value, in bytes (half a byte per digit)
+	 */
+	public static long sizeOf(BigDecimal value) {
+		return value == null ? 0 : value.precision() / 2 + 1;
+	}
+
+	/** Returns the approximate size of an arbitrary column value, as returned by <tt>getObject()</tt>
+	 *
+	 * @param value the value returned by the column getter
+	 *
+	 * @return the approximate size of the value, in bytes, or 0 if the size isn't known
+	 */
+	public static long sizeOf(Object value) {
+		if (value == null) { return 0; }
+		else if (value instanceof String) { return sizeOf((String) value); }
+		else if (value instanceof byte[]) { return sizeOf((byte[]) value); }
+		else if (value instanceof BigDecimal) { return sizeOf((BigDecimal) value); }
+		else if (value instanceof Integer || value instanceof Float) { return 4; }
+		else if (value instanceof Long || value instanceof Double) { return 8; }
+		else if (value instanceof Short || value instanceof Character) { return 2; }
+		else if (value instanceof Byte || value instanceof Boolean) { return 1; }
+		else if (value instanceof java.sql.Timestamp) { return 12; }
+		else if (value instanceof java.util.Date) { return 8; }
+		return 0;
+	}
+
+	/** Append a result set summary to a log message
+	 *
+	 * @param sb the log message being generated
+	 * @param rows the number of rows read
+	 * @param columnReads the number of column values read
+	 * @param firstRowNanos the time between the result set being created and the first row being read, or -1 if
+	 *   no rows were read
+	 * @param nextNanos the total time spent in row navigation methods
+	 * @param stringBytes approximate bytes read by String getters
+	 * @param numberBytes approximate bytes read by numeric and boolean getters
+	 * @param binaryBytes bytes read by <tt>getBytes()</tt>
+	 * @param temporalBytes approximate bytes read by date and time getters
+	 * @param objectBytes approximate bytes read by <tt>getObject()</tt> and other getters
+	 */
+	public static void appendSummary(StringBuilder sb, long rows, long columnReads, long firstRowNanos, long nextNanos,
+		long stringBytes, long numberBytes, long binaryBytes, long temporalBytes, long objectBytes)
+	{
+		sb.append("summary: rows=").append(rows);
+		sb.append(", columnReads=").append(columnReads);
+		if (firstRowNanos != -1) {
+			sb.append(", firstRowTime=").append(P7SpyTrace.formatDuration(firstRowNanos));
+		}
+		sb.append(", nextTime=").append(P7SpyTrace.formatDuration(nextNanos));
+		sb.append(", bytes={");
+		int length = sb.length();
+		appendBytes(sb, length, "string", stringBytes);
+		appendBytes(sb, length, "number", numberBytes);
+		appendBytes(sb, length, "binary", binaryBytes);
+		appendBytes(sb, length, "temporal", temporalBytes);
+		appendBytes(sb, length, "object", objectBytes);
+		sb.append('}');
+	}
+
+	/** Append a byte count to a summary, if it is non-zero */
+	private static void appendBytes(StringBuilder sb, int startLength, String type, long bytes) {
+		if (bytes == 0) { return; }
+		if (sb.length() > startLength) { sb.append(", "); }
+		sb.append(type).append('=').append(bytes);
+	}
+
+}
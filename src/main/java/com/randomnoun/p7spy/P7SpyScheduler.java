@@ -0,0 +1,46 @@
+package com.randomnoun.p7spy;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/** Creates the background threads used by p7spy to generate periodic reports.
+ *
+ * <p>Each executor has a single daemon thread, so that reporting never prevents the VM from exiting.
+ *
+ * @author knoxg
+ */
+public class P7SpyScheduler {
+
+	/** Create a single-threaded executor whose thread is a daemon thread
+	 *
+	 * @param threadName the name of the executor's thread
+	 *
+	 * @return a new executor
+	 */
+	public static ScheduledExecutorService newExecutor(final String threadName) {
+		return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, threadName);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/** Run a task periodically on a new daemon thread, starting after the first interval has elapsed
+	 *
+	 * @param threadName the name of the thread
+	 * @param interval the time between runs, in seconds
+	 * @param task the task to run
+	 *
+	 * @return the executor running the task
+	 */
+	public static ScheduledExecutorService scheduleAtFixedRate(String threadName, long interval, Runnable task) {
+		ScheduledExecutorService executor = newExecutor(threadName);
+		executor.scheduleAtFixedRate(task, interval, interval, TimeUnit.SECONDS);
+		return executor;
+	}
+
+}
@@ -0,0 +1,43 @@
+package com.randomnoun.p7spy;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/** Captures the stack of the current thread with a {@link StackWalker}, skipping p7spy's own frames.
+ *
+ * <p>Only the frames that are kept are materialised, so capturing a stack is considerably cheaper than
+ * creating an exception.
+ *
+ * @author knoxg
+ */
+public class P7SpyStacks {
+
+	/** Returns the stack of the current thread, starting at the first frame that isn't excluded (or in this class)
+	 *
+	 * @param excludedClassPrefixes prefixes of classes whose frames are skipped at the top of the stack
+	 * @param depth the maximum number of frames returned
+	 *
+	 * @return the frames of the stack, innermost first
+	 */
+	public static List<StackWalker.StackFrame> capture(final String[] excludedClassPrefixes, int depth) {
+		return StackWalker.getInstance().walk(s -> s
+			.dropWhile(f -> f.getClassName().equals(P7SpyStacks.class.getName()) || isExcluded(excludedClassPrefixes, f.getClassName()))
+			.limit(depth)
+			.collect(Collectors.toList()));
+	}
+
+	/** Returns true if a class name starts with one of the supplied prefixes
+	 *
+	 * @param excludedClassPrefixes prefixes of excluded classes
+	 * @param className a fully qualified class name
+	 *
+	 * @return true if frames from the class are excluded
+	 */
+	public static boolean isExcluded(String[] excludedClassPrefixes, String className) {
+		for (String prefix : excludedClassPrefixes) {
+			if (className.startsWith(prefix)) { return true; }
+		}
+		return false;
+	}
+
+}
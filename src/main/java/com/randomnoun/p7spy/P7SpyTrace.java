@@ -1,23 +1,27 @@
 package com.randomnoun.p7spy;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.text.DecimalFormat;
-import java.util.Properties;
-import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
+import com.randomnoun.p7spy.P7SpyMethods.P7SpyMethod;
+import com.randomnoun.p7spy.trap.P7SpyTrap;
+import com.randomnoun.p7spy.trap.P7SpyTrapStack;
+
 /** Contains methods to determine whether to display a stack trace when a particular SQL statement is executed,
  * and to format parameters passed to JDBC methods.
  * 
- * <p>The <tt>p7spy-config.properties</tt> file is polled by this class, and the "matchText" property is read 
+ * <p>The <tt>p7spy-config.properties</tt> file is watched by {@link P7SpyConfigWatcher}, and the "matchText" property is read 
  * from this file. The value of this property is used to create a regular expression that is matched against
- * every SQL statement invoked through this JDBC driver; if the expression matches, then a dummy RuntimeException
- * is generated and logged.
+ * every SQL statement invoked through this JDBC driver; if the expression matches, then the call stack is captured 
+ * with a {@link StackWalker} (see {@link P7SpyTrapStack}). The first time a trap matches at a particular call site,
+ * the stack is logged as an exception at DEBUG level along with a short stack id; subsequent matches at the
+ * same call site are logged as a single line containing the stack id and the number of hits, 
+ * e.g. "<tt>SQL trap triggered at stack 1a2b3c4d (5 hits)</tt>".
  * 
  * <p>e.g. the file:
  * <pre>
@@ -25,7 +29,22 @@ import org.apache.log4j.Logger;
  * </pre>
  * 
  * <p>would match all SELECT statements from tblSomething (where that table name is the first specified after
- * the 'FROM' keyword). 
+ * the 'FROM' keyword). Any number of additional named patterns can be defined; see {@link P7SpyConfig}.
+ * 
+ * <p>The following system properties are read when this class is loaded:
+ * <ul>
+ * <li><tt>p7spy.config</tt> - the location of the configuration file. Defaults to <tt>p7spy-config.properties</tt>
+ *   in the current directory.
+ * <li><tt>p7spy.durationUnit</tt> - the unit used to display method durations in the <tt>p7Duration</tt> 
+ *   MDC variable; one of <tt>ns</tt>, <tt>us</tt> or <tt>ms</tt>. Defaults to <tt>ms</tt>.
+ * <li><tt>p7spy.cpuTime</tt> - if <tt>true</tt>, the thread CPU time consumed by each method is placed in the 
+ *   <tt>p7CpuTime</tt> MDC variable, in the same units as the duration. Defaults to <tt>false</tt>.
+ * </ul>
+ * 
+ * <p>This class also holds the set of features (listeners, metrics, slow call logging, SQL statistics, etc) which
+ * require the wrappers to do more than delegate to the wrapped object when DEBUG logging is disabled. Each feature
+ * updates this set whenever it is enabled or disabled, so that the wrappers can test a single flag, 
+ * {@link #isActive()}, before checking whether each feature is enabled.
  * 
  * @author knoxg
  *
@@ -35,14 +54,161 @@ public class P7SpyTrace {
 	/** Logger instance for this class */
 	static Logger logger = Logger.getLogger(P7SpyTrace.class);
 	
-    /** A regex used to test against SQL */
-    private static String matchPatternString;
+	/** Feature flag: listeners are registered with {@link com.randomnoun.p7spy.listener.P7SpyListeners} */
+	public static final int FEATURE_LISTENERS = 1;
+	
+	/** Feature flag: {@link com.randomnoun.p7spy.metrics.P7SpyMetrics} is collecting metrics */
+	public static final int FEATURE_METRICS = 2;
+	
+	/** Feature flag: slow calls are being logged by {@link com.randomnoun.p7spy.slow.P7SpySlowLog} */
+	public static final int FEATURE_SLOW_LOG = 4;
+	
+	/** Feature flag: parameters are being recorded by {@link P7SpyParameters} */
+	public static final int FEATURE_PARAMETERS = 8;
+	
+	/** Feature flag: per-statement statistics are being collected by {@link com.randomnoun.p7spy.stats.P7SpyStatistics} */
+	public static final int FEATURE_STATISTICS = 16;
+	
+	/** Feature flag: per-table statistics are being collected by {@link com.randomnoun.p7spy.stats.P7SpyStatistics} */
+	public static final int FEATURE_TABLE_STATISTICS = 32;
+	
+	/** Feature flag: repeated statements are being detected by {@link com.randomnoun.p7spy.repeat.P7SpyRepeatDetector} */
+	public static final int FEATURE_REPEAT_DETECTOR = 64;
+	
+	/** Feature flag: executions are being attributed to call sites by {@link com.randomnoun.p7spy.stats.P7SpyAttribution} */
+	public static final int FEATURE_ATTRIBUTION = 128;
+	
+	/** The classes which set feature flags, and which may enable their feature when they are initialised */
+	private static final String[] FEATURE_CLASSES = {
+		"com.randomnoun.p7spy.listener.P7SpyListeners",
+		"com.randomnoun.p7spy.metrics.P7SpyMetrics",
+		"com.randomnoun.p7spy.P7SpyParameters",
+		"com.randomnoun.p7spy.stats.P7SpyStatistics",
+		"com.randomnoun.p7spy.repeat.P7SpyRepeatDetector",
+		"com.randomnoun.p7spy.stats.P7SpyAttribution"
+	};
+	
+	/** The FEATURE_* flags of the features which are enabled */
+	private static final AtomicInteger activeFeatures = new AtomicInteger();
+	
+    /** The current configuration; replaced by {@link P7SpyConfigWatcher} whenever the configuration file changes */
+    private static volatile P7SpyConfig config = P7SpyConfig.EMPTY;
+    
+    /** Unit used when formatting durations */
+    private static volatile TimeUnit durationUnit = parseTimeUnit(System.getProperty("p7spy.durationUnit", "ms"));
+    
+    /** Used to retrieve thread CPU times, or null if CPU time collection is disabled */
+    private static volatile ThreadMXBean threadMXBean = getThreadMXBean(Boolean.getBoolean("p7spy.cpuTime"));
+    
+    /** Maximum capacity of a per-thread StringBuilder before it is discarded */
+    private static final int MAX_BUILDER_CAPACITY = 65536;
+    
+    /** Per-thread StringBuilder used to format log messages */
+    private static final ThreadLocal<StringBuilder> threadStringBuilder = new ThreadLocal<StringBuilder>() {
+    	protected StringBuilder initialValue() { return new StringBuilder(256); }
+    };
+    
+    /** Number of entries in the escaped SQL cache; must be a power of two */
+    private static final int ESCAPED_CACHE_SIZE = 256;
+    
+    /** Escaped forms of recently formatted SQL strings, indexed by identity hash code */
+    private static final EscapedString[] escapedCache = new EscapedString[ESCAPED_CACHE_SIZE];
+    
+    /** Hexadecimal digits, used to format unicode escapes */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    
+    static {
+    	P7SpyConfigWatcher.start(new File(System.getProperty("p7spy.config", "p7spy-config.properties")));
+    }
+    
+    /** Convert a unit abbreviation into a TimeUnit
+     * 
+     * @param unit one of "ns", "us", "\u00b5s" or "ms"
+     * 
+     * @return the TimeUnit for that abbreviation, or TimeUnit.MILLISECONDS if it could not be parsed
+     */
+    public static TimeUnit parseTimeUnit(String unit) {
+    	if (unit.equals("ns")) { return TimeUnit.NANOSECONDS; }
+    	else if (unit.equals("us") || unit.equals("\u00b5s")) { return TimeUnit.MICROSECONDS; }
+    	else if (unit.equals("ms")) { return TimeUnit.MILLISECONDS; }
+    	logger.warn("Unknown p7spy.durationUnit '" + unit + "'; using 'ms'");
+    	return TimeUnit.MILLISECONDS;
+    }
+    
+    /** Returns the ThreadMXBean used to collect thread CPU times, or null if CPU times 
+     * are not being collected, or not supported by this VM
+     * 
+     * @param enabled true if CPU times are to be collected
+     * 
+     * @return a ThreadMXBean, or null
+     */
+    private static ThreadMXBean getThreadMXBean(boolean enabled) {
+    	if (!enabled) { return null; }
+    	ThreadMXBean mxBean = ManagementFactory.getThreadMXBean();
+    	if (!mxBean.isCurrentThreadCpuTimeSupported()) {
+    		logger.warn("Thread CPU time not supported by this VM; CPU times will not be logged");
+    		return null;
+    	}
+    	if (!mxBean.isThreadCpuTimeEnabled()) {
+    		mxBean.setThreadCpuTimeEnabled(true);
+    	}
+    	return mxBean;
+    }
+
+    /** Returns the current configuration
+     * 
+     * @return the current configuration
+     */
+    public static P7SpyConfig getConfig() {
+    	return config;
+    }
+    
+    /** Replace the current configuration. Called by {@link P7SpyConfigWatcher} when the configuration
+     * file changes.
+     * 
+     * @param config the new configuration
+     */
+    public static synchronized void setConfig(P7SpyConfig config) {
+    	P7SpyTrace.config = config;
+    	setFeatureEnabled(FEATURE_SLOW_LOG, config.getSlowThresholds().isEnabled());
+    }
+    
+    /** Returns true if any feature which requires the wrappers to do more than delegate to the wrapped object,
+     * other than DEBUG logging, is enabled. Called by the generated wrapper classes before each invocation; if 
+     * this returns false and DEBUG logging is disabled, the invocation is delegated without any further checks.
+     * 
+     * @return true if any feature is enabled
+     */
+    public static boolean isActive() {
+    	return activeFeatures.get() != 0;
+    }
     
-    /** The {@link java.text.Pattern} form of {@link #matchPatternString} */
-    private static Pattern matchPattern;
+    /** Record whether a feature is enabled. Called by each feature whenever it is enabled or disabled; callers 
+     * should hold a lock whilst changing their own state and calling this method, so that concurrent changes
+     * are applied in the same order. 
+     * 
+     * @param feature one of the FEATURE_* constants
+     * @param enabled true if the feature is enabled
+     */
+    public static void setFeatureEnabled(int feature, boolean enabled) {
+    	if (enabled) {
+    		activeFeatures.getAndUpdate(f -> f | feature);
+    	} else {
+    		activeFeatures.getAndUpdate(f -> f & ~feature);
+    	}
+    }
     
-    /** Time in msec since epoch since the p7spy-config.properties file was read */
-    private static long lastConfigLoadTime = -1;
+    /** Initialise the classes which set feature flags, so that any features enabled by system properties
+     * are reflected in {@link #isActive()}. Called from the static initialisers of the generated wrapper classes. */
+    public static void initFeatures() {
+    	for (String className : FEATURE_CLASSES) {
+    		try {
+    			Class.forName(className, true, P7SpyTrace.class.getClassLoader());
+    		} catch (ClassNotFoundException cnfe) {
+    			logger.error("Could not load p7spy feature class '" + className + "'", cnfe);
+    		}
+    	}
+    }
 
     /** Returns true if the supplied SQL string is to trigger a stacktrace, false otherwise
      * 
@@ -51,42 +217,97 @@ public class P7SpyTrace {
      * @return true if the supplied SQL string is to trigger a stacktrace, false otherwise
      */
     public static boolean matchesArg(String arg) {
-        if (System.currentTimeMillis() - lastConfigLoadTime > 30000) {
-            try {
-                synchronized(P7SpyTrace.class) {
-                    lastConfigLoadTime = System.currentTimeMillis();
-                    String newMatchPatternString = null;
-                    File trapConfig = new File("p7spy-config.properties");
-                    logger.debug("Reloading config from '" + trapConfig.getCanonicalFile() + "'");
-                    if (trapConfig.exists()) {
-                         // load match string from filesystem
-                        InputStream is = new FileInputStream(trapConfig);
-                        Properties props = new Properties();
-                        props.load(is);
-                        is.close();
-                        newMatchPatternString = props.getProperty("matchText");
-                    } else {
-                        newMatchPatternString = null;
-                    }
-                    if (newMatchPatternString==null && matchPattern!=null) {
-                        logger.debug("Disabling SQL matching");
-                        matchPatternString = null;
-                        newMatchPatternString = null;
-                    } else if (newMatchPatternString != null && !newMatchPatternString.equals(matchPatternString)) {
-                        logger.debug("Enabling SQL matching on '" + matchPatternString + "'");
-                        matchPatternString = newMatchPatternString;
-                        matchPattern = Pattern.compile(newMatchPatternString);
-                    }
-                }
-            } catch (IOException ioe) {
-                logger.warn("SQL matching disabled: " + ioe.getMessage());
-            } catch (PatternSyntaxException pse) {
-                logger.warn("SQL matching disabled: " + pse.getMessage());
-            }
-        }
-        if (matchPattern!=null) { return matchPattern.matcher(arg).matches(); }
-        return false;
-    };
+    	return config.getTrapMatcher().match(arg).length > 0;
+    }
+
+    /** Match the supplied SQL against the configured traps, and perform the action of each trap that matches.
+     * Called by the generated wrapper classes.
+     * 
+     * <p>The stack of each match is logged in full the first time a trap matches at that stack, and is
+     * referred to by its id, with a hit count, on later matches.
+     * 
+     * @param logger the logger of the wrapper class; stack traces are logged at DEBUG level to this logger
+     * @param arg the SQL to be run
+     */
+    public static void checkTrap(Logger logger, String arg) {
+    	P7SpyTrap[] traps = config.getTrapMatcher().match(arg);
+    	for (int i = 0; i < traps.length; i++) {
+    		P7SpyTrap trap = traps[i];
+    		if (trap.hit()) {
+    			P7SpyTrapStack stack = trap.getStack(P7SpyTrapStack.capture());
+    			String message = (trap.getName() == null ? "SQL trap triggered" : "SQL trap '" + trap.getName() + "' triggered") +
+    				" at stack " + stack.getId();
+    			long hitCount = stack.hit();
+    			if (hitCount == 1) {
+    				logger.debug(message, stack.toException(message));
+    			} else {
+    				logger.debug(message + " (" + hitCount + " hits)");
+    			}
+    		}
+    	}
+    }
+
+    /** Returns the CPU time consumed by the current thread, in nanoseconds, or -1 if CPU 
+     * times are not being collected.
+     * 
+     * @return the CPU time consumed by the current thread, in nanoseconds, or -1 if CPU 
+     * times are not being collected.
+     */
+    public static long getThreadCpuTime() {
+    	ThreadMXBean mxBean = threadMXBean;
+    	return mxBean == null ? -1 : mxBean.getCurrentThreadCpuTime();
+    }
+    
+    /** Enable or disable the collection of thread CPU times, overriding the <tt>p7spy.cpuTime</tt> system property 
+     * 
+     * @param enabled true if CPU times are to be collected
+     */
+    public static void setCpuTime(boolean enabled) {
+    	threadMXBean = getThreadMXBean(enabled);
+    }
+    
+    /** Returns the unit used to display method durations, as set by the <tt>p7spy.durationUnit</tt> system property
+     * 
+     * @return the unit used to display method durations
+     */
+    public static TimeUnit getDurationUnit() {
+    	return durationUnit;
+    }
+    
+    /** Set the unit used to display method durations, overriding the <tt>p7spy.durationUnit</tt> system property 
+     * 
+     * @param durationUnit the unit used to display method durations
+     */
+    public static void setDurationUnit(TimeUnit durationUnit) {
+    	P7SpyTrace.durationUnit = durationUnit;
+    }
+    
+    /** Convert a duration into the form that will be placed in the MDC
+     * 
+     * @param nanos the duration, in nanoseconds
+     * 
+     * @return the duration, in the units specified by the <tt>p7spy.durationUnit</tt> system property
+     */
+    public static String formatDuration(long nanos) {
+    	return String.valueOf(durationUnit.convert(nanos, TimeUnit.NANOSECONDS));
+    }
+
+    /** Returns a StringBuilder which can be used to format a log message on the current thread. 
+     * The same object is returned on each call (with its length reset to zero), so the caller must 
+     * convert it to a String before calling any other method which may use it.
+     * 
+     * @return an empty StringBuilder
+     */
+    public static StringBuilder getStringBuilder() {
+    	StringBuilder sb = threadStringBuilder.get();
+    	if (sb.capacity() > MAX_BUILDER_CAPACITY) {
+    		// don't hold on to the buffer used to log that one enormous CLOB
+    		sb = new StringBuilder(256);
+    		threadStringBuilder.set(sb);
+    	}
+    	sb.setLength(0);
+    	return sb;
+    }
 
     /** Convert the supplied parameter into a form that will be written by a Logger object 
      * 
@@ -97,40 +318,200 @@ public class P7SpyTrace {
     public static String formatResult(Object obj) {
     	if (obj==null) { return "null"; } 
     	else if (obj instanceof CharSequence) {
-    		DecimalFormat unicodeDecimalFormat = new DecimalFormat("0000");
-    		StringBuffer sb = new StringBuffer();
-    		CharSequence cs = (CharSequence) obj;
-    		int len = cs.length();
-           sb.append("\"");
-    		for (int i=0; i<len; i++) {
-    			char ch = cs.charAt(i);
-    			// assumes ASCII; check printable escape sequences first
-    			if (ch == '\"') {
-    				sb.append("\\\"");
-    			} else if (ch == '\'') {
-    				sb.append("\\'"); 
-    			} else if (ch == '\\') {
-    				sb.append("\\\\");
-    			} else if (ch >= ' ' && ch <= '~') {
-    				sb.append(ch);
-    			} else if (ch == '\n') {
-    				sb.append("\\n");
-    			} else if (ch == '\r') {
-    				sb.append("\\r");
-    			} else if (ch == '\t') {
-    				sb.append("\\t");
-    			} else if (ch == '\b') {
-    				sb.append("\\b");
-    			} else {
-    				sb.append("\\u");
-    				sb.append(unicodeDecimalFormat.format(ch)); 
-    			}
-    		}
-           sb.append("\"");
+    		StringBuilder sb = getStringBuilder();
+    		appendEscaped(sb, (CharSequence) obj);
     		return sb.toString();
     	} else {
     		return obj.toString();
     	}
     }
+
+    /** Convert the supplied parameter into a form that will be written by a Logger object 
+     * 
+     * @param value value to format
+     * 
+     * @return a String representation of this value
+     */
+    public static String formatResult(int value) { return String.valueOf(value); }
+
+    /** Convert the supplied parameter into a form that will be written by a Logger object 
+     * 
+     * @param value value to format
+     * 
+     * @return a String representation of this value
+     */
+    public static String formatResult(long value) { return String.valueOf(value); }
+
+    /** Convert the supplied parameter into a form that will be written by a Logger object 
+     * 
+     * @param value value to format
+     * 
+     * @return a String representation of this value
+     */
+    public static String formatResult(boolean value) { return String.valueOf(value); }
+
+    /** Convert the supplied parameter into a form that will be written by a Logger object 
+     * 
+     * @param value value to format
+     * 
+     * @return a String representation of this value
+     */
+    public static String formatResult(char value) { return String.valueOf(value); }
+
+    /** Convert the supplied parameter into a form that will be written by a Logger object 
+     * 
+     * @param value value to format
+     * 
+     * @return a String representation of this value
+     */
+    public static String formatResult(float value) { return String.valueOf(value); }
+
+    /** Convert the supplied parameter into a form that will be written by a Logger object 
+     * 
+     * @param value value to format
+     * 
+     * @return a String representation of this value
+     */
+    public static String formatResult(double value) { return String.valueOf(value); }
+
+    /** Append the formatted form of the supplied parameter to a StringBuilder, as 
+     * per {@link #formatResult(Object)}
+     * 
+     * @param sb the StringBuilder to append to
+     * @param obj object to format
+     */
+    public static void appendResult(StringBuilder sb, Object obj) {
+    	if (obj==null) { sb.append("null"); }
+    	else if (obj instanceof CharSequence) { appendEscaped(sb, (CharSequence) obj); }
+    	else { sb.append(obj.toString()); }
+    }
+
+    /** Append the formatted form of the supplied parameter to a StringBuilder */
+    public static void appendResult(StringBuilder sb, int value) { sb.append(value); }
+
+    /** Append the formatted form of the supplied parameter to a StringBuilder */
+    public static void appendResult(StringBuilder sb, long value) { sb.append(value); }
+
+    /** Append the formatted form of the supplied parameter to a StringBuilder */
+    public static void appendResult(StringBuilder sb, boolean value) { sb.append(value); }
+
+    /** Append the formatted form of the supplied parameter to a StringBuilder */
+    public static void appendResult(StringBuilder sb, char value) { sb.append(value); }
+
+    /** Append the formatted form of the supplied parameter to a StringBuilder */
+    public static void appendResult(StringBuilder sb, float value) { sb.append(value); }
+
+    /** Append the formatted form of the supplied parameter to a StringBuilder */
+    public static void appendResult(StringBuilder sb, double value) { sb.append(value); }
+
+    /** Append the formatted form of a SQL string to a StringBuilder, as per {@link #formatResult(Object)}.
+     * 
+     * <p>Applications typically pass the same String instance (e.g. a constant) to 
+     * <tt>prepareStatement()</tt> or <tt>executeQuery()</tt> each time a statement is executed, so 
+     * the escaped form of recently seen instances is cached. The cache is keyed by identity rather
+     * than equality, so a lookup costs the same regardless of the length of the SQL.
+     * 
+     * <p>Each instance that isn't in the cache allocates a new entry, so other Strings (which are 
+     * usually a new instance on each call) should be formatted with {@link #appendResult(StringBuilder, Object)}.
+     * 
+     * @param sb the StringBuilder to append to
+     * @param sql the SQL to format; may be null
+     */
+    public static void appendSql(StringBuilder sb, String sql) {
+    	if (sql==null) { sb.append("null"); return; }
+    	int index = System.identityHashCode(sql) & (ESCAPED_CACHE_SIZE - 1);
+    	EscapedString entry = escapedCache[index];
+    	if (entry != null && entry.source == sql) {
+    		sb.append(entry.escaped);
+    		return;
+    	}
+    	int start = sb.length();
+    	appendEscaped(sb, sql);
+    	// entries are immutable, so a racing write only loses a cache slot
+    	escapedCache[index] = new EscapedString(sql, sb.substring(start));
+    }
+
+    /** Returns the log message for a method invocation, in the same format as that generated by the
+     * synchronous logging code in the wrapper classes. Used when invocations are logged from structured
+     * data rather than by the wrapper itself.
+     * 
+     * @param methodId the id of the method invoked
+     * @param args the arguments passed to the method, or null if the method has no arguments
+     * @param result the value returned by the method, or null
+     * @param throwable the exception thrown by the method, or null
+     * 
+     * @return the log message for this invocation
+     */
+    public static String formatInvocation(int methodId, Object[] args, Object result, Throwable throwable) {
+    	P7SpyMethod method = P7SpyMethods.getMethod(methodId);
+    	if (method == null) {
+    		return "unknown method id " + methodId;
+    	} else if (method.isConstructor()) {
+    		return "new " + method.getInterfaceName() + "()";
+    	}
+    	StringBuilder sb = getStringBuilder();
+    	sb.append(method.getMethodName()).append('(');
+    	if (args != null) {
+    		for (int i = 0; i < args.length; i++) {
+    			if (i > 0) { sb.append(", "); }
+    			appendResult(sb, args[i]);
+    		}
+    	}
+    	sb.append(')');
+    	if (method.hasReturnValue() && throwable == null) {
+    		sb.append(": ");
+    		appendResult(sb, result);
+    	}
+    	return sb.toString();
+    }
+
+    /** Append a quoted, escaped CharSequence to a StringBuilder. Printable ASCII characters 
+     * are appended as-is; other characters are appended as Java escape sequences.
+     * 
+     * @param sb the StringBuilder to append to
+     * @param cs the text to escape
+     */
+    private static void appendEscaped(StringBuilder sb, CharSequence cs) {
+		int len = cs.length();
+		sb.append('"');
+		for (int i=0; i<len; i++) {
+			char ch = cs.charAt(i);
+			// assumes ASCII; check printable escape sequences first
+			if (ch == '\"') {
+				sb.append("\\\"");
+			} else if (ch == '\'') {
+				sb.append("\\'"); 
+			} else if (ch == '\\') {
+				sb.append("\\\\");
+			} else if (ch >= ' ' && ch <= '~') {
+				sb.append(ch);
+			} else if (ch == '\n') {
+				sb.append("\\n");
+			} else if (ch == '\r') {
+				sb.append("\\r");
+			} else if (ch == '\t') {
+				sb.append("\\t");
+			} else if (ch == '\b') {
+				sb.append("\\b");
+			} else {
+				sb.append("\\u")
+				  .append(HEX_DIGITS[(ch >> 12) & 0xF])
+				  .append(HEX_DIGITS[(ch >> 8) & 0xF])
+				  .append(HEX_DIGITS[(ch >> 4) & 0xF])
+				  .append(HEX_DIGITS[ch & 0xF]);
+			}
+		}
+		sb.append('"');
+    }
+
+    /** A cached escaped form of a String */
+    private static final class EscapedString {
+    	final String source;
+    	final String escaped;
+    	EscapedString(String source, String escaped) {
+    		this.source = source;
+    		this.escaped = escaped;
+    	}
+    }
 	
 }
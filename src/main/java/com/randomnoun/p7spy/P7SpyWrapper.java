@@ -0,0 +1,20 @@
+package com.randomnoun.p7spy;
+
+/** Implemented by each of the generated JDBC wrapper classes.
+ *
+ * <p>Wrappers keep a reference to the last wrapper they returned of each JDBC type, and to the wrapper that 
+ * created them, so that calling <tt>getMetaData()</tt>, <tt>getConnection()</tt>, <tt>getStatement()</tt> or
+ * <tt>getResultSet()</tt> repeatedly returns the same wrapper, rather than wrapping the same object again.
+ * This interface allows the generated code to determine which object a cached wrapper is wrapping.
+ *
+ * @author knoxg
+ */
+public interface P7SpyWrapper {
+
+	/** Returns the JDBC object wrapped by this wrapper
+	 *
+	 * @return the JDBC object wrapped by this wrapper
+	 */
+	public Object getWrappedObject();
+
+}
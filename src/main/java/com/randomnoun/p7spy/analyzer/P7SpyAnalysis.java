@@ -0,0 +1,494 @@
+package com.randomnoun.p7spy.analyzer;
+
+import java.io.PrintWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.randomnoun.p7spy.stats.P7SpyHistogram;
+import com.randomnoun.p7spy.stats.P7SpySqlNormalizer;
+import com.randomnoun.p7spy.stats.P7SpySqlStatistics;
+
+/** The results of analysing one or more p7spy logs, or part of a log.
+ *
+ * <p>Analyses of different parts of a log can be combined using {@link #merge(P7SpyAnalysis)}. The number
+ * of distinct statements and connections held is bounded; statements beyond the limit are recorded against
+ * {@link #OTHER_SQL}, and connections beyond the limit are only included in the totals.
+ *
+ * @author knoxg
+ */
+public class P7SpyAnalysis {
+
+	/** SQL recorded for statements beyond the maximum number of statements */
+	public static final String OTHER_SQL = "(other statements)";
+
+	/** SQL recorded for executions whose SQL couldn't be determined */
+	public static final String UNKNOWN_SQL = "(unknown SQL)";
+
+	/** Number of long transactions, repeated statements and unclosed objects kept for the report */
+	static final int MAX_EXAMPLES = 100;
+
+	/** Format used for timestamps which include a date */
+	private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss,SSS");
+
+	/** Percentiles included in the report */
+	private static final double[] REPORT_PERCENTILES = new double[] { 50, 99 };
+
+	/** Execution count and time for a single JDBC method */
+	public static class MethodStatistics {
+		long count;
+		long totalNanos;
+
+		/** Returns the number of invocations of this method */
+		public long getCount() { return count; }
+
+		/** Returns the total time spent in this method, in nanoseconds */
+		public long getTotalNanos() { return totalNanos; }
+	}
+
+	/** Activity on a single connection and the objects it created */
+	public static class ConnectionStatistics {
+		String id;
+		long firstTimestamp = Long.MAX_VALUE;
+		long lastTimestamp = Long.MIN_VALUE;
+		long calls;
+		long totalNanos;
+		long statements;
+		long transactions;
+
+		/** Returns the connection id, prefixed with the name of the file it appeared in if more than one file was analysed */
+		public String getId() { return id; }
+
+		/** Returns the number of calls on the connection and the objects it created */
+		public long getCalls() { return calls; }
+
+		/** Returns the total time spent in those calls, in nanoseconds */
+		public long getTotalNanos() { return totalNanos; }
+
+		/** Returns the number of statements created by the connection */
+		public long getStatements() { return statements; }
+
+		/** Returns the number of transactions committed or rolled back by the connection */
+		public long getTransactions() { return transactions; }
+
+		void merge(ConnectionStatistics other) {
+			firstTimestamp = Math.min(firstTimestamp, other.firstTimestamp);
+			lastTimestamp = Math.max(lastTimestamp, other.lastTimestamp);
+			calls += other.calls;
+			totalNanos += other.totalNanos;
+			statements += other.statements;
+			transactions += other.transactions;
+		}
+	}
+
+	/** Something in the log worth investigating: a long transaction, a statement executed many times in a row,
+	 * or an object that was never closed */
+	public static class Finding {
+		final String connectionId;
+		final long timestamp;
+		final long value;
+		final String description;
+
+		Finding(String connectionId, long timestamp, long value, String description) {
+			this.connectionId = connectionId;
+			this.timestamp = timestamp;
+			this.value = value;
+			this.description = description;
+		}
+
+		/** Returns the connection id, or null */
+		public String getConnectionId() { return connectionId; }
+
+		/** Returns the time the finding started, as per {@link P7SpyLogLine#getTimestamp()} */
+		public long getTimestamp() { return timestamp; }
+
+		/** Returns the transaction duration in milliseconds, or the number of repeated executions */
+		public long getValue() { return value; }
+
+		/** Returns the SQL or object concerned */
+		public String getDescription() { return description; }
+	}
+
+	/** Orders findings by decreasing value */
+	private static final Comparator<Finding> FINDING_COMPARATOR = new Comparator<Finding>() {
+		public int compare(Finding a, Finding b) {
+			return Long.compare(b.value, a.value);
+		}
+	};
+
+	/** Maximum number of distinct statements */
+	private final int maxStatements;
+
+	/** Maximum number of distinct connections */
+	private final int maxConnections;
+
+	long lineCount;
+	long callCount;
+	long firstTimestamp = Long.MAX_VALUE;
+	long lastTimestamp = Long.MIN_VALUE;
+	Map<String, P7SpySqlStatistics> statements = new HashMap<String, P7SpySqlStatistics>();
+	Map<String, MethodStatistics> methods = new TreeMap<String, MethodStatistics>();
+	Map<String, ConnectionStatistics> connections = new HashMap<String, ConnectionStatistics>();
+	long untrackedConnections;
+	P7SpyHistogram transactionHistogram = new P7SpyHistogram();
+	long transactionCount;
+	long transactionTotalMillis;
+	List<Finding> longTransactions = new ArrayList<Finding>();
+	List<Finding> repeatedStatements = new ArrayList<Finding>();
+	List<Finding> unclosedObjects = new ArrayList<Finding>();
+	long unclosedCount;
+
+	/** Create a new, empty analysis
+	 *
+	 * @param maxStatements maximum number of distinct statements
+	 * @param maxConnections maximum number of distinct connections
+	 */
+	public P7SpyAnalysis(int maxStatements, int maxConnections) {
+		this.maxStatements = maxStatements;
+		this.maxConnections = maxConnections;
+	}
+
+	/** Record a parsed log line */
+	void recordLine(P7SpyLogLine line) {
+		lineCount++;
+		long ts = line.getTimestamp();
+		if (ts != -1) {
+			firstTimestamp = Math.min(firstTimestamp, ts);
+			lastTimestamp = Math.max(lastTimestamp, ts);
+		}
+		if (line.getMethodName() == null) { return; }
+		callCount++;
+		String key = line.getInterfaceName() + "." + line.getMethodName();
+		MethodStatistics ms = methods.get(key);
+		if (ms == null) {
+			ms = new MethodStatistics();
+			methods.put(key, ms);
+		}
+		ms.count++;
+		ms.totalNanos += Math.max(0, line.getDurationNanos());
+	}
+
+	/** Returns the statistics entry for some SQL, creating it if necessary */
+	private P7SpySqlStatistics getStatementStatistics(String sql) {
+		return getNormalizedStatistics(sql == null ? UNKNOWN_SQL : P7SpySqlNormalizer.normalizeUncached(sql));
+	}
+
+	/** Returns the statistics entry for some normalised SQL, creating it if necessary */
+	private P7SpySqlStatistics getNormalizedStatistics(String normalized) {
+		P7SpySqlStatistics s = statements.get(normalized);
+		if (s == null) {
+			if (statements.size() >= maxStatements) {
+				normalized = OTHER_SQL;
+				s = statements.get(normalized);
+			}
+			if (s == null) {
+				s = new P7SpySqlStatistics(normalized);
+				statements.put(normalized, s);
+			}
+		}
+		return s;
+	}
+
+	/** Record the execution of a statement
+	 *
+	 * @param sql the SQL executed, or null if it isn't known
+	 */
+	void recordExecution(String sql, long durationNanos, boolean error) {
+		getStatementStatistics(sql).record(Math.max(0, durationNanos), error);
+	}
+
+	/** Record several executions of a statement, whose SQL was determined after they were recorded */
+	void recordExecutions(String sql, P7SpySqlStatistics executions) {
+		getStatementStatistics(sql).merge(executions);
+	}
+
+	/** Returns the statistics for a connection, or null if too many connections are being tracked */
+	private ConnectionStatistics getConnectionStatistics(String connectionId) {
+		ConnectionStatistics cs = connections.get(connectionId);
+		if (cs == null) {
+			if (connections.size() >= maxConnections) {
+				untrackedConnections++;
+				return null;
+			}
+			cs = new ConnectionStatistics();
+			cs.id = connectionId;
+			connections.put(connectionId, cs);
+		}
+		return cs;
+	}
+
+	/** Record calls on a connection, or on an object created by a connection */
+	void recordConnection(String connectionId, long timestamp, long calls, long durationNanos, long statements) {
+		ConnectionStatistics cs = getConnectionStatistics(connectionId);
+		if (cs == null) { return; }
+		if (timestamp != -1) {
+			cs.firstTimestamp = Math.min(cs.firstTimestamp, timestamp);
+			cs.lastTimestamp = Math.max(cs.lastTimestamp, timestamp);
+		}
+		cs.calls += calls;
+		cs.totalNanos += Math.max(0, durationNanos);
+		cs.statements += statements;
+	}
+
+	/** Record a committed or rolled back transaction */
+	void recordTransaction(String connectionId, long startTimestamp, long durationMillis) {
+		transactionCount++;
+		transactionTotalMillis += durationMillis;
+		transactionHistogram.record(durationMillis * 1000000L);
+		ConnectionStatistics cs = getConnectionStatistics(connectionId);
+		if (cs != null) { cs.transactions++; }
+		addFinding(longTransactions, new Finding(connectionId, startTimestamp, durationMillis, null));
+	}
+
+	/** Record a statement executed many times in succession on the same connection */
+	void recordRepeat(String connectionId, long startTimestamp, int count, String sql) {
+		addFinding(repeatedStatements, new Finding(connectionId, startTimestamp, count, sql));
+	}
+
+	/** Record an object that was created, but not closed by the end of the log */
+	void recordUnclosed(String connectionId, long timestamp, String id) {
+		unclosedCount++;
+		if (unclosedObjects.size() < MAX_EXAMPLES) {
+			unclosedObjects.add(new Finding(connectionId, timestamp, 0, id));
+		}
+	}
+
+	/** Add a finding to a list, keeping the MAX_EXAMPLES findings with the largest values */
+	private static void addFinding(List<Finding> findings, Finding finding) {
+		if (findings.size() >= MAX_EXAMPLES) {
+			Finding smallest = findings.get(findings.size() - 1);
+			if (smallest.value >= finding.value) { return; }
+			findings.remove(findings.size() - 1);
+		}
+		int index = Collections.binarySearch(findings, finding, FINDING_COMPARATOR);
+		findings.add(index < 0 ? -index - 1 : index, finding);
+	}
+
+	/** Rename the connections in this analysis, so that they can be distinguished from connections in other files
+	 *
+	 * @param prefix text prepended to each connection id
+	 */
+	void prefixConnections(String prefix) {
+		Map<String, ConnectionStatistics> renamed = new HashMap<String, ConnectionStatistics>();
+		for (ConnectionStatistics cs : connections.values()) {
+			cs.id = prefix + cs.id;
+			renamed.put(cs.id, cs);
+		}
+		connections = renamed;
+		for (List<Finding> findings : Arrays.asList(longTransactions, repeatedStatements, unclosedObjects)) {
+			for (int i = 0; i < findings.size(); i++) {
+				Finding f = findings.get(i);
+				findings.set(i, new Finding(f.connectionId == null ? null : prefix + f.connectionId, f.timestamp, f.value, f.description));
+			}
+		}
+	}
+
+	/** Add the results of another analysis to this one
+	 *
+	 * @param other the analysis to add
+	 */
+	public void merge(P7SpyAnalysis other) {
+		lineCount += other.lineCount;
+		callCount += other.callCount;
+		firstTimestamp = Math.min(firstTimestamp, other.firstTimestamp);
+		lastTimestamp = Math.max(lastTimestamp, other.lastTimestamp);
+		for (P7SpySqlStatistics s : other.statements.values()) {
+			P7SpySqlStatistics existing = statements.get(s.getSql());
+			if (existing == null && statements.size() >= maxStatements) {
+				existing = getNormalizedStatistics(OTHER_SQL);
+			}
+			if (existing == null) {
+				statements.put(s.getSql(), s);
+			} else {
+				existing.merge(s);
+			}
+		}
+		for (Map.Entry<String, MethodStatistics> e : other.methods.entrySet()) {
+			MethodStatistics ms = methods.get(e.getKey());
+			if (ms == null) {
+				methods.put(e.getKey(), e.getValue());
+			} else {
+				ms.count += e.getValue().count;
+				ms.totalNanos += e.getValue().totalNanos;
+			}
+		}
+		untrackedConnections += other.untrackedConnections;
+		for (ConnectionStatistics cs : other.connections.values()) {
+			ConnectionStatistics existing = getConnectionStatistics(cs.id);
+			if (existing != null) { existing.merge(cs); }
+		}
+		transactionHistogram.merge(other.transactionHistogram);
+		transactionCount += other.transactionCount;
+		transactionTotalMillis += other.transactionTotalMillis;
+		for (Finding f : other.longTransactions) { addFinding(longTransactions, f); }
+		for (Finding f : other.repeatedStatements) { addFinding(repeatedStatements, f); }
+		unclosedCount += other.unclosedCount;
+		for (Finding f : other.unclosedObjects) {
+			if (unclosedObjects.size() < MAX_EXAMPLES) { unclosedObjects.add(f); }
+		}
+	}
+
+	/** Returns the number of log lines recorded */
+	public long getLineCount() { return lineCount; }
+
+	/** Returns the number of method calls recorded */
+	public long getCallCount() { return callCount; }
+
+	/** Returns statement statistics, ordered by decreasing total execution time */
+	public List<P7SpySqlStatistics> getStatementsByTotalTime() {
+		List<P7SpySqlStatistics> list = new ArrayList<P7SpySqlStatistics>(statements.values());
+		Collections.sort(list, new Comparator<P7SpySqlStatistics>() {
+			public int compare(P7SpySqlStatistics a, P7SpySqlStatistics b) {
+				return Long.compare(b.getTotalNanos(), a.getTotalNanos());
+			}
+		});
+		return list;
+	}
+
+	/** Returns statement statistics, ordered by decreasing 99th percentile execution time */
+	public List<P7SpySqlStatistics> getStatementsByP99() {
+		List<P7SpySqlStatistics> list = new ArrayList<P7SpySqlStatistics>(statements.values());
+		final Map<P7SpySqlStatistics, Long> p99 = new HashMap<P7SpySqlStatistics, Long>();
+		for (P7SpySqlStatistics s : list) { p99.put(s, s.getPercentiles(99)[0]); }
+		Collections.sort(list, new Comparator<P7SpySqlStatistics>() {
+			public int compare(P7SpySqlStatistics a, P7SpySqlStatistics b) {
+				return Long.compare(p99.get(b), p99.get(a));
+			}
+		});
+		return list;
+	}
+
+	/** Returns call counts and times for each method, keyed by "Interface.method" */
+	public Map<String, MethodStatistics> getMethods() { return methods; }
+
+	/** Returns connection statistics, ordered by decreasing total time */
+	public List<ConnectionStatistics> getConnections() {
+		List<ConnectionStatistics> list = new ArrayList<ConnectionStatistics>(connections.values());
+		Collections.sort(list, new Comparator<ConnectionStatistics>() {
+			public int compare(ConnectionStatistics a, ConnectionStatistics b) {
+				return Long.compare(b.totalNanos, a.totalNanos);
+			}
+		});
+		return list;
+	}
+
+	/** Returns the number of committed or rolled back transactions */
+	public long getTransactionCount() { return transactionCount; }
+
+	/** Returns the longest transactions, longest first */
+	public List<Finding> getLongTransactions() { return longTransactions; }
+
+	/** Returns the statements executed most often in succession on the same connection, most frequent first */
+	public List<Finding> getRepeatedStatements() { return repeatedStatements; }
+
+	/** Returns the number of objects created but not closed by the end of the log */
+	public long getUnclosedCount() { return unclosedCount; }
+
+	/** Returns examples of objects created but not closed by the end of the log */
+	public List<Finding> getUnclosedObjects() { return unclosedObjects; }
+
+	/** Format a duration in nanoseconds as milliseconds, to 3 decimal places */
+	static String formatMillis(long nanos) {
+		return String.format("%.3f", nanos / 1000000.0);
+	}
+
+	/** Format a timestamp, as per {@link P7SpyLogLine#getTimestamp()} */
+	static String formatTimestamp(long timestamp) {
+		if (timestamp == Long.MAX_VALUE || timestamp == Long.MIN_VALUE || timestamp == -1) {
+			return "?";
+		} else if (timestamp < 86400000L) {
+			return String.format("%02d:%02d:%02d,%03d", timestamp / 3600000, timestamp / 60000 % 60, timestamp / 1000 % 60, timestamp % 1000);
+		} else {
+			return DATE_FORMAT.format(Instant.ofEpochMilli(timestamp).atZone(ZoneId.systemDefault()));
+		}
+	}
+
+	/** Write a report of this analysis
+	 *
+	 * @param out where to write the report
+	 * @param topN the number of statements, connections and findings to include in each section
+	 */
+	public void report(PrintWriter out, int topN) {
+		out.println("p7spy log analysis: " + lineCount + " lines, " + callCount + " calls, from " +
+			formatTimestamp(firstTimestamp) + " to " + formatTimestamp(lastTimestamp) + " (times in msec)");
+
+		List<P7SpySqlStatistics> byTotal = getStatementsByTotalTime();
+		out.println();
+		out.println("Top " + Math.min(topN, byTotal.size()) + " of " + byTotal.size() + " statements by total time");
+		for (int i = 0; i < Math.min(topN, byTotal.size()); i++) {
+			reportStatement(out, byTotal.get(i));
+		}
+		List<P7SpySqlStatistics> byP99 = getStatementsByP99();
+		out.println();
+		out.println("Top " + Math.min(topN, byP99.size()) + " of " + byP99.size() + " statements by p99 time");
+		for (int i = 0; i < Math.min(topN, byP99.size()); i++) {
+			reportStatement(out, byP99.get(i));
+		}
+
+		out.println();
+		out.println("Calls per method");
+		for (Map.Entry<String, MethodStatistics> e : methods.entrySet()) {
+			out.println("  count=" + e.getValue().count + " total=" + formatMillis(e.getValue().totalNanos) + " : " + e.getKey());
+		}
+
+		List<ConnectionStatistics> conns = getConnections();
+		out.println();
+		out.println("Top " + Math.min(topN, conns.size()) + " of " + conns.size() + " connections by total time" +
+			(untrackedConnections > 0 ? "; " + untrackedConnections + " calls on untracked connections" : ""));
+		for (int i = 0; i < Math.min(topN, conns.size()); i++) {
+			ConnectionStatistics cs = conns.get(i);
+			out.println("  first=" + formatTimestamp(cs.firstTimestamp) + " last=" + formatTimestamp(cs.lastTimestamp) +
+				" calls=" + cs.calls + " total=" + formatMillis(cs.totalNanos) + " statements=" + cs.statements +
+				" transactions=" + cs.transactions + " : " + cs.id);
+		}
+
+		out.println();
+		long[] txPercentiles = transactionHistogram.getPercentiles(REPORT_PERCENTILES);
+		out.println("Transactions: count=" + transactionCount +
+			" avg=" + (transactionCount == 0 ? 0 : transactionTotalMillis / transactionCount) +
+			" p50=" + txPercentiles[0] / 1000000L + " p99=" + txPercentiles[1] / 1000000L);
+		for (int i = 0; i < Math.min(topN, longTransactions.size()); i++) {
+			Finding f = longTransactions.get(i);
+			out.println("  duration=" + f.value + " start=" + formatTimestamp(f.timestamp) + " : " + f.connectionId);
+		}
+
+		out.println();
+		out.println("Suspicious patterns");
+		for (int i = 0; i < Math.min(topN, repeatedStatements.size()); i++) {
+			Finding f = repeatedStatements.get(i);
+			out.println("  repeated statement (possible N+1 query): executed " + f.value + " times in succession on " +
+				f.connectionId + " from " + formatTimestamp(f.timestamp) + " : " + f.description);
+		}
+		for (P7SpySqlStatistics s : byTotal) {
+			if (s.getErrorCount() > 0) {
+				out.println("  statement failed " + s.getErrorCount() + " of " + s.getCount() + " times : " + s.getSql());
+			}
+		}
+		if (unclosedCount > 0) {
+			out.println("  " + unclosedCount + " objects were not closed by the end of the log");
+			for (int i = 0; i < Math.min(topN, unclosedObjects.size()); i++) {
+				Finding f = unclosedObjects.get(i);
+				out.println("    created=" + formatTimestamp(f.timestamp) + " : " + f.description +
+					(f.connectionId == null || f.connectionId.equals(f.description) ? "" : " (" + f.connectionId + ")"));
+			}
+		}
+		out.flush();
+	}
+
+	/** Write a single statement to the report */
+	private static void reportStatement(PrintWriter out, P7SpySqlStatistics s) {
+		long[] percentiles = s.getPercentiles(REPORT_PERCENTILES);
+		out.println("  count=" + s.getCount() + " errors=" + s.getErrorCount() +
+			" total=" + formatMillis(s.getTotalNanos()) + " max=" + formatMillis(s.getMaxNanos()) +
+			" p50=" + formatMillis(percentiles[0]) + " p99=" + formatMillis(percentiles[1]) + " : " + s.getSql());
+	}
+
+}
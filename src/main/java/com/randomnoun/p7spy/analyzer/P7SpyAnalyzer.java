@@ -0,0 +1,873 @@
+package com.randomnoun.p7spy.analyzer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import com.randomnoun.p7spy.P7SpyTrace;
+import com.randomnoun.p7spy.binary.P7SpyBinaryTraceReader;
+import com.randomnoun.p7spy.stats.P7SpySqlNormalizer;
+import com.randomnoun.p7spy.stats.P7SpySqlStatistics;
+
+/** Analyses p7spy logs and binary traces offline.
+ *
+ * <p>The analyzer reads log files written with the <tt>[%X{p7Id}] [%X{p7Duration}]</tt> layout described in
+ * the README, or binary trace files written by {@link com.randomnoun.p7spy.binary.P7SpyBinaryTrace}, and reports:
+ * <ul>
+ * <li>the statements with the highest total and 99th percentile execution time, by normalised SQL
+ * <li>the number of calls to, and total time spent in, each JDBC method
+ * <li>the connections with the highest total time, including the time spent in the statements and result sets
+ *   they created
+ * <li>transaction durations, measured from the first call after <tt>setAutoCommit(false)</tt>, <tt>commit()</tt>
+ *   or <tt>rollback()</tt> to the next <tt>commit()</tt> or <tt>rollback()</tt>
+ * <li>suspicious patterns: the same statement executed many times in succession on a connection (typically
+ *   an N+1 query), statements that threw exceptions, and objects that were never closed
+ * </ul>
+ *
+ * <p>Log files are split into chunks, which are analysed in parallel and then combined in order; the state
+ * carried between chunks is limited to the objects that are still open, so memory use does not depend on the
+ * size of the log. Runs of repeated statements are joined across chunk boundaries, but executions of a statement
+ * created in an earlier chunk aren't included in runs.
+ *
+ * <p>The analyzer can also merge several logs (e.g. one per JVM) into a single timeline ordered by timestamp,
+ * optionally restricted to a single connection and the objects it created.
+ *
+ * <p>Usage:
+ * <pre>
+ * java com.randomnoun.p7spy.analyzer.P7SpyAnalyzer [options] file...
+ *
+ * --top n             number of entries in each section of the report (default 20)
+ * --durationUnit unit unit of the durations in log files; ns, us or ms (default p7spy.durationUnit, or ms)
+ * --chunkSize mb      size of the chunks that log files are split into (default 64)
+ * --threads n         number of chunks analysed in parallel (default the number of processors)
+ * --repeat n          report statements executed at least n times in succession (default 10)
+ * --maxStatements n   maximum number of distinct statements tracked (default 1000)
+ * --merge             write the merged log instead of a report
+ * --timeline id       write the merged log for a single connection (e.g. P7Connection@18b0930f)
+ * </pre>
+ *
+ * @author knoxg
+ */
+public class P7SpyAnalyzer {
+
+	/** Matches the first line of an exception logged after a method call */
+	private static final Pattern EXCEPTION_PATTERN = Pattern.compile("^[\\w.$]+(Exception|Error)(: .*)?$");
+
+	/** Unit of the durations in log files */
+	private TimeUnit durationUnit = P7SpyTrace.getDurationUnit();
+
+	/** Size of each chunk, in bytes */
+	private long chunkSize = 64L * 1024 * 1024;
+
+	/** Number of chunks analysed in parallel */
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	/** Minimum number of successive executions of the same statement that are reported */
+	private int repeatThreshold = 10;
+
+	/** Maximum number of distinct statements tracked */
+	private int maxStatements = 1000;
+
+	/** Maximum number of distinct connections tracked */
+	private int maxConnections = 10000;
+
+	/** Maximum number of open objects tracked between chunks */
+	private int maxOpenObjects = 100000;
+
+	/** Set the unit of the durations in log files */
+	public void setDurationUnit(TimeUnit durationUnit) { this.durationUnit = durationUnit; }
+
+	/** Set the size of the chunks that log files are split into, in bytes */
+	public void setChunkSize(long chunkSize) { this.chunkSize = Math.max(1, chunkSize); }
+
+	/** Set the number of chunks analysed in parallel */
+	public void setThreads(int threads) { this.threads = Math.max(1, threads); }
+
+	/** Set the minimum number of successive executions of the same statement that are reported */
+	public void setRepeatThreshold(int repeatThreshold) { this.repeatThreshold = repeatThreshold; }
+
+	/** Set the maximum number of distinct statements tracked */
+	public void setMaxStatements(int maxStatements) { this.maxStatements = maxStatements; }
+
+	/** Information about an object created by a connection */
+	static class ObjectInfo {
+		String connection;
+		String parent;
+		String sql;
+		long timestamp;
+		boolean closed;
+	}
+
+	/** Activity on an object created before the start of a chunk */
+	static class Pending {
+		long calls;
+		long totalNanos;
+		long firstTimestamp = -1;
+		long lastTimestamp = -1;
+		long statements;
+		P7SpySqlStatistics executions;
+		boolean closed;
+	}
+
+	/** The transaction state of a connection within a chunk */
+	static class TransactionState {
+		/** Time of the first commit or rollback in the chunk, if no transaction boundary preceded it in the chunk */
+		long firstEnd = -1;
+		/** Time of the first call in the chunk before firstEnd */
+		long firstCall = -1;
+		/** True if a transaction boundary was seen in this chunk */
+		boolean boundarySeen;
+		/** True if the connection is in manual-commit mode, and no call has been made since the last boundary */
+		boolean atBoundary;
+		/** Start of the current transaction, or -1 */
+		long start = -1;
+		/** True if the connection was closed in this chunk */
+		boolean closed;
+	}
+
+	/** A run of executions of the same statement on a connection */
+	static class Run {
+		String sql;
+		int count;
+		long start;
+	}
+
+	/** An execution whose error status is determined by the line that follows it */
+	static class Execution {
+		String sql;
+		Pending pending;
+		long nanos;
+	}
+
+	/** The analysis of one chunk of a log, and the state needed to combine it with the previous chunks */
+	class Chunk {
+		final P7SpyAnalysis analysis = new P7SpyAnalysis(maxStatements, maxConnections);
+		final Map<String, ObjectInfo> created = new LinkedHashMap<String, ObjectInfo>();
+		final Map<String, Pending> pending = new HashMap<String, Pending>();
+		final Map<String, TransactionState> transactions = new HashMap<String, TransactionState>();
+		final Map<String, Run> runs = new HashMap<String, Run>();
+		final Map<String, Run> firstRuns = new HashMap<String, Run>();
+		final TimeUnit unit;
+		Execution lastExecution;
+
+		/** Create a new chunk
+		 *
+		 * @param unit the unit of the durations in this chunk
+		 */
+		Chunk(TimeUnit unit) {
+			this.unit = unit;
+		}
+
+		/** Process a line of the log */
+		void process(String text) {
+			P7SpyLogLine line = P7SpyLogLine.parse(text, unit);
+			if (line == null) {
+				if (lastExecution != null) {
+					completeExecution(EXCEPTION_PATTERN.matcher(text.trim()).matches());
+				}
+				return;
+			}
+			completeExecution(false);
+			analysis.recordLine(line);
+			String method = line.getMethodName();
+			if (method == null) { return; }
+			String id = line.getId();
+			long ts = line.getTimestamp();
+			long nanos = Math.max(0, line.getDurationNanos());
+			boolean isConnection = line.getInterfaceName().equals("Connection");
+			if (method.equals("<init>")) {
+				ObjectInfo info = getCreated(id, ts);
+				if (isConnection) { info.connection = id; }
+				return;
+			}
+
+			String conn = isConnection ? id : getConnection(id);
+			boolean resolvable = conn != null || !isResolvableLater(id);
+			String resultId = line.getResultId();
+			boolean sqlMethod = method.startsWith("prepare") || method.startsWith("execute");
+			int statements = 0;
+			if (resultId != null) {
+				ObjectInfo child = getCreated(resultId, ts);
+				child.parent = id;
+				child.connection = conn;
+				if (sqlMethod && line.getSql() != null) { child.sql = line.getSql(); }
+				if (isConnection && (method.startsWith("create") || method.startsWith("prepare"))) { statements = 1; }
+			}
+			boolean execution = method.startsWith("execute") && line.getInterfaceName().endsWith("Statement");
+			String sql = execution ? (line.getSql() != null ? line.getSql() : getSql(id)) : null;
+
+			Pending p = null;
+			if (conn != null) {
+				analysis.recordConnection(conn, ts, 1, nanos, statements);
+				transaction(conn, method, line.getArgs(), ts);
+			} else if (!resolvable) {
+				p = getPending(id);
+				p.calls++;
+				p.totalNanos += nanos;
+				p.statements += statements;
+				if (ts != -1) {
+					if (p.firstTimestamp == -1) { p.firstTimestamp = ts; }
+					p.lastTimestamp = ts;
+				}
+			}
+			if (execution) {
+				lastExecution = new Execution();
+				lastExecution.nanos = nanos;
+				if (sql == null && isResolvableLater(id)) {
+					lastExecution.pending = p == null ? getPending(id) : p;
+				} else {
+					lastExecution.sql = sql;
+					if (conn != null && sql != null) { repeat(conn, sql, ts); }
+				}
+			}
+			if (method.equals("close") && line.getArgs() == null) {
+				ObjectInfo info = created.get(id);
+				if (info != null) { info.closed = true; }
+				else { getPending(id).closed = true; }
+				if (isConnection) { getTransactionState(id).closed = true; }
+			}
+		}
+
+		/** Record the last execution, now that we know whether it threw an exception */
+		void completeExecution(boolean error) {
+			Execution e = lastExecution;
+			if (e == null) { return; }
+			lastExecution = null;
+			if (e.pending != null) {
+				if (e.pending.executions == null) { e.pending.executions = new P7SpySqlStatistics(null); }
+				e.pending.executions.record(e.nanos, error);
+			} else {
+				analysis.recordExecution(e.sql, e.nanos, error);
+			}
+		}
+
+		/** Finish the chunk */
+		void finish() {
+			completeExecution(false);
+		}
+
+		ObjectInfo getCreated(String id, long ts) {
+			ObjectInfo info = created.get(id);
+			if (info == null || info.closed) {
+				info = new ObjectInfo();
+				info.timestamp = ts;
+				created.put(id, info);
+			}
+			return info;
+		}
+
+		Pending getPending(String id) {
+			Pending p = pending.get(id);
+			if (p == null) {
+				p = new Pending();
+				pending.put(id, p);
+			}
+			return p;
+		}
+
+		TransactionState getTransactionState(String conn) {
+			TransactionState t = transactions.get(conn);
+			if (t == null) {
+				t = new TransactionState();
+				transactions.put(conn, t);
+			}
+			return t;
+		}
+
+		/** Returns the connection that created an object, or null if it can't be determined from this chunk */
+		String getConnection(String id) {
+			for (int depth = 0; id != null && depth < 8; depth++) {
+				if (id.startsWith("P7Connection@")) { return id; }
+				ObjectInfo info = created.get(id);
+				if (info == null) { return null; }
+				if (info.connection != null) { return info.connection; }
+				id = info.parent;
+			}
+			return null;
+		}
+
+		/** Returns the SQL used to create an object, or null if it can't be determined from this chunk */
+		String getSql(String id) {
+			for (int depth = 0; id != null && depth < 8; depth++) {
+				ObjectInfo info = created.get(id);
+				if (info == null) { return null; }
+				if (info.sql != null) { return info.sql; }
+				id = info.parent;
+			}
+			return null;
+		}
+
+		/** Returns true if an object was created before this chunk, or by an object created before this chunk */
+		boolean isResolvableLater(String id) {
+			for (int depth = 0; id != null && depth < 8; depth++) {
+				if (id.startsWith("P7Connection@")) { return false; }
+				ObjectInfo info = created.get(id);
+				if (info == null) { return true; }
+				id = info.parent;
+			}
+			return false;
+		}
+
+		/** Update the transaction state of a connection */
+		void transaction(String conn, String method, String args, long ts) {
+			if (ts == -1) { return; }
+			TransactionState t = getTransactionState(conn);
+			boolean end = (method.equals("commit") || method.equals("rollback")) && args == null;
+			if (end) {
+				if (t.start != -1) {
+					analysis.recordTransaction(conn, t.start, ts - t.start);
+				} else if (!t.boundarySeen && t.firstEnd == -1) {
+					t.firstEnd = ts;
+				}
+				t.boundarySeen = true;
+				t.atBoundary = true;
+				t.start = -1;
+			} else if (method.equals("setAutoCommit")) {
+				t.boundarySeen = true;
+				t.atBoundary = "false".equals(args);
+				t.start = -1;
+			} else {
+				if (!t.boundarySeen && t.firstEnd == -1 && t.firstCall == -1) { t.firstCall = ts; }
+				if (t.atBoundary) {
+					t.start = ts;
+					t.atBoundary = false;
+				}
+			}
+		}
+
+		/** Update the run of repeated statements on a connection. The first and last runs on each connection are
+		 * recorded when the chunk is combined with its neighbours, as they may continue into those chunks. */
+		void repeat(String conn, String sql, long ts) {
+			String normalized = P7SpySqlNormalizer.normalizeUncached(sql);
+			Run run = runs.get(conn);
+			if (run != null && run.sql.equals(normalized)) {
+				run.count++;
+				return;
+			}
+			if (run != null && firstRuns.get(conn) != run) {
+				endRun(analysis, conn, run);
+			}
+			run = new Run();
+			run.sql = normalized;
+			run.count = 1;
+			run.start = ts;
+			runs.put(conn, run);
+			if (!firstRuns.containsKey(conn)) { firstRuns.put(conn, run); }
+		}
+	}
+
+	/** Record a run of repeated statements, if it is long enough to be reported */
+	void endRun(P7SpyAnalysis analysis, String conn, Run run) {
+		if (run.count >= repeatThreshold) {
+			analysis.recordRepeat(conn, run.start, run.count, run.sql);
+		}
+	}
+
+	/** Combines the chunks of a single file, in order */
+	class FileState {
+		final P7SpyAnalysis analysis = new P7SpyAnalysis(maxStatements, maxConnections);
+		final Map<String, ObjectInfo> live = new HashMap<String, ObjectInfo>();
+		/** Start time of the open transaction on each connection; -1 if the connection is at a transaction boundary */
+		final Map<String, Long> openTransactions = new HashMap<String, Long>();
+		/** The last run of repeated statements on each connection, which may continue into the next chunk */
+		final Map<String, Run> openRuns = new HashMap<String, Run>();
+		long untrackedObjects;
+
+		String getConnection(Chunk c, String id) {
+			for (int depth = 0; id != null && depth < 8; depth++) {
+				if (id.startsWith("P7Connection@")) { return id; }
+				ObjectInfo info = c.created.get(id);
+				if (info == null) { info = live.get(id); }
+				if (info == null) { return null; }
+				if (info.connection != null) { return info.connection; }
+				id = info.parent;
+			}
+			return null;
+		}
+
+		String getSql(Chunk c, String id) {
+			for (int depth = 0; id != null && depth < 8; depth++) {
+				ObjectInfo info = c.created.get(id);
+				if (info == null) { info = live.get(id); }
+				if (info == null) { return null; }
+				if (info.sql != null) { return info.sql; }
+				id = info.parent;
+			}
+			return null;
+		}
+
+		void merge(Chunk c) {
+			analysis.merge(c.analysis);
+			for (Map.Entry<String, Pending> e : c.pending.entrySet()) {
+				Pending p = e.getValue();
+				String conn = getConnection(c, e.getKey());
+				if (conn != null && p.calls > 0) {
+					analysis.recordConnection(conn, p.firstTimestamp, p.calls, p.totalNanos, p.statements);
+					if (p.lastTimestamp != -1) { analysis.recordConnection(conn, p.lastTimestamp, 0, 0, 0); }
+				}
+				if (p.executions != null) {
+					analysis.recordExecutions(getSql(c, e.getKey()), p.executions);
+				}
+			}
+			List<Map.Entry<String, ObjectInfo>> opened = new ArrayList<Map.Entry<String, ObjectInfo>>();
+			for (Map.Entry<String, ObjectInfo> e : c.created.entrySet()) {
+				ObjectInfo info = e.getValue();
+				if (info.closed) { continue; }
+				if (info.connection == null) { info.connection = getConnection(c, e.getKey()); }
+				if (info.sql == null) { info.sql = getSql(c, e.getKey()); }
+				opened.add(e);
+			}
+			for (Map.Entry<String, Pending> e : c.pending.entrySet()) {
+				if (e.getValue().closed) { live.remove(e.getKey()); }
+			}
+			for (Map.Entry<String, ObjectInfo> e : opened) {
+				if (live.size() >= maxOpenObjects) { sweep(); }
+				if (live.size() >= maxOpenObjects) {
+					untrackedObjects++;
+				} else {
+					live.put(e.getKey(), e.getValue());
+				}
+			}
+
+			for (Map.Entry<String, TransactionState> e : c.transactions.entrySet()) {
+				String conn = e.getKey();
+				TransactionState t = e.getValue();
+				Long previous = openTransactions.get(conn);
+				if (previous != null && t.firstEnd != -1) {
+					long start = previous != -1 ? previous : t.firstCall;
+					if (start != -1) { analysis.recordTransaction(conn, start, t.firstEnd - start); }
+				}
+				if (t.closed) {
+					openTransactions.remove(conn);
+				} else if (t.boundarySeen) {
+					if (t.start != -1) { openTransactions.put(conn, t.start); }
+					else if (t.atBoundary) { openTransactions.put(conn, -1L); }
+					else { openTransactions.remove(conn); }
+				} else if (previous != null && previous == -1 && t.firstCall != -1) {
+					openTransactions.put(conn, t.firstCall);
+				}
+			}
+
+			for (Map.Entry<String, Run> e : c.firstRuns.entrySet()) {
+				String conn = e.getKey();
+				Run first = e.getValue();
+				Run last = c.runs.get(conn);
+				Run open = openRuns.get(conn);
+				if (open != null && open.sql.equals(first.sql)) {
+					Run joined = new Run();
+					joined.sql = first.sql;
+					joined.count = open.count + first.count;
+					joined.start = open.start;
+					if (last == first) { last = joined; }
+					first = joined;
+				} else if (open != null) {
+					endRun(analysis, conn, open);
+				}
+				if (last != first) { endRun(analysis, conn, first); }
+				openRuns.put(conn, last);
+			}
+		}
+
+		/** Returns true if an object and all of the objects that created it are open */
+		boolean isOpen(String id) {
+			for (int depth = 0; id != null && depth < 8; depth++) {
+				ObjectInfo info = live.get(id);
+				if (info == null) { return false; }
+				if (id.startsWith("P7Connection@")) { return true; }
+				id = info.parent;
+			}
+			return true;
+		}
+
+		/** Remove objects which were closed implicitly when the object that created them was closed */
+		void sweep() {
+			Set<String> closed = new HashSet<String>();
+			for (String id : live.keySet()) {
+				if (!isOpen(id)) { closed.add(id); }
+			}
+			live.keySet().removeAll(closed);
+		}
+
+		P7SpyAnalysis finish() {
+			for (Map.Entry<String, Run> e : openRuns.entrySet()) {
+				endRun(analysis, e.getKey(), e.getValue());
+			}
+			sweep();
+			for (Map.Entry<String, ObjectInfo> e : live.entrySet()) {
+				analysis.recordUnclosed(e.getValue().connection, e.getValue().timestamp, e.getKey());
+			}
+			return analysis;
+		}
+	}
+
+	/** A Writer which passes each line written to it to a consumer */
+	static class LineWriter extends Writer {
+		private final Consumer<String> consumer;
+		private final StringBuilder sb = new StringBuilder();
+
+		LineWriter(Consumer<String> consumer) {
+			this.consumer = consumer;
+		}
+
+		public void write(char[] cbuf, int off, int len) {
+			for (int i = off; i < off + len; i++) {
+				char ch = cbuf[i];
+				if (ch == '\n') {
+					int end = sb.length();
+					if (end > 0 && sb.charAt(end - 1) == '\r') { sb.setLength(end - 1); }
+					consumer.accept(sb.toString());
+					sb.setLength(0);
+				} else {
+					sb.append(ch);
+				}
+			}
+		}
+
+		public void flush() { }
+
+		public void close() {
+			if (sb.length() > 0) {
+				consumer.accept(sb.toString());
+				sb.setLength(0);
+			}
+		}
+	}
+
+	/** Returns true if a file is a binary trace rather than a log file */
+	static boolean isBinaryTrace(File file) {
+		return file.getName().endsWith(".p7b");
+	}
+
+	/** Analyse a chunk of a log file
+	 *
+	 * @param file the log file
+	 * @param start offset of the start of the chunk; the chunk includes the first line starting at or after this offset
+	 * @param end offset of the end of the chunk; the chunk includes the line which contains this offset
+	 */
+	Chunk analyzeChunk(File file, long start, long end) throws IOException {
+		Chunk chunk = new Chunk(durationUnit);
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long pos = Math.max(0, start - 1);
+			channel.position(pos);
+			InputStream in = new BufferedInputStream(Channels.newInputStream(channel), 65536);
+			byte[] buf = new byte[1024];
+			int len = 0;
+			int b;
+			boolean skipping = start > 0;  // skip the rest of the line containing the byte before the chunk
+			long lineStart = pos;
+			while ((b = in.read()) != -1) {
+				pos++;
+				if (b != '\n') {
+					if (!skipping) {
+						if (len == buf.length) {
+							byte[] newBuf = new byte[buf.length * 2];
+							System.arraycopy(buf, 0, newBuf, 0, len);
+							buf = newBuf;
+						}
+						buf[len++] = (byte) b;
+					}
+					continue;
+				}
+				if (!skipping) {
+					if (len > 0 && buf[len - 1] == '\r') { len--; }
+					String text = new String(buf, 0, len, StandardCharsets.UTF_8);
+					if (lineStart < end) {
+						chunk.process(text);
+					} else {
+						// the first line of the next chunk determines whether our last execution failed
+						chunk.completeExecution(EXCEPTION_PATTERN.matcher(text.trim()).matches());
+					}
+				}
+				skipping = false;
+				len = 0;
+				lineStart = pos;
+				if (lineStart >= end && chunk.lastExecution == null) { break; }
+			}
+			if (len > 0 && !skipping) {
+				String text = new String(buf, 0, len, StandardCharsets.UTF_8);
+				if (lineStart < end) {
+					chunk.process(text);
+				} else {
+					chunk.completeExecution(EXCEPTION_PATTERN.matcher(text.trim()).matches());
+				}
+			}
+		} finally {
+			channel.close();
+		}
+		chunk.finish();
+		return chunk;
+	}
+
+	/** Analyse a single log file or binary trace
+	 *
+	 * @param file the file to analyse
+	 *
+	 * @return the analysis of that file
+	 */
+	public P7SpyAnalysis analyzeFile(final File file) throws IOException {
+		FileState state = new FileState();
+		if (isBinaryTrace(file)) {
+			// durations are formatted by the reader in this JVM's duration unit
+			final Chunk chunk = new Chunk(P7SpyTrace.getDurationUnit());
+			LineWriter w = new LineWriter(new Consumer<String>() {
+				public void accept(String line) { chunk.process(line); }
+			});
+			new P7SpyBinaryTraceReader().read(file, new PrintWriter(w));
+			w.close();
+			chunk.finish();
+			state.merge(chunk);
+			return state.finish();
+		}
+
+		long length = file.length();
+		List<long[]> ranges = new ArrayList<long[]>();
+		for (long start = 0; start < length; start += chunkSize) {
+			ranges.add(new long[] { start, Math.min(length, start + chunkSize) });
+		}
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			// analyse a batch of chunks in parallel, then combine them in order, so that only one batch is held in memory
+			for (int i = 0; i < ranges.size(); i += threads) {
+				final List<long[]> batch = ranges.subList(i, Math.min(ranges.size(), i + threads));
+				List<Chunk> chunks;
+				try {
+					chunks = pool.submit(() -> batch.parallelStream().map(r -> {
+						try {
+							return analyzeChunk(file, r[0], r[1]);
+						} catch (IOException ioe) {
+							throw new IllegalStateException(ioe);
+						}
+					}).collect(Collectors.toList())).get();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted analysing '" + file + "'", ie);
+				} catch (ExecutionException ee) {
+					Throwable cause = ee.getCause();
+					if (cause instanceof IllegalStateException && cause.getCause() instanceof IOException) {
+						throw (IOException) cause.getCause();
+					}
+					throw new IOException("Exception analysing '" + file + "'", cause);
+				}
+				for (Chunk c : chunks) {
+					state.merge(c);
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+		return state.finish();
+	}
+
+	/** Analyse one or more log files or binary traces. If there is more than one file, connection ids in the
+	 * analysis are prefixed with the name of the file they appeared in.
+	 *
+	 * @param files the files to analyse
+	 *
+	 * @return the combined analysis of those files
+	 */
+	public P7SpyAnalysis analyze(List<File> files) throws IOException {
+		P7SpyAnalysis total = new P7SpyAnalysis(maxStatements, maxConnections);
+		for (File f : files) {
+			P7SpyAnalysis a = analyzeFile(f);
+			if (files.size() > 1) { a.prefixConnections(f.getName() + ":"); }
+			total.merge(a);
+		}
+		return total;
+	}
+
+	/** The next line of a file being merged, along with any continuation lines (e.g. stack traces) that follow it */
+	class MergeSource implements Comparable<MergeSource> {
+		final String name;
+		final BufferedReader reader;
+		final Set<String> members = new HashSet<String>();
+		String nextLine;
+		P7SpyLogLine next;
+		List<String> continuation = new ArrayList<String>();
+		String lookahead;
+
+		MergeSource(String name, BufferedReader reader) {
+			this.name = name;
+			this.reader = reader;
+		}
+
+		/** Read the next line and its continuation lines; returns false at the end of the file */
+		boolean advance() throws IOException {
+			continuation.clear();
+			nextLine = lookahead != null ? lookahead : reader.readLine();
+			lookahead = null;
+			while (nextLine != null && (next = P7SpyLogLine.parse(nextLine, durationUnit)) == null) {
+				nextLine = reader.readLine();  // skip lines before the first p7spy line
+			}
+			if (nextLine == null) { return false; }
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (P7SpyLogLine.parse(line, durationUnit) != null) {
+					lookahead = line;
+					break;
+				}
+				continuation.add(line);
+			}
+			return true;
+		}
+
+		public int compareTo(MergeSource o) {
+			return Long.compare(next.getTimestamp(), o.next.getTimestamp());
+		}
+	}
+
+	/** Open a log file or binary trace as a stream of lines */
+	BufferedReader openLines(final File file) throws IOException {
+		if (!isBinaryTrace(file)) {
+			return new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+		}
+		final PipedWriter pw = new PipedWriter();
+		PipedReader pr = new PipedReader(pw, 65536);
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					PrintWriter out = new PrintWriter(pw);
+					new P7SpyBinaryTraceReader().read(file, out);
+					out.close();
+				} catch (IOException ioe) {
+					throw new IllegalStateException("Could not read '" + file + "'", ioe);
+				}
+			}
+		}, "p7spy-analyzer-" + file.getName());
+		t.setDaemon(true);
+		t.start();
+		return new BufferedReader(pr);
+	}
+
+	/** Write the lines of several log files in timestamp order. If there is more than one file, each line is
+	 * prefixed with the name of the file it was read from.
+	 *
+	 * @param files the files to merge
+	 * @param connection if non-null, only lines for this connection (e.g. "P7Connection@18b0930f")
+	 *   and the objects it created are written
+	 * @param out where to write the merged lines
+	 */
+	public void merge(List<File> files, String connection, PrintWriter out) throws IOException {
+		PriorityQueue<MergeSource> queue = new PriorityQueue<MergeSource>();
+		List<MergeSource> sources = new ArrayList<MergeSource>();
+		try {
+			for (File f : files) {
+				MergeSource s = new MergeSource(f.getName(), openLines(f));
+				sources.add(s);
+				if (connection != null) { s.members.add(connection); }
+				if (s.advance()) { queue.add(s); }
+			}
+			while (!queue.isEmpty()) {
+				MergeSource s = queue.poll();
+				boolean include = true;
+				if (connection != null) {
+					include = s.members.contains(s.next.getId());
+					String resultId = s.next.getResultId();
+					if (include && resultId != null) { s.members.add(resultId); }
+					if (include && "close".equals(s.next.getMethodName()) && !s.next.getId().equals(connection)) {
+						s.members.remove(s.next.getId());
+					}
+				}
+				if (include) {
+					String prefix = files.size() > 1 ? s.name + ": " : "";
+					out.println(prefix + s.nextLine);
+					for (String line : s.continuation) {
+						out.println(prefix + line);
+					}
+				}
+				if (s.advance()) { queue.add(s); }
+			}
+		} finally {
+			for (Iterator<MergeSource> i = sources.iterator(); i.hasNext(); ) {
+				i.next().reader.close();
+			}
+		}
+		out.flush();
+	}
+
+	/** Command-line entry point
+	 *
+	 * @param args command-line arguments; see the class documentation
+	 *
+	 * @throws IOException if a file could not be read
+	 */
+	public static void main(String[] args) throws IOException {
+		P7SpyAnalyzer analyzer = new P7SpyAnalyzer();
+		List<File> files = new ArrayList<File>();
+		int topN = 20;
+		boolean merge = false;
+		String timeline = null;
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.startsWith("--") && !arg.equals("--merge") && i == args.length - 1) {
+				files.clear();
+				break;
+			} else if (arg.equals("--top")) {
+				topN = Integer.parseInt(args[++i]);
+			} else if (arg.equals("--durationUnit")) {
+				analyzer.setDurationUnit(P7SpyTrace.parseTimeUnit(args[++i]));
+			} else if (arg.equals("--chunkSize")) {
+				analyzer.setChunkSize(Long.parseLong(args[++i]) * 1024 * 1024);
+			} else if (arg.equals("--threads")) {
+				analyzer.setThreads(Integer.parseInt(args[++i]));
+			} else if (arg.equals("--repeat")) {
+				analyzer.setRepeatThreshold(Integer.parseInt(args[++i]));
+			} else if (arg.equals("--maxStatements")) {
+				analyzer.setMaxStatements(Integer.parseInt(args[++i]));
+			} else if (arg.equals("--merge")) {
+				merge = true;
+			} else if (arg.equals("--timeline")) {
+				timeline = args[++i];
+			} else {
+				File f = new File(arg);
+				if (!f.isFile()) {
+					System.err.println("File not found: '" + arg + "'");
+				} else {
+					files.add(f);
+				}
+			}
+		}
+		if (files.isEmpty()) {
+			System.err.println("Usage: java " + P7SpyAnalyzer.class.getName() +
+				" [--top n] [--durationUnit ns|us|ms] [--chunkSize mb] [--threads n] [--repeat n] [--maxStatements n]" +
+				" [--merge | --timeline connectionId] file...");
+			System.exit(1);
+		}
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out));
+		if (merge || timeline != null) {
+			analyzer.merge(files, timeline, out);
+		} else {
+			analyzer.analyze(files).report(out, topN);
+		}
+		out.flush();
+	}
+
+}
@@ -0,0 +1,240 @@
+package com.randomnoun.p7spy.analyzer;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** A single JDBC method invocation, parsed from a line of p7spy log output.
+ *
+ * <p>Lines are recognised by the <tt>[%X{p7Id}] [%X{p7Duration}]</tt> part of the layout, which may appear
+ * anywhere in the line, e.g.
+ * <pre>
+ * 16:50:03,888, DEBUG [P7Connection@18b0930f         ] [  106] prepareStatement("INSERT INTO wish_list ( wish_item ) VALUES ( ? )"): com.randomnoun.p7spy.jdbc_4_3.P7PreparedStatement@4c7a078
+ * </pre>
+ *
+ * <p>If the line starts with a <tt>HH:mm:ss,SSS</tt> or <tt>yyyy-MM-dd HH:mm:ss,SSS</tt> timestamp, it
+ * is used as the time of the invocation.
+ *
+ * @author knoxg
+ */
+public class P7SpyLogLine {
+
+	/** Matches the object id, duration and message of a p7spy log line */
+	private static final Pattern LINE_PATTERN = Pattern.compile("\\[ *(P7(\\w+)@[0-9a-f]+) *\\] +\\[ *(\\d*)\\] (.*)$");
+
+	/** Matches a timestamp at the start of a line */
+	private static final Pattern TIMESTAMP_PATTERN = Pattern.compile("^(?:(\\d{4}-\\d\\d-\\d\\d)[ T])?(\\d\\d:\\d\\d:\\d\\d)[,.](\\d{3})");
+
+	/** Matches the class name and id of a wrapper returned by a method */
+	private static final Pattern WRAPPER_RESULT_PATTERN = Pattern.compile("^com\\.randomnoun\\.p7spy\\.jdbc_\\d+_\\d+\\.(P7\\w+@[0-9a-f]+)$");
+
+	/** Time of the invocation; milliseconds since the epoch if the line contains a date, otherwise since midnight, or -1 if unknown */
+	private final long timestamp;
+
+	/** Id of the wrapper, as it appears in the log (e.g. "P7Connection@18b0930f") */
+	private final String id;
+
+	/** Unqualified name of the JDBC interface being wrapped (e.g. "Connection") */
+	private final String interfaceName;
+
+	/** Duration of the invocation in nanoseconds, or -1 if none was logged */
+	private final long durationNanos;
+
+	/** The log message */
+	private final String message;
+
+	/** The method name, or "&lt;init&gt;" for wrapper constructors, or null if the message doesn't describe a method */
+	private String methodName;
+
+	/** The formatted arguments, or null if the method has no arguments */
+	private String args;
+
+	/** The formatted result, or null if the method returned no value */
+	private String result;
+
+	/** The SQL included in the message by parameter or slow-call logging, or passed as the first argument, or null */
+	private String sql;
+
+	private P7SpyLogLine(long timestamp, String id, String interfaceName, long durationNanos, String message) {
+		this.timestamp = timestamp;
+		this.id = id;
+		this.interfaceName = interfaceName;
+		this.durationNanos = durationNanos;
+		this.message = message;
+	}
+
+	/** Parse a line of p7spy log output
+	 *
+	 * @param line the line to parse
+	 * @param durationUnit the unit of the durations in the log
+	 *
+	 * @return the parsed line, or null if the line wasn't logged by a p7spy wrapper
+	 */
+	public static P7SpyLogLine parse(String line, TimeUnit durationUnit) {
+		Matcher m = LINE_PATTERN.matcher(line);
+		if (!m.find()) { return null; }
+		long timestamp = -1;
+		Matcher tm = TIMESTAMP_PATTERN.matcher(line);
+		if (tm.find()) {
+			LocalTime time = LocalTime.parse(tm.group(2)).plusNanos(Long.parseLong(tm.group(3)) * 1000000L);
+			if (tm.group(1) != null) {
+				timestamp = LocalDateTime.of(LocalDate.parse(tm.group(1)), time).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+			} else {
+				timestamp = time.toNanoOfDay() / 1000000L;
+			}
+		}
+		String duration = m.group(3);
+		P7SpyLogLine logLine = new P7SpyLogLine(timestamp, m.group(1), m.group(2),
+			duration.equals("") ? -1 : durationUnit.toNanos(Long.parseLong(duration)), m.group(4));
+		logLine.parseMessage();
+		return logLine;
+	}
+
+	/** Split the message into method name, arguments and result */
+	private void parseMessage() {
+		String msg = message;
+		if (msg.startsWith("slow ")) { msg = msg.substring(5); }
+		if (msg.startsWith("new ") && msg.endsWith("()")) {
+			methodName = "<init>";
+			return;
+		}
+		int open = msg.indexOf('(');
+		if (open <= 0 || !Character.isJavaIdentifierStart(msg.charAt(0))) { return; }
+		for (int i = 0; i < open; i++) {
+			if (!Character.isJavaIdentifierPart(msg.charAt(i))) { return; }
+		}
+		int close = skipArgs(msg, open + 1);
+		if (close == -1) { return; }
+		methodName = msg.substring(0, open);
+		if (close > open + 1) {
+			args = msg.substring(open + 1, close);
+			if (args.startsWith("\"")) { sql = unescape(args, 0); }
+		}
+		int pos = close + 1;
+		if (msg.startsWith(" sql=\"", pos)) {
+			sql = unescape(msg, pos + 5);
+			pos = skipString(msg, pos + 5);
+			if (msg.startsWith(" parameters={", pos)) {
+				pos = msg.indexOf('}', pos);  // approximate; parameters may contain '}'
+				pos = pos == -1 ? msg.length() : pos + 1;
+			}
+		} else if (msg.startsWith(" [", pos)) {
+			// inlined parameters
+			int end = msg.lastIndexOf("]");
+			if (end > pos) {
+				sql = msg.substring(pos + 2, end);
+				pos = end + 1;
+			}
+		}
+		if (msg.startsWith(": ", pos)) {
+			result = msg.substring(pos + 2);
+		}
+	}
+
+	/** Returns the position of the ')' which closes an argument list, or -1 if it isn't closed */
+	private static int skipArgs(String s, int pos) {
+		int depth = 0;
+		while (pos < s.length()) {
+			char ch = s.charAt(pos);
+			if (ch == '"') {
+				pos = skipString(s, pos);
+				continue;
+			} else if (ch == '(' || ch == '{' || ch == '[') {
+				depth++;
+			} else if (ch == '}' || ch == ']') {
+				depth--;
+			} else if (ch == ')') {
+				if (depth == 0) { return pos; }
+				depth--;
+			}
+			pos++;
+		}
+		return -1;
+	}
+
+	/** Returns the position after the closing quote of a quoted string starting at <tt>pos</tt> */
+	private static int skipString(String s, int pos) {
+		pos++;
+		while (pos < s.length()) {
+			char ch = s.charAt(pos);
+			if (ch == '\\') { pos += 2; }
+			else if (ch == '"') { return pos + 1; }
+			else { pos++; }
+		}
+		return pos;
+	}
+
+	/** Reverses the escaping performed by <tt>P7SpyTrace.formatResult()</tt>
+	 *
+	 * @param s text containing a quoted string
+	 * @param pos position of the opening quote
+	 *
+	 * @return the unescaped string
+	 */
+	static String unescape(String s, int pos) {
+		StringBuilder sb = new StringBuilder();
+		pos++;
+		while (pos < s.length()) {
+			char ch = s.charAt(pos++);
+			if (ch == '"') { break; }
+			if (ch != '\\' || pos >= s.length()) { sb.append(ch); continue; }
+			char esc = s.charAt(pos++);
+			switch (esc) {
+				case 'n': sb.append('\n'); break;
+				case 'r': sb.append('\r'); break;
+				case 't': sb.append('\t'); break;
+				case 'b': sb.append('\b'); break;
+				case 'f': sb.append('\f'); break;
+				case 'u':
+					if (pos + 4 <= s.length()) {
+						sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+						pos += 4;
+					}
+					break;
+				default: sb.append(esc);
+			}
+		}
+		return sb.toString();
+	}
+
+	/** Returns the time of the invocation; milliseconds since the epoch if the line contains a date, otherwise
+	 * milliseconds since midnight, or -1 if the line has no timestamp */
+	public long getTimestamp() { return timestamp; }
+
+	/** Returns the id of the wrapper, as it appears in the log (e.g. "P7Connection@18b0930f") */
+	public String getId() { return id; }
+
+	/** Returns the unqualified name of the JDBC interface being wrapped (e.g. "Connection") */
+	public String getInterfaceName() { return interfaceName; }
+
+	/** Returns the duration of the invocation, in nanoseconds, or -1 if no duration was logged */
+	public long getDurationNanos() { return durationNanos; }
+
+	/** Returns the log message */
+	public String getMessage() { return message; }
+
+	/** Returns the method name, "&lt;init&gt;" for wrapper constructors, or null if the message doesn't describe a method call */
+	public String getMethodName() { return methodName; }
+
+	/** Returns the formatted arguments, or null if the method has no arguments */
+	public String getArgs() { return args; }
+
+	/** Returns the formatted result, or null if no result was logged */
+	public String getResult() { return result; }
+
+	/** Returns the SQL passed to or logged with this method, or null */
+	public String getSql() { return sql; }
+
+	/** Returns the id of the wrapper returned by this method (e.g. "P7ResultSet@654c1a54"), or null if
+	 * the method didn't return a wrapper */
+	public String getResultId() {
+		if (result == null) { return null; }
+		Matcher m = WRAPPER_RESULT_PATTERN.matcher(result);
+		return m.matches() ? m.group(1) : null;
+	}
+
+}
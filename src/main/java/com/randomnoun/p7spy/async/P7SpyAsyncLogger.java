@@ -0,0 +1,346 @@
+package com.randomnoun.p7spy.async;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+
+import com.randomnoun.p7spy.P7SpyTrace;
+import com.randomnoun.p7spy.async.P7SpyRingBuffer.FullPolicy;
+import com.randomnoun.p7spy.binary.P7SpyBinaryTrace;
+import com.randomnoun.p7spy.listener.P7SpyListeners;
+
+/** Logs JDBC method invocations on a background thread.
+ *
+ * <p>When enabled, the generated wrapper classes publish each method invocation into a preallocated
+ * {@link P7SpyRingBuffer} rather than formatting and logging it on the application thread.
+ * A single daemon thread formats the events and passes them to the log4j appenders of the wrapper's logger,
+ * preserving the timestamp and thread name of the original invocation, and setting the 'p7Id' and 'p7Duration'
+ * MDC variables on the background thread whilst the appenders are called. As with synchronous logging, appenders
+ * which retain events should call {@link LoggingEvent#getMDCCopy()} if they need these MDC variables later.
+ *
+ * <p>Other MDC variables, and the CPU time of the invocation, are not available to appenders in this mode.
+ *
+ * <p>Invocations made whilst asynchronous logging is being shut down, by threads which had already decided to
+ * log asynchronously, are logged synchronously on the calling thread.
+ *
+ * <p>If a {@link P7SpyBinaryTrace} is open, invocations are written to the binary trace on the calling thread
+ * instead of being queued.
+ *
+ * <p>The following system properties are read when this class is loaded:
+ * <ul>
+ * <li><tt>p7spy.async</tt> - if <tt>true</tt>, invocations are logged asynchronously. Defaults to <tt>false</tt>.
+ * <li><tt>p7spy.async.capacity</tt> - the number of events that can be queued. Defaults to 8192.
+ * <li><tt>p7spy.async.fullPolicy</tt> - what to do when the queue is full; one of <tt>block</tt>, <tt>drop</tt>
+ *   or <tt>dropAndCount</tt>. Defaults to <tt>block</tt>.
+ * </ul>
+ *
+ * @author knoxg
+ */
+public class P7SpyAsyncLogger {
+
+	/** Logger instance for this class */
+	static Logger logger = Logger.getLogger(P7SpyAsyncLogger.class);
+
+	/** Fully qualified class name passed to log4j when creating LoggingEvents */
+	private static final String FQCN = P7SpyAsyncLogger.class.getName();
+
+	/** Maximum number of events processed before the consumer checks the dropped event count */
+	private static final int DRAIN_BATCH_SIZE = 1024;
+
+	/** Time the consumer thread waits for new events when the buffer is empty */
+	private static final long IDLE_PARK_NANOS = 1000000;
+
+	/** Minimum time between dropped event warnings, in msec */
+	private static final long DROPPED_WARNING_INTERVAL = 10000;
+
+	/** If true, invocations are logged asynchronously */
+	private static volatile boolean enabled;
+
+	/** Buffer holding events waiting to be logged; created when asynchronous logging is first enabled */
+	private static volatile P7SpyRingBuffer ringBuffer;
+
+	/** Background thread which logs events */
+	private static Thread consumerThread;
+
+	/** Set to false to stop the consumer thread */
+	private static volatile boolean running;
+
+	/** True once the shutdown hook has been registered */
+	private static boolean shutdownHookRegistered;
+
+	/** Per-thread event used when writing to the binary trace, which is written on the calling thread */
+	private static final ThreadLocal<P7SpyEvent> threadEvent = new ThreadLocal<P7SpyEvent>() {
+		protected P7SpyEvent initialValue() { return new P7SpyEvent(); }
+	};
+
+	static {
+		if (Boolean.getBoolean("p7spy.async")) {
+			setEnabled(true);
+		}
+	}
+
+	/** Returns true if invocations are being logged asynchronously, or written to a binary trace
+	 *
+	 * @return true if invocations are being logged asynchronously, or written to a binary trace
+	 */
+	public static boolean isEnabled() {
+		return enabled || P7SpyBinaryTrace.isEnabled();
+	}
+
+	/** Enable or disable asynchronous logging. The ring buffer and consumer thread are created
+	 * the first time asynchronous logging is enabled (or the first time after {@link #shutdown()}). 
+	 * Events already queued will still be logged after asynchronous logging is disabled.
+	 *
+	 * @param enabled if true, invocations will be logged asynchronously
+	 */
+	public static synchronized void setEnabled(boolean enabled) {
+		if (enabled && ringBuffer == null) {
+			int capacity = Integer.getInteger("p7spy.async.capacity", 8192);
+			FullPolicy fullPolicy = parseFullPolicy(System.getProperty("p7spy.async.fullPolicy", "block"));
+			ringBuffer = new P7SpyRingBuffer(capacity, fullPolicy);
+			running = true;
+			consumerThread = new Thread(new Runnable() {
+				public void run() { consume(); }
+			}, "p7spy-async-logger");
+			consumerThread.setDaemon(true);
+			consumerThread.start();
+			if (!shutdownHookRegistered) {
+				Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+					public void run() { shutdown(); }
+				}, "p7spy-async-logger-shutdown"));
+				shutdownHookRegistered = true;
+			}
+		}
+		P7SpyAsyncLogger.enabled = enabled;
+	}
+
+	/** Convert a fullPolicy system property value into a FullPolicy
+	 *
+	 * @param fullPolicy one of "block", "drop" or "dropAndCount"
+	 *
+	 * @return the FullPolicy for that value, or FullPolicy.BLOCK if it could not be parsed
+	 */
+	static FullPolicy parseFullPolicy(String fullPolicy) {
+		if (fullPolicy.equalsIgnoreCase("block")) { return FullPolicy.BLOCK; }
+		else if (fullPolicy.equalsIgnoreCase("drop")) { return FullPolicy.DROP; }
+		else if (fullPolicy.equalsIgnoreCase("dropAndCount")) { return FullPolicy.DROP_AND_COUNT; }
+		logger.warn("Unknown p7spy.async.fullPolicy '" + fullPolicy + "'; using 'block'");
+		return FullPolicy.BLOCK;
+	}
+
+	/** Claim an event in which to record a method invocation. Called by the generated wrapper classes, 
+	 * which set the arguments and result on the event before passing it to {@link #publish(P7SpyEvent)}.
+	 * 
+	 * <p>If a binary trace is open, or asynchronous logging has been shut down, the event is a per-thread event,
+	 * which is written to the binary trace or logged synchronously when it is published.
+	 *
+	 * @param logger the logger of the wrapper class
+	 * @param source the wrapper object
+	 * @param methodId the id of the method invoked
+	 * @param throwable the exception thrown by the method, or null
+	 * @param startNanos the System.nanoTime() when the method was invoked
+	 * 
+	 * @return the event to record the invocation in, or null if the event was dropped because the buffer was full
+	 */
+	public static P7SpyEvent claim(Logger logger, Object source, int methodId, Throwable throwable, long startNanos) {
+		long endNanos = System.nanoTime();
+		P7SpyRingBuffer rb = ringBuffer;
+		P7SpyEvent event;
+		if (rb == null || P7SpyBinaryTrace.isEnabled()) {
+			event = threadEvent.get();
+			if (event.logger != null) {
+				// a toString() invoked whilst writing the per-thread event has made a JDBC call
+				event = new P7SpyEvent();
+			}
+		} else {
+			event = rb.claim();
+			if (event == null) { return null; }
+			event.timeStamp = System.currentTimeMillis();
+			event.threadName = Thread.currentThread().getName();
+		}
+		event.logger = logger;
+		event.source = source;
+		event.methodId = methodId;
+		event.throwable = throwable;
+		event.startNanos = startNanos;
+		event.endNanos = endNanos;
+		return event;
+	}
+
+	/** Queue an event for logging, or write it to the binary trace. Called by the generated wrapper classes.
+	 * If the event isn't in a ring buffer and can't be written to the binary trace (because asynchronous logging
+	 * or the binary trace were shut down after the wrapper decided to publish it), it is logged synchronously.
+	 *
+	 * @param event an event returned by {@link #claim(Logger, Object, int, Throwable, long)}
+	 */
+	public static void publish(P7SpyEvent event) {
+		if (event.ringBuffer != null) {
+			event.ringBuffer.publish(event);
+		} else {
+			try {
+				if (!P7SpyBinaryTrace.isEnabled() || !P7SpyBinaryTrace.write(event)) {
+					event.timeStamp = System.currentTimeMillis();
+					event.threadName = Thread.currentThread().getName();
+					log(event);
+				}
+			} finally {
+				event.clear();
+			}
+		}
+	}
+
+	/** Queue a method invocation for logging, or write it to the binary trace if one is open.
+	 * Called by the generated wrapper classes for methods without arguments or results.
+	 *
+	 * @param logger the logger of the wrapper class
+	 * @param source the wrapper object
+	 * @param methodId the id of the method invoked
+	 * @param args the arguments passed to the method, or null if the method has no arguments
+	 * @param result the value returned by the method, or null
+	 * @param throwable the exception thrown by the method, or null
+	 * @param startNanos the System.nanoTime() when the method was invoked
+	 * 
+	 * @return true if the invocation was queued or written, false if it was dropped because the buffer was full
+	 */
+	public static boolean publish(Logger logger, Object source, int methodId, Object[] args, Object result,
+		Throwable throwable, long startNanos)
+	{
+		P7SpyEvent event = claim(logger, source, methodId, throwable, startNanos);
+		if (event == null) { return false; }
+		if (args != null) {
+			for (int i = 0; i < args.length; i++) {
+				event.setArg(i, args[i]);
+			}
+		}
+		event.setResult(result);
+		publish(event);
+		return true;
+	}
+
+	/** Returns the number of events dropped because the buffer was full, if the
+	 * fullPolicy is dropAndCount
+	 *
+	 * @return the number of events dropped
+	 */
+	public static long getDroppedCount() {
+		P7SpyRingBuffer rb = ringBuffer;
+		return rb == null ? 0 : rb.getDroppedCount();
+	}
+
+	/** Wait until all events queued before this method was called have been logged.
+	 *
+	 * @param timeout maximum time to wait, in msec
+	 *
+	 * @return true if all events were logged, false if the timeout expired
+	 */
+	public static boolean flush(long timeout) {
+		P7SpyRingBuffer rb = ringBuffer;
+		if (rb == null) { return true; }
+		long target = rb.getPublishedCount();
+		long deadline = System.currentTimeMillis() + timeout;
+		while (rb.getConsumedCount() < target) {
+			if (System.currentTimeMillis() > deadline) { return false; }
+			LockSupport.parkNanos(IDLE_PARK_NANOS);
+		}
+		return true;
+	}
+
+	/** Disable asynchronous logging, and stop the consumer thread after logging any remaining events.
+	 * Called when the VM shuts down. If asynchronous logging is enabled again, a new ring buffer and
+	 * consumer thread are created. */
+	public static synchronized void shutdown() {
+		enabled = false;
+		running = false;
+		Thread t = consumerThread;
+		if (t != null) {
+			LockSupport.unpark(t);
+			try {
+				t.join(5000);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (t == null || !t.isAlive()) {
+			consumerThread = null;
+			ringBuffer = null;
+		}
+	}
+
+	/** Main loop of the consumer thread */
+	private static void consume() {
+		P7SpyRingBuffer rb = ringBuffer;
+		Consumer<P7SpyEvent> handler = new Consumer<P7SpyEvent>() {
+			public void accept(P7SpyEvent event) { log(event); }
+		};
+		long lastDroppedCount = 0;
+		long lastDroppedWarningTime = 0;
+		while (running || !rb.isEmpty()) {
+			int count;
+			try {
+				count = rb.drain(handler, DRAIN_BATCH_SIZE);
+			} catch (Throwable t) {
+				// don't let a badly-behaved toString() or appender kill the consumer
+				logger.error("Exception logging p7spy event", t);
+				count = 1;
+			}
+			long droppedCount = rb.getDroppedCount();
+			if (droppedCount != lastDroppedCount &&
+				System.currentTimeMillis() - lastDroppedWarningTime > DROPPED_WARNING_INTERVAL)
+			{
+				logger.warn((droppedCount - lastDroppedCount) + " p7spy events dropped (" + droppedCount + " total); consider increasing p7spy.async.capacity");
+				lastDroppedCount = droppedCount;
+				lastDroppedWarningTime = System.currentTimeMillis();
+			}
+			if (count == 0 && running) {
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+			}
+		}
+	}
+
+	/** Format an event and send it to the appenders of the wrapper's logger. The 'p7Id' and 'p7Duration' MDC
+	 * variables are set on the current thread whilst the appenders are called, and then restored. */
+	private static void log(P7SpyEvent event) {
+		Logger eventLogger = event.getLogger();
+		if (!eventLogger.isDebugEnabled()) { return; }
+		Object oldId = MDC.get("p7Id");
+		Object oldDuration = MDC.get("p7Duration");
+		MDC.put("p7Id", P7SpyListeners.getWrapperId(event.getSource()));
+		MDC.put("p7Duration", P7SpyTrace.formatDuration(event.getEndNanos() - event.getStartNanos()));
+		try {
+			Throwable throwable = event.getThrowable();
+			LoggingEvent loggingEvent = new LoggingEvent(FQCN, eventLogger, event.getTimeStamp(), Level.DEBUG,
+				formatMessage(event), event.getThreadName(),
+				throwable == null ? null : new ThrowableInformation(throwable), null, null, null);
+			eventLogger.callAppenders(loggingEvent);
+		} finally {
+			restoreMDC("p7Id", oldId);
+			restoreMDC("p7Duration", oldDuration);
+		}
+	}
+
+	/** Restore an MDC variable to its previous value, removing it if it wasn't previously set */
+	private static void restoreMDC(String key, Object value) {
+		if (value == null) {
+			MDC.remove(key);
+		} else {
+			MDC.put(key, value);
+		}
+	}
+
+	/** Returns the log message for an event, in the same format as that generated by the
+	 * synchronous logging code in the wrapper classes
+	 *
+	 * @param event the event to format
+	 *
+	 * @return the log message for this event
+	 */
+	static String formatMessage(P7SpyEvent event) {
+		return P7SpyTrace.formatInvocation(event.getMethodId(), event.getArgs(), event.getResult(), event.getThrowable());
+	}
+
+}
@@ -0,0 +1,281 @@
+package com.randomnoun.p7spy.async;
+
+import org.apache.log4j.Logger;
+
+/** A JDBC method invocation, as recorded by a generated wrapper class.
+ *
+ * <p>Instances of this class are preallocated by the {@link P7SpyRingBuffer} and reused;
+ * the fields of an event are only valid whilst the event is being processed by the consumer.
+ *
+ * <p>Arguments and results are held in preallocated slots, so that the wrapper classes can record
+ * an invocation without allocating an argument array or boxing primitives. Each slot holds either an
+ * object reference, or a primitive value stored in a long, as indicated by the slot's type
+ * (one of the TYPE_* constants).
+ *
+ * @author knoxg
+ */
+public class P7SpyEvent {
+
+	/** Maximum number of arguments recorded; later arguments are ignored */
+	public static final int MAX_ARGS = 8;
+
+	/** Slot type: an object reference, or null */
+	public static final char TYPE_OBJECT = 'L';
+
+	/** Slot type: a boolean, stored as 0 or 1 */
+	public static final char TYPE_BOOLEAN = 'Z';
+
+	/** Slot type: a char */
+	public static final char TYPE_CHAR = 'C';
+
+	/** Slot type: an int (or a byte or short, which are widened to int) */
+	public static final char TYPE_INT = 'I';
+
+	/** Slot type: a long */
+	public static final char TYPE_LONG = 'J';
+
+	/** Slot type: a float, stored as its raw int bits */
+	public static final char TYPE_FLOAT = 'F';
+
+	/** Slot type: a double, stored as its raw long bits */
+	public static final char TYPE_DOUBLE = 'D';
+
+	/** The logger of the wrapper class that generated this event */
+	Logger logger;
+
+	/** The wrapper object that generated this event */
+	Object source;
+
+	/** The id of the method invoked, as registered in {@link com.randomnoun.p7spy.P7SpyMethods} */
+	int methodId;
+
+	/** The number of arguments set on this event, or -1 if the method has no arguments */
+	int argCount = -1;
+
+	/** The type of each argument slot */
+	final char[] argTypes = new char[MAX_ARGS];
+
+	/** Object arguments */
+	final Object[] objectArgs = new Object[MAX_ARGS];
+
+	/** Primitive arguments */
+	final long[] primitiveArgs = new long[MAX_ARGS];
+
+	/** The type of the result slot */
+	char resultType = TYPE_OBJECT;
+
+	/** The value returned by the method, if it is an object, or null */
+	Object result;
+
+	/** The value returned by the method, if it is a primitive */
+	long primitiveResult;
+
+	/** The exception thrown by the method, or null */
+	Throwable throwable;
+
+	/** The System.nanoTime() when the method was invoked */
+	long startNanos;
+
+	/** The System.nanoTime() when the method completed */
+	long endNanos;
+
+	/** The time in msec since epoch when the method completed */
+	long timeStamp;
+
+	/** The name of the thread that invoked the method */
+	String threadName;
+
+	/** The ring buffer containing this event, or null if this event is written directly to a binary trace */
+	final P7SpyRingBuffer ringBuffer;
+
+	/** The position this event was claimed at in the ring buffer */
+	long sequence;
+
+	/** Create an event which is not part of a ring buffer */
+	P7SpyEvent() {
+		this(null);
+	}
+
+	/** Create an event in a ring buffer
+	 *
+	 * @param ringBuffer the ring buffer containing this event
+	 */
+	P7SpyEvent(P7SpyRingBuffer ringBuffer) {
+		this.ringBuffer = ringBuffer;
+	}
+
+	/** Record an object argument. Called by the generated wrapper classes.
+	 *
+	 * @param index the index of the argument
+	 * @param value the value of the argument
+	 */
+	public void setArg(int index, Object value) {
+		if (index >= MAX_ARGS) { return; }
+		argTypes[index] = TYPE_OBJECT;
+		objectArgs[index] = value;
+		argCount = Math.max(argCount, index + 1);
+	}
+
+	/** Record a boolean argument. Called by the generated wrapper classes.
+	 *
+	 * @param index the index of the argument
+	 * @param value the value of the argument
+	 */
+	public void setArg(int index, boolean value) { setPrimitiveArg(index, TYPE_BOOLEAN, value ? 1 : 0); }
+
+	/** Record a char argument. Called by the generated wrapper classes.
+	 *
+	 * @param index the index of the argument
+	 * @param value the value of the argument
+	 */
+	public void setArg(int index, char value) { setPrimitiveArg(index, TYPE_CHAR, value); }
+
+	/** Record an int, short or byte argument. Called by the generated wrapper classes.
+	 *
+	 * @param index the index of the argument
+	 * @param value the value of the argument
+	 */
+	public void setArg(int index, int value) { setPrimitiveArg(index, TYPE_INT, value); }
+
+	/** Record a long argument. Called by the generated wrapper classes.
+	 *
+	 * @param index the index of the argument
+	 * @param value the value of the argument
+	 */
+	public void setArg(int index, long value) { setPrimitiveArg(index, TYPE_LONG, value); }
+
+	/** Record a float argument. Called by the generated wrapper classes.
+	 *
+	 * @param index the index of the argument
+	 * @param value the value of the argument
+	 */
+	public void setArg(int index, float value) { setPrimitiveArg(index, TYPE_FLOAT, Float.floatToRawIntBits(value)); }
+
+	/** Record a double argument. Called by the generated wrapper classes.
+	 *
+	 * @param index the index of the argument
+	 * @param value the value of the argument
+	 */
+	public void setArg(int index, double value) { setPrimitiveArg(index, TYPE_DOUBLE, Double.doubleToRawLongBits(value)); }
+
+	private void setPrimitiveArg(int index, char type, long value) {
+		if (index >= MAX_ARGS) { return; }
+		argTypes[index] = type;
+		objectArgs[index] = null;
+		primitiveArgs[index] = value;
+		argCount = Math.max(argCount, index + 1);
+	}
+
+	/** Record an object result. Called by the generated wrapper classes. */
+	public void setResult(Object value) { resultType = TYPE_OBJECT; result = value; }
+
+	/** Record a boolean result. Called by the generated wrapper classes. */
+	public void setResult(boolean value) { setPrimitiveResult(TYPE_BOOLEAN, value ? 1 : 0); }
+
+	/** Record a char result. Called by the generated wrapper classes. */
+	public void setResult(char value) { setPrimitiveResult(TYPE_CHAR, value); }
+
+	/** Record an int, short or byte result. Called by the generated wrapper classes. */
+	public void setResult(int value) { setPrimitiveResult(TYPE_INT, value); }
+
+	/** Record a long result. Called by the generated wrapper classes. */
+	public void setResult(long value) { setPrimitiveResult(TYPE_LONG, value); }
+
+	/** Record a float result. Called by the generated wrapper classes. */
+	public void setResult(float value) { setPrimitiveResult(TYPE_FLOAT, Float.floatToRawIntBits(value)); }
+
+	/** Record a double result. Called by the generated wrapper classes. */
+	public void setResult(double value) { setPrimitiveResult(TYPE_DOUBLE, Double.doubleToRawLongBits(value)); }
+
+	private void setPrimitiveResult(char type, long value) {
+		resultType = type;
+		result = null;
+		primitiveResult = value;
+	}
+
+	/** Returns the logger of the wrapper class that generated this event */
+	public Logger getLogger() { return logger; }
+
+	/** Returns the wrapper object that generated this event */
+	public Object getSource() { return source; }
+
+	/** Returns the id of the method invoked, as registered in {@link com.randomnoun.p7spy.P7SpyMethods} */
+	public int getMethodId() { return methodId; }
+
+	/** Returns the number of arguments recorded, or -1 if the method has no arguments */
+	public int getArgCount() { return argCount; }
+
+	/** Returns the type of an argument; one of the TYPE_* constants */
+	public char getArgType(int index) { return argTypes[index]; }
+
+	/** Returns the value of an object argument */
+	public Object getObjectArg(int index) { return objectArgs[index]; }
+
+	/** Returns the value of a primitive argument. Booleans are stored as 0 or 1, and floats and doubles
+	 * as their raw bits. */
+	public long getPrimitiveArg(int index) { return primitiveArgs[index]; }
+
+	/** Returns the type of the result; one of the TYPE_* constants */
+	public char getResultType() { return resultType; }
+
+	/** Returns the value of a primitive result, in the same form as {@link #getPrimitiveArg(int)} */
+	public long getPrimitiveResult() { return primitiveResult; }
+
+	/** Returns the arguments passed to the method, with primitives boxed, or null if the method has no arguments.
+	 * A new array is created on each call. */
+	public Object[] getArgs() {
+		if (argCount == -1) { return null; }
+		Object[] args = new Object[argCount];
+		for (int i = 0; i < argCount; i++) {
+			args[i] = argTypes[i] == TYPE_OBJECT ? objectArgs[i] : box(argTypes[i], primitiveArgs[i]);
+		}
+		return args;
+	}
+
+	/** Returns the value returned by the method, with primitives boxed, or null */
+	public Object getResult() {
+		return resultType == TYPE_OBJECT ? result : box(resultType, primitiveResult);
+	}
+
+	/** Returns the exception thrown by the method, or null */
+	public Throwable getThrowable() { return throwable; }
+
+	/** Returns the System.nanoTime() when the method was invoked */
+	public long getStartNanos() { return startNanos; }
+
+	/** Returns the System.nanoTime() when the method completed */
+	public long getEndNanos() { return endNanos; }
+
+	/** Returns the time in msec since epoch when the method completed */
+	public long getTimeStamp() { return timeStamp; }
+
+	/** Returns the name of the thread that invoked the method */
+	public String getThreadName() { return threadName; }
+
+	/** Box a primitive value stored in a slot */
+	private static Object box(char type, long value) {
+		switch (type) {
+			case TYPE_BOOLEAN: return value != 0;
+			case TYPE_CHAR: return (char) value;
+			case TYPE_INT: return (int) value;
+			case TYPE_FLOAT: return Float.intBitsToFloat((int) value);
+			case TYPE_DOUBLE: return Double.longBitsToDouble(value);
+			default: return value;
+		}
+	}
+
+	/** Clears object references held by this event, so that they can be garbage collected */
+	void clear() {
+		logger = null;
+		source = null;
+		for (int i = 0; i < argCount; i++) {
+			objectArgs[i] = null;
+		}
+		argCount = -1;
+		resultType = TYPE_OBJECT;
+		result = null;
+		throwable = null;
+		threadName = null;
+	}
+
+}
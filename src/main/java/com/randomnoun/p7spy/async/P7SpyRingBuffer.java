@@ -0,0 +1,179 @@
+package com.randomnoun.p7spy.async;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/** A bounded, lock-free, multi-producer single-consumer queue of preallocated {@link P7SpyEvent}s.
+ *
+ * <p>Each slot in the buffer has a sequence number. A producer claims a position by incrementing the
+ * tail counter ({@link #claim()}), fills in the event in that slot, then publishes it by advancing the slot's 
+ * sequence number ({@link #publish(P7SpyEvent)}). Every event that is claimed must be published.
+ * The consumer processes slots in order, and releases each slot back to the producers by advancing its
+ * sequence number by the capacity of the buffer.
+ *
+ * <p>Based on Dmitry Vyukov's bounded MPMC queue.
+ *
+ * @author knoxg
+ */
+public class P7SpyRingBuffer {
+
+	/** What to do when a producer attempts to publish an event into a full buffer */
+	public enum FullPolicy {
+		/** Wait until the consumer has made space available */
+		BLOCK,
+		/** Discard the event */
+		DROP,
+		/** Discard the event, and increment the dropped event count */
+		DROP_AND_COUNT
+	};
+
+	/** Preallocated events */
+	private final P7SpyEvent[] events;
+
+	/** Sequence numbers for each slot */
+	private final AtomicLongArray sequences;
+
+	/** capacity - 1; used to map a position to a slot */
+	private final int mask;
+
+	/** Next position to be claimed by a producer */
+	private final AtomicLong tail = new AtomicLong();
+
+	/** Next position to be read by the consumer. Only modified by the consumer thread */
+	private volatile long head = 0;
+
+	/** Policy used when the buffer is full */
+	private final FullPolicy fullPolicy;
+
+	/** Number of events dropped because the buffer was full */
+	private final LongAdder droppedCount = new LongAdder();
+
+	/** Create a new ring buffer
+	 *
+	 * @param capacity the number of events in the buffer; will be rounded up to a power of 2
+	 * @param fullPolicy policy used when the buffer is full
+	 */
+	public P7SpyRingBuffer(int capacity, FullPolicy fullPolicy) {
+		if (capacity < 2) { throw new IllegalArgumentException("capacity must be at least 2"); }
+		int size = Integer.highestOneBit(capacity - 1) << 1;
+		this.events = new P7SpyEvent[size];
+		this.sequences = new AtomicLongArray(size);
+		this.mask = size - 1;
+		this.fullPolicy = fullPolicy;
+		for (int i = 0; i < size; i++) {
+			events[i] = new P7SpyEvent(this);
+			sequences.set(i, i);
+		}
+	}
+
+	/** Returns the number of events this buffer can hold */
+	public int getCapacity() {
+		return events.length;
+	}
+
+	/** Returns the policy used when the buffer is full */
+	public FullPolicy getFullPolicy() {
+		return fullPolicy;
+	}
+
+	/** Returns the number of events dropped because the buffer was full. This count is only maintained
+	 * when the fullPolicy is DROP_AND_COUNT */
+	public long getDroppedCount() {
+		return droppedCount.sum();
+	}
+
+	/** Returns the number of events that have been claimed by producers */
+	public long getPublishedCount() {
+		return tail.get();
+	}
+
+	/** Returns the number of events that have been processed by the consumer */
+	public long getConsumedCount() {
+		return head;
+	}
+
+	/** Claim the next event in the buffer. The caller must fill in the event's arguments and result,
+	 * then call {@link #publish(P7SpyEvent)}.
+	 *
+	 * @return the event to fill in, or null if the event was dropped because the buffer was full
+	 */
+	public P7SpyEvent claim() {
+		long pos = tail.get();
+		int idx;
+		int spins = 0;
+		for (;;) {
+			idx = (int) pos & mask;
+			long dif = sequences.get(idx) - pos;
+			if (dif == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) { break; }
+				pos = tail.get();
+			} else if (dif < 0) {
+				// buffer is full
+				if (fullPolicy == FullPolicy.DROP) {
+					return null;
+				} else if (fullPolicy == FullPolicy.DROP_AND_COUNT) {
+					droppedCount.increment();
+					return null;
+				}
+				if (++spins < 100) {
+					Thread.onSpinWait();
+				} else {
+					LockSupport.parkNanos(10000);
+				}
+				pos = tail.get();
+			} else {
+				pos = tail.get();
+			}
+		}
+		P7SpyEvent event = events[idx];
+		event.sequence = pos;
+		return event;
+	}
+
+	/** Make a claimed event available to the consumer
+	 *
+	 * @param event an event returned by {@link #claim()}
+	 */
+	public void publish(P7SpyEvent event) {
+		sequences.lazySet((int) event.sequence & mask, event.sequence + 1);
+	}
+
+	/** Process events in the buffer. Must only be called from a single consumer thread.
+	 *
+	 * @param handler handler to process each event; the event must not be retained by the handler
+	 * @param maxEvents the maximum number of events to process
+	 *
+	 * @return the number of events processed
+	 */
+	public int drain(Consumer<P7SpyEvent> handler, int maxEvents) {
+		int count = 0;
+		long head = this.head;
+		while (count < maxEvents) {
+			int idx = (int) head & mask;
+			if (sequences.get(idx) != head + 1) {
+				break; // nothing published at this position yet
+			}
+			P7SpyEvent event = events[idx];
+			try {
+				handler.accept(event);
+			} finally {
+				event.clear();
+				sequences.lazySet(idx, head + mask + 1);
+				head++;
+				count++;
+				this.head = head;
+			}
+		}
+		return count;
+	}
+
+	/** Returns true if there are no published events waiting to be processed. Must only be called
+	 * from the consumer thread. */
+	public boolean isEmpty() {
+		return sequences.get((int) head & mask) != head + 1;
+	}
+
+}
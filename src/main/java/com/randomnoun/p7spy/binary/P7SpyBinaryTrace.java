@@ -0,0 +1,618 @@
+package com.randomnoun.p7spy.binary;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.randomnoun.p7spy.P7SpyMethods;
+import com.randomnoun.p7spy.P7SpyMethods.P7SpyMethod;
+import com.randomnoun.p7spy.P7SpyWrapper;
+import com.randomnoun.p7spy.async.P7SpyEvent;
+
+/** Writes JDBC method invocations as binary records into rotating memory-mapped files.
+ *
+ * <p>When enabled, invocations that would otherwise be logged by the wrapper classes are written to a trace
+ * file instead of being formatted and sent to log4j. Each data file is divided into regions; a thread
+ * claims a region the first time it writes, and then appends records to that region until it is full,
+ * so threads never contend on the same bytes and no locks are taken when writing a record. When every
+ * region in a file has been claimed, a new file is created, and the oldest files are deleted.
+ *
+ * <p>Each data file (<tt>base.000000.p7b</tt>) starts with a {@link #HEADER_SIZE}-byte header, followed by
+ * regions of {@link #REGION_SIZE} bytes. Each record is a {@link #RECORD_HEADER_SIZE}-byte header followed by
+ * the values of the arguments and the result, padded to a multiple of 8 bytes:
+ * <pre>
+ *  0 long  start time, in nanoseconds since the epoch (0 marks the end of the records in a region)
+ *  8 long  duration, in nanoseconds
+ * 16 long  thread id
+ * 24 int   identity hash code of the wrapper
+ * 28 int   method id
+ * 32 int   identity hash code of the result, if the result is a wrapper
+ * 36 int   string id of the thread name
+ * 40 short flags; see FLAG_* constants
+ * 42 short length of the record, in bytes
+ * 44 byte  number of argument values
+ * 45       reserved
+ * 48       argument values, followed by the result or exception value if FLAG_RESULT or FLAG_EXCEPTION is set
+ * </pre>
+ *
+ * <p>Each value is a type byte (see the VALUE_* constants) followed by its data. Primitives are stored as-is,
+ * and strings and other objects as up to {@link #MAX_INLINE_LENGTH} UTF-16 characters, so recording an
+ * invocation doesn't format its arguments into a String. Only the SQL passed to <tt>prepare*</tt>, 
+ * <tt>execute*</tt>, <tt>addBatch</tt> and <tt>nativeSQL</tt>, the class names of wrapper results, 
+ * thread names and method names are interned per data file, and written to a string table 
+ * (<tt>base.000000.p7s</tt>) the first time they are used; the string table is written through a buffered stream, 
+ * which is flushed when the file is rotated or the trace is closed. The string table is limited to a quarter 
+ * of the size of the data file; when it is full, the data file is rotated, so that the string table is rotated 
+ * with it. {@link P7SpyBinaryTraceReader} converts the files back into the log format produced by the wrapper classes.
+ *
+ * <p>Records are written by the wrappers that would log at DEBUG level, through the same hook used by
+ * {@link com.randomnoun.p7spy.async.P7SpyAsyncLogger}.
+ *
+ * <p>The following system properties are read when this class is loaded:
+ * <ul>
+ * <li><tt>p7spy.binary.file</tt> - if set, the base filename of the trace files, which enables binary tracing
+ * <li><tt>p7spy.binary.fileSize</tt> - the size of each data file, in megabytes. Defaults to 64.
+ * <li><tt>p7spy.binary.maxFiles</tt> - the number of data files to keep. Defaults to 10.
+ * </ul>
+ *
+ * @author knoxg
+ */
+public class P7SpyBinaryTrace {
+
+	/** Logger instance for this class */
+	static Logger logger = Logger.getLogger(P7SpyBinaryTrace.class);
+
+	/** Identifies a p7spy binary trace file */
+	public static final long MAGIC = 0x5037535059424E31L; // "P7SPYBN1"
+
+	/** File format version */
+	public static final int VERSION = 2;
+
+	/** Size of the data file header, in bytes */
+	public static final int HEADER_SIZE = 64;
+
+	/** Size of each record header, in bytes */
+	public static final int RECORD_HEADER_SIZE = 48;
+
+
+	/** Maximum number of characters of a string or object value stored in a record */
+	public static final int MAX_INLINE_LENGTH = 200;
+
+	/** Maximum size of a record, in bytes */
+	public static final int MAX_RECORD_SIZE = 4096;
+
+	/** Size of each region, in bytes */
+	public static final int REGION_SIZE = 65536;
+
+	/** Record flag: the method threw an exception, and the result field contains the exception */
+	public static final int FLAG_EXCEPTION = 1;
+
+	/** Record flag: the result is a wrapper; the result value contains its class name and the result object id field its identity hash code */
+	public static final int FLAG_RESULT_OBJECT = 2;
+
+	/** Record flag: the result value is set */
+	public static final int FLAG_RESULT = 4;
+
+	/** Value type: null */
+	public static final byte VALUE_NULL = 'N';
+
+	/** Value type: a boolean, stored as a byte */
+	public static final byte VALUE_BOOLEAN = 'Z';
+
+	/** Value type: a byte */
+	public static final byte VALUE_BYTE = 'B';
+
+	/** Value type: a short */
+	public static final byte VALUE_SHORT = 'S';
+
+	/** Value type: a char */
+	public static final byte VALUE_CHAR = 'C';
+
+	/** Value type: an int */
+	public static final byte VALUE_INT = 'I';
+
+	/** Value type: a long */
+	public static final byte VALUE_LONG = 'J';
+
+	/** Value type: a float */
+	public static final byte VALUE_FLOAT = 'F';
+
+	/** Value type: a double */
+	public static final byte VALUE_DOUBLE = 'D';
+
+	/** Value type: a String or other CharSequence, which is quoted and escaped when read; stored as a short length 
+	 * (with {@link #TRUNCATED} set if the string was truncated) followed by that many chars */
+	public static final byte VALUE_STRING = 'T';
+
+	/** Value type: the <tt>toString()</tt> of any other object, or an exception, stored in the same form as VALUE_STRING */
+	public static final byte VALUE_OBJECT = 'L';
+
+	/** Value type: an interned String, which is quoted and escaped when read; stored as an int string id */
+	public static final byte VALUE_INTERNED_STRING = 'Q';
+
+	/** Value type: the class name of a wrapper, stored as an int string id */
+	public static final byte VALUE_CLASS = 'W';
+
+	/** Set in the length of a VALUE_STRING or VALUE_OBJECT if the value was truncated */
+	public static final int TRUNCATED = 0x8000;
+
+	/** String table entry containing a string */
+	public static final byte ENTRY_STRING = 'S';
+
+	/** String table entry describing a method id */
+	public static final byte ENTRY_METHOD = 'M';
+
+	/** Strings longer than this are truncated before being written to the string table */
+	static final int MAX_STRING_LENGTH = 4096;
+
+	/** Maximum number of strings in each file's string table */
+	static final int MAX_INTERNED_STRINGS = 65536;
+
+	/** Method kind: the method has been written to the string table */
+	private static final byte METHOD_DESCRIBED = 1;
+
+	/** Method kind: the method has been written to the string table, and its first argument is SQL */
+	private static final byte METHOD_SQL = 2;
+
+	/** Offset added to System.nanoTime() to produce nanoseconds since the epoch */
+	private static final long EPOCH_OFFSET = System.currentTimeMillis() * 1000000L - System.nanoTime();
+
+	/** The file currently being written to, or null if binary tracing is disabled */
+	private static volatile TraceFile currentFile;
+
+	/** Files that have been written, oldest first; guarded by the class lock */
+	private static LinkedList<TraceFile> files = new LinkedList<TraceFile>();
+
+	/** Base filename of the trace files */
+	private static String basePath;
+
+	/** Size of each data file, in bytes */
+	private static long fileSize;
+
+	/** Number of data files to keep */
+	private static int maxFiles;
+
+	/** Sequence number of the next data file */
+	private static int nextSequence;
+
+	/** The region the current thread is writing to */
+	private static final ThreadLocal<Region> threadRegion = new ThreadLocal<Region>();
+
+	static {
+		String file = System.getProperty("p7spy.binary.file");
+		if (file != null && !file.equals("")) {
+			try {
+				open(file, Long.getLong("p7spy.binary.fileSize", 64) * 1024 * 1024, Integer.getInteger("p7spy.binary.maxFiles", 10));
+			} catch (IOException ioe) {
+				logger.error("Could not open p7spy binary trace '" + file + "'", ioe);
+			}
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				public void run() { close(); }
+			}, "p7spy-binary-trace-shutdown"));
+		}
+	}
+
+	/** A data file and its string table */
+	static class TraceFile {
+		final File dataFile;
+		final File stringsFile;
+		final MappedByteBuffer buffer;
+		final int regionCount;
+		final AtomicInteger nextRegion = new AtomicInteger();
+		final ConcurrentHashMap<String, Integer> strings = new ConcurrentHashMap<String, Integer>();
+		final long maxStringsSize;
+		int nextStringId;
+		long stringsSize;
+		byte[] methodKinds = new byte[256];
+		DataOutputStream stringsOut;
+		volatile boolean closed;
+
+		/** Set when the string table is full; the file is rotated the next time a thread claims a region */
+		volatile boolean full;
+
+		TraceFile(File dataFile, File stringsFile, long size) throws IOException {
+			this.dataFile = dataFile;
+			this.stringsFile = stringsFile;
+			regionCount = (int) Math.max(1, (size - HEADER_SIZE) / REGION_SIZE);
+			maxStringsSize = Math.max(REGION_SIZE, size / 4);
+			RandomAccessFile raf = new RandomAccessFile(dataFile, "rw");
+			try {
+				FileChannel channel = raf.getChannel();
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) regionCount * REGION_SIZE);
+			} finally {
+				raf.close(); // the mapping remains valid after the channel is closed
+			}
+			buffer.putLong(0, MAGIC);
+			buffer.putInt(8, VERSION);
+			buffer.putInt(12, REGION_SIZE);
+			buffer.putInt(16, regionCount);
+			stringsOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(stringsFile)));
+		}
+
+		/** Returns the string table id of a string, adding it to the string table if necessary.
+		 * 
+		 * @return the string id, or -1 if the string table is full or has been closed  
+		 */
+		int intern(String s) {
+			Integer id = strings.get(s);
+			if (id != null) { return id; }
+			synchronized (this) {
+				id = strings.get(s);
+				if (id != null) { return id; }
+				if (closed || full) { return -1; }
+				if (nextStringId == MAX_INTERNED_STRINGS || stringsSize >= maxStringsSize) {
+					full = true;
+					return -1;
+				}
+				int newId = nextStringId++;
+				String entry = s.length() > MAX_STRING_LENGTH ? s.substring(0, MAX_STRING_LENGTH) : s;
+				try {
+					stringsOut.writeByte(ENTRY_STRING);
+					stringsOut.writeInt(newId);
+					stringsOut.writeUTF(entry);
+				} catch (IOException ioe) {
+					logger.error("Could not write to p7spy string table '" + stringsFile + "'", ioe);
+					return -1;
+				}
+				stringsSize += 7 + entry.length();
+				strings.put(s, newId);
+				return newId;
+			}
+		}
+
+		/** Writes the interface and method name of a method id to the string table, if it hasn't been already
+		 *
+		 * @return METHOD_SQL if the method's first argument is SQL, METHOD_DESCRIBED if it isn't,
+		 *   or 0 if the method could not be described
+		 */
+		byte describeMethod(int methodId) {
+			byte[] k = methodKinds;
+			if (methodId < k.length && k[methodId] != 0) { return k[methodId]; }
+			synchronized (this) {
+				if (methodId >= methodKinds.length) {
+					byte[] newKinds = new byte[Math.max(methodId + 1, methodKinds.length * 2)];
+					System.arraycopy(methodKinds, 0, newKinds, 0, methodKinds.length);
+					methodKinds = newKinds;
+				}
+				if (methodKinds[methodId] != 0 || closed) { return methodKinds[methodId]; }
+				P7SpyMethod method = P7SpyMethods.getMethod(methodId);
+				if (method == null) { return 0; }
+				try {
+					stringsOut.writeByte(ENTRY_METHOD);
+					stringsOut.writeInt(methodId);
+					stringsOut.writeUTF(method.getInterfaceName());
+					stringsOut.writeUTF(method.getMethodName());
+					stringsOut.writeBoolean(method.hasReturnValue());
+				} catch (IOException ioe) {
+					logger.error("Could not write to p7spy string table '" + stringsFile + "'", ioe);
+					return 0;
+				}
+				String name = method.getMethodName();
+				methodKinds[methodId] = name.startsWith("prepare") || name.startsWith("execute") ||
+					name.equals("addBatch") || name.equals("nativeSQL") ? METHOD_SQL : METHOD_DESCRIBED;
+				return methodKinds[methodId];
+			}
+		}
+
+		/** Flush the string table and the mapped data to disk */
+		synchronized void flush() {
+			try {
+				stringsOut.flush();
+			} catch (IOException ioe) {
+				logger.error("Could not write to p7spy string table '" + stringsFile + "'", ioe);
+			}
+			buffer.force();
+		}
+
+		/** Flush and close the string table. Records written to this file after it is closed are not readable. */
+		synchronized void close() {
+			if (closed) { return; }
+			flush();
+			closed = true;
+			try {
+				stringsOut.close();
+			} catch (IOException ioe) {
+				logger.error("Could not close p7spy string table '" + stringsFile + "'", ioe);
+			}
+		}
+	}
+
+	/** The part of a data file that a single thread writes to */
+	static class Region {
+		final TraceFile file;
+		final ByteBuffer buffer;
+		final int threadNameRef;
+		int position;
+
+		Region(TraceFile file, int index, String threadName) {
+			this.file = file;
+			ByteBuffer b = file.buffer.duplicate();
+			b.position(HEADER_SIZE + index * REGION_SIZE);
+			b.limit(HEADER_SIZE + (index + 1) * REGION_SIZE);
+			this.buffer = b.slice();
+			this.threadNameRef = file.intern(threadName);
+		}
+	}
+
+	/** Returns true if invocations are being written to a binary trace
+	 *
+	 * @return true if binary tracing is enabled
+	 */
+	public static boolean isEnabled() {
+		return currentFile != null;
+	}
+
+	/** Start writing invocations to a binary trace. If a trace is already open, it is closed first.
+	 *
+	 * @param basePath the base filename of the trace files; a sequence number and extension is appended to this
+	 * @param fileSize the maximum size of each data file, in bytes
+	 * @param maxFiles the number of data files to keep; older files are deleted
+	 *
+	 * @throws IOException if the first data file could not be created
+	 */
+	public static synchronized void open(String basePath, long fileSize, int maxFiles) throws IOException {
+		close();
+		P7SpyBinaryTrace.basePath = basePath;
+		P7SpyBinaryTrace.fileSize = fileSize;
+		P7SpyBinaryTrace.maxFiles = Math.max(1, maxFiles);
+		nextSequence = 0;
+		File parent = new File(basePath).getAbsoluteFile().getParentFile();
+		if (parent != null) { parent.mkdirs(); }
+		currentFile = newFile();
+	}
+
+	/** Stop writing the binary trace, and flush all files to disk */
+	public static synchronized void close() {
+		TraceFile tf = currentFile;
+		currentFile = null;
+		for (TraceFile f : files) {
+			f.close();
+		}
+		files.clear();
+		if (tf != null) {
+			logger.info("Closed p7spy binary trace '" + basePath + "'");
+		}
+	}
+
+	/** Returns the data files currently in the trace, oldest first
+	 *
+	 * @return the data files in the trace
+	 */
+	public static synchronized File[] getFiles() {
+		File[] result = new File[files.size()];
+		int i = 0;
+		for (TraceFile f : files) {
+			result[i++] = f.dataFile;
+		}
+		return result;
+	}
+
+	/** Create the next data file, and delete the oldest files if there are more than maxFiles */
+	private static TraceFile newFile() throws IOException {
+		String prefix = basePath + "." + String.format("%06d", nextSequence++);
+		TraceFile tf = new TraceFile(new File(prefix + ".p7b"), new File(prefix + ".p7s"), fileSize);
+		files.add(tf);
+		while (files.size() > maxFiles) {
+			TraceFile oldest = files.removeFirst();
+			oldest.close();
+			if (!oldest.dataFile.delete() || !oldest.stringsFile.delete()) {
+				logger.warn("Could not delete p7spy binary trace file '" + oldest.dataFile + "'");
+			}
+		}
+		return tf;
+	}
+
+	/** Start a new data file, unless another thread has already done so
+	 *
+	 * @param full the file which has no unclaimed regions
+	 */
+	private static synchronized void rotate(TraceFile full) {
+		if (currentFile != full) { return; }
+		full.flush();
+		try {
+			currentFile = newFile();
+		} catch (IOException ioe) {
+			logger.error("Could not create p7spy binary trace file; binary tracing disabled", ioe);
+			currentFile = null;
+		}
+	}
+
+	/** Returns the region the current thread should write its next record to, or null if tracing has been disabled.
+	 * A new region is claimed if the current region doesn't have space for a record of the maximum size. */
+	private static Region getRegion() {
+		Region r = threadRegion.get();
+		TraceFile tf = currentFile;
+		while (tf != null) {
+			if (tf.full) {
+				rotate(tf);
+			} else if (r != null && r.file == tf && r.position <= REGION_SIZE - MAX_RECORD_SIZE) {
+				return r;
+			} else {
+				int index = tf.nextRegion.getAndIncrement();
+				if (index < tf.regionCount) {
+					r = new Region(tf, index, Thread.currentThread().getName());
+					threadRegion.set(r);
+					return r;
+				}
+				rotate(tf);
+			}
+			tf = currentFile;
+		}
+		return null;
+	}
+
+	/** Write a method invocation to the trace. Called by the generated wrapper classes, via
+	 * {@link com.randomnoun.p7spy.async.P7SpyAsyncLogger#publish(P7SpyEvent)}.
+	 *
+	 * @param event the method invocation; at most {@link P7SpyEvent#MAX_ARGS} arguments are recorded
+	 *
+	 * @return true if the invocation was written, false if tracing has been disabled
+	 */
+	public static boolean write(P7SpyEvent event) {
+		Region r = getRegion();
+		if (r == null) { return false; }
+		TraceFile tf = r.file;
+		int methodId = event.getMethodId();
+		byte kind = tf.describeMethod(methodId);
+		ByteBuffer b = r.buffer;
+		int p = r.position;
+		int q = p + RECORD_HEADER_SIZE;
+		int argCount = Math.max(0, event.getArgCount());
+		for (int i = 0; i < argCount; i++) {
+			char type = event.getArgType(i);
+			if (type != P7SpyEvent.TYPE_OBJECT) {
+				q = putPrimitive(b, q, type, event.getPrimitiveArg(i));
+			} else if (i == 0 && kind == METHOD_SQL && event.getObjectArg(0) instanceof String) {
+				q = putInterned(b, q, tf, (String) event.getObjectArg(0));
+			} else {
+				q = putValue(b, q, event.getObjectArg(i));
+			}
+		}
+		Throwable throwable = event.getThrowable();
+		Object result = event.getResultType() == P7SpyEvent.TYPE_OBJECT ? event.getResult() : null;
+		int flags = 0;
+		int resultObjectId = 0;
+		if (throwable != null) {
+			flags = FLAG_EXCEPTION;
+			q = putChars(b, q, VALUE_OBJECT, throwable.toString());
+		} else if (result instanceof P7SpyWrapper) {
+			flags = FLAG_RESULT | FLAG_RESULT_OBJECT;
+			int classRef = tf.intern(result.getClass().getName());
+			if (classRef == -1) {
+				q = putChars(b, q, VALUE_OBJECT, result.getClass().getName());
+			} else {
+				b.put(q, VALUE_CLASS);
+				b.putInt(q + 1, classRef);
+				q += 5;
+			}
+			resultObjectId = System.identityHashCode(result);
+		} else {
+			P7SpyMethod method = P7SpyMethods.getMethod(methodId);
+			if (method != null && method.hasReturnValue()) {
+				flags = FLAG_RESULT;
+				if (event.getResultType() == P7SpyEvent.TYPE_OBJECT) {
+					q = putValue(b, q, result);
+				} else {
+					q = putPrimitive(b, q, event.getResultType(), event.getPrimitiveResult());
+				}
+			}
+		}
+		int length = (q - p + 7) & ~7;
+		b.putLong(p + 8, event.getEndNanos() - event.getStartNanos());
+		b.putLong(p + 16, Thread.currentThread().getId());
+		b.putInt(p + 24, System.identityHashCode(event.getSource()));
+		b.putInt(p + 28, methodId);
+		b.putInt(p + 32, resultObjectId);
+		b.putInt(p + 36, r.threadNameRef);
+		b.putShort(p + 40, (short) flags);
+		b.putShort(p + 42, (short) length);
+		b.put(p + 44, (byte) argCount);
+		b.putLong(p, event.getStartNanos() + EPOCH_OFFSET); // written last, so that readers never see a partial record
+		r.position = p + length;
+		return true;
+	}
+
+	/** Write a value to a record
+	 *
+	 * @param b the region buffer
+	 * @param q the position to write the value at
+	 * @param value the value
+	 *
+	 * @return the position after the value
+	 */
+	private static int putValue(ByteBuffer b, int q, Object value) {
+		if (value == null) {
+			b.put(q, VALUE_NULL);
+			return q + 1;
+		} else if (value instanceof CharSequence) {
+			return putChars(b, q, VALUE_STRING, (CharSequence) value);
+		} else if (value instanceof Integer) {
+			b.put(q, VALUE_INT);
+			b.putInt(q + 1, (Integer) value);
+			return q + 5;
+		} else if (value instanceof Long) {
+			b.put(q, VALUE_LONG);
+			b.putLong(q + 1, (Long) value);
+			return q + 9;
+		} else if (value instanceof Boolean) {
+			b.put(q, VALUE_BOOLEAN);
+			b.put(q + 1, (byte) ((Boolean) value ? 1 : 0));
+			return q + 2;
+		} else if (value instanceof Short) {
+			b.put(q, VALUE_SHORT);
+			b.putShort(q + 1, (Short) value);
+			return q + 3;
+		} else if (value instanceof Byte) {
+			b.put(q, VALUE_BYTE);
+			b.put(q + 1, (Byte) value);
+			return q + 2;
+		} else if (value instanceof Character) {
+			b.put(q, VALUE_CHAR);
+			b.putChar(q + 1, (Character) value);
+			return q + 3;
+		} else if (value instanceof Double) {
+			b.put(q, VALUE_DOUBLE);
+			b.putDouble(q + 1, (Double) value);
+			return q + 9;
+		} else if (value instanceof Float) {
+			b.put(q, VALUE_FLOAT);
+			b.putFloat(q + 1, (Float) value);
+			return q + 5;
+		}
+		return putChars(b, q, VALUE_OBJECT, value.toString());
+	}
+
+	/** Write a primitive value held in a {@link P7SpyEvent} slot to a record
+	 *
+	 * @param b the region buffer
+	 * @param q the position to write the value at
+	 * @param type the type of the slot; one of the P7SpyEvent.TYPE_* constants
+	 * @param value the value of the slot
+	 *
+	 * @return the position after the value
+	 */
+	private static int putPrimitive(ByteBuffer b, int q, char type, long value) {
+		switch (type) {
+			case P7SpyEvent.TYPE_BOOLEAN: b.put(q, VALUE_BOOLEAN); b.put(q + 1, (byte) value); return q + 2;
+			case P7SpyEvent.TYPE_CHAR: b.put(q, VALUE_CHAR); b.putChar(q + 1, (char) value); return q + 3;
+			case P7SpyEvent.TYPE_INT: b.put(q, VALUE_INT); b.putInt(q + 1, (int) value); return q + 5;
+			case P7SpyEvent.TYPE_FLOAT: b.put(q, VALUE_FLOAT); b.putInt(q + 1, (int) value); return q + 5;
+			case P7SpyEvent.TYPE_DOUBLE: b.put(q, VALUE_DOUBLE); b.putLong(q + 1, value); return q + 9;
+			default: b.put(q, VALUE_LONG); b.putLong(q + 1, value); return q + 9;
+		}
+	}
+
+	/** Write a SQL string to a record as a string id, or inline if the string table is full */
+	private static int putInterned(ByteBuffer b, int q, TraceFile tf, String s) {
+		int ref = tf.intern(s);
+		if (ref == -1) { return putChars(b, q, VALUE_STRING, s); }
+		b.put(q, VALUE_INTERNED_STRING);
+		b.putInt(q + 1, ref);
+		return q + 5;
+	}
+
+	/** Write up to MAX_INLINE_LENGTH characters of a CharSequence to a record */
+	private static int putChars(ByteBuffer b, int q, byte type, CharSequence cs) {
+		int len = cs.length();
+		int stored = Math.min(len, MAX_INLINE_LENGTH);
+		b.put(q, type);
+		b.putShort(q + 1, (short) (stored < len ? stored | TRUNCATED : stored));
+		q += 3;
+		for (int i = 0; i < stored; i++, q += 2) {
+			b.putChar(q, cs.charAt(i));
+		}
+		return q;
+	}
+
+}
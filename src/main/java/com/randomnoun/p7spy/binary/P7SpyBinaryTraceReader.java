@@ -0,0 +1,444 @@
+package com.randomnoun.p7spy.binary;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.regex.Pattern;
+
+import com.randomnoun.p7spy.P7SpyMethods.P7SpyMethod;
+import com.randomnoun.p7spy.P7SpyTrace;
+
+/** Converts a binary trace written by {@link P7SpyBinaryTrace} back into the log format produced by
+ * the wrapper classes; i.e. the format produced by the log4j pattern
+ * <tt>"%d{ABSOLUTE}, %-5p [%-30X{p7Id}] [%5X{p7Duration}] %m%n"</tt>.
+ *
+ * <p>Records are written in start time order. Records can be filtered by time, by connection, or by a
+ * regular expression matched against the SQL of the statement. The connection and SQL of statements and
+ * result sets are determined from the method calls that created them, so these filters only match
+ * objects that were created whilst the trace was being written, and don't match the <tt>new Statement()</tt>
+ * line which is logged before the statement is returned to the connection.
+ *
+ * <p>Usage:
+ * <pre>
+ * java com.randomnoun.p7spy.binary.P7SpyBinaryTraceReader [--from time] [--to time] [--connection id] [--sql regex] file...
+ * </pre>
+ *
+ * <p>where <tt>time</tt> is either an ISO-8601 local date-time (e.g. <tt>2020-01-02T16:50:03</tt>) or a number
+ * of milliseconds since the epoch, <tt>id</tt> is a connection id as it appears in the log
+ * (e.g. <tt>P7Connection@18b0930f</tt>), and each <tt>file</tt> is either a data file (<tt>*.p7b</tt>)
+ * or the base filename passed in the <tt>p7spy.binary.file</tt> system property, in which case all the data
+ * files with that base filename are read.
+ *
+ * @author knoxg
+ */
+public class P7SpyBinaryTraceReader {
+
+	/** Time format of the %d{ABSOLUTE} log4j pattern */
+	private static final DateTimeFormatter ABSOLUTE_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss,SSS").withZone(ZoneId.systemDefault());
+
+	/** Only records starting at or after this time (in nanoseconds since the epoch) are written */
+	private long fromNanos = Long.MIN_VALUE;
+
+	/** Only records starting before this time (in nanoseconds since the epoch) are written */
+	private long toNanos = Long.MAX_VALUE;
+
+	/** If non-null, only records for objects created by this connection are written */
+	private Integer connectionId;
+
+	/** If non-null, only records whose SQL matches this pattern are written */
+	private Pattern sqlPattern;
+
+	/** The connection id of each object seen in the trace */
+	private Map<Integer, Integer> objectConnections = new HashMap<Integer, Integer>();
+
+	/** The SQL of each statement and result set seen in the trace */
+	private Map<Integer, String> objectSql = new HashMap<Integer, String>();
+
+	/** Only write records starting at or after this time
+	 *
+	 * @param fromMillis time, in milliseconds since the epoch
+	 */
+	public void setFrom(long fromMillis) {
+		this.fromNanos = fromMillis * 1000000L;
+	}
+
+	/** Only write records starting before this time
+	 *
+	 * @param toMillis time, in milliseconds since the epoch
+	 */
+	public void setTo(long toMillis) {
+		this.toNanos = toMillis * 1000000L;
+	}
+
+	/** Only write records for a single connection, and the objects it created
+	 *
+	 * @param connection a connection id, either as it appears in the log (e.g. "P7Connection@18b0930f"),
+	 *   or the hexadecimal part only
+	 */
+	public void setConnection(String connection) {
+		this.connectionId = (int) Long.parseLong(connection.substring(connection.indexOf('@') + 1), 16);
+	}
+
+	/** Only write records whose SQL matches a regular expression
+	 *
+	 * @param sqlRegex a regular expression, which may match any part of the SQL
+	 */
+	public void setSql(String sqlRegex) {
+		this.sqlPattern = Pattern.compile(sqlRegex);
+	}
+
+	/** A data file, its string table and method table */
+	private static class TraceData {
+		MappedByteBuffer buffer;
+		int regionSize;
+		int regionCount;
+		Map<Integer, String> strings = new HashMap<Integer, String>();
+		Map<Integer, P7SpyMethod> methods = new HashMap<Integer, P7SpyMethod>();
+
+		String getString(int id) {
+			return id == -1 ? null : strings.get(id);
+		}
+	}
+
+	/** A position within a region, used to merge the regions of a file into start time order */
+	private static class RegionCursor implements Comparable<RegionCursor> {
+		int offset;
+		int end;
+		long timestamp;
+
+		public int compareTo(RegionCursor o) {
+			return Long.compare(timestamp, o.timestamp);
+		}
+	}
+
+	/** Read a data file and its string table */
+	private TraceData load(File dataFile) throws IOException {
+		TraceData data = new TraceData();
+		RandomAccessFile raf = new RandomAccessFile(dataFile, "r");
+		try {
+			data.buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		if (data.buffer.getLong(0) != P7SpyBinaryTrace.MAGIC) {
+			throw new IOException("'" + dataFile + "' is not a p7spy binary trace");
+		}
+		if (data.buffer.getInt(8) != P7SpyBinaryTrace.VERSION) {
+			throw new IOException("'" + dataFile + "' was written by an incompatible version of p7spy");
+		}
+		data.regionSize = data.buffer.getInt(12);
+		data.regionCount = data.buffer.getInt(16);
+
+		String name = dataFile.getPath();
+		File stringsFile = new File(name.substring(0, name.length() - 4) + ".p7s");
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(stringsFile)));
+		try {
+			while (true) {
+				int type;
+				try {
+					type = dis.readByte();
+				} catch (EOFException eofe) {
+					break;
+				}
+				int id = dis.readInt();
+				if (type == P7SpyBinaryTrace.ENTRY_STRING) {
+					data.strings.put(id, dis.readUTF());
+				} else if (type == P7SpyBinaryTrace.ENTRY_METHOD) {
+					data.methods.put(id, new P7SpyMethod(id, dis.readUTF(), dis.readUTF(), dis.readBoolean()));
+				} else {
+					throw new IOException("Unexpected entry type " + type + " in '" + stringsFile + "'");
+				}
+			}
+		} catch (EOFException eofe) {
+			// string table was truncated; read what we can
+		} finally {
+			dis.close();
+		}
+		return data;
+	}
+
+	/** Convert a data file to text, writing the records that match the filters set on this reader.
+	 * Files should be read in the order they were written, so that objects can be associated with
+	 * the connection and SQL that created them.
+	 *
+	 * @param dataFile the data file (<tt>*.p7b</tt>) to read
+	 * @param out where to write the formatted records
+	 *
+	 * @throws IOException if the file could not be read
+	 */
+	public void read(File dataFile, PrintWriter out) throws IOException {
+		TraceData data = load(dataFile);
+		PriorityQueue<RegionCursor> queue = new PriorityQueue<RegionCursor>();
+		for (int i = 0; i < data.regionCount; i++) {
+			RegionCursor c = new RegionCursor();
+			c.offset = P7SpyBinaryTrace.HEADER_SIZE + i * data.regionSize;
+			c.end = c.offset + data.regionSize;
+			c.timestamp = data.buffer.getLong(c.offset);
+			if (c.timestamp != 0) { queue.add(c); }
+		}
+		StringBuilder sb = new StringBuilder();
+		while (!queue.isEmpty()) {
+			RegionCursor c = queue.poll();
+			readRecord(data, c.offset, sb, out);
+			c.offset += data.buffer.getShort(c.offset + 42) & 0xFFFF;
+			if (c.offset + P7SpyBinaryTrace.RECORD_HEADER_SIZE <= c.end) {
+				c.timestamp = data.buffer.getLong(c.offset);
+				if (c.timestamp != 0) { queue.add(c); }
+			}
+		}
+		out.flush();
+	}
+
+	/** Format a single record, if it matches the filters on this reader */
+	private void readRecord(TraceData data, int offset, StringBuilder sb, PrintWriter out) {
+		MappedByteBuffer b = data.buffer;
+		long timestamp = b.getLong(offset);
+		long duration = b.getLong(offset + 8);
+		int objectId = b.getInt(offset + 24);
+		int methodId = b.getInt(offset + 28);
+		int resultObjectId = b.getInt(offset + 32);
+		int flags = b.getShort(offset + 40);
+		int argCount = b.get(offset + 44);
+		P7SpyMethod method = data.methods.get(methodId);
+
+		int q = offset + P7SpyBinaryTrace.RECORD_HEADER_SIZE;
+		String firstString = null;
+		if (argCount > 0 && (b.get(q) == P7SpyBinaryTrace.VALUE_INTERNED_STRING || b.get(q) == P7SpyBinaryTrace.VALUE_STRING)) {
+			firstString = getString(data, q);
+		}
+
+		// track which connection and SQL each object belongs to, regardless of whether this record is written
+		String methodName = method == null ? "" : method.getMethodName();
+		boolean sqlMethod = firstString != null && (methodName.startsWith("prepare") ||
+			methodName.startsWith("execute") || methodName.equals("addBatch") || methodName.equals("nativeSQL"));
+		if (method != null && method.getInterfaceName().equals("Connection")) {
+			objectConnections.put(objectId, objectId);
+		}
+		if ((flags & P7SpyBinaryTrace.FLAG_RESULT_OBJECT) != 0) {
+			Integer conn = objectConnections.get(objectId);
+			if (conn != null) { objectConnections.put(resultObjectId, conn); }
+			String sql = sqlMethod ? firstString : objectSql.get(objectId);
+			if (sql != null) { objectSql.put(resultObjectId, sql); }
+		}
+
+		if (timestamp < fromNanos || timestamp >= toNanos) { return; }
+		if (connectionId != null && !connectionId.equals(objectConnections.get(objectId))) { return; }
+		if (sqlPattern != null) {
+			String sql = sqlMethod ? firstString : objectSql.get(objectId);
+			if (sql == null || !sqlPattern.matcher(sql).find()) { return; }
+		}
+
+		sb.setLength(0);
+		Instant instant = Instant.ofEpochSecond(timestamp / 1000000000L, timestamp % 1000000000L);
+		ABSOLUTE_FORMAT.formatTo(instant, sb);
+		sb.append(", DEBUG [");
+		int start = sb.length();
+		sb.append(method == null ? "P7Unknown" : "P7" + method.getInterfaceName()).append('@').append(Integer.toHexString(objectId));
+		pad(sb, start, 30, false);
+		sb.append("] [");
+		start = sb.length();
+		sb.append(P7SpyTrace.formatDuration(duration));
+		pad(sb, start, 5, true);
+		sb.append("] ");
+		if (method == null) {
+			sb.append("unknown method id ").append(methodId);
+		} else if (method.isConstructor()) {
+			sb.append("new ").append(method.getInterfaceName()).append("()");
+		} else {
+			sb.append(methodName).append('(');
+			for (int i = 0; i < argCount; i++) {
+				if (i > 0) { sb.append(", "); }
+				q = appendValue(data, q, sb);
+			}
+			sb.append(')');
+			if ((flags & P7SpyBinaryTrace.FLAG_EXCEPTION) == 0 && (flags & P7SpyBinaryTrace.FLAG_RESULT) != 0) {
+				sb.append(": ");
+				appendValue(data, q, sb);
+				if ((flags & P7SpyBinaryTrace.FLAG_RESULT_OBJECT) != 0) {
+					sb.append('@').append(Integer.toHexString(resultObjectId));
+				}
+			}
+		}
+		out.println(sb);
+		if ((flags & P7SpyBinaryTrace.FLAG_EXCEPTION) != 0) {
+			sb.setLength(0);
+			appendValue(data, q, sb);
+			out.println(sb);
+		}
+	}
+
+	/** Returns the String or interned String value at a position in a record */
+	private static String getString(TraceData data, int q) {
+		MappedByteBuffer b = data.buffer;
+		if (b.get(q) == P7SpyBinaryTrace.VALUE_INTERNED_STRING) {
+			return data.getString(b.getInt(q + 1));
+		}
+		int length = b.getShort(q + 1) & ~P7SpyBinaryTrace.TRUNCATED & 0xFFFF;
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = b.getChar(q + 3 + i * 2);
+		}
+		return new String(chars);
+	}
+
+	/** Append the formatted form of a value in a record, as per {@link P7SpyTrace#appendResult(StringBuilder, Object)}
+	 *
+	 * @param data the trace data
+	 * @param q the position of the value
+	 * @param sb the StringBuilder to append to
+	 *
+	 * @return the position after the value
+	 */
+	private static int appendValue(TraceData data, int q, StringBuilder sb) {
+		MappedByteBuffer b = data.buffer;
+		byte type = b.get(q);
+		switch (type) {
+			case P7SpyBinaryTrace.VALUE_NULL: sb.append("null"); return q + 1;
+			case P7SpyBinaryTrace.VALUE_BOOLEAN: sb.append(b.get(q + 1) != 0); return q + 2;
+			case P7SpyBinaryTrace.VALUE_BYTE: sb.append(b.get(q + 1)); return q + 2;
+			case P7SpyBinaryTrace.VALUE_SHORT: sb.append(b.getShort(q + 1)); return q + 3;
+			case P7SpyBinaryTrace.VALUE_CHAR: sb.append(b.getChar(q + 1)); return q + 3;
+			case P7SpyBinaryTrace.VALUE_INT: sb.append(b.getInt(q + 1)); return q + 5;
+			case P7SpyBinaryTrace.VALUE_LONG: sb.append(b.getLong(q + 1)); return q + 9;
+			case P7SpyBinaryTrace.VALUE_FLOAT: sb.append(b.getFloat(q + 1)); return q + 5;
+			case P7SpyBinaryTrace.VALUE_DOUBLE: sb.append(b.getDouble(q + 1)); return q + 9;
+			case P7SpyBinaryTrace.VALUE_INTERNED_STRING:
+				P7SpyTrace.appendResult(sb, data.getString(b.getInt(q + 1)));
+				return q + 5;
+			case P7SpyBinaryTrace.VALUE_CLASS:
+				sb.append(data.getString(b.getInt(q + 1)));
+				return q + 5;
+			case P7SpyBinaryTrace.VALUE_STRING:
+			case P7SpyBinaryTrace.VALUE_OBJECT:
+				int length = b.getShort(q + 1) & 0xFFFF;
+				boolean truncated = (length & P7SpyBinaryTrace.TRUNCATED) != 0;
+				String s = getString(data, q);
+				if (type == P7SpyBinaryTrace.VALUE_STRING) {
+					P7SpyTrace.appendResult(sb, s);
+				} else {
+					sb.append(s);
+				}
+				if (truncated) { sb.append("..."); }
+				return q + 3 + s.length() * 2;
+			default:
+				throw new IllegalStateException("Unexpected value type " + type + " in record");
+		}
+	}
+
+	/** Pad the text appended to a StringBuilder since <tt>start</tt> to a minimum width, as per log4j's
+	 * <tt>%-30</tt> and <tt>%5</tt> format modifiers */
+	private static void pad(StringBuilder sb, int start, int width, boolean left) {
+		int padding = width - (sb.length() - start);
+		if (padding <= 0) { return; }
+		char[] spaces = new char[padding];
+		Arrays.fill(spaces, ' ');
+		if (left) {
+			sb.insert(start, spaces);
+		} else {
+			sb.append(spaces);
+		}
+	}
+
+	/** Returns the data files for a command-line argument, which may be a data file or a base filename
+	 *
+	 * @param arg the command-line argument
+	 *
+	 * @return the data files, in the order they were written
+	 */
+	public static List<File> getDataFiles(String arg) {
+		List<File> result = new ArrayList<File>();
+		File f = new File(arg);
+		if (f.isFile()) {
+			result.add(f);
+			return result;
+		}
+		File dir = f.getAbsoluteFile().getParentFile();
+		final String prefix = f.getName() + ".";
+		String[] names = dir == null ? null : dir.list();
+		if (names != null) {
+			Arrays.sort(names);
+			for (String name : names) {
+				if (name.startsWith(prefix) && name.endsWith(".p7b") &&
+					name.substring(prefix.length(), name.length() - 4).matches("[0-9]+"))
+				{
+					result.add(new File(dir, name));
+				}
+			}
+		}
+		return result;
+	}
+
+	/** Parse a --from or --to argument
+	 *
+	 * @param time an ISO-8601 local date-time, or a number of milliseconds since the epoch
+	 *
+	 * @return the time, in milliseconds since the epoch
+	 */
+	public static long parseTime(String time) {
+		if (time.matches("[0-9]+")) {
+			return Long.parseLong(time);
+		}
+		return LocalDateTime.parse(time).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+	}
+
+	/** Command-line entry point
+	 *
+	 * @param args command-line arguments; see the class documentation
+	 *
+	 * @throws IOException if a trace file could not be read
+	 */
+	public static void main(String[] args) throws IOException {
+		P7SpyBinaryTraceReader reader = new P7SpyBinaryTraceReader();
+		List<File> files = new ArrayList<File>();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.startsWith("--") && i == args.length - 1) {
+				files.clear();
+				break;
+			} else if (arg.equals("--from")) {
+				reader.setFrom(parseTime(args[++i]));
+			} else if (arg.equals("--to")) {
+				reader.setTo(parseTime(args[++i]));
+			} else if (arg.equals("--connection")) {
+				reader.setConnection(args[++i]);
+			} else if (arg.equals("--sql")) {
+				reader.setSql(args[++i]);
+			} else {
+				List<File> argFiles = getDataFiles(arg);
+				if (argFiles.isEmpty()) {
+					System.err.println("No p7spy binary trace files found for '" + arg + "'");
+				}
+				files.addAll(argFiles);
+			}
+		}
+		if (files.isEmpty()) {
+			System.err.println("Usage: java " + P7SpyBinaryTraceReader.class.getName() +
+				" [--from time] [--to time] [--connection id] [--sql regex] file...");
+			System.exit(1);
+		}
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out));
+		for (File f : files) {
+			reader.read(f, out);
+		}
+		out.flush();
+	}
+
+}
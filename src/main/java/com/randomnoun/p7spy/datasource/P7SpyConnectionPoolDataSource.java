@@ -0,0 +1,102 @@
+package com.randomnoun.p7spy.datasource;
+
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+
+import javax.sql.ConnectionPoolDataSource;
+import javax.sql.PooledConnection;
+
+/** A ConnectionPoolDataSource whose PooledConnections supply p7spy Connection wrappers.
+ *
+ * <p>Each PooledConnection obtained is counted as a physical connection, and each Connection obtained
+ * from those PooledConnections is counted as a logical connection. See {@link P7SpyDataSourceStatistics}.
+ *
+ * @author knoxg
+ */
+public class P7SpyConnectionPoolDataSource implements ConnectionPoolDataSource {
+
+	/** The ConnectionPoolDataSource being wrapped */
+	private ConnectionPoolDataSource targetDataSource;
+
+	/** Create a new ConnectionPoolDataSource. The targetDataSource property must be set before it is used. */
+	public P7SpyConnectionPoolDataSource() {
+		P7SpyDataSourceStatistics.startReporting();
+	}
+
+	/** Create a new ConnectionPoolDataSource which wraps another ConnectionPoolDataSource
+	 *
+	 * @param targetDataSource the ConnectionPoolDataSource to wrap
+	 */
+	public P7SpyConnectionPoolDataSource(ConnectionPoolDataSource targetDataSource) {
+		this();
+		this.targetDataSource = targetDataSource;
+	}
+
+	/** Returns the ConnectionPoolDataSource being wrapped
+	 *
+	 * @return the ConnectionPoolDataSource being wrapped
+	 */
+	public ConnectionPoolDataSource getTargetDataSource() {
+		return targetDataSource;
+	}
+
+	/** Set the ConnectionPoolDataSource to wrap
+	 *
+	 * @param targetDataSource the ConnectionPoolDataSource to wrap
+	 */
+	public void setTargetDataSource(ConnectionPoolDataSource targetDataSource) {
+		this.targetDataSource = targetDataSource;
+	}
+
+	/** {@inheritDoc} */
+	public PooledConnection getPooledConnection() throws SQLException {
+		return getPooledConnection(null, null, false);
+	}
+
+	/** {@inheritDoc} */
+	public PooledConnection getPooledConnection(String user, String password) throws SQLException {
+		return getPooledConnection(user, password, true);
+	}
+
+	/** Obtain a PooledConnection from the target DataSource, and wrap it */
+	private PooledConnection getPooledConnection(String user, String password, boolean hasCredentials) throws SQLException {
+		long startTime = System.nanoTime();
+		PooledConnection pooledConnection;
+		try {
+			pooledConnection = hasCredentials ? targetDataSource.getPooledConnection(user, password) : 
+				targetDataSource.getPooledConnection();
+		} catch (SQLException | RuntimeException e) {
+			P7SpyDataSourceStatistics.recordError();
+			throw e;
+		}
+		P7SpyDataSourceStatistics.recordPhysicalConnection(System.nanoTime() - startTime);
+		return new P7SpyPooledConnection(pooledConnection);
+	}
+
+	/** {@inheritDoc} */
+	public PrintWriter getLogWriter() throws SQLException {
+		return targetDataSource.getLogWriter();
+	}
+
+	/** {@inheritDoc} */
+	public void setLogWriter(PrintWriter out) throws SQLException {
+		targetDataSource.setLogWriter(out);
+	}
+
+	/** {@inheritDoc} */
+	public void setLoginTimeout(int seconds) throws SQLException {
+		targetDataSource.setLoginTimeout(seconds);
+	}
+
+	/** {@inheritDoc} */
+	public int getLoginTimeout() throws SQLException {
+		return targetDataSource.getLoginTimeout();
+	}
+
+	/** {@inheritDoc} */
+	public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		return targetDataSource.getParentLogger();
+	}
+
+}
@@ -0,0 +1,242 @@
+package com.randomnoun.p7spy.datasource;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+
+import com.randomnoun.p7spy.P7SpyDriver;
+import com.randomnoun.p7spy.P7SpyTrace;
+
+/** A DataSource which supplies p7spy Connection wrappers.
+ *
+ * <p>The DataSource can either wrap another DataSource (typically a connection pool), e.g.
+ * <pre>
+ * HikariDataSource pool = new HikariDataSource(config);
+ * DataSource dataSource = new P7SpyDataSource(pool);
+ * </pre>
+ * in which case each connection obtained is counted as a logical connection, or it can be configured
+ * with the URL of the database, and used as the target of a connection pool, e.g.
+ * <pre>
+ * config.setDataSourceClassName("com.randomnoun.p7spy.datasource.P7SpyDataSource");
+ * config.addDataSourceProperty("url", "jdbc:mysql://localhost/test");
+ * </pre>
+ * in which case each connection obtained is counted as a physical connection. In the latter case, the
+ * URL is not prefixed with <tt>p7spy:</tt>, and the JDBC driver is looked up once rather than for
+ * each connection. See {@link P7SpyDataSourceStatistics}.
+ *
+ * @author knoxg
+ */
+public class P7SpyDataSource implements DataSource {
+
+	/** Logger instance for this class */
+	static Logger logger = Logger.getLogger(P7SpyDataSource.class);
+
+	/** The DataSource being wrapped, or null if connections are created from a URL */
+	private DataSource targetDataSource;
+
+	/** The URL used to create connections, if there is no target DataSource */
+	private String url;
+
+	/** The username used to create connections, if there is no target DataSource */
+	private String user;
+
+	/** The password used to create connections, if there is no target DataSource */
+	private String password;
+
+	/** Additional connection properties, if there is no target DataSource */
+	private Properties properties = new Properties();
+
+	/** The log writer, if there is no target DataSource */
+	private PrintWriter logWriter;
+
+	/** The login timeout, if there is no target DataSource */
+	private int loginTimeout;
+
+	/** Create a new DataSource. Either the targetDataSource or the url property must be set before it is used. */
+	public P7SpyDataSource() {
+		P7SpyDataSourceStatistics.startReporting();
+	}
+
+	/** Create a new DataSource which wraps another DataSource
+	 *
+	 * @param targetDataSource the DataSource to wrap
+	 */
+	public P7SpyDataSource(DataSource targetDataSource) {
+		this();
+		this.targetDataSource = targetDataSource;
+	}
+
+	/** Returns the DataSource being wrapped
+	 *
+	 * @return the DataSource being wrapped, or null if connections are created from a URL
+	 */
+	public DataSource getTargetDataSource() {
+		return targetDataSource;
+	}
+
+	/** Set the DataSource to wrap
+	 *
+	 * @param targetDataSource the DataSource to wrap
+	 */
+	public void setTargetDataSource(DataSource targetDataSource) {
+		this.targetDataSource = targetDataSource;
+	}
+
+	/** Returns the URL used to create connections
+	 *
+	 * @return the URL used to create connections
+	 */
+	public String getUrl() {
+		return url;
+	}
+
+	/** Set the URL used to create connections, if there is no target DataSource
+	 *
+	 * @param url a JDBC URL, without a <tt>p7spy:</tt> prefix
+	 */
+	public void setUrl(String url) {
+		this.url = url;
+	}
+
+	/** Returns the username used to create connections
+	 *
+	 * @return the username used to create connections
+	 */
+	public String getUser() {
+		return user;
+	}
+
+	/** Set the username used to create connections, if there is no target DataSource
+	 *
+	 * @param user the username used to create connections
+	 */
+	public void setUser(String user) {
+		this.user = user;
+	}
+
+	/** Set the password used to create connections, if there is no target DataSource
+	 *
+	 * @param password the password used to create connections
+	 */
+	public void setPassword(String password) {
+		this.password = password;
+	}
+
+	/** Set additional properties passed to the driver when creating connections, if there is no target DataSource
+	 *
+	 * @param properties connection properties
+	 */
+	public void setConnectionProperties(Properties properties) {
+		this.properties = properties == null ? new Properties() : properties;
+	}
+
+	/** {@inheritDoc} */
+	public Connection getConnection() throws SQLException {
+		if (targetDataSource == null) {
+			return getConnection(user, password);
+		}
+		long startTime = System.nanoTime();
+		Connection conn;
+		try {
+			conn = targetDataSource.getConnection();
+		} catch (SQLException | RuntimeException e) {
+			P7SpyDataSourceStatistics.recordError();
+			throw e;
+		}
+		return wrap(conn, startTime);
+	}
+
+	/** {@inheritDoc} */
+	public Connection getConnection(String username, String password) throws SQLException {
+		long startTime = System.nanoTime();
+		Connection conn;
+		try {
+			if (targetDataSource != null) {
+				conn = targetDataSource.getConnection(username, password);
+			} else {
+				if (url == null) { throw new SQLException("No url or targetDataSource set on P7SpyDataSource", "08001"); }
+				Properties info = new Properties();
+				info.putAll(properties);
+				if (username != null) { info.setProperty("user", username); }
+				if (password != null) { info.setProperty("password", password); }
+				Driver driver = P7SpyDriver.getDriver(url);
+				conn = driver.connect(url, info);
+				if (conn == null) { throw new SQLException("No suitable driver found for '" + url + "'", "08001"); }
+			}
+		} catch (SQLException | RuntimeException e) {
+			P7SpyDataSourceStatistics.recordError();
+			throw e;
+		}
+		return wrap(conn, startTime);
+	}
+
+	/** Record the connection in the DataSource statistics, and wrap it
+	 *
+	 * @param conn the connection obtained from the target DataSource or driver
+	 * @param startTime the time the connection was requested, as returned by System.nanoTime()
+	 *
+	 * @return the wrapped connection
+	 */
+	private Connection wrap(Connection conn, long startTime) throws SQLException {
+		long nanos = System.nanoTime() - startTime;
+		boolean physical = targetDataSource == null;
+		if (physical) {
+			P7SpyDataSourceStatistics.recordPhysicalConnection(nanos);
+		} else {
+			P7SpyDataSourceStatistics.recordLogicalConnection(nanos);
+		}
+		Connection wrapper = P7SpyDriver.wrapConnection(conn);
+		if (logger.isDebugEnabled()) {
+			MDC.put("p7Duration", P7SpyTrace.formatDuration(nanos));
+			logger.debug("getConnection() " + (physical ? "physical" : "logical") + ": " + wrapper);
+		}
+		return wrapper;
+	}
+
+	/** {@inheritDoc} */
+	public PrintWriter getLogWriter() throws SQLException {
+		return targetDataSource == null ? logWriter : targetDataSource.getLogWriter();
+	}
+
+	/** {@inheritDoc} */
+	public void setLogWriter(PrintWriter out) throws SQLException {
+		if (targetDataSource == null) { logWriter = out; } else { targetDataSource.setLogWriter(out); }
+	}
+
+	/** {@inheritDoc} */
+	public int getLoginTimeout() throws SQLException {
+		return targetDataSource == null ? loginTimeout : targetDataSource.getLoginTimeout();
+	}
+
+	/** {@inheritDoc} */
+	public void setLoginTimeout(int seconds) throws SQLException {
+		if (targetDataSource == null) { loginTimeout = seconds; } else { targetDataSource.setLoginTimeout(seconds); }
+	}
+
+	/** {@inheritDoc} */
+	public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		return targetDataSource == null ? java.util.logging.Logger.getLogger(P7SpyDataSource.class.getName()) :
+			targetDataSource.getParentLogger();
+	}
+
+	/** {@inheritDoc} */
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		if (iface.isInstance(this)) { return iface.cast(this); }
+		if (targetDataSource != null) { return targetDataSource.unwrap(iface); }
+		throw new SQLException("P7SpyDataSource is not a wrapper for '" + iface.getName() + "'");
+	}
+
+	/** {@inheritDoc} */
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return iface.isInstance(this) || (targetDataSource != null && targetDataSource.isWrapperFor(iface));
+	}
+
+}
@@ -0,0 +1,172 @@
+package com.randomnoun.p7spy.datasource;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+import com.randomnoun.p7spy.P7SpyScheduler;
+import com.randomnoun.p7spy.P7SpyTrace;
+import com.randomnoun.p7spy.stats.P7SpyHistogram;
+
+/** Connection acquisition statistics, collected by the DataSource wrappers in this package.
+ *
+ * <p>Two kinds of connection are counted:
+ * <ul>
+ * <li><i>physical</i> connections are new connections to the database, created by a {@link P7SpyDataSource}
+ *   configured with a URL, or obtained from a {@link P7SpyConnectionPoolDataSource} or {@link P7SpyXADataSource}.
+ *   The time taken to create them is recorded in the 'acquire time' histogram.
+ * <li><i>logical</i> connections are connections handed out by a pool; i.e. obtained from a {@link P7SpyDataSource}
+ *   which wraps another (pooled) DataSource, or from a {@link P7SpyPooledConnection}. The time taken to obtain
+ *   them, which includes any time spent waiting for a connection to be returned to the pool, is recorded in the
+ *   'pool wait time' histogram.
+ * </ul>
+ *
+ * <p>A summary is logged at INFO level periodically, if any connections were acquired since the previous report.
+ *
+ * <p>The following system properties are read when this class is loaded:
+ * <ul>
+ * <li><tt>p7spy.dataSource.reportInterval</tt> - the time between reports, in seconds, or 0 to disable reporting. Defaults to 60.
+ * </ul>
+ *
+ * @author knoxg
+ */
+public class P7SpyDataSourceStatistics {
+
+	/** Logger instance for this class */
+	static Logger logger = Logger.getLogger(P7SpyDataSourceStatistics.class);
+
+	/** Number of physical connections created */
+	private static final LongAdder physicalConnections = new LongAdder();
+
+	/** Number of logical connections obtained */
+	private static final LongAdder logicalConnections = new LongAdder();
+
+	/** Number of failed attempts to obtain a connection */
+	private static final LongAdder errors = new LongAdder();
+
+	/** Time taken to create physical connections */
+	private static volatile P7SpyHistogram acquireTime = new P7SpyHistogram();
+
+	/** Time taken to obtain logical connections */
+	private static volatile P7SpyHistogram poolWaitTime = new P7SpyHistogram();
+
+	/** Number of connections acquired at the time of the last report */
+	private static long lastReportCount;
+
+	/** Executor used to generate periodic reports */
+	private static ScheduledExecutorService reportExecutor;
+
+	/** Start the periodic report thread, if it hasn't already been started. Called when a DataSource
+	 * wrapper is created. */
+	static synchronized void startReporting() {
+		if (reportExecutor == null) {
+			long reportInterval = Long.getLong("p7spy.dataSource.reportInterval", 60);
+			if (reportInterval > 0) {
+				reportExecutor = P7SpyScheduler.scheduleAtFixedRate("p7spy-dataSource", reportInterval, new Runnable() {
+					public void run() {
+						long count = getPhysicalConnectionCount() + getLogicalConnectionCount();
+						if (count != lastReportCount) {
+							lastReportCount = count;
+							report();
+						}
+					}
+				});
+			}
+		}
+	}
+
+	/** Record the creation of a physical connection
+	 *
+	 * @param nanos the time taken to create the connection, in nanoseconds
+	 */
+	public static void recordPhysicalConnection(long nanos) {
+		physicalConnections.increment();
+		acquireTime.record(nanos);
+	}
+
+	/** Record a logical connection being obtained from a pool
+	 *
+	 * @param nanos the time taken to obtain the connection, in nanoseconds
+	 */
+	public static void recordLogicalConnection(long nanos) {
+		logicalConnections.increment();
+		poolWaitTime.record(nanos);
+	}
+
+	/** Record a failed attempt to obtain a connection */
+	public static void recordError() {
+		errors.increment();
+	}
+
+	/** Returns the number of physical connections created
+	 *
+	 * @return the number of physical connections created
+	 */
+	public static long getPhysicalConnectionCount() {
+		return physicalConnections.sum();
+	}
+
+	/** Returns the number of logical connections obtained
+	 *
+	 * @return the number of logical connections obtained
+	 */
+	public static long getLogicalConnectionCount() {
+		return logicalConnections.sum();
+	}
+
+	/** Returns the number of failed attempts to obtain a connection
+	 *
+	 * @return the number of failed attempts to obtain a connection
+	 */
+	public static long getErrorCount() {
+		return errors.sum();
+	}
+
+	/** Returns the histogram of the times taken to create physical connections
+	 *
+	 * @return the acquire time histogram
+	 */
+	public static P7SpyHistogram getAcquireTime() {
+		return acquireTime;
+	}
+
+	/** Returns the histogram of the times taken to obtain logical connections
+	 *
+	 * @return the pool wait time histogram
+	 */
+	public static P7SpyHistogram getPoolWaitTime() {
+		return poolWaitTime;
+	}
+
+	/** Discard all statistics collected so far */
+	public static void reset() {
+		physicalConnections.reset();
+		logicalConnections.reset();
+		errors.reset();
+		acquireTime = new P7SpyHistogram();
+		poolWaitTime = new P7SpyHistogram();
+	}
+
+	/** Log a summary of the statistics collected so far at INFO level */
+	public static void report() {
+		StringBuilder sb = new StringBuilder("p7spy dataSource statistics: ");
+		sb.append("physicalConnections=").append(getPhysicalConnectionCount());
+		sb.append(", logicalConnections=").append(getLogicalConnectionCount());
+		sb.append(", errors=").append(getErrorCount());
+		appendPercentiles(sb, "acquireTime", acquireTime);
+		appendPercentiles(sb, "poolWaitTime", poolWaitTime);
+		logger.info(sb.toString());
+	}
+
+	/** Append the p50/p95/p99/max of a histogram to a report */
+	private static void appendPercentiles(StringBuilder sb, String name, P7SpyHistogram histogram) {
+		long[] p = histogram.getPercentiles(50, 95, 99, 100);
+		sb.append(", ").append(name).append(" p50/p95/p99/max=")
+			.append(P7SpyTrace.formatDuration(p[0])).append('/')
+			.append(P7SpyTrace.formatDuration(p[1])).append('/')
+			.append(P7SpyTrace.formatDuration(p[2])).append('/')
+			.append(P7SpyTrace.formatDuration(p[3]));
+	}
+
+}
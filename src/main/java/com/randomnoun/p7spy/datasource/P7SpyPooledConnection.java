@@ -0,0 +1,155 @@
+package com.randomnoun.p7spy.datasource;
+
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.PooledConnection;
+import javax.sql.StatementEvent;
+import javax.sql.StatementEventListener;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+
+import com.randomnoun.p7spy.P7SpyDriver;
+import com.randomnoun.p7spy.P7SpyTrace;
+
+/** A PooledConnection whose logical connections are p7spy Connection wrappers.
+ *
+ * <p>Connection pools identify PooledConnections by the source of the events they receive, so listeners
+ * registered with this object receive events whose source is this object, rather than the PooledConnection
+ * it wraps. Similarly, the StatementEvents they receive refer to the p7spy PreparedStatement wrappers that 
+ * the application was given, rather than the statements they wrap.
+ *
+ * @author knoxg
+ */
+public class P7SpyPooledConnection implements PooledConnection {
+
+	/** Logger instance for this class */
+	static Logger logger = Logger.getLogger(P7SpyPooledConnection.class);
+
+	/** The PooledConnection being wrapped */
+	private final PooledConnection pooledConnection;
+
+	/** The listeners registered with the wrapped PooledConnection, keyed by the listener they forward events to */
+	private final Map<ConnectionEventListener, ConnectionEventListener> connectionListeners =
+		new ConcurrentHashMap<ConnectionEventListener, ConnectionEventListener>();
+
+	/** The listeners registered with the wrapped PooledConnection, keyed by the listener they forward events to */
+	private final Map<StatementEventListener, StatementEventListener> statementListeners =
+		new ConcurrentHashMap<StatementEventListener, StatementEventListener>();
+
+	/** The PreparedStatement wrappers created by this object's logical connections, keyed by the statement they wrap.
+	 * Both are held weakly, so that this map doesn't prevent closed statements from being garbage collected. */
+	private final Map<PreparedStatement, WeakReference<PreparedStatement>> statementWrappers =
+		Collections.synchronizedMap(new WeakHashMap<PreparedStatement, WeakReference<PreparedStatement>>());
+
+	/** Create a new PooledConnection wrapper
+	 *
+	 * @param pooledConnection the PooledConnection to wrap
+	 */
+	public P7SpyPooledConnection(PooledConnection pooledConnection) {
+		this.pooledConnection = pooledConnection;
+	}
+
+	/** {@inheritDoc} */
+	public Connection getConnection() throws SQLException {
+		long startTime = System.nanoTime();
+		Connection conn;
+		try {
+			conn = pooledConnection.getConnection();
+		} catch (SQLException | RuntimeException e) {
+			P7SpyDataSourceStatistics.recordError();
+			throw e;
+		}
+		long nanos = System.nanoTime() - startTime;
+		P7SpyDataSourceStatistics.recordLogicalConnection(nanos);
+		Connection wrapper = P7SpyDriver.wrapConnection(conn, this);
+		if (logger.isDebugEnabled()) {
+			MDC.put("p7Duration", P7SpyTrace.formatDuration(nanos));
+			logger.debug("getConnection() logical: " + wrapper);
+		}
+		return wrapper;
+	}
+
+	/** Called by the p7spy Connection wrappers supplied by this object when they create a PreparedStatement wrapper
+	 *
+	 * @param statement the PreparedStatement created by the logical connection
+	 * @param wrapper the p7spy wrapper around that statement
+	 */
+	public void addStatement(PreparedStatement statement, PreparedStatement wrapper) {
+		statementWrappers.put(statement, new WeakReference<PreparedStatement>(wrapper));
+	}
+
+	/** Returns the p7spy wrapper around a PreparedStatement created by one of this object's logical connections
+	 *
+	 * @param statement the PreparedStatement in a StatementEvent raised by the wrapped PooledConnection
+	 *
+	 * @return the p7spy wrapper around the statement, or the statement itself if it wasn't created through a wrapper
+	 */
+	private PreparedStatement getStatementWrapper(PreparedStatement statement) {
+		if (statement == null) { return null; }
+		WeakReference<PreparedStatement> ref = statementWrappers.get(statement);
+		PreparedStatement wrapper = ref == null ? null : ref.get();
+		return wrapper == null ? statement : wrapper;
+	}
+
+	/** {@inheritDoc} */
+	public void close() throws SQLException {
+		pooledConnection.close();
+	}
+
+	/** {@inheritDoc} */
+	public void addConnectionEventListener(final ConnectionEventListener listener) {
+		ConnectionEventListener forwarder = new ConnectionEventListener() {
+			public void connectionClosed(ConnectionEvent event) {
+				listener.connectionClosed(new ConnectionEvent(P7SpyPooledConnection.this, event.getSQLException()));
+			}
+			public void connectionErrorOccurred(ConnectionEvent event) {
+				listener.connectionErrorOccurred(new ConnectionEvent(P7SpyPooledConnection.this, event.getSQLException()));
+			}
+		};
+		if (connectionListeners.putIfAbsent(listener, forwarder) == null) {
+			pooledConnection.addConnectionEventListener(forwarder);
+		}
+	}
+
+	/** {@inheritDoc} */
+	public void removeConnectionEventListener(ConnectionEventListener listener) {
+		ConnectionEventListener forwarder = connectionListeners.remove(listener);
+		if (forwarder != null) {
+			pooledConnection.removeConnectionEventListener(forwarder);
+		}
+	}
+
+	/** {@inheritDoc} */
+	public void addStatementEventListener(final StatementEventListener listener) {
+		StatementEventListener forwarder = new StatementEventListener() {
+			public void statementClosed(StatementEvent event) {
+				listener.statementClosed(new StatementEvent(P7SpyPooledConnection.this, getStatementWrapper(event.getStatement()), event.getSQLException()));
+			}
+			public void statementErrorOccurred(StatementEvent event) {
+				listener.statementErrorOccurred(new StatementEvent(P7SpyPooledConnection.this, getStatementWrapper(event.getStatement()), event.getSQLException()));
+			}
+		};
+		if (statementListeners.putIfAbsent(listener, forwarder) == null) {
+			pooledConnection.addStatementEventListener(forwarder);
+		}
+	}
+
+	/** {@inheritDoc} */
+	public void removeStatementEventListener(StatementEventListener listener) {
+		StatementEventListener forwarder = statementListeners.remove(listener);
+		if (forwarder != null) {
+			pooledConnection.removeStatementEventListener(forwarder);
+		}
+	}
+
+}
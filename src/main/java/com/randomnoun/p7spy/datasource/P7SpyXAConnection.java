@@ -0,0 +1,31 @@
+package com.randomnoun.p7spy.datasource;
+
+import java.sql.SQLException;
+
+import javax.sql.XAConnection;
+import javax.transaction.xa.XAResource;
+
+/** An XAConnection whose logical connections are p7spy Connection wrappers.
+ *
+ * @author knoxg
+ */
+public class P7SpyXAConnection extends P7SpyPooledConnection implements XAConnection {
+
+	/** The XAConnection being wrapped */
+	private final XAConnection xaConnection;
+
+	/** Create a new XAConnection wrapper
+	 *
+	 * @param xaConnection the XAConnection to wrap
+	 */
+	public P7SpyXAConnection(XAConnection xaConnection) {
+		super(xaConnection);
+		this.xaConnection = xaConnection;
+	}
+
+	/** {@inheritDoc} */
+	public XAResource getXAResource() throws SQLException {
+		return xaConnection.getXAResource();
+	}
+
+}
@@ -0,0 +1,102 @@
+package com.randomnoun.p7spy.datasource;
+
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+
+import javax.sql.XADataSource;
+import javax.sql.XAConnection;
+
+/** A XADataSource whose XAConnections supply p7spy Connection wrappers.
+ *
+ * <p>Each XAConnection obtained is counted as a physical connection, and each Connection obtained
+ * from those XAConnections is counted as a logical connection. See {@link P7SpyDataSourceStatistics}.
+ *
+ * @author knoxg
+ */
+public class P7SpyXADataSource implements XADataSource {
+
+	/** The XADataSource being wrapped */
+	private XADataSource targetDataSource;
+
+	/** Create a new XADataSource. The targetDataSource property must be set before it is used. */
+	public P7SpyXADataSource() {
+		P7SpyDataSourceStatistics.startReporting();
+	}
+
+	/** Create a new XADataSource which wraps another XADataSource
+	 *
+	 * @param targetDataSource the XADataSource to wrap
+	 */
+	public P7SpyXADataSource(XADataSource targetDataSource) {
+		this();
+		this.targetDataSource = targetDataSource;
+	}
+
+	/** Returns the XADataSource being wrapped
+	 *
+	 * @return the XADataSource being wrapped
+	 */
+	public XADataSource getTargetDataSource() {
+		return targetDataSource;
+	}
+
+	/** Set the XADataSource to wrap
+	 *
+	 * @param targetDataSource the XADataSource to wrap
+	 */
+	public void setTargetDataSource(XADataSource targetDataSource) {
+		this.targetDataSource = targetDataSource;
+	}
+
+	/** {@inheritDoc} */
+	public XAConnection getXAConnection() throws SQLException {
+		return getXAConnection(null, null, false);
+	}
+
+	/** {@inheritDoc} */
+	public XAConnection getXAConnection(String user, String password) throws SQLException {
+		return getXAConnection(user, password, true);
+	}
+
+	/** Obtain a XAConnection from the target DataSource, and wrap it */
+	private XAConnection getXAConnection(String user, String password, boolean hasCredentials) throws SQLException {
+		long startTime = System.nanoTime();
+		XAConnection pooledConnection;
+		try {
+			pooledConnection = hasCredentials ? targetDataSource.getXAConnection(user, password) : 
+				targetDataSource.getXAConnection();
+		} catch (SQLException | RuntimeException e) {
+			P7SpyDataSourceStatistics.recordError();
+			throw e;
+		}
+		P7SpyDataSourceStatistics.recordPhysicalConnection(System.nanoTime() - startTime);
+		return new P7SpyXAConnection(pooledConnection);
+	}
+
+	/** {@inheritDoc} */
+	public PrintWriter getLogWriter() throws SQLException {
+		return targetDataSource.getLogWriter();
+	}
+
+	/** {@inheritDoc} */
+	public void setLogWriter(PrintWriter out) throws SQLException {
+		targetDataSource.setLogWriter(out);
+	}
+
+	/** {@inheritDoc} */
+	public void setLoginTimeout(int seconds) throws SQLException {
+		targetDataSource.setLoginTimeout(seconds);
+	}
+
+	/** {@inheritDoc} */
+	public int getLoginTimeout() throws SQLException {
+		return targetDataSource.getLoginTimeout();
+	}
+
+	/** {@inheritDoc} */
+	public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		return targetDataSource.getParentLogger();
+	}
+
+}
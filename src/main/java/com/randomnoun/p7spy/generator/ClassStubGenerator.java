@@ -9,7 +9,9 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Parameter;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -41,11 +43,113 @@ public class ClassStubGenerator {
 	/** If non-null, the MDC variable that contains a reference to the wrapped object performing the logging */
 	String mdcObjectId;
 	
-	/** If non-null, the MDC variable that contains the duration of the operation (represented in msec, as a String) */
+	/** If non-null, the MDC variable that contains the duration of the operation, as a String. Durations are 
+	 * measured using System.nanoTime(), and converted into the units returned by the resultFormatter's
+	 * <tt>formatDuration()</tt> method */
 	String mdcDurationId;
 	
+	/** If non-null, the MDC variable that contains the thread CPU time consumed by the operation, as a String. 
+	 * Requires mdcDurationId to also be set. CPU time will only be collected if the resultFormatter's 
+	 * <tt>getThreadCpuTime()</tt> method returns a value other than -1 */
+	String mdcCpuTimeId;
+	
 	/** If true, will insert code to dump a stacktrace when a SQL regex is matched */
 	boolean enableTrap;
+	
+	/** If non-null, the classname of an object which maps the method ids used in the generated stubs
+	 * to method names. Each stub registers its method ids in a static initialiser. */
+	String methodRegistry;
+	
+	/** If non-null, the classname of an object which may queue method invocations for logging on another
+	 * thread, rather than logging them synchronously. Requires methodRegistry and asyncEvent to also be set. */
+	String asyncLogger;
+	
+	/** The classname of the event claimed from the asyncLogger, in which the stubs record the arguments and
+	 * result of each invocation without boxing them. */
+	String asyncEvent;
+	
+	/** If non-null, the classname of an object which is notified whenever SQL is executed through a
+	 * wrapped Statement, PreparedStatement or CallableStatement (i.e. whenever an <tt>execute*</tt> method
+	 * is invoked), regardless of whether method invocations are being logged. If a wrapperInterface has been set,
+	 * the Connection wrapper that created the statement is passed to it as well. Requires methodRegistry to 
+	 * also be set. */
+	String executionObserver;
+	
+	/** If non-null, the classname of an object which determines which wrapped objects are traced, and
+	 * may limit the rate at which method invocations are logged. Each stub holds a flag indicating whether it
+	 * is traced, which is passed on to the objects it wraps; invocations on objects which are not traced 
+	 * are delegated without being logged. */
+	String sampler;
+	
+	/** If non-null, the classname of an object which determines whether method invocations that take longer than
+	 * a threshold are logged when DEBUG logging is disabled. Requires methodRegistry to also be set. */
+	String slowLog;
+	
+	/** If non-null, the classname of the object used to record the parameters set on PreparedStatements and
+	 * CallableStatements, so that they can be included in log messages of later <tt>execute*</tt> and 
+	 * <tt>addBatch</tt> methods, instead of logging each <tt>set*</tt> method separately. */
+	String parameterRecorder;
+	
+	/** If non-null, the classname of an object which determines whether ResultSets log a single summary line
+	 * when they are closed, rather than logging each row navigation method and column getter. The counters
+	 * used to generate the summary are held in primitive fields on the ResultSet stub. Statement and Connection
+	 * stubs keep track of the ResultSets created through them, so that outstanding summaries are logged when
+	 * the Statement or Connection is closed. */
+	String resultSetSummary;
+	
+	/** If non-null, the classname of an interface implemented by every stub, which returns the object wrapped by
+	 * the stub. Each stub then caches the last wrapper returned by its <tt>getMetaData()</tt>, <tt>getConnection()</tt>, 
+	 * <tt>getStatement()</tt> and <tt>getResultSet()</tt> methods, so that they return the same wrapper each time 
+	 * they are invoked, rather than wrapping the same object again. Factory methods such as 
+	 * <tt>prepareStatement()</tt> aren't cached, as they return a new object each time, but the ResultSet returned 
+	 * by a Statement's <tt>executeQuery()</tt> is, as it's also returned by <tt>getResultSet()</tt>. Wrappers created
+	 * by another stub are seeded with that stub, so that e.g. <tt>Statement.getConnection()</tt> returns the 
+	 * Connection wrapper that created the Statement. Cached wrappers are released when the stub is closed. 
+	 * Statements also need this to be set in order to log ResultSet summaries when their Connection is closed. */
+	String wrapperInterface;
+	
+	/** If non-null, the classname of an object which wraps the InputStreams, Readers, OutputStreams and Writers 
+	 * passed to and returned from JDBC methods whilst they are being logged, in order to report their throughput.
+	 * The throughput of the LOB methods that transfer data without using streams (e.g. <tt>Blob.getBytes()</tt>)
+	 * is included in the log message of those methods. */
+	String streamMonitor;
+	
+	/** If non-null, the classname of an object which tracks whether Connections, Statements and ResultSets are
+	 * closed. Connection stubs are registered with it when they are created, and Statement and ResultSet stubs when 
+	 * they are created by a Connection or Statement stub; each stub holds the tracker returned by the registration,
+	 * or null if it isn't being tracked, and notifies the tracker when it is closed. */
+	String leakDetector;
+	
+	/** If non-null, the classname of an object which collects metrics from the stubs whilst it is enabled. Every 
+	 * method invocation is timed and passed to it, regardless of whether it is being logged, and Connection, 
+	 * Statement and ResultSet stubs notify it when they are created and closed. Requires methodRegistry to also be set. */
+	String metrics;
+	
+	/** If non-null, the classname of an object which notifies registered listeners of each method invocation,
+	 * passing the method id, arguments, result, exception and timings as structured data, regardless of whether
+	 * the invocation is being logged. The stubs ask it whether any listener is interested in a method before
+	 * each invocation, and only box arguments and results if one is. Requires methodRegistry to also be set. */
+	String listeners;
+	
+	/** If non-null, the classname of an object whose static <tt>isActive()</tt> method returns true if any of
+	 * the features above that operate regardless of whether the invocation is being logged (slow call logging, 
+	 * metrics, listeners, execution observers, parameter logging) are enabled. The stubs test it, along with 
+	 * whether DEBUG logging is enabled, before each invocation, and only check each feature individually if
+	 * it returns true. Its static <tt>initFeatures()</tt> method is called when each stub class is loaded. */
+	String activeFlag;
+	
+	/** If non-null, the classname of a PooledConnection wrapper. Connection stubs have an additional constructor 
+	 * which takes the PooledConnection wrapper that supplied the connection, and pass each PreparedStatement stub 
+	 * they create to its <tt>addStatement()</tt> method, so that the StatementEvents it forwards can refer to 
+	 * the stubs rather than the statements they wrap. */
+	String pooledConnection;
+	
+	/** The next method id to be assigned to a generated stub method. Method ids are unique across
+	 * all classes generated by this ClassStubGenerator instance. */
+	int nextMethodId = 0;
+	
+	/** Method registration statements for the class currently being generated */
+	List<String> methodRegistrations = new ArrayList<>();
 
     /** Given a period-separated list of components (e.g. variable references ("a.b.c") or classnames),
      *  returns the last component. For example,
@@ -163,7 +267,7 @@ public class ClassStubGenerator {
         out.print(getLastComponent(stubClassName));
         if (aclass != Object.class) {
             if (aclass.isInterface()) {
-            	out.print(" implements " + aclass.getName());
+            	out.print(" implements " + aclass.getName() + (wrapperInterface!=null ? ", " + wrapperInterface : ""));
             } else {
             	out.print(" extends " + aclass.getName());
             }
@@ -183,23 +287,207 @@ public class ClassStubGenerator {
         
         out.println();
         out.println("    /** Object being wrapped by this class */");
-        out.println("    private " + aclass.getName() + " w;");
+        out.println("    private final " + aclass.getName() + " w;");
+        
+        if (wrapperInterface!=null) {
+        	for (Class cachedType : getCachedTypes(aclass)) {
+	        	out.println();
+	        	out.println("    /** The last " + getLastComponent(cachedType.getName()) + " wrapper returned by this object, or the wrapper that created this object */");
+	        	out.println("    " + cachedType.getName() + " _cached" + getLastComponent(cachedType.getName()) + ";");
+        	}
+        }
+        
+        if (isObservedStatement(aclass)) {
+        	out.println();
+        	out.println("    /** The SQL used to prepare this statement, if known */");
+        	out.println("    private String _sql;");
+        }
+        if (hasParameters(aclass)) {
+        	out.println();
+        	out.println("    /** The parameters set on this statement, or null if none have been recorded */");
+        	out.println("    private " + parameterRecorder + " _parameters;");
+        }
+        if (sampler!=null) {
+        	out.println();
+        	out.println("    /** If false, method invocations on this object are not logged */");
+        	out.println("    private final boolean _sampled;");
+        }
+        if (isLeakTracked(aclass)) {
+        	out.println();
+        	out.println("    /** Leak tracker for this object, or null if it isn't being tracked; see " + leakDetector + " */");
+        	out.println("    " + leakDetector + ".Tracker _leakTracker;");
+        }
+        if (getMetricsType(aclass) != null) {
+        	out.println();
+        	out.println("    /** True if this object has been counted as open by " + metrics + ", and has not been closed */");
+        	out.println("    boolean _metricsOpen;");
+        }
+        if (pooledConnection != null && java.sql.Connection.class.isAssignableFrom(aclass)) {
+        	out.println();
+        	out.println("    /** The PooledConnection wrapper that supplied this connection, or null */");
+        	out.println("    private " + pooledConnection + " _pooledConnection;");
+        }
+        if (getMetricsType(aclass) != null && java.sql.Statement.class.isAssignableFrom(aclass)) {
+        	out.println();
+        	out.println("    /** The last result set created by this statement, which is closed by " + metrics + " when this statement is closed or re-executed */");
+        	out.println("    " + getStubClassName(java.sql.ResultSet.class) + " _metricsResultSet;");
+        }
+        if (isSummarised(aclass)) {
+        	out.println();
+        	out.println("    /** If true, this result set is counting rows rather than logging them */");
+        	out.println("    boolean _summary;");
+        	out.println();
+        	out.println("    /** Result set summary counters; see " + resultSetSummary + " */");
+        	out.println("    private long _summaryStartTime;");
+        	out.println("    private long _rows;");
+        	out.println("    private long _columnReads;");
+        	out.println("    private long _firstRowNanos = -1;");
+        	out.println("    private long _nextNanos;");
+        	out.println("    private long _stringBytes;");
+        	out.println("    private long _numberBytes;");
+        	out.println("    private long _binaryBytes;");
+        	out.println("    private long _temporalBytes;");
+        	out.println("    private long _objectBytes;");
+        	out.println();
+        	out.println("    /** The connection whose list of outstanding summaries contains this result set, and its neighbours in that list */");
+        	out.println("    " + getStubClassName(java.sql.Connection.class) + " _summaryConnection;");
+        	out.println("    " + getLastComponent(stubClassName) + " _prevSummary;");
+        	out.println("    " + getLastComponent(stubClassName) + " _nextSummary;");
+        } else if (isSummaryStatement(aclass)) {
+        	out.println();
+        	out.println("    /** The most recent result set created by this statement whose summary has not been logged */");
+        	out.println("    private " + getStubClassName(java.sql.ResultSet.class) + " _resultSet;");
+        } else if (isSummaryConnection(aclass)) {
+        	out.println();
+        	out.println("    /** The first of the result sets created by this connection's statements whose summaries have not been logged */");
+        	out.println("    private " + getStubClassName(java.sql.ResultSet.class) + " _summaries;");
+        }
+        out.println();
+        // generate the method stubs first, so that we know what method ids are used by this class
+        methodRegistrations.clear();
+        int constructorMethodId = -1;
+        if (methodRegistry!=null) {
+        	constructorMethodId = nextMethodId++;
+        	methodRegistrations.add(methodRegistry + ".register(" + constructorMethodId + ", \"" + getLastComponent(aclass.getName()) + "\", \"<init>\", false);");
+        }
+        Set<String> signatures = new HashSet<>();
+        String methodStubs = "";
+        for (int i = 0; i < methods.length; i++) {
+            method = methods[i];
+            methodStubs += getMethodStub(aclass, stubClassName, method, signatures);
+        }
+        // implement all methods defined in the inheritance graph
+        methodStubs += getMethodStubsForInterfaces(aclass, stubClassName, aclass.getInterfaces(), signatures);
+        
+        if (methodRegistry!=null) {
+        	out.println("    // Method ids");
+        	out.println("    static {");
+        	for (String registration : methodRegistrations) {
+        		out.println("        " + registration);
+        	}
+        	out.println("    }");
+        }
+        if (activeFlag!=null) {
+        	out.println();
+        	out.println("    // Load the features which may be enabled by system properties");
+        	out.println("    static {");
+        	out.println("        " + activeFlag + ".initFeatures();");
+        	out.println("    }");
+        }
         
         out.println();
         out.println("    // Constructors");
-        out.println("    public " + getLastComponent(stubClassName) + "(" + aclass.getName() + " wrapped" + getLastComponent(aclass.getName()) + ") {");
-        out.println("        w = wrapped" + getLastComponent(aclass.getName()) + "; ");
+        String wrappedArg = "wrapped" + getLastComponent(aclass.getName());
+        if (sampler!=null) {
+        	out.println("    public " + getLastComponent(stubClassName) + "(" + aclass.getName() + " " + wrappedArg + ") {");
+        	out.println("        this(" + wrappedArg + ", true);");
+        	out.println("    }");
+        	out.println();
+        	out.println("    public " + getLastComponent(stubClassName) + "(" + aclass.getName() + " " + wrappedArg + ", boolean sampled) {");
+        	out.println("        w = " + wrappedArg + "; ");
+        	out.println("        _sampled = sampled;");
+        	out.print(getLeakConstructorStatements(aclass));
+        	if (getMetricsType(aclass) != null) {
+        		out.println("        _metricsOpen = " + (activeFlag!=null ? activeFlag + ".isActive() && " : "") + metrics + ".open(" + getMetricsType(aclass) + ");");
+        	}
+        	out.print(getSummaryConstructorStatements(aclass, "sampled && "));
+        	out.println("        if (logger.isDebugEnabled() && " + sampler + ".trace(sampled)) {");
+        } else {
+        	out.println("    public " + getLastComponent(stubClassName) + "(" + aclass.getName() + " " + wrappedArg + ") {");
+        	out.println("        w = " + wrappedArg + "; ");
+        	out.print(getLeakConstructorStatements(aclass));
+        	if (getMetricsType(aclass) != null) {
+        		out.println("        _metricsOpen = " + (activeFlag!=null ? activeFlag + ".isActive() && " : "") + metrics + ".open(" + getMetricsType(aclass) + ");");
+        	}
+        	out.print(getSummaryConstructorStatements(aclass, ""));
+        	out.println("        if (logger.isDebugEnabled()) {");
+        }
+        String indent = "            ";
+        if (asyncLogger!=null) {
+        	out.println("            if (" + asyncLogger + ".isEnabled()) {");
+        	out.println("                " + asyncLogger + ".publish(logger, this, " + constructorMethodId + ", null, null, null, System.nanoTime());");
+        	out.println("            } else {");
+        	indent = "                ";
+        }
         if (mdcObjectId!=null) {
-        	out.println("        _setMDC();");
+        	out.println(indent + "_setMDC();");
         }
         if (mdcDurationId!=null) {
-        	out.println("        MDC.put(\"" + mdcDurationId + "\", \"0\");");
+        	out.println(indent + "MDC.put(\"" + mdcDurationId + "\", \"0\");");
         }
-
-        out.println("        logger.debug(\"new " + getLastComponent(aclass.getName()) + "()\");");
+        if (mdcDurationId!=null && mdcCpuTimeId!=null) {
+        	out.println(indent + "MDC.remove(\"" + mdcCpuTimeId + "\");");
+        }
+        out.println(indent + "logger.debug(\"new " + getLastComponent(aclass.getName()) + "()\");");
+        if (asyncLogger!=null) {
+        	out.println("            }");
+        }
+        out.println("        }");
         out.println("    }");
         out.println();
+        if (pooledConnection != null && java.sql.Connection.class.isAssignableFrom(aclass)) {
+        	out.println("    public " + getLastComponent(stubClassName) + "(" + aclass.getName() + " " + wrappedArg + 
+        		(sampler!=null ? ", boolean sampled" : "") + ", " + pooledConnection + " pooledConnection) {");
+        	out.println("        this(" + wrappedArg + (sampler!=null ? ", sampled" : "") + ");");
+        	out.println("        _pooledConnection = pooledConnection;");
+        	out.println("    }");
+        	out.println();
+        }
+        if (isObservedStatement(aclass)) {
+        	out.println("    public " + getLastComponent(stubClassName) + "(" + aclass.getName() + " " + wrappedArg + ", String sql) {");
+        	out.println("        this(" + wrappedArg + (sampler!=null ? ", sql, true);" : ");"));
+        	if (sampler==null) {
+        		out.println("        _sql = sql;");
+        	}
+        	out.println("    }");
+        	out.println();
+        	if (sampler!=null) {
+        		out.println("    public " + getLastComponent(stubClassName) + "(" + aclass.getName() + " " + wrappedArg + ", String sql, boolean sampled) {");
+        		out.println("        this(" + wrappedArg + ", sampled);");
+        		out.println("        _sql = sql;");
+        		out.println("    }");
+        		out.println();
+        	}
+        }
         
+        if (hasParameters(aclass)) {
+	        out.println();
+	        out.println("    // Parameter method");
+	        out.println("    private " + parameterRecorder + " _getParameters() {");
+	        out.println("        if (_parameters == null) {");
+	        out.println("            _parameters = new " + parameterRecorder + "();");
+	        out.println("        }");
+	        out.println("        return _parameters;");
+	        out.println("    };");
+        }
+        if (wrapperInterface!=null) {
+	        out.println();
+	        out.println("    // Wrapper method");
+	        out.println("    public Object getWrappedObject() {");
+	        out.println("        return w;");
+	        out.println("    };");
+        }
+        out.print(getSummaryMethods(aclass));
         if (mdcObjectId!=null) {
 	        out.println();
 	        out.println("    // MDC method");
@@ -210,8 +498,18 @@ public class ClassStubGenerator {
         if (mdcDurationId!=null) {
 	        out.println();
 	        out.println("    // MDC method");
-	        out.println("    private void _setMDC(long duration) {");
-	        out.println("        MDC.put(\"" + mdcDurationId + "\", String.valueOf(duration));");
+	        if (mdcCpuTimeId!=null) {
+		        out.println("    private void _setMDC(long durationNanos, long startCpuTime) {");
+		        out.println("        MDC.put(\"" + mdcDurationId + "\", " + resultFormatter + ".formatDuration(durationNanos));");
+		        out.println("        if (startCpuTime != -1) {");
+		        out.println("            MDC.put(\"" + mdcCpuTimeId + "\", " + resultFormatter + ".formatDuration(" + resultFormatter + ".getThreadCpuTime() - startCpuTime));");
+		        out.println("        } else {");
+		        out.println("            MDC.remove(\"" + mdcCpuTimeId + "\");");
+		        out.println("        }");
+	        } else {
+		        out.println("    private void _setMDC(long durationNanos) {");
+		        out.println("        MDC.put(\"" + mdcDurationId + "\", " + resultFormatter + ".formatDuration(durationNanos));");
+	        }
 			out.println("    };");
         }
         
@@ -257,14 +555,7 @@ public class ClassStubGenerator {
         
         out.println();
         out.println("    // Methods");
-        Set<String> signatures = new HashSet<>();
-        for (int i = 0; i < methods.length; i++) {
-            method = methods[i];
-            out.print(getMethodStub(stubClassName, method, signatures));
-        }
-        
-        // implement all methods defined in the inheritance graph
-        out.print(getMethodStubsForInterfaces(stubClassName, aclass.getInterfaces(), signatures));
+        out.print(methodStubs);
 
         out.println("}");
         out.flush();
@@ -275,10 +566,11 @@ public class ClassStubGenerator {
     
     /** Return a String containing method stubs for all the supplied interfaces
      * 
+     * @param aclass the class/interface being stubbed
      * @param stubClassName the fully-qualified name of the class which will contain the stub methods
      * @param interfaces an array of interfaces that this class has to implement
      */
-    private String getMethodStubsForInterfaces(String stubClassName, Class interfaces[], Set<String> signatures) {
+    private String getMethodStubsForInterfaces(Class aclass, String stubClassName, Class interfaces[], Set<String> signatures) {
     	ByteArrayOutputStream baos = new ByteArrayOutputStream();
     	PrintWriter out = new PrintWriter(baos);
     	Method[] methods;
@@ -291,11 +583,11 @@ public class ClassStubGenerator {
                 String signature = getSignature(method);
                 if (!signatures.contains(signature)) {
 	                out.println("    // from interface " + interfaces[i].getName());
-	                out.print(getMethodStub(stubClassName, method, signatures));
+	                out.print(getMethodStub(aclass, stubClassName, method, signatures));
 	                signatures.add(signature);
                 }
             }
-            out.print(getMethodStubsForInterfaces(stubClassName, interfaces[i].getInterfaces(), signatures));
+            out.print(getMethodStubsForInterfaces(aclass, stubClassName, interfaces[i].getInterfaces(), signatures));
         }
         out.flush();
     	return baos.toString();
@@ -318,7 +610,7 @@ public class ClassStubGenerator {
     /** Return java code to autobox a primitive java type (char, byte, short etc) into an object type
      * (Character, Byte, Short etc).
      * 
-     * <p>e.g. <tt>autoBox(double, "d")</tt> will return the string "<tt>new Double(d)</tt>"
+     * <p>e.g. <tt>autoBox(double, "d")</tt> will return the string "<tt>Double.valueOf(d)</tt>"
      * 
      * @param clazz type to be autoboxes
      * @param variableName variable to be autoboxed
@@ -338,7 +630,7 @@ public class ClassStubGenerator {
     	if (wrapperType.equals("")) {
     		return variableName;
     	} else {
-    		return "new " + wrapperType + "(" + variableName + ")";
+    		return wrapperType + ".valueOf(" + variableName + ")";
     	}
     	
     }
@@ -377,12 +669,13 @@ public class ClassStubGenerator {
     
     /** Returns a stubbed version of a JDBC Method, as java source
      * 
+     * @param aclass the class/interface being stubbed
      * @param stubClassName the name of the stub class in which the generated source will be held
      * @param method the method of the JDBC interface to be stubbed
      * 
      * @return a stubbed version of a JDBC Method, as java source
      */
-    private String getMethodStub(String stubClassName, Method method, Set<String> signatures) {
+    private String getMethodStub(Class aclass, String stubClassName, Method method, Set<String> signatures) {
     	ByteArrayOutputStream baos = new ByteArrayOutputStream();
     	PrintWriter out = new PrintWriter(baos);
     	// Type[] params;
@@ -443,27 +736,185 @@ public class ClassStubGenerator {
 	        }
 	        out.println("  {");
 	
-	        
-	        String logStatement = "        String logText = \"" + method.getName() + "(\"";
+	        String argList = "";
 	        for (int j = 0; j < params.length; j++) {
-	        	/*
-	        	if (params[j].toString().equals("java.lang.String")) {
-	        		logStatement += " + \"'\"";
+	        	argList += (j > 0 ? ", " : "") + getUnwrappedArg(method, params[j], "arg" + j);
+	        }
+	        boolean hasReturnValue = !returnType.equals("void");
+	        
+	        int methodId = -1;
+	        if (methodRegistry!=null) {
+	        	methodId = nextMethodId++;
+	        	methodRegistrations.add(methodRegistry + ".register(" + methodId + ", \"" + getLastComponent(aclass.getName()) + "\", \"" + method.getName() + "\", " + hasReturnValue + ");");
+	        }
+	        
+	        // execute methods on statements may need to be timed even if we're not logging
+	        String observedSql = null;
+	        boolean listen = listeners!=null && methodId >= 0;
+	        if (isObservedStatement(aclass) && method.getName().startsWith("execute")) {
+	        	observedSql = (params.length > 0 && params[0].equals(String.class)) ? "arg0" : "_sql";
+	        }
+	        String indent = "        ";
+	        
+	        // discard parameters recorded for later execute* methods
+	        if (hasParameters(aclass) && method.getName().equals("clearParameters") && params.length == 0) {
+	        	out.println("        if (_parameters != null) { _parameters.clear(); }");
+	        }
+	        
+	        // count rows and column reads rather than logging them if this result set is being summarised
+	        out.print(getSummaryStatements(aclass, method, params, returnTypeClass, wrappedReturnType, argList));
+	        
+	        // release cached wrappers when this object is closed
+	        if (wrapperInterface!=null && method.getName().equals("close") && params.length == 0) {
+	        	for (Class cachedType : getCachedTypes(aclass)) {
+	        		out.println("        _cached" + getLastComponent(cachedType.getName()) + " = null;");
 	        	}
-	        	logStatement += " + arg" + j;
-	            if (params[j].toString().equals("java.lang.String")) {
-	            	logStatement += " + \"'\"";
-	        	}*/
-	    		logStatement += " + " + resultFormatter + ".formatResult(" + autoBox(params[j], "arg" + j)  + ")";
-	            if (j < params.length - 1) {
-	            	logStatement += " + \", \"";
-	            }
 	        }
-	        logStatement += " + \")\";";
-	        logStatement = replaceString(logStatement, "\" + \"", "");
-	        out.println(logStatement);
-	        if (mdcDurationId!=null) {
-	        	out.println("        long startTime = System.currentTimeMillis();");
+	        if (isLeakTracked(aclass) && method.getName().equals("close") && params.length == 0) {
+	        	out.println("        if (_leakTracker != null) { _leakTracker.close(); }");
+	        }
+	        if (getMetricsType(aclass) != null && method.getName().equals("close") && params.length == 0) {
+	        	out.println("        if (_metricsOpen) { _metricsOpen = false; " + metrics + ".close(" + getMetricsType(aclass) + "); }");
+	        }
+	        if (getMetricsType(aclass) != null && java.sql.Statement.class.isAssignableFrom(aclass) && closesResultSet(method)) {
+	        	// the current result set is closed implicitly; its own close() method may never be called
+	        	out.println("        if (_metricsResultSet != null) {");
+	        	out.println("            if (_metricsResultSet._metricsOpen) { _metricsResultSet._metricsOpen = false; " + metrics + ".close(" + metrics + ".RESULT_SET); }");
+	        	out.println("            _metricsResultSet = null;");
+	        	out.println("        }");
+	        }
+	        
+	        // if we're not logging, then don't do anything other than delegate to the wrapped object
+	        // (results still need to be wrapped, in case logging is enabled later on)
+	        if (activeFlag!=null) {
+	        	out.println("        if (!" + activeFlag + ".isActive() && !logger.isDebugEnabled()) {");
+	        	if (hasReturnValue) {
+	        		out.println("            " + returnType + " result = w." + method.getName() + "(" + argList + ");");
+	        		out.print(getWrapStatements("            ", aclass, method, returnTypeClass, wrappedReturnType, params));
+	        		out.println("            return result;");
+	        	} else {
+	        		out.println("            w." + method.getName() + "(" + argList + ");");
+	        		out.println("            return;");
+	        	}
+	        	out.println("        }");
+	        }
+	        if (hasParameters(aclass) && isParameterSetter(method)) {
+	        	// record parameters for later execute* methods; primitive values are not boxed
+	        	String setter = method.getName().equals("setNull") ? "setNull(arg0)" : "set(arg0, arg1)";
+	        	out.println("        if (" + parameterRecorder + ".isCaptureEnabled()) { _getParameters()." + setter + "; }");
+	        }
+	        if (listen) {
+	        	out.println("        boolean listen = " + listeners + ".isInterested(" + methodId + ");");
+	        }
+	        if (observedSql!=null) {
+	        	out.println("        boolean debug = logger.isDebugEnabled()" + (sampler!=null ? " && " + sampler + ".trace(_sampled)" : "") + ";");
+	        	out.println("        boolean observe = " + executionObserver + ".isEnabled();");
+	        	if (slowLog!=null) {
+	        		out.println("        boolean slow = !debug && " + slowLog + ".isEnabled();");
+	        	}
+	        	if (metrics!=null) {
+	        		out.println("        boolean measure = " + metrics + ".isCollecting();");
+	        	}
+	        	out.println("        if (!debug && !observe" + (slowLog!=null ? " && !slow" : "") + (metrics!=null ? " && !measure" : "") + 
+	        		(listen ? " && !listen" : "") + ") {");
+	        } else {
+	        	// parameters are logged with the next execute* or addBatch method if parameter logging is enabled
+	        	boolean parameterMethod = hasParameters(aclass) && (isParameterSetter(method) || 
+	        		(method.getName().equals("clearParameters") && params.length == 0));
+	        	out.println("        if (!logger.isDebugEnabled()" + (parameterMethod ? " || " + parameterRecorder + ".isLogEnabled()" : "") + 
+	        		(sampler!=null ? " || !" + sampler + ".trace(_sampled)" : "") + ") {");
+	        	if (slowLog!=null || metrics!=null || listen) {
+	        		// only time the method if slow calls are being logged, metrics are being collected, or a listener is interested
+	        		List<String> conditions = new ArrayList<>();
+	        		if (slowLog!=null) { conditions.add("!" + slowLog + ".isEnabled()"); }
+	        		if (metrics!=null) { conditions.add("!" + metrics + ".isCollecting()"); }
+	        		if (listen) { conditions.add("!listen"); }
+	        		out.println("            if (" + String.join(" && ", conditions) + ") {");
+	        		indent = "            ";
+	        	}
+	        }
+	        if (hasReturnValue) {
+	        	out.println(indent + "    " + returnType + " result = w." + method.getName() + "(" + argList + ");");
+	        	out.print(getWrapStatements(indent + "    ", aclass, method, returnTypeClass, wrappedReturnType, params));
+	        	out.println(indent + "    return result;");
+	        } else {
+	        	out.println(indent + "    w." + method.getName() + "(" + argList + ");");
+	        	out.println(indent + "    return;");
+	        }
+	        if (observedSql==null && (slowLog!=null || metrics!=null || listen)) {
+	        	out.println("            }");
+	        	out.println("            long startTime = System.nanoTime();");
+	        	out.println("            Throwable slowThrowable = null;");
+	        	if (listen && hasReturnValue) {
+	        		// declared outside the try block so that it can be passed to the listeners
+	        		out.println("            " + returnType + " result = " + getDefaultValue(returnTypeClass) + ";");
+	        	}
+	        	out.println("            try {");
+	        	if (hasReturnValue) {
+	        		out.println("                " + (listen ? "" : returnType + " ") + "result = w." + method.getName() + "(" + argList + ");");
+	        		out.print(getWrapStatements("                ", aclass, method, returnTypeClass, wrappedReturnType, params));
+	        		out.println("                return result;");
+	        	} else {
+	        		out.println("                w." + method.getName() + "(" + argList + ");");
+	        		out.println("                return;");
+	        	}
+	        	out.println("            } catch (Throwable t) {");
+	        	out.println("                slowThrowable = t;");
+	        	out.println("                throw t;");
+	        	out.println("            } finally {");
+	        	if (slowLog!=null) {
+	        		out.print(getSlowLogStatements("                ", aclass, method, methodId, params, false, "slowThrowable"));
+	        		if (metrics!=null) {
+	        			out.println("                " + metrics + ".record(" + methodId + ", slowDuration, slowThrowable);");
+	        		}
+	        	} else if (metrics!=null) {
+	        		out.println("                " + metrics + ".record(" + methodId + ", System.nanoTime() - startTime, slowThrowable);");
+	        	}
+	        	if (listen) {
+	        		String result = hasReturnValue ? "slowThrowable == null ? " + autoBox(returnTypeClass, "result") + " : null" : "null";
+	        		out.println("                if (listen) {");
+	        		out.println("                    " + listeners + ".fire(this, " + methodId + ", " + getArgArray(params) + ", " + result + ", slowThrowable, startTime);");
+	        		out.println("                }");
+	        	}
+	        	out.println("            }");
+	        }
+	        out.println("        }");
+	        indent = "        ";
+	        
+	        if (asyncLogger!=null) {
+	        	out.println("        boolean async = " + (observedSql!=null ? "debug && " : "") + asyncLogger + ".isEnabled();");
+	        }
+	        
+	        String logCondition = (observedSql!=null ? (asyncLogger!=null ? "debug && !async" : "debug") :
+	        	(asyncLogger!=null ? "!async" : null));
+	        boolean parameterisedExecution = hasParameters(aclass) && params.length == 0 && 
+	        	(method.getName().startsWith("execute") || method.getName().equals("addBatch"));
+	        if (params.length == 0 && !parameterisedExecution) {
+	        	out.println("        String logText = " + (logCondition!=null ? logCondition + " ? \"" + method.getName() + "()\" : null;" : "\"" + method.getName() + "()\";"));
+	        } else {
+	        	// format arguments into a reused per-thread StringBuilder, without boxing primitives
+	        	String logIndent = "        ";
+	        	if (logCondition!=null) {
+	        		out.println("        String logText = null;");
+	        		out.println("        if (" + logCondition + ") {");
+	        		logIndent = "            ";
+	        	}
+	        	out.print(getFormatStatements(logIndent, method, params));
+	        	if (parameterisedExecution) {
+	        		out.println(logIndent + parameterRecorder + ".appendExecution(sb, _sql, _parameters);");
+	        	}
+	        	if (logCondition!=null) {
+	        		out.println(logIndent + "logText = sb.toString();");
+	        		out.println("        }");
+	        	} else {
+	        		out.println(logIndent + "String logText = sb.toString();");
+	        	}
+	        }
+	        if (mdcDurationId!=null || asyncLogger!=null || observedSql!=null || metrics!=null || listen) {
+	        	out.println("        long startTime = System.nanoTime();");
+	        	if (mdcDurationId!=null && mdcCpuTimeId!=null) {
+	        		out.println("        long startCpuTime = " + resultFormatter + ".getThreadCpuTime();");
+	        	}
 	        }
 	        
 	        // dump exception if first arg is a string and matches what we're looking for
@@ -473,79 +924,56 @@ public class ClassStubGenerator {
 		        	// enableTrap = true;
 		        	// out.println("        Exception trap = (arg0 != null && arg0.matches(\".fn_is_account_av\") ? new RuntimeException(\"SQL trap triggered\") : null;");
 		        	// issues with logging a real exception if that comes along; will just perform 2 logs, and the attendant indeterminism that comes with it (could chain the exceptions I suppose)
-		        	out.println("        if (arg0 != null && " + resultFormatter + ".matchesArg(arg0)) { logger.debug(\"SQL trap triggered\", new RuntimeException(\"SQL trap triggered\")); }");
+		        	out.println("        if (" + (observedSql!=null ? "debug && " : "") + "arg0 != null) { " + resultFormatter + ".checkTrap(logger, arg0); }");
 		        }
 	        }
 	        
-	        boolean hasReturnValue = !returnType.equals("void");
 	        if (hasReturnValue) {
 	        	// @TODO if not primitive, should set to null
 	        	out.print("        ");	
 	        	out.println(shortClassName(cleanType(returnTypeClass)) + " result;");
 	        }
+	        // measure the throughput of streams passed to this method
+	        boolean monitorStreams = streamMonitor!=null && observedSql==null;
+	        String streamName = "logText != null ? logText : \"" + method.getName() + "()\"";
+	        if (monitorStreams) {
+	        	for (int j = 0; j < params.length; j++) {
+	        		if (isStream(params[j])) {
+	        			out.println("        arg" + j + " = " + streamMonitor + ".wrap(arg" + j + ", logger, this, " + streamName + ");");
+	        		}
+	        	}
+	        }
 	        out.println("        try {");
 	        out.print("            ");
 	        if (hasReturnValue) {
 	        	out.print("result = ");
 	        }
-	        out.print("w." + method.getName() + "(");
-	        for (int j = 0; j < params.length; j++) {
-	            out.print("arg" + j);
-	            if (j < params.length - 1) {
-	                out.print(", ");
-	            }
-	        }
-	        out.println(");");
+	        out.println("w." + method.getName() + "(" + argList + ");");
 	        if (wrappedReturnType!=null) {
-	        	out.println("        if (!(result instanceof " + wrappedReturnType + ")) {");
-	        	out.println("            result = new " + wrappedReturnType + "(result);");
-	        	out.println("        }");
+	        	out.print(getWrapStatements("        ", aclass, method, returnTypeClass, wrappedReturnType, params));
+	        }
+	        if (monitorStreams && isStream(returnTypeClass)) {
+	        	out.println("            result = " + streamMonitor + ".wrap(result, logger, this, " + streamName + ");");
 	        }
 	        out.print("        }");
 	        
 	        // catch all declared exceptions, log, and rethrow
 	        for (int j = 0; j < exceptions.length; j++) {
 	            out.println(" catch (" + shortClassName(exceptions[j].getName()) + " e" + j + ") {");
-	            if (mdcDurationId!=null) {
-	            	out.println("            _setMDC(System.currentTimeMillis() - startTime);");
-	            }
-	            if (mdcObjectId!=null) {
-	            	out.println("            _setMDC();");
-	            }
-	            out.println("            logger.debug(logText, e" + j + ");");
+	            out.print(getObserverStatements("            ", method, methodId, observedSql, "e" + j));
+	            out.print(getLogStatements("            ", aclass, method, methodId, params, observedSql!=null, "e" + j));
 	            out.println("            throw e" + j + ";");
 	            out.print("        }");
 	        }
 	        out.println(" catch (RuntimeException re) {");
-	        // @TODO should combine these
-	        if (mdcDurationId!=null) {
-	        	out.println("            _setMDC(System.currentTimeMillis() - startTime);");
-	        }
-	        if (mdcObjectId!=null) {
-	        	out.println("            _setMDC();");
-	        }
-	        out.println("            logger.debug(logText, re);");
+	        out.print(getObserverStatements("            ", method, methodId, observedSql, "re"));
+	        out.print(getLogStatements("            ", aclass, method, methodId, params, observedSql!=null, "re"));
 	        out.println("            throw re;");
 	        out.println("        }");
-	        
-	        if (mdcDurationId!=null) {
-	        	out.println("        _setMDC(System.currentTimeMillis() - startTime);");
-	        }
-	        if (mdcObjectId != null) {
-	    		out.println("        _setMDC();");
-	    	}
-	        		
-	        // if (!method.getGenericReturnType().toString().equals("void")) {
-	        if (!method.getReturnType().toString().equals("void")) {
-	        	if (resultFormatter == null) {
-	        		out.println("        logger.debug(logText + \": \" + result);");
-	        	} else {
-	    			out.println("        logger.debug(logText + \": \" + " + resultFormatter + ".formatResult(" + autoBox(method.getReturnType(), "result") + "));");
-	        	}
-	        	
+	        out.print(getObserverStatements("        ", method, methodId, observedSql, null));
+	        out.print(getLogStatements("        ", aclass, method, methodId, params, observedSql!=null, null));
+	        if (hasReturnValue) {
 	        	out.println("        return result;");
-	        } else {
-	        	out.println("        logger.debug(logText);");
 	        }
 	        out.println("    }");
 	        out.println();
@@ -558,6 +986,729 @@ public class ClassStubGenerator {
     
     
     
+    /** Returns the java statements used to log a method invocation after the wrapped method has been invoked.
+     * If an asyncLogger has been set, then the invocation will be published to that logger instead of
+     * being logged on the current thread.
+     * 
+     * <p>If checkDebug is true and a slowLog has been set, then the invocation will also be logged if the 
+     * local 'slow' variable is true and the invocation took longer than the slow-call threshold.
+     * 
+     * @param indent the indentation of the generated statements
+     * @param aclass the class being stubbed
+     * @param method the method being stubbed
+     * @param methodId the method id assigned to the stub, or -1 if method ids are not being generated
+     * @param params the parameter types of the method
+     * @param checkDebug if true, the generated statements will only log if the local 'debug' variable is true 
+     * @param exceptionVar the name of the variable containing the exception thrown by the wrapped method, 
+     *   or null if the method completed normally
+     * 
+     * @return java statements used to log a method invocation
+     */
+    private String getLogStatements(String indent, Class aclass, Method method, int methodId, Class[] params, boolean checkDebug, String exceptionVar) {
+    	ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    	PrintWriter out = new PrintWriter(baos);
+    	boolean hasReturnValue = !method.getReturnType().toString().equals("void");
+    	String closingBrace = null;
+    	if (metrics!=null) {
+    		out.println(indent + metrics + ".record(" + methodId + ", System.nanoTime() - startTime, " + exceptionVar + ");");
+    	}
+    	String result = (exceptionVar == null && hasReturnValue) ? autoBox(method.getReturnType(), "result") : "null";
+    	if (listeners!=null && methodId >= 0) {
+    		out.println(indent + "if (listen) {");
+    		out.println(indent + "    " + listeners + ".fire(this, " + methodId + ", " + getArgArray(params) + ", " + result + ", " + exceptionVar + ", startTime);");
+    		out.println(indent + "}");
+    	}
+    	if (asyncLogger!=null) {
+    		out.println(indent + "if (async) {");
+    		out.println(indent + "    " + asyncEvent + " asyncEvent = " + asyncLogger + ".claim(logger, this, " + methodId + ", " + exceptionVar + ", startTime);");
+    		out.println(indent + "    if (asyncEvent != null) {");
+    		for (int j = 0; j < params.length; j++) {
+    			out.println(indent + "        asyncEvent.setArg(" + j + ", arg" + j + ");");
+    		}
+    		if (exceptionVar == null && hasReturnValue) {
+    			out.println(indent + "        asyncEvent.setResult(result);");
+    		}
+    		out.println(indent + "        " + asyncLogger + ".publish(asyncEvent);");
+    		out.println(indent + "    }");
+    		out.println(indent + "} else" + (checkDebug ? " if (debug)" : "") + " {");
+    		closingBrace = indent + "}";
+    		indent += "    ";
+    	} else if (checkDebug) {
+    		out.println(indent + "if (debug) {");
+    		closingBrace = indent + "}";
+    		indent += "    ";
+    	}
+    	if (checkDebug && slowLog!=null) {
+    		String outerIndent = indent.substring(4);
+    		closingBrace = outerIndent + "} else if (slow) {\n" + 
+    			getSlowLogStatements(indent, aclass, method, methodId, params, true, exceptionVar == null ? "null" : exceptionVar) +
+    			outerIndent + "}";
+    	}
+        if (mdcDurationId!=null) {
+        	out.println(indent + getDurationMDCStatement());
+        }
+        if (mdcObjectId!=null) {
+        	out.println(indent + "_setMDC();");
+        }
+        if (exceptionVar == null && streamMonitor!=null && (mdcDurationId!=null || asyncLogger!=null)) {
+        	String bytes = getLobTransferBytes(aclass, method);
+        	if (bytes != null) {
+        		out.println(indent + "logText = " + streamMonitor + ".appendThroughput(logText, " + bytes + ", System.nanoTime() - startTime);");
+        	}
+        }
+        if (exceptionVar != null) {
+        	out.println(indent + "logger.debug(logText, " + exceptionVar + ");");
+        } else if (hasReturnValue) {
+        	if (resultFormatter == null) {
+        		out.println(indent + "logger.debug(logText + \": \" + result);");
+        	} else {
+    			out.println(indent + "logger.debug(logText + \": \" + " + resultFormatter + ".formatResult(result));");
+        	}
+        } else {
+        	out.println(indent + "logger.debug(logText);");
+        }
+        if (closingBrace!=null) {
+        	out.println(closingBrace);
+        }
+        out.flush();
+        return baos.toString();
+    }
+    
+    /** Returns a java expression which creates an array of the arguments passed to a method, with primitives boxed
+     * 
+     * @param params the parameter types of the method
+     * 
+     * @return a java expression creating the argument array, or "null" if the method has no parameters
+     */
+    private static String getArgArray(Class[] params) {
+    	if (params.length == 0) { return "null"; }
+    	String argArray = "new Object[] { ";
+    	for (int j = 0; j < params.length; j++) {
+    		argArray += (j > 0 ? ", " : "") + autoBox(params[j], "arg" + j);
+    	}
+    	return argArray + " }";
+    }
+    
+    /** Returns a java expression containing the default value of a type
+     * 
+     * @param type the type
+     * 
+     * @return "false" for booleans, "0" for other primitive types, or "null" for object types
+     */
+    private static String getDefaultValue(Class type) {
+    	if (!type.isPrimitive()) { return "null"; }
+    	return type.equals(boolean.class) ? "false" : "0";
+    }
+    
+    /** Returns the java statements used to format a method invocation into the local 'sb' variable.
+     * Arguments are appended to a reused per-thread StringBuilder, without boxing primitives. The SQL 
+     * argument of SQL methods is formatted using the escaped SQL cache; other Strings (e.g. parameter values
+     * and column labels) are escaped each time, so they don't displace SQL from the cache.
+     * 
+     * @param indent the indentation of the generated statements
+     * @param method the method being stubbed
+     * @param params the parameter types of the method
+     * 
+     * @return java statements used to format a method invocation
+     */
+    private String getFormatStatements(String indent, Method method, Class[] params) {
+    	String result = indent + "StringBuilder sb = " + resultFormatter + ".getStringBuilder();\n" + 
+    		indent + "sb.append(\"" + method.getName() + "(\");\n";
+    	for (int j = 0; j < params.length; j++) {
+    		if (j > 0) {
+    			result += indent + "sb.append(\", \");\n";
+    		}
+    		// SQL strings are usually the same instance each time, so use the escaped SQL cache
+    		result += indent + resultFormatter + "." + (j == 0 && isSqlMethod(method) ? "appendSql" : "appendResult") + "(sb, arg" + j + ");\n";
+    	}
+    	return result + indent + "sb.append(')');\n";
+    }
+    
+    /** Returns the java statements used to log a method invocation if it took longer than the slow-call 
+     * threshold for that method. Requires the local 'startTime' variable to have been set.
+     * 
+     * <p>For <tt>execute*</tt> methods on statements, the SQL used to prepare the statement and any parameters
+     * recorded on it are included in the log message. 
+     * 
+     * @param indent the indentation of the generated statements
+     * @param aclass the class being stubbed
+     * @param method the method being stubbed
+     * @param methodId the method id assigned to the stub
+     * @param params the parameter types of the method
+     * @param observed true if this method is an <tt>execute*</tt> method on a statement
+     * @param throwableVar a java expression containing the exception thrown by the wrapped method, or null
+     * 
+     * @return java statements used to log a slow method invocation
+     */
+    private String getSlowLogStatements(String indent, Class aclass, Method method, int methodId, Class[] params, boolean observed, String throwableVar) {
+    	String result = indent + "long slowDuration = System.nanoTime() - startTime;\n" +
+    		indent + "if (slowDuration >= " + slowLog + ".getThreshold(" + methodId + ")) {\n" +
+    		getFormatStatements(indent + "    ", method, params);
+    	if (observed) {
+    		result += indent + "    " + slowLog + ".appendContext(sb, _sql, " + (hasParameters(aclass) ? "_parameters" : "null") + ");\n";
+    	}
+    	if (mdcDurationId!=null) {
+    		result += indent + "    _setMDC(slowDuration" + (mdcCpuTimeId!=null ? ", -1" : "") + ");\n";
+    	}
+    	if (mdcObjectId!=null) {
+    		result += indent + "    _setMDC();\n";
+    	}
+    	return result + indent + "    " + slowLog + ".log(logger, sb.toString(), " + throwableVar + ");\n" +
+    		indent + "}\n";
+    }
+    
+    /** Returns the java statements used to notify the executionObserver that an <tt>execute*</tt> method 
+     * has been invoked.
+     * 
+     * @param indent the indentation of the generated statements
+     * @param method the method being stubbed
+     * @param methodId the method id assigned to the stub
+     * @param observedSql the java expression containing the SQL being executed, or null if this method
+     *   is not being observed 
+     * @param exceptionVar the name of the variable containing the exception thrown by the wrapped method, 
+     *   or null if the method completed normally
+     * 
+     * @return java statements used to notify the executionObserver, or an empty String if this method is not being observed
+     */
+    private String getObserverStatements(String indent, Method method, int methodId, String observedSql, String exceptionVar) {
+    	if (observedSql == null) { return ""; }
+    	boolean hasReturnValue = !method.getReturnType().toString().equals("void");
+    	String result = (exceptionVar == null && hasReturnValue) ? autoBox(method.getReturnType(), "result") : "null";
+    	return indent + "if (observe) {\n" +
+    		indent + "    " + executionObserver + ".onExecute(this, " + (wrapperInterface!=null ? "_cachedConnection" : "null") + ", " + methodId + ", " + observedSql + ", " + result + ", " + exceptionVar + ", startTime);\n" + 
+    		indent + "}\n";
+    }
+    
+    /** Returns the java statements used to wrap the result of a method invocation.
+     * 
+     * <p>If an executionObserver has been set, and the method returns a Statement created from SQL
+     * supplied as the first argument to the method, then that SQL is also passed to the wrapper. 
+     * 
+     * <p>If a sampler has been set, the wrapper is traced if this object is traced; Statements created
+     * by a Connection are also subject to the sampler's statement sampling.
+     * 
+     * @param indent the indentation of the generated statements
+     * @param aclass the class being stubbed
+     * @param method the method being stubbed
+     * @param returnTypeClass the return type of the method
+     * @param wrappedReturnType the classname of the stub which will wrap the result, or null if the result is not wrapped 
+     * @param params the parameter types of the method
+     * 
+     * @return java statements used to wrap the result, or an empty String if the result is not wrapped
+     */
+    private String getWrapStatements(String indent, Class aclass, Method method, Class returnTypeClass, String wrappedReturnType, Class[] params) {
+    	if (wrappedReturnType == null) { return ""; }
+    	String sqlArg = "";
+    	if (isObservedStatement(returnTypeClass) && params.length > 0 && params[0].equals(String.class)) {
+    		sqlArg = ", arg0";
+    	}
+    	String sampledArg = "";
+    	if (sampler != null) {
+    		if (java.sql.Connection.class.isAssignableFrom(aclass) && java.sql.Statement.class.isAssignableFrom(returnTypeClass)) {
+    			sampledArg = ", _sampled && " + sampler + ".sampleStatement()";
+    		} else {
+    			sampledArg = ", _sampled";
+    		}
+    	}
+    	String newIndent = indent + (wrapperInterface == null ? "    " : "        ");
+    	String newStatements = newIndent + wrappedReturnType + " wrapper = new " + wrappedReturnType + "(result" + sqlArg + sampledArg + ");\n";
+    	if (isSummaryStatement(aclass) && isSummarised(returnTypeClass)) {
+    		newStatements += newIndent + "_addSummary(wrapper);\n";
+    	}
+    	if (pooledConnection != null && java.sql.Connection.class.isAssignableFrom(aclass) && java.sql.PreparedStatement.class.isAssignableFrom(returnTypeClass)) {
+    		newStatements += newIndent + "if (_pooledConnection != null) { _pooledConnection.addStatement(result, wrapper); }\n";
+    	}
+    	if (getMetricsType(aclass) != null && java.sql.Statement.class.isAssignableFrom(aclass) && java.sql.ResultSet.class.isAssignableFrom(returnTypeClass)) {
+    		newStatements += newIndent + "_metricsResultSet = wrapper;\n";
+    	}
+    	if (isLeakTracked(aclass) && isLeakTracked(returnTypeClass)) {
+    		String leakSqlArg = params.length > 0 && params[0].equals(String.class) ? "arg0" : "null";
+    		if (java.sql.Connection.class.isAssignableFrom(aclass) && java.sql.Statement.class.isAssignableFrom(returnTypeClass)) {
+    			newStatements += newIndent + "wrapper._leakTracker = " + leakDetector + ".trackStatement(_leakTracker, wrapper, " + leakSqlArg + ");\n";
+    		} else if (java.sql.Statement.class.isAssignableFrom(aclass) && java.sql.ResultSet.class.isAssignableFrom(returnTypeClass)) {
+    			newStatements += newIndent + "if (_leakTracker != null) { wrapper._leakTracker = " + leakDetector + ".trackResultSet(_leakTracker, wrapper, " + leakSqlArg + "); }\n";
+    		}
+    	}
+    	if (wrapperInterface == null) {
+	    	return indent + "if (result != null && !(result instanceof " + wrappedReturnType + ")) {\n" +
+	    		newStatements + 
+	    		newIndent + "result = wrapper;\n" +
+	    		indent + "}\n";
+    	}
+    	// seed the new wrapper's cache with this object, if it can return objects of this type
+    	for (Class cachedType : getCachedTypes(returnTypeClass)) {
+    		if (cachedType.isAssignableFrom(aclass)) {
+    			newStatements += newIndent + "wrapper._cached" + getLastComponent(cachedType.getName()) + " = this;\n";
+    		}
+    	}
+    	if (!isCachedAccessor(method)) {
+    		if (method.getName().startsWith("execute") && getCachedTypes(aclass).contains(returnTypeClass)) {
+    			// the ResultSet returned by executeQuery() is the one subsequently returned by getResultSet()
+    			newStatements += newIndent + "_cached" + getLastComponent(returnTypeClass.getName()) + " = wrapper;\n";
+    		}
+	    	return indent + "if (result != null && !(result instanceof " + wrappedReturnType + ")) {\n" +
+	    		newStatements + 
+	    		newIndent + "result = wrapper;\n" +
+	    		indent + "}\n";
+    	}
+    	String cacheField = "_cached" + getLastComponent(returnTypeClass.getName());
+    	return indent + "if (result != null && !(result instanceof " + wrappedReturnType + ")) {\n" +
+    		indent + "    " + returnTypeClass.getName() + " cached = " + cacheField + ";\n" +
+    		indent + "    if (cached != null && ((" + wrapperInterface + ") cached).getWrappedObject() == result) {\n" +
+    		indent + "        result = cached;\n" +
+    		indent + "    } else {\n" +
+    		newStatements + 
+    		indent + "        " + cacheField + " = wrapper;\n" +
+    		indent + "        result = wrapper;\n" +
+    		indent + "    }\n" +
+    		indent + "}\n";
+    }
+    
+    /** Returns the wrapped types returned by the accessor methods of the supplied class, in the order in which 
+     * they are listed in wrappedClasses. If a wrapperInterface has been set, stubs cache the last wrapper they have 
+     * returned of each of these types.
+     * 
+     * @param aclass the class being stubbed
+     * 
+     * @return the wrapped types returned by accessor methods of the class
+     * 
+     * @see #isCachedAccessor(Method)
+     */
+    private List<Class> getCachedTypes(Class aclass) {
+    	List<Class> cachedTypes = new ArrayList<>();
+    	for (int i=0; i<wrappedClasses.length; i++) {
+    		for (Method method : aclass.getMethods()) {
+    			if (isCachedAccessor(method) && method.getReturnType().equals(wrappedClasses[i])) {
+    				cachedTypes.add(wrappedClasses[i]);
+    				break;
+    			}
+    		}
+    	}
+    	return cachedTypes;
+    }
+    
+    /** Returns true if the supplied method returns an object that is owned by, or owns, the object it is 
+     * invoked on, and which is therefore the same object each time it is invoked (<tt>getConnection()</tt>, 
+     * <tt>getMetaData()</tt>, <tt>getStatement()</tt> and <tt>getResultSet()</tt>). Only the wrappers
+     * returned by these methods are cached; caching the result of a factory method such as 
+     * <tt>prepareStatement()</tt> would keep the last Statement created, along with its parameters and 
+     * ResultSet, for the lifetime of the Connection.
+     * 
+     * @param method the method being stubbed
+     * 
+     * @return true if the wrapper returned by this method is cached
+     */
+    private boolean isCachedAccessor(Method method) {
+    	String name = method.getName();
+    	return method.getParameterTypes().length == 0 && 
+    		(name.equals("getConnection") || name.equals("getMetaData") || 
+    		 name.equals("getStatement") || name.equals("getResultSet"));
+    }
+    
+    /** Returns true if the supplied class is a Statement whose <tt>execute*</tt> methods are
+     * reported to the executionObserver
+     * 
+     * @param aclass the class being stubbed
+     * 
+     * @return true if the supplied class is a Statement whose <tt>execute*</tt> methods are
+     *   reported to the executionObserver
+     */
+    private boolean isObservedStatement(Class aclass) {
+    	return executionObserver != null && java.sql.Statement.class.isAssignableFrom(aclass);
+    }
+    
+    /** Returns true if the supplied class is a PreparedStatement (or CallableStatement) whose parameters
+     * are recorded by the parameterRecorder
+     * 
+     * @param aclass the class being stubbed
+     * 
+     * @return true if the parameters set on this class are recorded
+     */
+    private boolean hasParameters(Class aclass) {
+    	return parameterRecorder != null && java.sql.PreparedStatement.class.isAssignableFrom(aclass);
+    }
+    
+    /** Returns true if the first argument of the supplied method is SQL, i.e. it is a <tt>prepare*</tt>, 
+     * <tt>execute*</tt>, <tt>addBatch</tt> or <tt>nativeSQL</tt> method whose first parameter is a String
+     * 
+     * @param method the method being stubbed
+     * 
+     * @return true if the first argument of the method is SQL
+     */
+    private boolean isSqlMethod(Method method) {
+    	Class[] params = method.getParameterTypes();
+    	String name = method.getName();
+    	return params.length > 0 && params[0].equals(String.class) && 
+    		(name.startsWith("prepare") || name.startsWith("execute") || name.equals("addBatch") || name.equals("nativeSQL"));
+    }
+    
+    /** Returns true if the supplied method sets a statement parameter by index, e.g. 
+     * <tt>setString(int parameterIndex, String x)</tt>
+     * 
+     * @param method the method being stubbed
+     * 
+     * @return true if the method sets a statement parameter by index
+     */
+    private boolean isParameterSetter(Method method) {
+    	Class[] params = method.getParameterTypes();
+    	return method.getName().startsWith("set") && params.length >= 2 && params[0].equals(int.class);
+    }
+    
+    /** Returns true if the supplied class is a ResultSet which can log a summary rather than each row
+     * 
+     * @param aclass the class being stubbed
+     * 
+     * @return true if the supplied class is a ResultSet which can be summarised
+     */
+    private boolean isSummarised(Class aclass) {
+    	return resultSetSummary != null && java.sql.ResultSet.class.isAssignableFrom(aclass);
+    }
+    
+    /** Returns true if the supplied class is a Statement which keeps track of the ResultSets it creates, so that
+     * their summaries can be logged when the Statement is closed
+     * 
+     * @param aclass the class being stubbed
+     * 
+     * @return true if the supplied class is a Statement which keeps track of its ResultSets
+     */
+    private boolean isSummaryStatement(Class aclass) {
+    	return resultSetSummary != null && java.sql.Statement.class.isAssignableFrom(aclass);
+    }
+    
+    /** Returns true if the supplied class is a Connection which keeps track of the ResultSets created by
+     * its Statements, so that their summaries can be logged when the Connection is closed
+     * 
+     * @param aclass the class being stubbed
+     * 
+     * @return true if the supplied class is a Connection which keeps track of its ResultSets
+     */
+    private boolean isSummaryConnection(Class aclass) {
+    	return resultSetSummary != null && java.sql.Connection.class.isAssignableFrom(aclass);
+    }
+    
+    /** Returns true if the supplied method moves the cursor of a ResultSet, and returns true if it is on a row
+     * 
+     * @param method the method being stubbed
+     * 
+     * @return true if the method is a row navigation method
+     */
+    private boolean isRowNavigation(Method method) {
+    	String name = method.getName();
+    	return method.getReturnType().equals(boolean.class) && (name.equals("next") || name.equals("previous") ||
+    		name.equals("first") || name.equals("last") || name.equals("absolute") || name.equals("relative"));
+    }
+    
+    /** Returns true if the supplied method reads a column value from a ResultSet, e.g. 
+     * <tt>getString(int columnIndex)</tt> or <tt>getString(String columnLabel)</tt>
+     * 
+     * @param method the method being stubbed
+     * 
+     * @return true if the method is a column getter
+     */
+    private boolean isColumnGetter(Method method) {
+    	Class[] params = method.getParameterTypes();
+    	return method.getName().startsWith("get") && params.length >= 1 && 
+    		(params[0].equals(int.class) || params[0].equals(String.class));
+    }
+    
+    /** Returns the name of the stub class which wraps the supplied JDBC interface
+     * 
+     * @param wrappedClass the JDBC interface
+     * 
+     * @return the unqualified name of the stub class which wraps that interface
+     * 
+     * @throws IllegalArgumentException if the interface is not wrapped
+     */
+    private String getStubClassName(Class wrappedClass) {
+    	for (int i=0; i<wrappedClasses.length; i++) {
+    		if (wrappedClasses[i].equals(wrappedClass)) {
+    			return getLastComponent(stubClassNames[i]);
+    		}
+    	}
+    	throw new IllegalArgumentException("No stub class for '" + wrappedClass.getName() + "'");
+    }
+    
+    /** Returns true if the supplied class is a Connection, Statement or ResultSet whose stub holds a leak tracker
+     * 
+     * @param aclass the class being stubbed
+     * 
+     * @return true if the supplied class's stub holds a leak tracker
+     */
+    private boolean isLeakTracked(Class aclass) {
+    	return leakDetector != null && (java.sql.Connection.class.isAssignableFrom(aclass) ||
+    		java.sql.Statement.class.isAssignableFrom(aclass) || java.sql.ResultSet.class.isAssignableFrom(aclass));
+    }
+    
+    /** Returns true if the supplied Statement method implicitly closes the statement's current ResultSet 
+     * (<tt>close()</tt>, the <tt>execute*</tt> methods and <tt>getMoreResults()</tt>)
+     * 
+     * @param method the method being stubbed
+     * 
+     * @return true if the method closes the statement's current ResultSet
+     */
+    private boolean closesResultSet(Method method) {
+    	return method.getName().startsWith("execute") || 
+    		((method.getName().equals("close") || method.getName().equals("getMoreResults")) && method.getParameterTypes().length == 0);
+    }
+    
+    /** Returns the java expression passed to the metrics object when a Connection, Statement or ResultSet stub is
+     * created or closed
+     * 
+     * @param aclass the class being stubbed
+     * 
+     * @return the object type constant for the class, or null if open objects of this class aren't counted
+     */
+    private String getMetricsType(Class aclass) {
+    	if (metrics == null) { return null; }
+    	else if (java.sql.Connection.class.isAssignableFrom(aclass)) { return metrics + ".CONNECTION"; }
+    	else if (java.sql.Statement.class.isAssignableFrom(aclass)) { return metrics + ".STATEMENT"; }
+    	else if (java.sql.ResultSet.class.isAssignableFrom(aclass)) { return metrics + ".RESULT_SET"; }
+    	return null;
+    }
+    
+    /** Returns the java statements in a Connection stub's constructor which register it with the leakDetector.
+     * Statements and ResultSets are registered by the stub that creates them instead; see getWrapStatements().
+     * 
+     * @param aclass the class being stubbed
+     * 
+     * @return java statements used to register the stub, or an empty String if the class is not a Connection
+     */
+    private String getLeakConstructorStatements(Class aclass) {
+    	if (!isLeakTracked(aclass) || !java.sql.Connection.class.isAssignableFrom(aclass)) { return ""; }
+    	return "        _leakTracker = " + leakDetector + ".trackConnection(this);\n";
+    }
+    
+    /** Returns the java statements in a ResultSet stub's constructor which determine whether the ResultSet is
+     * summarised
+     * 
+     * @param aclass the class being stubbed
+     * @param sampledCondition a java expression, followed by " &amp;&amp; ", which is true if the object is 
+     *   being sampled, or an empty String if there is no sampler
+     * 
+     * @return java statements used to initialise the summary, or an empty String if the class is not summarised
+     */
+    private String getSummaryConstructorStatements(Class aclass, String sampledCondition) {
+    	if (!isSummarised(aclass)) { return ""; }
+    	return "        if (logger.isDebugEnabled() && " + sampledCondition + resultSetSummary + ".isEnabled()) {\n" +
+    		"            _summary = true;\n" +
+    		"            _summaryStartTime = System.nanoTime();\n" +
+    		"        }\n";
+    }
+    
+    /** Returns the methods used to log ResultSet summaries, and to keep track of the ResultSets whose
+     * summaries have not yet been logged
+     * 
+     * @param aclass the class being stubbed
+     * 
+     * @return java source for the summary methods, or an empty String if the class doesn't need them
+     */
+    private String getSummaryMethods(Class aclass) {
+    	String connectionStub = resultSetSummary == null ? null : getStubClassName(java.sql.Connection.class);
+    	String resultSetStub = resultSetSummary == null ? null : getStubClassName(java.sql.ResultSet.class);
+    	String result = "";
+    	if (isSummarised(aclass)) {
+    		result += "\n" +
+    			"    // Result set summary method\n" +
+    			"    synchronized void _logSummary() {\n" +
+    			"        if (!_summary) { return; }\n" +
+    			"        _summary = false;\n" +
+    			"        " + connectionStub + " connection = _summaryConnection;\n" +
+    			"        if (connection != null) { connection._removeSummary(this); }\n" +
+    			"        if (logger.isDebugEnabled()" + (sampler!=null ? " && " + sampler + ".trace(_sampled)" : "") + ") {\n" +
+    			"            StringBuilder sb = " + resultFormatter + ".getStringBuilder();\n" +
+    			"            " + resultSetSummary + ".appendSummary(sb, _rows, _columnReads, _firstRowNanos, _nextNanos,\n" +
+    			"                _stringBytes, _numberBytes, _binaryBytes, _temporalBytes, _objectBytes);\n";
+    		if (mdcDurationId!=null) {
+    			result += "            _setMDC(System.nanoTime() - _summaryStartTime" + (mdcCpuTimeId!=null ? ", -1" : "") + ");\n";
+    		}
+    		if (mdcObjectId!=null) {
+    			result += "            _setMDC();\n";
+    		}
+    		result += "            logger.debug(sb.toString());\n" +
+    			"        }\n" +
+    			"    };\n";
+    	} else if (isSummaryStatement(aclass)) {
+    		result += "\n" +
+    			"    // Result set summary methods\n" +
+    			"    private void _addSummary(" + resultSetStub + " resultSet) {\n" +
+    			"        if (resultSet._summary) {\n" +
+    			"            if (_resultSet != null) { _resultSet._logSummary(); }\n" +
+    			"            _resultSet = resultSet;\n" +
+    			(wrapperInterface!=null ? "            if (_cachedConnection instanceof " + connectionStub + ") { ((" + connectionStub + ") _cachedConnection)._addSummary(resultSet); }\n" : "") +
+    			"        }\n" +
+    			"    };\n";
+    	} else if (isSummaryConnection(aclass)) {
+    		result += "\n" +
+    			"    // Result set summary methods\n" +
+    			"    synchronized void _addSummary(" + resultSetStub + " resultSet) {\n" +
+    			"        resultSet._summaryConnection = this;\n" +
+    			"        resultSet._nextSummary = _summaries;\n" +
+    			"        if (_summaries != null) { _summaries._prevSummary = resultSet; }\n" +
+    			"        _summaries = resultSet;\n" +
+    			"    };\n" +
+    			"\n" +
+    			"    synchronized void _removeSummary(" + resultSetStub + " resultSet) {\n" +
+    			"        if (resultSet._summaryConnection != this) { return; }\n" +
+    			"        if (resultSet._prevSummary != null) { resultSet._prevSummary._nextSummary = resultSet._nextSummary; }\n" +
+    			"        else { _summaries = resultSet._nextSummary; }\n" +
+    			"        if (resultSet._nextSummary != null) { resultSet._nextSummary._prevSummary = resultSet._prevSummary; }\n" +
+    			"        resultSet._summaryConnection = null;\n" +
+    			"        resultSet._prevSummary = null;\n" +
+    			"        resultSet._nextSummary = null;\n" +
+    			"    };\n" +
+    			"\n" +
+    			"    private void _logSummaries() {\n" +
+    			"        while (true) {\n" +
+    			"            " + resultSetStub + " resultSet;\n" +
+    			"            synchronized (this) { resultSet = _summaries; }\n" +
+    			"            if (resultSet == null) { return; }\n" +
+    			"            _removeSummary(resultSet);\n" +
+    			"            resultSet._logSummary();\n" +
+    			"        }\n" +
+    			"    };\n";
+    	}
+    	return result;
+    }
+    
+    /** Returns the java statements at the start of a method stub which maintain ResultSet summaries.
+     * 
+     * <p>On a summarised ResultSet, row navigation methods, column getters and <tt>wasNull()</tt> are delegated 
+     * without being logged whilst the summary is being collected, and <tt>close()</tt> logs the summary. On
+     * Statements and Connections, <tt>close()</tt> logs the summaries of any ResultSets created through them.
+     * 
+     * @param aclass the class being stubbed
+     * @param method the method being stubbed
+     * @param params the parameter types of the method
+     * @param returnTypeClass the return type of the method
+     * @param wrappedReturnType the classname of the stub which will wrap the result, or null if the result is not wrapped 
+     * @param argList the comma-separated list of arguments to the method
+     * 
+     * @return java statements used to maintain summaries, or an empty String if this method doesn't affect them
+     */
+    private String getSummaryStatements(Class aclass, Method method, Class[] params, Class returnTypeClass, String wrappedReturnType, String argList) {
+    	boolean close = method.getName().equals("close") && params.length == 0;
+    	if (isSummarised(aclass)) {
+    		String returnType = shortClassName(cleanType(returnTypeClass));
+    		String invocation = "w." + method.getName() + "(" + argList + ")";
+    		if (close) {
+    			return "        if (_summary) { _logSummary(); }\n";
+    		} else if (isRowNavigation(method)) {
+    			return "        if (_summary) {\n" +
+    				"            long summaryStartTime = System.nanoTime();\n" +
+    				"            boolean result = " + invocation + ";\n" +
+    				"            long summaryEndTime = System.nanoTime();\n" +
+    				"            _nextNanos += summaryEndTime - summaryStartTime;\n" +
+    				"            if (result) {\n" +
+    				"                if (_rows == 0) { _firstRowNanos = summaryEndTime - _summaryStartTime; }\n" +
+    				"                _rows++;\n" +
+    				"            }\n" +
+    				"            return result;\n" +
+    				"        }\n";
+    		} else if (isColumnGetter(method)) {
+    			return "        if (_summary) {\n" +
+    				"            " + returnType + " result = " + invocation + ";\n" +
+    				"            _columnReads++;\n" +
+    				"            " + getSummarySizeStatement(returnTypeClass) + "\n" +
+    				getWrapStatements("            ", aclass, method, returnTypeClass, wrappedReturnType, params) +
+    				"            return result;\n" +
+    				"        }\n";
+    		} else if (method.getName().equals("wasNull") && params.length == 0) {
+    			return "        if (_summary) { return " + invocation + "; }\n";
+    		}
+    	} else if (isSummaryStatement(aclass) && close) {
+    		return "        if (_resultSet != null) { _resultSet._logSummary(); _resultSet = null; }\n";
+    	} else if (isSummaryConnection(aclass) && close) {
+    		return "        _logSummaries();\n";
+    	}
+    	return "";
+    }
+    
+    /** Returns the java statement which adds the approximate size of the local 'result' variable to the
+     * byte counter for its type 
+     * 
+     * @param type the return type of a ResultSet column getter
+     * 
+     * @return a java statement which updates a byte counter
+     */
+    private String getSummarySizeStatement(Class type) {
+    	if (type.equals(String.class)) { return "_stringBytes += " + resultSetSummary + ".sizeOf(result);"; }
+    	else if (type.equals(byte[].class)) { return "_binaryBytes += " + resultSetSummary + ".sizeOf(result);"; }
+    	else if (type.equals(java.math.BigDecimal.class)) { return "_numberBytes += " + resultSetSummary + ".sizeOf(result);"; }
+    	else if (type.equals(long.class) || type.equals(double.class)) { return "_numberBytes += 8;"; }
+    	else if (type.equals(int.class) || type.equals(float.class)) { return "_numberBytes += 4;"; }
+    	else if (type.equals(short.class)) { return "_numberBytes += 2;"; }
+    	else if (type.equals(byte.class) || type.equals(boolean.class)) { return "_numberBytes += 1;"; }
+    	else if (type.equals(java.sql.Timestamp.class)) { return "if (result != null) { _temporalBytes += 12; }"; }
+    	else if (type.equals(java.sql.Date.class) || type.equals(java.sql.Time.class)) { return "if (result != null) { _temporalBytes += 8; }"; }
+    	else if (type.equals(Object.class)) { return "_objectBytes += " + resultSetSummary + ".sizeOf(result);"; }
+    	// streams, LOBs and other values whose size isn't known without reading them
+    	return "";
+    }
+    
+    /** Returns the java expression used to pass an argument to the wrapped object. Arguments which are 
+     * wrappers (e.g. a Savepoint passed to <tt>Connection.rollback()</tt>, or a Blob passed to 
+     * <tt>PreparedStatement.setBlob()</tt>) are unwrapped, since drivers usually expect their own implementations.
+     * 
+     * @param method the method being stubbed
+     * @param type the parameter type
+     * @param argName the name of the argument
+     * 
+     * @return the java expression used to pass the argument to the wrapped object
+     */
+    private String getUnwrappedArg(Method method, Class type, String argName) {
+    	if (wrapperInterface == null) { return argName; }
+    	boolean wrapped = method.getName().equals("equals") && type.equals(Object.class);
+    	for (int i=0; i<wrappedClasses.length && !wrapped; i++) {
+    		wrapped = wrappedClasses[i].equals(type);
+    	}
+    	if (!wrapped) { return argName; }
+    	return "(" + argName + " instanceof " + wrapperInterface + " ? (" + shortClassName(cleanType(type)) + ") ((" + 
+    		wrapperInterface + ") " + argName + ").getWrappedObject() : " + argName + ")";
+    }
+    
+    /** Returns true if the supplied type is a stream whose throughput is reported by the streamMonitor
+     * 
+     * @param type a parameter or return type
+     * 
+     * @return true if the type is an InputStream, Reader, OutputStream or Writer
+     */
+    private boolean isStream(Class type) {
+    	return type.equals(java.io.InputStream.class) || type.equals(java.io.Reader.class) || 
+    		type.equals(java.io.OutputStream.class) || type.equals(java.io.Writer.class);
+    }
+    
+    /** Returns a java expression containing the number of bytes transferred by a LOB method which reads or
+     * writes data without using a stream, e.g. <tt>Blob.getBytes()</tt> or <tt>Clob.setString()</tt>. Requires
+     * the local 'result' variable to have been set. Characters are counted as two bytes.
+     * 
+     * @param aclass the class being stubbed
+     * @param method the method being stubbed
+     * 
+     * @return a java expression containing the number of bytes transferred, or null if the method doesn't transfer LOB data
+     */
+    private String getLobTransferBytes(Class aclass, Method method) {
+    	if (!java.sql.Blob.class.isAssignableFrom(aclass) && !java.sql.Clob.class.isAssignableFrom(aclass)) { return null; }
+    	String name = method.getName();
+    	if (name.equals("getBytes")) { return "(result == null ? 0 : result.length)"; }
+    	else if (name.equals("getSubString")) { return "(result == null ? 0 : result.length() * 2L)"; }
+    	else if (name.equals("setBytes")) { return "result"; }
+    	else if (name.equals("setString")) { return "result * 2L"; }
+    	return null;
+    }
+    
+    /** Returns the java statement used to set the duration MDC variables after the wrapped method
+     * has been invoked
+     * 
+     * @return the java statement used to set the duration MDC variables
+     */
+    private String getDurationMDCStatement() {
+    	if (mdcCpuTimeId!=null) {
+    		return "_setMDC(System.nanoTime() - startTime, startCpuTime);";
+    	} else {
+    		return "_setMDC(System.nanoTime() - startTime);";
+    	}
+    }
+    
     private String getSignature(Method method) {
     	String signature = method.getName() + ";";
         for (Parameter p : method.getParameters()) {
@@ -657,7 +1808,15 @@ public class ClassStubGenerator {
     		"Savepoint", 
     		"Statement", 
     		"ResultSet", 
-    		"ResultSetMetaData"
+    		"ResultSetMetaData",
+    		"Array",
+    		"Blob",
+    		"Clob",
+    		"NClob",
+    		"ParameterMetaData",
+    		"Ref",
+    		"RowId",
+    		"SQLXML"
     	};
     	Class[] sourceClasses = new Class[classes.length];
     	String[] targetClasses = new String[classes.length];
@@ -674,7 +1833,23 @@ public class ClassStubGenerator {
     	csg.resultFormatter = "com.randomnoun.p7spy.P7SpyTrace";
     	csg.mdcObjectId = "p7Id";
     	csg.mdcDurationId = "p7Duration";
+    	csg.mdcCpuTimeId = "p7CpuTime";
     	csg.enableTrap = true;
+    	csg.methodRegistry = "com.randomnoun.p7spy.P7SpyMethods";
+    	csg.asyncLogger = "com.randomnoun.p7spy.async.P7SpyAsyncLogger";
+    	csg.asyncEvent = "com.randomnoun.p7spy.async.P7SpyEvent";
+    	csg.executionObserver = "com.randomnoun.p7spy.P7SpyExecution";
+    	csg.sampler = "com.randomnoun.p7spy.sample.P7SpySampler";
+    	csg.slowLog = "com.randomnoun.p7spy.slow.P7SpySlowLog";
+    	csg.parameterRecorder = "com.randomnoun.p7spy.P7SpyParameters";
+    	csg.resultSetSummary = "com.randomnoun.p7spy.P7SpyResultSetSummary";
+    	csg.wrapperInterface = "com.randomnoun.p7spy.P7SpyWrapper";
+    	csg.streamMonitor = "com.randomnoun.p7spy.stream.P7SpyStreams";
+    	csg.leakDetector = "com.randomnoun.p7spy.leak.P7SpyLeakDetector";
+    	csg.metrics = "com.randomnoun.p7spy.metrics.P7SpyMetrics";
+    	csg.listeners = "com.randomnoun.p7spy.listener.P7SpyListeners";
+    	csg.activeFlag = "com.randomnoun.p7spy.P7SpyTrace";
+    	csg.pooledConnection = "com.randomnoun.p7spy.datasource.P7SpyPooledConnection";
     	
     	
     	// things that might conceivably have SQL in it:
@@ -0,0 +1,316 @@
+package com.randomnoun.p7spy.leak;
+
+import java.lang.ref.Cleaner;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+import com.randomnoun.p7spy.P7SpyStacks;
+
+/** Detects Connections, Statements and ResultSets which are not closed.
+ *
+ * <p>Whilst leak detection is enabled, 1 in every <i>N</i> Connection wrappers, and 1 in every <i>N</i> Statement
+ * wrappers created by Connections that aren't being tracked, are tracked. Statements created by a tracked 
+ * Connection, and ResultSets created by a tracked Statement, are always tracked, so that the children of a 
+ * tracked object are complete. ResultSets created by untracked Statements are not tracked.
+ *
+ * <p>Each tracked wrapper is registered with a {@link Cleaner}, and records the thread and call stack that created it.
+ * The stack is captured with a {@link StackWalker}, is limited to a fixed number of frames, and excludes 
+ * p7spy's own frames. A warning containing the creation stack is logged if:
+ * <ul>
+ * <li>a tracked wrapper becomes unreachable without having been closed
+ * <li>a tracked Connection is closed whilst Statements that it created are still open
+ * </ul>
+ * e.g.
+ * <pre>
+ * P7PreparedStatement@1b2c3d4e sql="SELECT * FROM wish_list" was still open when P7Connection@5f6a7b8c was closed; created 1402ms ago on thread 'main' at
+ * 	at com.example.WishDao.findAll(WishDao.java:42)
+ * 	...
+ * </pre>
+ *
+ * <p>Closing a Statement closes the ResultSets it created, and re-executing a Statement closes the ResultSets
+ * from its previous execution, in line with the JDBC specification. Untracked wrappers cost a single null check
+ * when they are created and closed.
+ *
+ * <p>The following system properties are read when this class is loaded:
+ * <ul>
+ * <li><tt>p7spy.leak.sample</tt> - track 1 in every <i>N</i> connections and statements, or 0 to disable 
+ *   leak detection. Defaults to 0.
+ * <li><tt>p7spy.leak.stackDepth</tt> - the maximum number of frames recorded in each creation stack. Defaults to 16.
+ * </ul>
+ *
+ * @author knoxg
+ */
+public class P7SpyLeakDetector {
+
+	/** Logger instance for this class */
+	static Logger logger = Logger.getLogger(P7SpyLeakDetector.class);
+
+	/** Prefixes of classes whose frames are excluded from creation stacks */
+	private static final String[] EXCLUDED_CLASS_PREFIXES = {
+		"com.randomnoun.p7spy.jdbc_4_3.",
+		"com.randomnoun.p7spy.leak.",
+		"com.randomnoun.p7spy.datasource.",
+		"com.randomnoun.p7spy.P7SpyDriver",
+		"java.sql.DriverManager"
+	};
+
+	/** Track 1 in every sampleRate connections and statements, or 0 if leak detection is disabled */
+	private static volatile int sampleRate;
+
+	/** Maximum number of frames recorded in each creation stack */
+	private static volatile int stackDepth;
+
+	/** Number of connections and statements considered for tracking */
+	private static final AtomicLong sampleCount = new AtomicLong();
+
+	/** Cleaner used to detect unreachable wrappers. The Cleaner's thread is created when this class is loaded. */
+	private static final Cleaner cleaner = Cleaner.create();
+
+	/** Number of wrappers tracked */
+	private static final LongAdder trackedCount = new LongAdder();
+
+	/** Number of tracked wrappers which became unreachable without being closed */
+	private static final LongAdder unclosedCount = new LongAdder();
+
+	/** Number of tracked statements which were open when their connection was closed */
+	private static final LongAdder openChildCount = new LongAdder();
+
+	static {
+		setSampleRate(Integer.getInteger("p7spy.leak.sample", 0));
+		setStackDepth(Integer.getInteger("p7spy.leak.stackDepth", 16));
+	}
+
+	/** The kind of object being tracked */
+	private enum Kind { CONNECTION, STATEMENT, RESULT_SET }
+
+	/** Records the creation of a wrapper, and whether it has been closed. The Tracker is reachable from
+	 * its wrapper, but doesn't refer to it. */
+	public static final class Tracker implements Runnable {
+
+		/** The kind of object being tracked */
+		private final Kind kind;
+
+		/** The name of the wrapper, in the same format as the p7spy object id MDC value */
+		private final String name;
+
+		/** The name of the thread that created the wrapper */
+		private final String threadName;
+
+		/** The time the wrapper was created, as returned by System.nanoTime() */
+		private final long createdTime;
+
+		/** The stack that created the wrapper, innermost frame first */
+		private final List<StackWalker.StackFrame> stack;
+
+		/** The SQL used to prepare a statement, if known */
+		private volatile String sql;
+
+		/** True if the wrapper has been closed */
+		private volatile boolean closed;
+
+		/** The tracker of the object that created the wrapper, if it is being tracked */
+		private volatile Tracker parent;
+
+		/** Trackers of the objects created by the wrapper, or null if it hasn't created any */
+		private volatile Set<Tracker> children;
+
+		/** The registration of the wrapper with the Cleaner */
+		private Cleaner.Cleanable cleanable;
+
+		private Tracker(Kind kind, Object wrapper, String sql) {
+			this.kind = kind;
+			this.name = wrapper.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(wrapper));
+			this.threadName = Thread.currentThread().getName();
+			this.createdTime = System.nanoTime();
+			this.stack = P7SpyStacks.capture(EXCLUDED_CLASS_PREFIXES, stackDepth);
+			this.sql = sql;
+		}
+
+		/** Called by the generated wrapper classes when the wrapper is closed */
+		public void close() {
+			if (closed) { return; }
+			closed = true;
+			Tracker p = parent;
+			if (p != null) {
+				p.children.remove(this);
+			}
+			closeChildren(kind == Kind.CONNECTION);
+			cleanable.clean();
+		}
+
+		/** Close the trackers of the objects created by this wrapper
+		 *
+		 * @param report if true, log a warning for each object that hasn't been closed
+		 */
+		private void closeChildren(boolean report) {
+			Set<Tracker> c = children;
+			if (c == null) { return; }
+			for (Tracker child : c) {
+				if (report && !child.closed) {
+					openChildCount.increment();
+					report(child, "was still open when " + name + " was closed");
+				}
+				child.parent = null;
+				child.close();
+			}
+			c.clear();
+		}
+
+		/** Invoked by the Cleaner when the wrapper has become unreachable, or when it is closed */
+		public void run() {
+			if (closed) { return; }
+			closed = true;
+			Tracker p = parent;
+			if (p != null) {
+				p.children.remove(this);
+			}
+			unclosedCount.increment();
+			report(this, "was not closed before it was garbage collected");
+		}
+
+		/** Add a tracker for an object created by this wrapper */
+		private void addChild(Tracker child) {
+			Set<Tracker> c = children;
+			if (c == null) {
+				synchronized (this) {
+					c = children;
+					if (c == null) {
+						c = ConcurrentHashMap.newKeySet();
+						children = c;
+					}
+				}
+			}
+			child.parent = this;
+			c.add(child);
+		}
+	}
+
+	/** Returns true if leak detection is enabled
+	 *
+	 * @return true if leak detection is enabled
+	 */
+	public static boolean isEnabled() {
+		return sampleRate != 0;
+	}
+
+	/** Set the proportion of connections and statements which are tracked. Objects which have already been 
+	 * created are not affected.
+	 *
+	 * @param rate track 1 in every <tt>rate</tt> connections and statements, or 0 to disable leak detection
+	 *
+	 * @throws IllegalArgumentException if rate is negative
+	 */
+	public static void setSampleRate(int rate) {
+		if (rate < 0) { throw new IllegalArgumentException("Invalid leak detection sample rate " + rate); }
+		sampleRate = rate;
+	}
+
+	/** Set the maximum number of frames recorded in each creation stack
+	 *
+	 * @param depth the maximum number of frames recorded
+	 *
+	 * @throws IllegalArgumentException if depth is less than 1
+	 */
+	public static void setStackDepth(int depth) {
+		if (depth < 1) { throw new IllegalArgumentException("Invalid leak detection stack depth " + depth); }
+		stackDepth = depth;
+	}
+
+	/** Returns true if the next connection or statement should be tracked */
+	private static boolean sample() {
+		int rate = sampleRate;
+		return rate != 0 && sampleCount.getAndIncrement() % rate == 0;
+	}
+
+	/** Called by the generated Connection wrapper when it is created
+	 *
+	 * @param connection the connection wrapper
+	 *
+	 * @return a tracker for the connection, or null if it isn't being tracked
+	 */
+	public static Tracker trackConnection(Connection connection) {
+		if (!sample()) { return null; }
+		return register(new Tracker(Kind.CONNECTION, connection, null), connection);
+	}
+
+	/** Called by the generated Connection wrapper when it creates a Statement wrapper
+	 *
+	 * @param connectionTracker the tracker of the connection, or null if it isn't being tracked
+	 * @param statement the statement wrapper
+	 * @param sql the SQL used to prepare the statement, or null
+	 *
+	 * @return a tracker for the statement, or null if it isn't being tracked
+	 */
+	public static Tracker trackStatement(Tracker connectionTracker, Statement statement, String sql) {
+		if (connectionTracker == null && !sample()) { return null; }
+		Tracker tracker = register(new Tracker(Kind.STATEMENT, statement, sql), statement);
+		if (connectionTracker != null) { connectionTracker.addChild(tracker); }
+		return tracker;
+	}
+
+	/** Called by the generated Statement wrappers when they create a ResultSet wrapper, if the statement
+	 * is being tracked. Any ResultSets from the statement's previous execution are closed.
+	 *
+	 * @param statementTracker the tracker of the statement
+	 * @param resultSet the result set wrapper
+	 * @param sql the SQL executed to create the result set, or null if the statement was prepared
+	 *
+	 * @return a tracker for the result set
+	 */
+	public static Tracker trackResultSet(Tracker statementTracker, ResultSet resultSet, String sql) {
+		Tracker tracker = register(new Tracker(Kind.RESULT_SET, resultSet, sql != null ? sql : statementTracker.sql), resultSet);
+		statementTracker.closeChildren(false);
+		statementTracker.addChild(tracker);
+		return tracker;
+	}
+
+	/** Register a tracker with the Cleaner */
+	private static Tracker register(Tracker tracker, Object wrapper) {
+		tracker.cleanable = cleaner.register(wrapper, tracker);
+		trackedCount.increment();
+		return tracker;
+	}
+
+	/** Log a warning about a tracked object, including the stack that created it */
+	private static void report(Tracker tracker, String problem) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(tracker.name);
+		if (tracker.sql != null) {
+			sb.append(" sql=\"").append(tracker.sql).append('"');
+		}
+		sb.append(' ').append(problem);
+		sb.append("; created ").append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - tracker.createdTime));
+		sb.append("ms ago on thread '").append(tracker.threadName).append("' at");
+		for (StackWalker.StackFrame frame : tracker.stack) {
+			sb.append("\n\tat ").append(frame.toStackTraceElement());
+		}
+		logger.warn(sb.toString());
+	}
+
+	/** Returns the number of wrappers tracked */
+	public static long getTrackedCount() { return trackedCount.sum(); }
+
+	/** Returns the number of tracked wrappers which became unreachable without being closed */
+	public static long getUnclosedCount() { return unclosedCount.sum(); }
+
+	/** Returns the number of tracked statements which were still open when their connection was closed */
+	public static long getOpenChildCount() { return openChildCount.sum(); }
+
+	/** Reset all counters to zero */
+	public static void reset() {
+		sampleCount.set(0);
+		trackedCount.reset();
+		unclosedCount.reset();
+		openChildCount.reset();
+	}
+
+}
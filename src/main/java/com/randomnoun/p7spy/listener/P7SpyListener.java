@@ -0,0 +1,52 @@
+package com.randomnoun.p7spy.listener;
+
+import com.randomnoun.p7spy.P7SpyMethods.P7SpyMethod;
+
+/** Receives the JDBC method invocations made through the p7spy wrappers as structured data, rather than
+ * as formatted log messages.
+ *
+ * <p>Listeners are registered with {@link P7SpyListeners}, either through the {@link java.util.ServiceLoader}
+ * mechanism (by listing the implementation class in a
+ * <tt>META-INF/services/com.randomnoun.p7spy.listener.P7SpyListener</tt> resource), through the
+ * <tt>p7spy.listeners</tt> system property, or by calling {@link P7SpyListeners#add(P7SpyListener)}.
+ *
+ * <p>Listeners are notified whether or not invocations are being logged, on the thread that made the
+ * invocation, so implementations should be thread-safe and return quickly. Exceptions thrown by a listener
+ * are logged, and are not propagated to the application.
+ *
+ * @author knoxg
+ */
+public interface P7SpyListener {
+
+	/** Returns true if this listener should be notified of invocations of the supplied method.
+	 *
+	 * <p>This method is called once for each method id, and the result is cached until the set of listeners
+	 * changes (or {@link P7SpyListeners#refresh()} is called), so it can be used to restrict the methods
+	 * a listener receives without any cost to the invocations it isn't interested in. The wrappers don't
+	 * box arguments or results for methods that no listener is interested in.
+	 *
+	 * <p>The default implementation returns true.
+	 *
+	 * @param method the method
+	 *
+	 * @return true if this listener should be notified of invocations of this method
+	 */
+	default boolean isInterested(P7SpyMethod method) {
+		return true;
+	}
+
+	/** Called after a method has been invoked on a wrapper
+	 *
+	 * @param wrapper the wrapper object; see {@link P7SpyListeners#getWrapperId(Object)}
+	 * @param methodId the id of the method invoked; see {@link com.randomnoun.p7spy.P7SpyMethods#getMethod(int)}
+	 * @param args the arguments passed to the method, with primitives boxed, or null if the method has no arguments
+	 * @param result the value returned by the method (which may itself be a wrapper), or null if the method
+	 *   has no return value or threw an exception
+	 * @param throwable the exception thrown by the method, or null
+	 * @param startNanos the System.nanoTime() when the method was invoked
+	 * @param endNanos the System.nanoTime() when the method completed
+	 */
+	void onInvocation(Object wrapper, int methodId, Object[] args, Object result, Throwable throwable,
+		long startNanos, long endNanos);
+
+}
@@ -0,0 +1,228 @@
+package com.randomnoun.p7spy.listener;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import org.apache.log4j.Logger;
+
+import com.randomnoun.p7spy.P7SpyMethods;
+import com.randomnoun.p7spy.P7SpyMethods.P7SpyMethod;
+import com.randomnoun.p7spy.P7SpyTrace;
+
+/** The registry of {@link P7SpyListener}s, which the generated wrapper classes notify of each method invocation.
+ *
+ * <p>For each method id, the set of listeners interested in that method is held as a bitmask, which is
+ * determined the first time the method is invoked after the listeners change. The wrappers check this before
+ * building an argument array, so methods that no listener is interested in (or all methods, if there are no
+ * listeners) cost a volatile read and an array lookup.
+ *
+ * <p>Listeners are loaded when this class is initialised:
+ * <ul>
+ * <li>from the {@link ServiceLoader} providers of {@link P7SpyListener}
+ * <li>from the <tt>p7spy.listeners</tt> system property, a comma-separated list of listener class names,
+ *   each of which must have a public no-argument constructor
+ * </ul>
+ *
+ * <p>Up to 31 listeners can be registered.
+ *
+ * @author knoxg
+ */
+public class P7SpyListeners {
+
+	/** Logger instance for this class */
+	static Logger logger = Logger.getLogger(P7SpyListeners.class);
+
+	/** Maximum number of listeners; one bit of each interest mask is used to mark it as determined */
+	public static final int MAX_LISTENERS = 31;
+
+	/** Set in an interest mask once the listeners interested in that method have been determined */
+	private static final int DETERMINED = 1 << MAX_LISTENERS;
+
+	/** An immutable set of listeners, and the methods they are interested in */
+	private static final class Registry {
+
+		/** The registered listeners */
+		final P7SpyListener[] listeners;
+
+		/** Interest masks, indexed by method id; bit n is set if listener n is interested in that method.
+		 * Entries are determined lazily; a racing write stores the same value. */
+		final int[] interest;
+
+		Registry(P7SpyListener[] listeners, int[] interest) {
+			this.listeners = listeners;
+			this.interest = interest;
+		}
+	}
+
+	/** The current registry */
+	private static volatile Registry registry = new Registry(new P7SpyListener[0], new int[0]);
+
+	static {
+		try {
+			Iterator<P7SpyListener> it = ServiceLoader.load(P7SpyListener.class).iterator();
+			while (it.hasNext()) {
+				add(it.next());
+			}
+		} catch (ServiceConfigurationError sce) {
+			logger.error("Could not load p7spy listeners", sce);
+		}
+		String classNames = System.getProperty("p7spy.listeners");
+		if (classNames != null) {
+			for (String className : classNames.split(",")) {
+				className = className.trim();
+				if (className.equals("")) { continue; }
+				try {
+					add((P7SpyListener) Class.forName(className).getDeclaredConstructor().newInstance());
+				} catch (ReflectiveOperationException | ClassCastException e) {
+					logger.error("Could not create p7spy listener '" + className + "'", e);
+				}
+			}
+		}
+	}
+
+	/** Register a listener
+	 *
+	 * @param listener the listener to register
+	 *
+	 * @throws IllegalStateException if the maximum number of listeners are already registered
+	 */
+	public static synchronized void add(P7SpyListener listener) {
+		P7SpyListener[] listeners = registry.listeners;
+		if (listeners.length == MAX_LISTENERS) {
+			throw new IllegalStateException("Cannot register more than " + MAX_LISTENERS + " p7spy listeners");
+		}
+		listeners = Arrays.copyOf(listeners, listeners.length + 1);
+		listeners[listeners.length - 1] = listener;
+		registry = new Registry(listeners, new int[registry.interest.length]);
+		P7SpyTrace.setFeatureEnabled(P7SpyTrace.FEATURE_LISTENERS, true);
+	}
+
+	/** Deregister a listener
+	 *
+	 * @param listener the listener to deregister
+	 *
+	 * @return true if the listener was registered
+	 */
+	public static synchronized boolean remove(P7SpyListener listener) {
+		P7SpyListener[] listeners = registry.listeners;
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i] == listener) {
+				P7SpyListener[] newListeners = new P7SpyListener[listeners.length - 1];
+				System.arraycopy(listeners, 0, newListeners, 0, i);
+				System.arraycopy(listeners, i + 1, newListeners, i, listeners.length - i - 1);
+				registry = new Registry(newListeners, new int[registry.interest.length]);
+				P7SpyTrace.setFeatureEnabled(P7SpyTrace.FEATURE_LISTENERS, newListeners.length > 0);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Discard the cached interest of each listener, so that {@link P7SpyListener#isInterested(P7SpyMethod)}
+	 * is called again for each method. Call this if the methods a listener is interested in change. */
+	public static synchronized void refresh() {
+		registry = new Registry(registry.listeners, new int[registry.interest.length]);
+	}
+
+	/** Returns the registered listeners
+	 *
+	 * @return the registered listeners
+	 */
+	public static P7SpyListener[] getListeners() {
+		return registry.listeners.clone();
+	}
+
+	/** Returns true if any listener is interested in the supplied method. Called by the generated wrapper classes
+	 * before each invocation.
+	 *
+	 * @param methodId the method id
+	 *
+	 * @return true if any listener is interested in the method
+	 */
+	public static boolean isInterested(int methodId) {
+		Registry r = registry;
+		if (r.listeners.length == 0) { return false; }
+		return (getInterest(r, methodId) & ~DETERMINED) != 0;
+	}
+
+	/** Returns the interest mask of a method, determining it if necessary. The bits of the mask refer to the
+	 * listeners of the supplied registry, even if the listeners have since changed. */
+	private static int getInterest(Registry r, int methodId) {
+		int[] interest = r.interest;
+		if (methodId < interest.length && interest[methodId] != 0) {
+			return interest[methodId];
+		}
+		return determineInterest(r, methodId);
+	}
+
+	/** Ask each listener in a registry whether it's interested in a method, and cache the result
+	 * if that registry's listeners are still the current ones
+	 *
+	 * @param r the registry whose listeners are asked
+	 * @param methodId the method id
+	 *
+	 * @return the interest mask, with bits referring to the listeners of <tt>r</tt>
+	 */
+	private static synchronized int determineInterest(Registry r, int methodId) {
+		P7SpyListener[] listeners = r.listeners;
+		P7SpyMethod method = P7SpyMethods.getMethod(methodId);
+		int mask = DETERMINED;
+		for (int i = 0; i < listeners.length; i++) {
+			try {
+				if (listeners[i].isInterested(method)) { mask |= 1 << i; }
+			} catch (RuntimeException re) {
+				logger.error("Exception in p7spy listener " + listeners[i], re);
+			}
+		}
+		Registry current = registry;
+		if (current.listeners == listeners) {
+			if (methodId >= current.interest.length) {
+				current = new Registry(listeners, Arrays.copyOf(current.interest, Math.max(methodId + 1, current.interest.length * 2)));
+				registry = current;
+			}
+			current.interest[methodId] = mask;
+		}
+		return mask;
+	}
+
+	/** Notify the interested listeners of a method invocation. Called by the generated wrapper classes
+	 * after the wrapped method has been invoked, if {@link #isInterested(int)} returned true.
+	 *
+	 * @param wrapper the wrapper object
+	 * @param methodId the id of the method invoked
+	 * @param args the arguments passed to the method, or null if the method has no arguments
+	 * @param result the value returned by the method, or null
+	 * @param throwable the exception thrown by the method, or null
+	 * @param startNanos the System.nanoTime() when the method was invoked
+	 */
+	public static void fire(Object wrapper, int methodId, Object[] args, Object result, Throwable throwable,
+		long startNanos)
+	{
+		long endNanos = System.nanoTime();
+		Registry r = registry;
+		int mask = getInterest(r, methodId) & ~DETERMINED;
+		P7SpyListener[] listeners = r.listeners;
+		for (int i = 0; mask != 0 && i < listeners.length; i++, mask >>>= 1) {
+			if ((mask & 1) == 0) { continue; }
+			try {
+				listeners[i].onInvocation(wrapper, methodId, args, result, throwable, startNanos, endNanos);
+			} catch (RuntimeException re) {
+				logger.error("Exception in p7spy listener " + listeners[i], re);
+			}
+		}
+	}
+
+	/** Returns an identifier for a wrapper object, in the same form as the <tt>p7Id</tt> MDC variable
+	 * (e.g. "P7Statement@1b2c3d4e").
+	 *
+	 * @param wrapper the wrapper object
+	 *
+	 * @return an identifier for the wrapper object
+	 */
+	public static String getWrapperId(Object wrapper) {
+		return wrapper.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(wrapper));
+	}
+
+}
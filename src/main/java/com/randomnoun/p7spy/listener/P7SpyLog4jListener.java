@@ -0,0 +1,64 @@
+package com.randomnoun.p7spy.listener;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+
+import com.randomnoun.p7spy.P7SpyMethods.P7SpyMethod;
+import com.randomnoun.p7spy.P7SpyTrace;
+
+/** A {@link P7SpyListener} which logs each invocation at DEBUG level to the
+ * <tt>com.randomnoun.p7spy.listener.P7SpyLog4jListener</tt> logger. Each message contains the method name,
+ * arguments, result and exception of the invocation, in the same format as the wrapper classes, and SQL traps
+ * are checked against the first argument of each invocation in the same way.
+ *
+ * <p>The 'p7Id' and 'p7Duration' MDC variables are set before each message is logged. The following are only
+ * logged by the wrapper classes, as they aren't passed to listeners:
+ * <ul>
+ * <li>the CPU time of the invocation (the 'p7CpuTime' MDC variable)
+ * <li>the SQL and parameters of PreparedStatement executions
+ * <li>ResultSet summaries, and the throughput of streams
+ * </ul>
+ *
+ * <p>This listener can be used to route the p7spy log through the listener SPI, with the wrapper loggers
+ * (<tt>com.randomnoun.p7spy.jdbc_4_3</tt>) left at INFO, e.g. by setting the system property
+ * <pre>
+ * -Dp7spy.listeners=com.randomnoun.p7spy.listener.P7SpyLog4jListener
+ * </pre>
+ *
+ * <p>This listener is only interested in invocations if its logger is at DEBUG level when interest is
+ * determined, so that the wrappers don't box arguments for it otherwise. As log4j doesn't notify anything when
+ * a logger's level changes, {@link P7SpyListeners#refresh()} should be called after changing the level of
+ * this listener's logger.
+ *
+ * @author knoxg
+ */
+public class P7SpyLog4jListener implements P7SpyListener {
+
+	/** Logger instance for this class */
+	static Logger logger = Logger.getLogger(P7SpyLog4jListener.class);
+
+	/** {@inheritDoc}
+	 *
+	 * <p>Returns true if this listener's logger is at DEBUG level.
+	 */
+	public boolean isInterested(P7SpyMethod method) {
+		return logger.isDebugEnabled();
+	}
+
+	public void onInvocation(Object wrapper, int methodId, Object[] args, Object result, Throwable throwable,
+		long startNanos, long endNanos)
+	{
+		if (!logger.isDebugEnabled()) { return; }
+		MDC.put("p7Id", P7SpyListeners.getWrapperId(wrapper));
+		MDC.put("p7Duration", P7SpyTrace.formatDuration(endNanos - startNanos));
+		if (args != null && args.length > 0 && args[0] instanceof String) {
+			P7SpyTrace.checkTrap(logger, (String) args[0]);
+		}
+		if (throwable == null) {
+			logger.debug(P7SpyTrace.formatInvocation(methodId, args, result, null));
+		} else {
+			logger.debug(P7SpyTrace.formatInvocation(methodId, args, result, throwable), throwable);
+		}
+	}
+
+}
@@ -0,0 +1,372 @@
+package com.randomnoun.p7spy.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.randomnoun.p7spy.P7SpyConfig;
+import com.randomnoun.p7spy.P7SpyMethods;
+import com.randomnoun.p7spy.P7SpyMethods.P7SpyMethod;
+import com.randomnoun.p7spy.P7SpyTrace;
+import com.randomnoun.p7spy.stats.P7SpyHistogram;
+import com.randomnoun.p7spy.trap.P7SpyTrap;
+
+/** Collects in-process metrics from the generated wrapper classes, and exposes them through JMX.
+ *
+ * <p>Whilst metrics are enabled, the wrappers time every method invocation, regardless of whether it is being
+ * logged, and record:
+ * <ul>
+ * <li>the number of Connection, Statement and ResultSet wrappers which have been created but not closed. A ResultSet
+ *   is also counted as closed when the Statement that created it is closed or executed again. Statements which are 
+ *   closed implicitly by closing their Connection remain open until their own <tt>close()</tt> method is called.
+ * <li>the number of invocations of each method, and a histogram of their durations
+ * <li>the number of exceptions thrown, by SQLState
+ * </ul>
+ *
+ * <p>Counters are indexed by the method ids registered in {@link P7SpyMethods}, so recording an invocation
+ * doesn't allocate or perform any lookups. Each method's histogram is created the first time it is invoked.
+ * Overloaded methods (e.g. the <tt>PreparedStatement.setObject</tt> methods) have separate method ids, but are
+ * reported as a single method.
+ *
+ * <p>An instance of this class is registered with the platform MBeanServer as <tt>com.randomnoun.p7spy:type=P7SpyMetrics</tt>
+ * when it is loaded (i.e. when the first Connection wrapper is created), whether or not metrics are enabled, 
+ * so that metrics can be enabled, and the trace level and SQL traps changed, at runtime. Changes made
+ * through the MBean are replaced if the <tt>p7spy-config.properties</tt> file subsequently changes.
+ *
+ * <p>The following system properties are read when this class is loaded:
+ * <ul>
+ * <li><tt>p7spy.metrics</tt> - if <tt>true</tt>, metrics are collected. Defaults to <tt>false</tt>.
+ * <li><tt>p7spy.metrics.jmx</tt> - if <tt>false</tt>, the MBean is not registered. Defaults to <tt>true</tt>.
+ * </ul>
+ * <p>The Prometheus exporter reads further properties; see {@link P7SpyPrometheusExporter}.
+ *
+ * @author knoxg
+ */
+public class P7SpyMetrics implements P7SpyMetricsMXBean {
+
+	/** Logger instance for this class */
+	static Logger logger = Logger.getLogger(P7SpyMetrics.class);
+
+	/** The name of the MBean */
+	public static final String OBJECT_NAME = "com.randomnoun.p7spy:type=P7SpyMetrics";
+
+	/** The name of the logger which is the parent of the generated wrapper class loggers */
+	static final String TRACE_LOGGER = "com.randomnoun.p7spy.jdbc_4_3";
+
+	/** Object type passed to {@link #open(int)} and {@link #close(int)} by Connection wrappers */
+	public static final int CONNECTION = 0;
+
+	/** Object type passed to {@link #open(int)} and {@link #close(int)} by Statement wrappers */
+	public static final int STATEMENT = 1;
+
+	/** Object type passed to {@link #open(int)} and {@link #close(int)} by ResultSet wrappers */
+	public static final int RESULT_SET = 2;
+
+	/** Key used in the error counts for exceptions which have no SQLState */
+	public static final String NO_SQL_STATE = "none";
+
+	/** Maximum number of distinct SQLStates counted; further SQLStates are counted under {@link #NO_SQL_STATE} */
+	private static final int MAX_SQL_STATES = 1024;
+
+	/** Metrics for a single method */
+	static class MethodMetrics {
+		final P7SpyMethod method;
+		final LongAdder calls = new LongAdder();
+		final LongAdder totalNanos = new LongAdder();
+		final P7SpyHistogram latency = new P7SpyHistogram();
+		MethodMetrics(P7SpyMethod method) {
+			this.method = method;
+		}
+	}
+
+	/** The MBean instance */
+	private static final P7SpyMetrics instance = new P7SpyMetrics();
+
+	/** If true, metrics are being collected */
+	private static volatile boolean enabled = Boolean.getBoolean("p7spy.metrics");
+
+	/** Number of open objects, indexed by object type */
+	private static final LongAdder[] openObjects = { new LongAdder(), new LongAdder(), new LongAdder() };
+
+	/** Method metrics, indexed by method id; entries are created the first time a method is invoked */
+	private static volatile MethodMetrics[] methodMetrics = new MethodMetrics[256];
+
+	/** Error counts, keyed by SQLState */
+	private static final ConcurrentHashMap<String, LongAdder> errorCounts = new ConcurrentHashMap<String, LongAdder>();
+
+	static {
+		P7SpyTrace.setFeatureEnabled(P7SpyTrace.FEATURE_METRICS, enabled);
+		if (!"false".equals(System.getProperty("p7spy.metrics.jmx"))) {
+			register();
+		}
+		P7SpyPrometheusExporter.startFromSystemProperties();
+	}
+
+	/** Returns the MBean instance
+	 *
+	 * @return the MBean instance
+	 */
+	public static P7SpyMetrics getInstance() {
+		return instance;
+	}
+
+	/** Register the MBean with the platform MBeanServer, if it isn't already registered */
+	private static void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(instance, name);
+			}
+		} catch (JMException | SecurityException e) {
+			logger.warn("Could not register " + OBJECT_NAME + " MBean", e);
+		}
+	}
+
+	/** Returns true if metrics are being collected. Called by the generated wrapper classes.
+	 *
+	 * @return true if metrics are being collected
+	 */
+	public static boolean isCollecting() {
+		return enabled;
+	}
+
+	/** Enable or disable metrics collection
+	 *
+	 * @param enabled if true, metrics are collected
+	 */
+	public static synchronized void setCollecting(boolean enabled) {
+		P7SpyMetrics.enabled = enabled;
+		P7SpyTrace.setFeatureEnabled(P7SpyTrace.FEATURE_METRICS, enabled);
+	}
+
+	/** Called by the generated wrapper classes when a Connection, Statement or ResultSet wrapper is created
+	 *
+	 * @param type one of {@link #CONNECTION}, {@link #STATEMENT} or {@link #RESULT_SET}
+	 *
+	 * @return true if the object was counted, in which case {@link #close(int)} should be called when it is closed
+	 */
+	public static boolean open(int type) {
+		if (!enabled) { return false; }
+		openObjects[type].increment();
+		return true;
+	}
+
+	/** Called by the generated wrapper classes when a wrapper counted by {@link #open(int)} is closed
+	 *
+	 * @param type one of {@link #CONNECTION}, {@link #STATEMENT} or {@link #RESULT_SET}
+	 */
+	public static void close(int type) {
+		openObjects[type].decrement();
+	}
+
+	/** Called by the generated wrapper classes after a method has been invoked
+	 *
+	 * @param methodId the id of the method invoked, as registered in {@link P7SpyMethods}
+	 * @param durationNanos the duration of the invocation, in nanoseconds
+	 * @param throwable the exception thrown by the method, or null
+	 */
+	public static void record(int methodId, long durationNanos, Throwable throwable) {
+		if (!enabled) { return; }
+		MethodMetrics[] mm = methodMetrics;
+		MethodMetrics m = methodId < mm.length ? mm[methodId] : null;
+		if (m == null) {
+			m = createMethodMetrics(methodId);
+			if (m == null) { return; }
+		}
+		m.calls.increment();
+		m.totalNanos.add(durationNanos);
+		m.latency.record(durationNanos);
+		if (throwable != null) {
+			recordError(throwable);
+		}
+	}
+
+	/** Create the metrics for a method, the first time it is invoked
+	 *
+	 * @param methodId the method id
+	 *
+	 * @return the metrics for the method, or null if the method id has not been registered
+	 */
+	private static synchronized MethodMetrics createMethodMetrics(int methodId) {
+		MethodMetrics[] mm = methodMetrics;
+		if (methodId < mm.length && mm[methodId] != null) {
+			return mm[methodId];
+		}
+		P7SpyMethod method = P7SpyMethods.getMethod(methodId);
+		if (method == null) { return null; }
+		if (methodId >= mm.length) {
+			MethodMetrics[] newMetrics = new MethodMetrics[Math.max(methodId + 1, mm.length * 2)];
+			System.arraycopy(mm, 0, newMetrics, 0, mm.length);
+			mm = newMetrics;
+		} else {
+			mm = mm.clone();
+		}
+		MethodMetrics m = new MethodMetrics(method);
+		mm[methodId] = m;
+		methodMetrics = mm; // volatile write publishes the new entry
+		return m;
+	}
+
+	/** Count an exception by SQLState */
+	private static void recordError(Throwable throwable) {
+		String sqlState = throwable instanceof SQLException ? ((SQLException) throwable).getSQLState() : null;
+		if (sqlState == null || (errorCounts.size() >= MAX_SQL_STATES && !errorCounts.containsKey(sqlState))) {
+			sqlState = NO_SQL_STATE;
+		}
+		LongAdder count = errorCounts.get(sqlState);
+		if (count == null) {
+			count = errorCounts.computeIfAbsent(sqlState, k -> new LongAdder());
+		}
+		count.increment();
+	}
+
+	/** Returns the metrics of each method which has been invoked, keyed by interface and method name, in the
+	 * order each method was first registered. The metrics of overloaded methods are added together.
+	 */
+	static Map<String, MethodMetrics> getMethodMetrics() {
+		Map<String, MethodMetrics> result = new LinkedHashMap<String, MethodMetrics>();
+		for (MethodMetrics m : methodMetrics) {
+			if (m == null) { continue; }
+			String name = m.method.toString();
+			MethodMetrics total = result.get(name);
+			if (total == null) {
+				total = new MethodMetrics(m.method);
+				result.put(name, total);
+			}
+			total.calls.add(m.calls.sum());
+			total.totalNanos.add(m.totalNanos.sum());
+			total.latency.merge(m.latency);
+		}
+		return result;
+	}
+
+	/** Returns the number of open objects of a type
+	 *
+	 * @param type one of {@link #CONNECTION}, {@link #STATEMENT} or {@link #RESULT_SET}
+	 *
+	 * @return the number of wrappers of that type which have been created but not closed
+	 */
+	public static long getOpenCount(int type) {
+		return openObjects[type].sum();
+	}
+
+	/** {@inheritDoc} */
+	public boolean isEnabled() { return enabled; }
+
+	/** {@inheritDoc} */
+	public void setEnabled(boolean enabled) { setCollecting(enabled); }
+
+	/** {@inheritDoc} */
+	public long getOpenConnections() { return getOpenCount(CONNECTION); }
+
+	/** {@inheritDoc} */
+	public long getOpenStatements() { return getOpenCount(STATEMENT); }
+
+	/** {@inheritDoc} */
+	public long getOpenResultSets() { return getOpenCount(RESULT_SET); }
+
+	/** {@inheritDoc} */
+	public Map<String, Long> getCallCounts() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, MethodMetrics> e : getMethodMetrics().entrySet()) {
+			result.put(e.getKey(), e.getValue().calls.sum());
+		}
+		return result;
+	}
+
+	/** {@inheritDoc} */
+	public Map<String, Long> getErrorCounts() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> e : errorCounts.entrySet()) {
+			result.put(e.getKey(), e.getValue().sum());
+		}
+		return result;
+	}
+
+	/** {@inheritDoc} */
+	public Map<String, long[]> getLatencyPercentiles() {
+		Map<String, long[]> result = new TreeMap<String, long[]>();
+		for (Map.Entry<String, MethodMetrics> e : getMethodMetrics().entrySet()) {
+			result.put(e.getKey(), e.getValue().latency.getPercentiles(50, 95, 99, 100));
+		}
+		return result;
+	}
+
+	/** {@inheritDoc} */
+	public String getTraceLevel() {
+		Level level = Logger.getLogger(TRACE_LOGGER).getLevel();
+		return level == null ? null : level.toString();
+	}
+
+	/** {@inheritDoc} */
+	public void setTraceLevel(String level) {
+		Level newLevel = null;
+		if (level != null && !level.trim().isEmpty()) {
+			newLevel = Level.toLevel(level.trim(), null);
+			if (newLevel == null) { throw new IllegalArgumentException("Unknown log4j level '" + level + "'"); }
+		}
+		Logger.getLogger(TRACE_LOGGER).setLevel(newLevel);
+		logger.info("p7spy trace level set to " + newLevel);
+	}
+
+	/** {@inheritDoc} */
+	public Map<String, String> getTrapPatterns() {
+		Map<String, String> result = new TreeMap<String, String>();
+		for (P7SpyTrap trap : P7SpyTrace.getConfig().getTrapMatcher().getTraps()) {
+			result.put(trap.getName() == null ? "" : trap.getName(), trap.getRegex());
+		}
+		return result;
+	}
+
+	/** {@inheritDoc} */
+	public synchronized void setTrapPattern(String name, String regex, String action) {
+		P7SpyTrap.parseAction(action); // validate before changing anything
+		String suffix = (name == null || name.isEmpty()) ? "" : "." + name;
+		Properties properties = P7SpyTrace.getConfig().getProperties();
+		properties.setProperty("matchText" + suffix, regex);
+		if (action == null) {
+			properties.remove("matchAction" + suffix);
+		} else {
+			properties.setProperty("matchAction" + suffix, action);
+		}
+		P7SpyTrace.setConfig(new P7SpyConfig(properties));
+		logger.info("p7spy trap '" + (suffix.isEmpty() ? "matchText" : name) + "' set to " + regex);
+	}
+
+	/** {@inheritDoc} */
+	public synchronized void removeTrapPattern(String name) {
+		String suffix = (name == null || name.isEmpty()) ? "" : "." + name;
+		Properties properties = P7SpyTrace.getConfig().getProperties();
+		properties.remove("matchText" + suffix);
+		properties.remove("matchAction" + suffix);
+		P7SpyTrace.setConfig(new P7SpyConfig(properties));
+		logger.info("p7spy trap '" + (suffix.isEmpty() ? "matchText" : name) + "' removed");
+	}
+
+	/** {@inheritDoc} */
+	public String getPrometheusText() {
+		return P7SpyPrometheusExporter.getText();
+	}
+
+	/** {@inheritDoc} */
+	public void reset() {
+		synchronized (P7SpyMetrics.class) {
+			methodMetrics = new MethodMetrics[methodMetrics.length];
+		}
+		errorCounts.clear();
+	}
+
+}
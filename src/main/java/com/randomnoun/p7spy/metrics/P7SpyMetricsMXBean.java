@@ -0,0 +1,74 @@
+package com.randomnoun.p7spy.metrics;
+
+import java.util.Map;
+
+/** Management interface for p7spy metrics and runtime configuration.
+ *
+ * <p>Registered with the platform MBeanServer as <tt>com.randomnoun.p7spy:type=P7SpyMetrics</tt>;
+ * see {@link P7SpyMetrics}.
+ *
+ * @author knoxg
+ */
+public interface P7SpyMetricsMXBean {
+
+	/** Returns true if metrics are being collected */
+	public boolean isEnabled();
+
+	/** Enable or disable metrics collection */
+	public void setEnabled(boolean enabled);
+
+	/** Returns the number of Connection wrappers which have been created but not closed */
+	public long getOpenConnections();
+
+	/** Returns the number of Statement, PreparedStatement and CallableStatement wrappers which have been created but not closed */
+	public long getOpenStatements();
+
+	/** Returns the number of ResultSet wrappers which have been created but not closed, either explicitly or by 
+	 * closing or re-executing the Statement that created them */
+	public long getOpenResultSets();
+
+	/** Returns the number of invocations of each JDBC method, keyed by interface and method name (e.g. "Connection.commit").
+	 * Invocations of overloaded methods are counted together. */
+	public Map<String, Long> getCallCounts();
+
+	/** Returns the number of exceptions thrown by JDBC methods, keyed by SQLState. Exceptions which are not
+	 * SQLExceptions, or which have no SQLState, are counted under "none". */
+	public Map<String, Long> getErrorCounts();
+
+	/** Returns the 50th, 95th and 99th percentile and maximum duration of each JDBC method, in nanoseconds,
+	 * keyed by interface and method name. Overloaded methods are combined. */
+	public Map<String, long[]> getLatencyPercentiles();
+
+	/** Returns the log4j level of the JDBC wrapper classes (e.g. "DEBUG"), or null if it is inherited */
+	public String getTraceLevel();
+
+	/** Set the log4j level of the JDBC wrapper classes
+	 *
+	 * @param level a log4j level (e.g. "DEBUG" or "INFO"), or null to inherit the level of the parent logger
+	 */
+	public void setTraceLevel(String level);
+
+	/** Returns the regex of each SQL trap, keyed by trap name. The unnamed <tt>matchText</tt> trap has an empty name. */
+	public Map<String, String> getTrapPatterns();
+
+	/** Add or replace a SQL trap
+	 *
+	 * @param name the trap name, or an empty String for the unnamed <tt>matchText</tt> trap
+	 * @param regex the regex used to test against SQL
+	 * @param action one of "stack", "count" or "once"
+	 */
+	public void setTrapPattern(String name, String regex, String action);
+
+	/** Remove a SQL trap
+	 *
+	 * @param name the trap name, or an empty String for the unnamed <tt>matchText</tt> trap
+	 */
+	public void removeTrapPattern(String name);
+
+	/** Returns the current metrics in the Prometheus text exposition format */
+	public String getPrometheusText();
+
+	/** Reset all counters and histograms to zero. Open object counts are not affected. */
+	public void reset();
+
+}
@@ -0,0 +1,250 @@
+package com.randomnoun.p7spy.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.apache.log4j.Logger;
+
+import com.randomnoun.p7spy.P7SpyScheduler;
+import com.randomnoun.p7spy.metrics.P7SpyMetrics.MethodMetrics;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/** Exports the metrics collected by {@link P7SpyMetrics} in the Prometheus text exposition format, either by
+ * periodically writing them to a file (e.g. for the node_exporter textfile collector), or by serving them over
+ * HTTP on a port bound to the loopback address. Starting either exporter enables metrics collection.
+ *
+ * <p>e.g.
+ * <pre>
+ * # HELP p7spy_open_objects JDBC wrappers which have been created but not closed
+ * # TYPE p7spy_open_objects gauge
+ * p7spy_open_objects{type="Connection"} 3
+ * # HELP p7spy_calls_total JDBC method invocations
+ * # TYPE p7spy_calls_total counter
+ * p7spy_calls_total{interface="PreparedStatement",method="executeQuery"} 1200
+ * ...
+ * </pre>
+ *
+ * <p>The following system properties are read when {@link P7SpyMetrics} is loaded:
+ * <ul>
+ * <li><tt>p7spy.metrics.file</tt> - if set, the file that metrics are written to. The file is replaced atomically.
+ * <li><tt>p7spy.metrics.reportInterval</tt> - the time between writes to the file, in seconds. Defaults to 60.
+ * <li><tt>p7spy.metrics.port</tt> - if set, the loopback port that metrics are served on
+ * </ul>
+ *
+ * @author knoxg
+ */
+public class P7SpyPrometheusExporter {
+
+	/** Logger instance for this class */
+	static Logger logger = Logger.getLogger(P7SpyPrometheusExporter.class);
+
+	/** The content type of the Prometheus text exposition format */
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	/** Names of the object types counted by {@link P7SpyMetrics}, indexed by object type */
+	private static final String[] OBJECT_TYPES = { "Connection", "Statement", "ResultSet" };
+
+	/** Quantiles included in the call duration summaries */
+	private static final double[] QUANTILES = { 0.5, 0.95, 0.99 };
+
+	/** Executor used to write the metrics file */
+	private static ScheduledExecutorService fileExecutor;
+
+	/** HTTP server used to serve metrics */
+	private static HttpServer httpServer;
+
+	/** Start the exporters configured by system properties */
+	static void startFromSystemProperties() {
+		String file = System.getProperty("p7spy.metrics.file");
+		if (file != null) {
+			startFile(new File(file), Long.getLong("p7spy.metrics.reportInterval", 60));
+		}
+		Integer port = Integer.getInteger("p7spy.metrics.port");
+		if (port != null) {
+			try {
+				startHttp(port);
+			} catch (IOException ioe) {
+				logger.warn("Could not serve p7spy metrics on port " + port, ioe);
+			}
+		}
+	}
+
+	/** Start writing metrics to a file periodically
+	 *
+	 * @param file the file to write
+	 * @param interval the time between writes, in seconds
+	 *
+	 * @throws IllegalStateException if metrics are already being written to a file
+	 */
+	public static synchronized void startFile(final File file, long interval) {
+		if (fileExecutor != null) { throw new IllegalStateException("p7spy metrics file exporter already started"); }
+		P7SpyMetrics.setCollecting(true);
+		fileExecutor = P7SpyScheduler.scheduleAtFixedRate("p7spy-metrics", interval, new Runnable() {
+			public void run() {
+				try {
+					writeFile(file);
+				} catch (IOException ioe) {
+					logger.warn("Could not write p7spy metrics to '" + file + "'", ioe);
+				}
+			}
+		});
+	}
+
+	/** Write the current metrics to a file. The metrics are written to a temporary file in the same directory,
+	 * which then replaces the file, so that readers never see a partially written file.
+	 *
+	 * @param file the file to write
+	 *
+	 * @throws IOException if the file could not be written
+	 */
+	public static void writeFile(File file) throws IOException {
+		Path target = file.getAbsoluteFile().toPath();
+		Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+		Files.write(temp, getText().getBytes(StandardCharsets.UTF_8));
+		try {
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ioe) {
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/** Start serving metrics over HTTP. The server only accepts connections on the loopback address,
+	 * and responds to every GET request with the current metrics.
+	 *
+	 * @param port the port to listen on, or 0 to choose a free port
+	 *
+	 * @return the port being listened on
+	 *
+	 * @throws IOException if the server could not be started
+	 * @throws IllegalStateException if metrics are already being served
+	 */
+	public static synchronized int startHttp(int port) throws IOException {
+		if (httpServer != null) { throw new IllegalStateException("p7spy metrics HTTP exporter already started"); }
+		P7SpyMetrics.setCollecting(true);
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					if (!exchange.getRequestMethod().equals("GET")) {
+						exchange.sendResponseHeaders(405, -1);
+						return;
+					}
+					byte[] body = getText().getBytes(StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+					exchange.sendResponseHeaders(200, body.length);
+					try (OutputStream os = exchange.getResponseBody()) {
+						os.write(body);
+					}
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.setExecutor(P7SpyScheduler.newExecutor("p7spy-metrics-http"));
+		server.start();
+		httpServer = server;
+		return server.getAddress().getPort();
+	}
+
+	/** Stop serving metrics over HTTP, and writing them to a file */
+	public static synchronized void stop() {
+		if (httpServer != null) {
+			httpServer.stop(0);
+			httpServer = null;
+		}
+		if (fileExecutor != null) {
+			fileExecutor.shutdown();
+			fileExecutor = null;
+		}
+	}
+
+	/** Returns the current metrics in the Prometheus text exposition format
+	 *
+	 * @return the current metrics
+	 */
+	public static String getText() {
+		StringBuilder sb = new StringBuilder();
+		appendHeader(sb, "p7spy_open_objects", "gauge", "JDBC wrappers which have been created but not closed");
+		for (int i = 0; i < OBJECT_TYPES.length; i++) {
+			sb.append("p7spy_open_objects{type=\"").append(OBJECT_TYPES[i]).append("\"} ")
+				.append(P7SpyMetrics.getOpenCount(i)).append('\n');
+		}
+
+		// overloaded methods are combined, as each series must have a distinct set of labels
+		Collection<MethodMetrics> methodMetrics = P7SpyMetrics.getMethodMetrics().values();
+		appendHeader(sb, "p7spy_calls_total", "counter", "JDBC method invocations");
+		for (MethodMetrics m : methodMetrics) {
+			sb.append("p7spy_calls_total");
+			appendMethodLabels(sb, m, null);
+			sb.append(' ').append(m.calls.sum()).append('\n');
+		}
+
+		appendHeader(sb, "p7spy_errors_total", "counter", "Exceptions thrown by JDBC methods, by SQLState");
+		for (Map.Entry<String, Long> e : P7SpyMetrics.getInstance().getErrorCounts().entrySet()) {
+			sb.append("p7spy_errors_total{sqlstate=\"");
+			appendLabelValue(sb, e.getKey());
+			sb.append("\"} ").append(e.getValue()).append('\n');
+		}
+
+		appendHeader(sb, "p7spy_call_duration_seconds", "summary", "JDBC method durations");
+		for (MethodMetrics m : methodMetrics) {
+			long[] percentiles = m.latency.getPercentiles(QUANTILES[0] * 100, QUANTILES[1] * 100, QUANTILES[2] * 100);
+			for (int i = 0; i < QUANTILES.length; i++) {
+				sb.append("p7spy_call_duration_seconds");
+				appendMethodLabels(sb, m, String.valueOf(QUANTILES[i]));
+				sb.append(' ').append(toSeconds(percentiles[i])).append('\n');
+			}
+			sb.append("p7spy_call_duration_seconds_sum");
+			appendMethodLabels(sb, m, null);
+			sb.append(' ').append(toSeconds(m.totalNanos.sum())).append('\n');
+			sb.append("p7spy_call_duration_seconds_count");
+			appendMethodLabels(sb, m, null);
+			sb.append(' ').append(m.calls.sum()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/** Append the HELP and TYPE lines of a metric */
+	private static void appendHeader(StringBuilder sb, String name, String type, String help) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	/** Append the labels identifying a method */
+	private static void appendMethodLabels(StringBuilder sb, MethodMetrics m, String quantile) {
+		sb.append("{interface=\"").append(m.method.getInterfaceName());
+		sb.append("\",method=\"").append(m.method.getMethodName());
+		if (quantile != null) {
+			sb.append("\",quantile=\"").append(quantile);
+		}
+		sb.append("\"}");
+	}
+
+	/** Append a label value, escaping backslashes, double quotes and newlines */
+	private static void appendLabelValue(StringBuilder sb, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"') { sb.append('\\').append(c); }
+			else if (c == '\n') { sb.append("\\n"); }
+			else { sb.append(c); }
+		}
+	}
+
+	/** Convert a duration in nanoseconds to seconds */
+	private static double toSeconds(long nanos) {
+		return nanos / 1e9;
+	}
+
+}
@@ -0,0 +1,265 @@
+package com.randomnoun.p7spy.repeat;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+import com.randomnoun.p7spy.P7SpyStacks;
+import com.randomnoun.p7spy.P7SpyTrace;
+import com.randomnoun.p7spy.stats.P7SpySqlNormalizer;
+
+/** Detects the same SQL statement being executed many times in quick succession on the same connection,
+ * which is usually caused by an ORM or DAO loop that runs one query per row of a previous query
+ * (an "N+1 query").
+ *
+ * <p>Each thread keeps a small, fixed-size table of the statements it has recently executed, keyed by
+ * connection and normalised SQL (see {@link P7SpySqlNormalizer}). A run of executions starts the first time
+ * a statement is executed on a connection, and ends when the window has elapsed, when the statement is
+ * displaced from the table by other statements, or when {@link #flush()} is called. If more than
+ * <i>threshold</i> executions were made during the run, a single warning is logged when it ends, containing
+ * the number of executions, their total duration, and the call stack of the execution that crossed the
+ * threshold, e.g.
+ * <pre>
+ * possible N+1 query: executed 250 times in 812ms on P7Connection@5f6a7b8c, total duration 640ms, sql="SELECT * FROM wish_item WHERE wish_id = ?"; sampled at
+ * 	at com.example.WishDao.findItems(WishDao.java:42)
+ * 	...
+ * </pre>
+ *
+ * <p>Each execution scans the table once, so the cost per execution doesn't depend on how many statements
+ * have been executed. The SQL of a PreparedStatement is normally the same String instance on each execution,
+ * so it is only normalised the first time it is seen.
+ *
+ * <p>Runs are ended by the next execution on the same thread, so a thread that stops executing SQL may
+ * not log its last run until {@link #flush()} is called, e.g. at the end of each request.
+ *
+ * <p>The following system properties are read when this class is loaded:
+ * <ul>
+ * <li><tt>p7spy.repeat.threshold</tt> - log a warning when a statement is executed more than this number
+ *   of times in a window, or 0 to disable detection. Defaults to 0.
+ * <li><tt>p7spy.repeat.window</tt> - the length of the window, in milliseconds. Defaults to 1000.
+ * <li><tt>p7spy.repeat.size</tt> - the number of statements remembered by each thread. Defaults to 8.
+ * <li><tt>p7spy.repeat.stackDepth</tt> - the maximum number of frames in each sampled stack. Defaults to 16.
+ * </ul>
+ *
+ * @author knoxg
+ */
+public class P7SpyRepeatDetector {
+
+	/** Logger instance for this class */
+	static Logger logger = Logger.getLogger(P7SpyRepeatDetector.class);
+
+	/** Prefixes of classes whose frames are excluded from sampled stacks */
+	private static final String[] EXCLUDED_CLASS_PREFIXES = {
+		"com.randomnoun.p7spy.jdbc_4_3.",
+		"com.randomnoun.p7spy.repeat.",
+		"com.randomnoun.p7spy.P7SpyExecution"
+	};
+
+	/** Number of statements remembered by each thread */
+	private static final int size = Math.max(1, Integer.getInteger("p7spy.repeat.size", 8));
+
+	/** Number of executions of a statement allowed in a window before a warning is logged, or 0 if disabled */
+	private static volatile int threshold;
+
+	/** Length of the window, in nanoseconds */
+	private static volatile long windowNanos;
+
+	/** Maximum number of frames in each sampled stack */
+	private static volatile int stackDepth;
+
+	/** Number of warnings logged */
+	private static final LongAdder reportedCount = new LongAdder();
+
+	/** The statements recently executed by each thread */
+	private static final ThreadLocal<Run[]> recent = new ThreadLocal<Run[]>() {
+		protected Run[] initialValue() {
+			Run[] runs = new Run[size];
+			for (int i = 0; i < size; i++) { runs[i] = new Run(); }
+			return runs;
+		}
+	};
+
+	static {
+		setThreshold(Integer.getInteger("p7spy.repeat.threshold", 0));
+		setWindow(Long.getLong("p7spy.repeat.window", 1000));
+		setStackDepth(Integer.getInteger("p7spy.repeat.stackDepth", 16));
+	}
+
+	/** The executions of a statement on a connection during the current window. Instances are
+	 * reused, and are only accessed by the thread that owns them. */
+	private static final class Run {
+
+		/** The normalised SQL, or null if this slot is unused */
+		String shape;
+
+		/** The SQL as last executed; compared by identity before the SQL is normalised */
+		String sql;
+
+		/** Identity hash code of the connection wrapper; the wrapper itself isn't referenced,
+		 * so that the run doesn't keep it reachable */
+		int connection;
+
+		/** Number of executions */
+		int count;
+
+		/** Total duration of the executions, in nanoseconds */
+		long totalNanos;
+
+		/** System.nanoTime() when the first execution started */
+		long startNanos;
+
+		/** System.nanoTime() when the last execution ended */
+		long lastNanos;
+
+		/** The stack of the execution that crossed the threshold, or null */
+		List<StackWalker.StackFrame> stack;
+	}
+
+	/** Returns true if repeated statements are being detected
+	 *
+	 * @return true if repeated statements are being detected
+	 */
+	public static boolean isEnabled() {
+		return threshold != 0;
+	}
+
+	/** Set the number of times a statement can be executed on a connection in a window before a warning is logged
+	 *
+	 * @param threshold the number of executions allowed, or 0 to disable detection
+	 *
+	 * @throws IllegalArgumentException if threshold is negative
+	 */
+	public static synchronized void setThreshold(int threshold) {
+		if (threshold < 0) { throw new IllegalArgumentException("Invalid repeat threshold " + threshold); }
+		P7SpyRepeatDetector.threshold = threshold;
+		P7SpyTrace.setFeatureEnabled(P7SpyTrace.FEATURE_REPEAT_DETECTOR, threshold != 0);
+	}
+
+	/** Set the length of the window in which executions are counted
+	 *
+	 * @param millis the length of the window, in milliseconds
+	 *
+	 * @throws IllegalArgumentException if millis is less than 1
+	 */
+	public static void setWindow(long millis) {
+		if (millis < 1) { throw new IllegalArgumentException("Invalid repeat window " + millis); }
+		windowNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	/** Set the maximum number of frames in each sampled stack
+	 *
+	 * @param depth the maximum number of frames recorded
+	 *
+	 * @throws IllegalArgumentException if depth is less than 1
+	 */
+	public static void setStackDepth(int depth) {
+		if (depth < 1) { throw new IllegalArgumentException("Invalid repeat stack depth " + depth); }
+		stackDepth = depth;
+	}
+
+	/** Called by {@link com.randomnoun.p7spy.P7SpyExecution} after an <tt>execute*</tt> method has completed
+	 *
+	 * @param connection the connection wrapper that created the statement, or null if not known
+	 * @param sql the SQL executed, or null if not known
+	 * @param startNanos the System.nanoTime() when the method was invoked
+	 * @param durationNanos the duration of the method, in nanoseconds
+	 */
+	public static void record(Object connection, String sql, long startNanos, long durationNanos) {
+		int t = threshold;
+		if (t == 0 || sql == null) { return; }
+		long now = startNanos + durationNanos;
+		long window = windowNanos;
+		int conn = connection == null ? 0 : System.identityHashCode(connection);
+		Run[] runs = recent.get();
+		Run match = null;
+		for (Run run : runs) {
+			if (run.shape == null) { continue; }
+			if (now - run.startNanos > window) {
+				end(run, t);
+			} else if (run.sql == sql && run.connection == conn) {
+				match = run;
+			}
+		}
+		if (match == null) {
+			String shape = P7SpySqlNormalizer.normalize(sql);
+			Run victim = null;
+			for (Run run : runs) {
+				if (run.shape == null) {
+					if (victim == null || victim.shape != null) { victim = run; }
+				} else if (run.connection == conn && run.shape.equals(shape)) {
+					match = run;
+					break;
+				} else if (victim == null || (victim.shape != null && run.lastNanos < victim.lastNanos)) {
+					victim = run;
+				}
+			}
+			if (match == null) {
+				end(victim, t);
+				match = victim;
+				match.shape = shape;
+				match.connection = conn;
+				match.startNanos = startNanos;
+			}
+			match.sql = sql;
+		}
+		match.count++;
+		match.totalNanos += durationNanos;
+		match.lastNanos = now;
+		if (match.count == t + 1) {
+			match.stack = P7SpyStacks.capture(EXCLUDED_CLASS_PREFIXES, stackDepth);
+		}
+	}
+
+	/** End any runs of statements executed by the current thread, logging a warning for each statement
+	 * that was executed more than <i>threshold</i> times. This can be called at the end of a unit of work
+	 * (e.g. a request) so that warnings are logged without waiting for the window to elapse. */
+	public static void flush() {
+		int t = threshold;
+		for (Run run : recent.get()) {
+			end(run, t == 0 ? Integer.MAX_VALUE : t);
+		}
+	}
+
+	/** End a run, logging a warning if the statement was executed more than threshold times, and clear it */
+	private static void end(Run run, int t) {
+		if (run.shape != null && run.count > t) {
+			report(run);
+		}
+		run.shape = null;
+		run.sql = null;
+		run.count = 0;
+		run.totalNanos = 0;
+		run.stack = null;
+	}
+
+	/** Log a warning about a repeated statement */
+	private static void report(Run run) {
+		reportedCount.increment();
+		StringBuilder sb = new StringBuilder();
+		sb.append("possible N+1 query: executed ").append(run.count).append(" times in ");
+		sb.append(TimeUnit.NANOSECONDS.toMillis(run.lastNanos - run.startNanos)).append("ms");
+		if (run.connection != 0) {
+			sb.append(" on P7Connection@").append(Integer.toHexString(run.connection));
+		}
+		sb.append(", total duration ").append(TimeUnit.NANOSECONDS.toMillis(run.totalNanos)).append("ms, sql=");
+		P7SpyTrace.appendSql(sb, run.shape);
+		if (run.stack != null) {
+			sb.append("; sampled at");
+			for (StackWalker.StackFrame frame : run.stack) {
+				sb.append("\n\tat ").append(frame.toStackTraceElement());
+			}
+		}
+		logger.warn(sb.toString());
+	}
+
+	/** Returns the number of warnings logged */
+	public static long getReportedCount() { return reportedCount.sum(); }
+
+	/** Reset all counters to zero */
+	public static void reset() {
+		reportedCount.reset();
+	}
+
+}
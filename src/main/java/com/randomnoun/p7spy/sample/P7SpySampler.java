@@ -0,0 +1,274 @@
+package com.randomnoun.p7spy.sample;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+import com.randomnoun.p7spy.P7SpyScheduler;
+
+/** Determines which JDBC objects are traced, and limits the number of trace lines generated per second.
+ *
+ * <p>Sampling is performed at two levels:
+ * <ul>
+ * <li>1 in every <i>N</i> connections is traced; the decision is made when the connection is created by
+ *   {@link com.randomnoun.p7spy.P7SpyDriver}
+ * <li>1 in every <i>N</i> statements created by a traced connection is traced; the decision is made when
+ *   <tt>createStatement()</tt>, <tt>prepareStatement()</tt> or <tt>prepareCall()</tt> wraps the result
+ * </ul>
+ * Objects obtained from a traced object (e.g. ResultSets) are traced if their parent is. Methods invoked on
+ * objects which are not traced delegate directly to the wrapped object, without formatting any arguments
+ * or results. SQL statistics, which are collected separately, are not affected by sampling.
+ *
+ * <p>Additionally, the total number of method invocations logged can be limited to a fixed rate per second.
+ * The limit is enforced with a token bucket which holds one second's worth of tokens, so short bursts are
+ * logged in full; invocations made when the bucket is empty are not logged.
+ *
+ * <p>The number of invocations that were skipped because their object was not sampled, and the number
+ * that were dropped by the rate limit, are counted, so that totals derived from the log can be scaled
+ * back up. These counts are logged at INFO level periodically whilst sampling is enabled. Connections and
+ * statements are only counted whilst their sample rate is greater than 1, so that creating them costs nothing
+ * when every object is traced.
+ *
+ * <p>The following system properties are read when this class is loaded:
+ * <ul>
+ * <li><tt>p7spy.sample.connections</tt> - trace 1 in every <i>N</i> connections. Defaults to 1 (every connection).
+ * <li><tt>p7spy.sample.statements</tt> - trace 1 in every <i>N</i> statements. Defaults to 1 (every statement).
+ * <li><tt>p7spy.sample.maxLinesPerSecond</tt> - the maximum number of method invocations logged per second,
+ *   or 0 for no limit. Defaults to 0.
+ * <li><tt>p7spy.sample.reportInterval</tt> - the time between reports, in seconds, or 0 to disable reporting. Defaults to 60.
+ * </ul>
+ *
+ * @author knoxg
+ */
+public class P7SpySampler {
+
+	/** Logger instance for this class */
+	static Logger logger = Logger.getLogger(P7SpySampler.class);
+
+	/** Trace 1 in every connectionSampleRate connections */
+	private static volatile int connectionSampleRate;
+
+	/** Trace 1 in every statementSampleRate statements */
+	private static volatile int statementSampleRate;
+
+	/** Maximum number of invocations logged per second, or 0 for no limit */
+	private static volatile int maxLinesPerSecond;
+
+	/** Time between each token being added to the bucket, in nanoseconds */
+	private static volatile long emissionInterval;
+
+	/** The time at which the bucket will next be full, as a System.nanoTime() value. The bucket holds
+	 * <tt>maxLinesPerSecond</tt> tokens; each invocation logged moves this time forward by one
+	 * <tt>emissionInterval</tt>. */
+	private static final AtomicLong bucketFullTime = new AtomicLong(System.nanoTime());
+
+	/** Sequence used to select 1 in every connectionSampleRate connections */
+	private static final AtomicLong connectionSequence = new AtomicLong();
+
+	/** Sequence used to select 1 in every statementSampleRate statements */
+	private static final AtomicLong statementSequence = new AtomicLong();
+
+	/** Number of connections created whilst connections were being sampled */
+	private static final LongAdder connectionCount = new LongAdder();
+
+	/** Number of connections traced whilst connections were being sampled */
+	private static final LongAdder sampledConnectionCount = new LongAdder();
+
+	/** Number of statements created by traced connections whilst statements were being sampled */
+	private static final LongAdder statementCount = new LongAdder();
+
+	/** Number of statements traced whilst statements were being sampled */
+	private static final LongAdder sampledStatementCount = new LongAdder();
+
+	/** Number of invocations logged whilst objects were being sampled or rate limited */
+	private static final LongAdder tracedCalls = new LongAdder();
+
+	/** Number of invocations not logged because their object was not sampled */
+	private static final LongAdder skippedCalls = new LongAdder();
+
+	/** Number of invocations not logged because of the rate limit */
+	private static final LongAdder rateLimitedCalls = new LongAdder();
+
+	/** Executor used to generate periodic reports */
+	private static ScheduledExecutorService reportExecutor;
+
+	static {
+		setConnectionSampleRate(Integer.getInteger("p7spy.sample.connections", 1));
+		setStatementSampleRate(Integer.getInteger("p7spy.sample.statements", 1));
+		setMaxLinesPerSecond(Integer.getInteger("p7spy.sample.maxLinesPerSecond", 0));
+	}
+
+	/** Returns true if every object is traced and no rate limit is in effect
+	 *
+	 * @return true if sampling is disabled
+	 */
+	public static boolean isTracingAll() {
+		return connectionSampleRate == 1 && statementSampleRate == 1 && maxLinesPerSecond == 0;
+	}
+
+	/** Set the proportion of connections which are traced. Connections which have already been created are not affected.
+	 *
+	 * @param rate trace 1 in every <tt>rate</tt> connections
+	 *
+	 * @throws IllegalArgumentException if rate is less than 1
+	 */
+	public static void setConnectionSampleRate(int rate) {
+		if (rate < 1) { throw new IllegalArgumentException("Invalid connection sample rate " + rate); }
+		connectionSampleRate = rate;
+		if (rate > 1) { startReporting(); }
+	}
+
+	/** Set the proportion of statements which are traced. Statements which have already been created are not affected.
+	 *
+	 * @param rate trace 1 in every <tt>rate</tt> statements
+	 *
+	 * @throws IllegalArgumentException if rate is less than 1
+	 */
+	public static void setStatementSampleRate(int rate) {
+		if (rate < 1) { throw new IllegalArgumentException("Invalid statement sample rate " + rate); }
+		statementSampleRate = rate;
+		if (rate > 1) { startReporting(); }
+	}
+
+	/** Set the maximum number of method invocations logged per second
+	 *
+	 * @param linesPerSecond the maximum number of invocations logged per second, or 0 for no limit
+	 *
+	 * @throws IllegalArgumentException if linesPerSecond is negative
+	 */
+	public static void setMaxLinesPerSecond(int linesPerSecond) {
+		if (linesPerSecond < 0) { throw new IllegalArgumentException("Invalid maxLinesPerSecond " + linesPerSecond); }
+		if (linesPerSecond > 0) {
+			emissionInterval = TimeUnit.SECONDS.toNanos(1) / linesPerSecond;
+			bucketFullTime.set(System.nanoTime());
+			startReporting();
+		}
+		maxLinesPerSecond = linesPerSecond;
+	}
+
+	/** Start the periodic report thread, if it hasn't already been started */
+	private static synchronized void startReporting() {
+		if (reportExecutor == null) {
+			long reportInterval = Long.getLong("p7spy.sample.reportInterval", 60);
+			if (reportInterval > 0) {
+				reportExecutor = P7SpyScheduler.scheduleAtFixedRate("p7spy-sampler", reportInterval, new Runnable() {
+					public void run() {
+						if (!isTracingAll()) { report(); }
+					}
+				});
+			}
+		}
+	}
+
+	/** Called when a connection is created, to determine whether it will be traced
+	 *
+	 * @return true if the connection should be traced
+	 */
+	public static boolean sampleConnection() {
+		int rate = connectionSampleRate;
+		if (rate == 1) { return true; }
+		boolean sampled = connectionSequence.getAndIncrement() % rate == 0;
+		connectionCount.increment();
+		if (sampled) { sampledConnectionCount.increment(); }
+		return sampled;
+	}
+
+	/** Called when a traced connection creates a statement, to determine whether the statement will be traced
+	 *
+	 * @return true if the statement should be traced
+	 */
+	public static boolean sampleStatement() {
+		int rate = statementSampleRate;
+		if (rate == 1) { return true; }
+		boolean sampled = statementSequence.getAndIncrement() % rate == 0;
+		statementCount.increment();
+		if (sampled) { sampledStatementCount.increment(); }
+		return sampled;
+	}
+
+	/** Called by the generated wrapper classes before logging a method invocation, when DEBUG logging is enabled.
+	 *
+	 * @param sampled true if the object the method was invoked on is being traced
+	 *
+	 * @return true if the invocation should be logged
+	 */
+	public static boolean trace(boolean sampled) {
+		if (!sampled) {
+			skippedCalls.increment();
+			return false;
+		} else if (maxLinesPerSecond != 0 && !tryAcquire()) {
+			rateLimitedCalls.increment();
+			return false;
+		}
+		// traced calls are only counted for the sampling report, which isn't logged when every call is traced
+		if (!isTracingAll()) { tracedCalls.increment(); }
+		return true;
+	}
+
+	/** Remove a token from the bucket
+	 *
+	 * @return true if a token was available
+	 */
+	private static boolean tryAcquire() {
+		long interval = emissionInterval;
+		long capacity = interval * maxLinesPerSecond;
+		long now = System.nanoTime();
+		while (true) {
+			long fullTime = bucketFullTime.get();
+			// an empty bucket will be full one second from now
+			long start = fullTime - now < 0 ? now : fullTime;
+			long next = start + interval;
+			if (next - now > capacity) {
+				return false;
+			}
+			if (bucketFullTime.compareAndSet(fullTime, next)) {
+				return true;
+			}
+		}
+	}
+
+	/** Returns the number of connections created whilst connections were being sampled */
+	public static long getConnectionCount() { return connectionCount.sum(); }
+
+	/** Returns the number of connections traced whilst connections were being sampled */
+	public static long getSampledConnectionCount() { return sampledConnectionCount.sum(); }
+
+	/** Returns the number of statements created by traced connections whilst statements were being sampled */
+	public static long getStatementCount() { return statementCount.sum(); }
+
+	/** Returns the number of statements traced whilst statements were being sampled */
+	public static long getSampledStatementCount() { return sampledStatementCount.sum(); }
+
+	/** Returns the number of method invocations logged whilst objects were being sampled or rate limited */
+	public static long getTracedCalls() { return tracedCalls.sum(); }
+
+	/** Returns the number of method invocations not logged because their object was not sampled */
+	public static long getSkippedCalls() { return skippedCalls.sum(); }
+
+	/** Returns the number of method invocations not logged because of the rate limit */
+	public static long getRateLimitedCalls() { return rateLimitedCalls.sum(); }
+
+	/** Reset all counters to zero */
+	public static void reset() {
+		connectionSequence.set(0);
+		statementSequence.set(0);
+		connectionCount.reset();
+		sampledConnectionCount.reset();
+		statementCount.reset();
+		sampledStatementCount.reset();
+		tracedCalls.reset();
+		skippedCalls.reset();
+		rateLimitedCalls.reset();
+	}
+
+	/** Log the sampling counters at INFO level */
+	public static void report() {
+		logger.info("p7spy sampling: connections=" + getSampledConnectionCount() + "/" + getConnectionCount() +
+			" statements=" + getSampledStatementCount() + "/" + getStatementCount() +
+			" calls traced=" + getTracedCalls() + " skipped=" + getSkippedCalls() + " rateLimited=" + getRateLimitedCalls());
+	}
+
+}
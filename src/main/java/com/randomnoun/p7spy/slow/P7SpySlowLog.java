@@ -0,0 +1,72 @@
+package com.randomnoun.p7spy.slow;
+
+import org.apache.log4j.Logger;
+
+import com.randomnoun.p7spy.P7SpyParameters;
+import com.randomnoun.p7spy.P7SpyTrace;
+
+/** Logs JDBC method invocations which take longer than a configured threshold.
+ *
+ * <p>When DEBUG logging is disabled for a wrapper class, the generated wrapper times each method invocation
+ * and compares its duration against the threshold returned by {@link #getThreshold(int)}; only invocations
+ * that exceed the threshold are formatted, and are logged at INFO level. This allows the wrapper loggers
+ * to be left at INFO level in production, logging only the slow calls.
+ *
+ * <p>Since the interesting part of a slow <tt>PreparedStatement.executeQuery()</tt> is the SQL and the parameters,
+ * which were supplied to earlier method calls, statement wrappers keep the SQL they were prepared with,
+ * and the parameters set on them (in unformatted form; see {@link P7SpyParameters}), whilst slow-call
+ * logging is enabled. These are included in the log message of slow <tt>execute*</tt> calls.
+ *
+ * <p>Thresholds are set in the configuration file; see {@link P7SpySlowThresholds}.
+ *
+ * @author knoxg
+ */
+public class P7SpySlowLog {
+
+	/** Returns true if a slow-call threshold has been set for any method
+	 *
+	 * @return true if slow-call logging is enabled
+	 */
+	public static boolean isEnabled() {
+		return P7SpyTrace.getConfig().getSlowThresholds().isEnabled();
+	}
+
+	/** Returns the threshold for a method
+	 *
+	 * @param methodId the method id, as registered in {@link com.randomnoun.p7spy.P7SpyMethods}
+	 *
+	 * @return the threshold, in nanoseconds, or {@link P7SpySlowThresholds#NONE} if slow invocations of this method
+	 *   are not logged
+	 */
+	public static long getThreshold(int methodId) {
+		return P7SpyTrace.getConfig().getSlowThresholds().getThreshold(methodId);
+	}
+
+	/** Append the SQL and parameters used by a statement to a log message
+	 *
+	 * @param sb the log message being generated
+	 * @param sql the SQL used to prepare the statement, or null if not known
+	 * @param parameters the parameters set on the statement, or null if none have been recorded
+	 */
+	public static void appendContext(StringBuilder sb, String sql, P7SpyParameters parameters) {
+		if (sql != null) {
+			sb.append(" sql=");
+			P7SpyTrace.appendSql(sb, sql);
+		}
+		if (parameters != null && parameters.size() > 0) {
+			sb.append(" parameters=");
+			parameters.appendTo(sb);
+		}
+	}
+
+	/** Log a slow method invocation
+	 *
+	 * @param logger the logger of the wrapper class
+	 * @param message the log message
+	 * @param throwable the exception thrown by the method, or null
+	 */
+	public static void log(Logger logger, String message, Throwable throwable) {
+		logger.info("slow " + message, throwable);
+	}
+
+}
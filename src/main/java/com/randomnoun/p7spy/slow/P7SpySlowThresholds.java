@@ -0,0 +1,150 @@
+package com.randomnoun.p7spy.slow;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import com.randomnoun.p7spy.P7SpyMethods;
+import com.randomnoun.p7spy.P7SpyMethods.P7SpyMethod;
+
+/** The thresholds above which method invocations are logged by {@link P7SpySlowLog}.
+ *
+ * <p>Thresholds are read from the <tt>slowThreshold</tt> properties in the configuration file, in milliseconds
+ * (fractions are allowed). A threshold can be set for all methods, for all methods of a JDBC interface, or for a single
+ * method; the most specific threshold applies. For example:
+ * <pre>
+ * slowThreshold=500
+ * slowThreshold.PreparedStatement=100
+ * slowThreshold.PreparedStatement.executeQuery=20
+ * slowThreshold.ResultSet=none
+ * </pre>
+ *
+ * <p>A threshold of <tt>none</tt> disables slow-call logging for that interface or method.
+ *
+ * <p>The threshold for each method id is resolved the first time it is requested, and stored in an array
+ * indexed by method id, so looking up a threshold doesn't involve any String operations. Instances are
+ * immutable (other than this cache) and can be used by any number of threads.
+ *
+ * @author knoxg
+ */
+public class P7SpySlowThresholds {
+
+	/** Threshold used when slow-call logging is disabled for a method */
+	public static final long NONE = Long.MAX_VALUE;
+
+	/** Marks a method id whose threshold has not yet been resolved */
+	private static final long UNRESOLVED = Long.MIN_VALUE;
+
+	/** Thresholds with no properties set; slow-call logging is disabled */
+	public static final P7SpySlowThresholds EMPTY = new P7SpySlowThresholds(new Properties());
+
+	/** The threshold for all methods, in nanoseconds */
+	private final long defaultThreshold;
+
+	/** Thresholds, in nanoseconds, keyed by interface name (e.g. "PreparedStatement") or
+	 * interface and method name (e.g. "PreparedStatement.executeQuery") */
+	private final Map<String, Long> thresholds = new HashMap<String, Long>();
+
+	/** True if any thresholds are set */
+	private final boolean enabled;
+
+	/** Resolved thresholds, indexed by method id. Replaced, rather than modified, when a new method id is resolved. */
+	private volatile long[] methodThresholds = new long[0];
+
+	/** Create a new set of thresholds
+	 *
+	 * @param properties the configuration properties
+	 *
+	 * @throws IllegalArgumentException if a <tt>slowThreshold</tt> property is not a number or <tt>none</tt>
+	 */
+	public P7SpySlowThresholds(Properties properties) {
+		String value = properties.getProperty("slowThreshold");
+		defaultThreshold = value == null ? NONE : parseThreshold("slowThreshold", value);
+		boolean hasThreshold = defaultThreshold != NONE;
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith("slowThreshold.") && key.length() > 14) {
+				long threshold = parseThreshold(key, properties.getProperty(key));
+				thresholds.put(key.substring(14), threshold);
+				hasThreshold |= threshold != NONE;
+			}
+		}
+		enabled = hasThreshold;
+	}
+
+	/** Convert a threshold property value into nanoseconds
+	 *
+	 * @param key the property name
+	 * @param value the property value, in milliseconds, or "none"
+	 *
+	 * @return the threshold, in nanoseconds
+	 *
+	 * @throws IllegalArgumentException if the value could not be parsed
+	 */
+	private static long parseThreshold(String key, String value) {
+		value = value.trim();
+		if (value.equalsIgnoreCase("none")) { return NONE; }
+		try {
+			double millis = Double.parseDouble(value);
+			if (millis < 0 || Double.isNaN(millis)) { throw new NumberFormatException(); }
+			return (long) (millis * 1000000);
+		} catch (NumberFormatException nfe) {
+			throw new IllegalArgumentException("Invalid " + key + " '" + value + "'");
+		}
+	}
+
+	/** Returns true if a threshold is set for any method
+	 *
+	 * @return true if a threshold is set for any method
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/** Returns the threshold for a method
+	 *
+	 * @param methodId the method id, as registered in {@link P7SpyMethods}
+	 *
+	 * @return the threshold, in nanoseconds, or {@link #NONE} if no threshold applies to the method
+	 */
+	public long getThreshold(int methodId) {
+		long[] t = methodThresholds;
+		if (methodId >= 0 && methodId < t.length) {
+			long threshold = t[methodId];
+			if (threshold != UNRESOLVED) { return threshold; }
+		}
+		return resolve(methodId);
+	}
+
+	/** Returns the threshold for an interface and method name
+	 *
+	 * @param interfaceName the unqualified interface name, e.g. "PreparedStatement"
+	 * @param methodName the method name, e.g. "executeQuery"
+	 *
+	 * @return the threshold, in nanoseconds, or {@link #NONE} if no threshold applies to the method
+	 */
+	public long getThreshold(String interfaceName, String methodName) {
+		Long threshold = thresholds.get(interfaceName + "." + methodName);
+		if (threshold == null) { threshold = thresholds.get(interfaceName); }
+		return threshold == null ? defaultThreshold : threshold;
+	}
+
+	/** Resolve the threshold for a method id, and add it to {@link #methodThresholds} */
+	private synchronized long resolve(int methodId) {
+		P7SpyMethod method = P7SpyMethods.getMethod(methodId);
+		if (method == null) { return defaultThreshold; }
+		long threshold = getThreshold(method.getInterfaceName(), method.getMethodName());
+		long[] t = methodThresholds;
+		if (methodId >= t.length) {
+			long[] newThresholds = Arrays.copyOf(t, Math.max(methodId + 1, t.length * 2));
+			Arrays.fill(newThresholds, t.length, newThresholds.length, UNRESOLVED);
+			t = newThresholds;
+		} else {
+			t = t.clone();
+		}
+		t[methodId] = threshold;
+		methodThresholds = t; // volatile write publishes the new entry
+		return threshold;
+	}
+
+}
@@ -0,0 +1,232 @@
+package com.randomnoun.p7spy.stats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.log4j.Logger;
+
+import com.randomnoun.p7spy.P7SpyScheduler;
+import com.randomnoun.p7spy.P7SpyStacks;
+import com.randomnoun.p7spy.P7SpyTrace;
+
+/** Attributes database time to the application code that executed the SQL.
+ *
+ * <p>Whilst attribution is enabled, 1 in every <i>N</i> executions is sampled. The call site of a sampled
+ * execution is the first stack frame that isn't in p7spy or one of a list of framework packages (Spring,
+ * Hibernate, connection pools, etc.), found with a {@link StackWalker} so that the rest of the stack is never
+ * materialised. The number of executions, errors, rows affected by updates and total execution time are
+ * then aggregated for each combination of call site and normalised SQL (see {@link P7SpySqlNormalizer}).
+ *
+ * <p>The number of entries is bounded; when the limit is reached, the least frequently sampled entries
+ * are evicted. A report of the entries with the highest total execution time is periodically logged
+ * at INFO level through this class's logger, e.g.
+ * <pre>
+ * p7spy call site statistics: top 2 of 17 call sites by total time (times in msec); 1 in 10 executions sampled
+ *   count=120 errors=0 rows=0 total=840.213 avg=7.002 : com.example.WishDao.findItems(WishDao.java:42) : SELECT * FROM wish_item WHERE wish_id = ?
+ *   count=3 errors=0 rows=3 total=12.001 avg=4.000 : com.example.WishDao.save(WishDao.java:71) : UPDATE wish_list SET wish_item = ? WHERE wish_id = ?
+ * </pre>
+ * Counts and times are those of the sampled executions; multiply by the sample rate to estimate totals.
+ *
+ * <p>The following system properties are read when this class is loaded:
+ * <ul>
+ * <li><tt>p7spy.attribution.sample</tt> - sample 1 in every <i>N</i> executions, or 0 to disable attribution. Defaults to 0.
+ * <li><tt>p7spy.attribution.exclude</tt> - a comma-separated list of package or class name prefixes whose frames
+ *   are skipped when finding the call site. Defaults to common framework, ORM and connection pool packages;
+ *   p7spy's own frames are always skipped.
+ * <li><tt>p7spy.attribution.maxEntries</tt> - the maximum number of distinct (call site, SQL) entries. Defaults to 1000.
+ * <li><tt>p7spy.attribution.reportInterval</tt> - the time between reports, in seconds, or 0 to disable reporting. Defaults to 60.
+ * <li><tt>p7spy.attribution.topN</tt> - the number of entries included in each report. Defaults to 20.
+ * </ul>
+ *
+ * @author knoxg
+ */
+public class P7SpyAttribution {
+
+	/** Logger instance for this class */
+	static Logger logger = Logger.getLogger(P7SpyAttribution.class);
+
+	/** Prefixes of p7spy classes, whose frames are always skipped */
+	private static final String[] P7SPY_CLASS_PREFIXES = {
+		"com.randomnoun.p7spy.jdbc_4_3.",
+		"com.randomnoun.p7spy.stats.",
+		"com.randomnoun.p7spy.datasource.",
+		"com.randomnoun.p7spy.P7SpyExecution"
+	};
+
+	/** Default prefixes of framework classes whose frames are skipped */
+	private static final String DEFAULT_EXCLUDE = "java.,javax.,jakarta.,jdk.,sun.,com.sun.," +
+		"org.springframework.,org.hibernate.,org.apache.ibatis.,org.mybatis.,org.jooq.,org.eclipse.persistence.," +
+		"com.zaxxer.hikari.,org.apache.commons.dbcp,org.apache.tomcat.,com.mchange.";
+
+	/** Call site used when every frame is excluded */
+	private static final String UNKNOWN_CALL_SITE = "(unknown)";
+
+	/** Sample 1 in every sampleRate executions, or 0 if attribution is disabled */
+	private static volatile int sampleRate;
+
+	/** Prefixes of classes whose frames are skipped */
+	private static volatile String[] excludedClassPrefixes;
+
+	/** Number of entries included in each report */
+	private static int topN = Integer.getInteger("p7spy.attribution.topN", 20);
+
+	/** Statistics, keyed by call site and normalised SQL */
+	private static final P7SpyBoundedMap<String, P7SpyCallSiteStatistics> statistics = new P7SpyBoundedMap<String, P7SpyCallSiteStatistics>(
+		Integer.getInteger("p7spy.attribution.maxEntries", 1000), P7SpyCallSiteStatistics::getCount, null);
+
+	/** Executor used to generate periodic reports */
+	private static ScheduledExecutorService reportExecutor;
+
+	static {
+		setExcludedPackages(System.getProperty("p7spy.attribution.exclude"));
+		setSampleRate(Integer.getInteger("p7spy.attribution.sample", 0));
+	}
+
+	/** Returns true if executions are being attributed to call sites
+	 *
+	 * @return true if attribution is enabled
+	 */
+	public static boolean isEnabled() {
+		return sampleRate != 0;
+	}
+
+	/** Set the proportion of executions which are sampled. Periodic reporting is started the first time
+	 * attribution is enabled.
+	 *
+	 * @param rate sample 1 in every <tt>rate</tt> executions, or 0 to disable attribution
+	 *
+	 * @throws IllegalArgumentException if rate is negative
+	 */
+	public static synchronized void setSampleRate(int rate) {
+		if (rate < 0) { throw new IllegalArgumentException("Invalid attribution sample rate " + rate); }
+		if (rate > 0) { startReporting(); }
+		sampleRate = rate;
+		P7SpyTrace.setFeatureEnabled(P7SpyTrace.FEATURE_ATTRIBUTION, rate != 0);
+	}
+
+	/** Set the packages whose frames are skipped when finding the call site of an execution, in addition to p7spy's own
+	 *
+	 * @param packages a comma-separated list of package or class name prefixes, or null for the default list
+	 */
+	public static void setExcludedPackages(String packages) {
+		if (packages == null) { packages = DEFAULT_EXCLUDE; }
+		List<String> prefixes = new ArrayList<String>(Arrays.asList(P7SPY_CLASS_PREFIXES));
+		for (String prefix : packages.split(",")) {
+			prefix = prefix.trim();
+			if (!prefix.equals("")) { prefixes.add(prefix); }
+		}
+		excludedClassPrefixes = prefixes.toArray(new String[prefixes.size()]);
+	}
+
+	/** Start the periodic report thread, if it hasn't already been started */
+	private static synchronized void startReporting() {
+		if (reportExecutor == null) {
+			long reportInterval = Long.getLong("p7spy.attribution.reportInterval", 60);
+			if (reportInterval > 0) {
+				reportExecutor = P7SpyScheduler.scheduleAtFixedRate("p7spy-attribution", reportInterval, new Runnable() {
+					public void run() {
+						if (isEnabled()) { report(); }
+					}
+				});
+			}
+		}
+	}
+
+	/** Record an execution of a SQL statement, if it is sampled. Called by {@link com.randomnoun.p7spy.P7SpyExecution}
+	 * on the thread that executed the statement.
+	 *
+	 * @param sql the SQL executed; if null, nothing is recorded
+	 * @param durationNanos the execution time, in nanoseconds
+	 * @param rowCount the number of rows affected by the statement, or -1 if not known
+	 * @param error true if the execution threw an exception
+	 */
+	public static void record(String sql, long durationNanos, long rowCount, boolean error) {
+		int rate = sampleRate;
+		if (rate == 0 || sql == null) { return; }
+		if (rate > 1 && ThreadLocalRandom.current().nextInt(rate) != 0) { return; }
+		String callSite = getCallSite();
+		String normalizedSql = P7SpySqlNormalizer.normalize(sql);
+		String key = callSite + '\n' + normalizedSql;
+		P7SpyCallSiteStatistics entry = statistics.get(key, k -> new P7SpyCallSiteStatistics(callSite, normalizedSql));
+		entry.record(durationNanos, rowCount, error);
+	}
+
+	/** Returns the first frame of the current thread's stack which isn't excluded, formatted as a stack trace element */
+	private static String getCallSite() {
+		final String[] prefixes = excludedClassPrefixes;
+		Optional<String> callSite = StackWalker.getInstance().walk(s -> s
+			.filter(f -> !P7SpyStacks.isExcluded(prefixes, f.getClassName()))
+			.findFirst()
+			.map(f -> f.getClassName() + "." + f.getMethodName() + "(" +
+				(f.getFileName() == null ? "Unknown Source" : f.getFileName() + (f.getLineNumber() >= 0 ? ":" + f.getLineNumber() : "")) + ")"));
+		return callSite.orElse(UNKNOWN_CALL_SITE);
+	}
+
+	/** Returns a snapshot of the statistics collected, ordered by total execution time, descending
+	 *
+	 * @return a list of statistics
+	 */
+	public static List<P7SpyCallSiteStatistics> getStatistics() {
+		List<P7SpyCallSiteStatistics> result = new ArrayList<P7SpyCallSiteStatistics>(statistics.values());
+		final Map<P7SpyCallSiteStatistics, Long> totals = new IdentityHashMap<P7SpyCallSiteStatistics, Long>();
+		for (P7SpyCallSiteStatistics s : result) { totals.put(s, s.getTotalNanos()); }
+		Collections.sort(result, new Comparator<P7SpyCallSiteStatistics>() {
+			public int compare(P7SpyCallSiteStatistics a, P7SpyCallSiteStatistics b) {
+				return Long.compare(totals.get(b), totals.get(a));
+			}
+		});
+		return result;
+	}
+
+	/** Returns the number of entries that have been evicted
+	 *
+	 * @return the number of entries that have been evicted
+	 */
+	public static long getEvictedCount() {
+		return statistics.getEvictedCount();
+	}
+
+	/** Discard all statistics collected so far */
+	public static void reset() {
+		statistics.clear();
+	}
+
+	/** Log the call sites with the highest total execution time */
+	public static void report() {
+		List<P7SpyCallSiteStatistics> list = getStatistics();
+		int n = Math.min(topN, list.size());
+		StringBuilder sb = new StringBuilder();
+		sb.append("p7spy call site statistics: top ").append(n).append(" of ").append(list.size())
+			.append(" call sites by total time (times in msec)");
+		int rate = sampleRate;
+		if (rate > 1) {
+			sb.append("; 1 in ").append(rate).append(" executions sampled");
+		}
+		long evicted = statistics.getEvictedCount();
+		if (evicted > 0) {
+			sb.append("; ").append(evicted).append(" infrequent call sites evicted");
+		}
+		for (int i = 0; i < n; i++) {
+			P7SpyCallSiteStatistics s = list.get(i);
+			long count = s.getCount();
+			long total = s.getTotalNanos();
+			sb.append("\n  count=").append(count)
+				.append(" errors=").append(s.getErrorCount())
+				.append(" rows=").append(s.getRowsAffected())
+				.append(" total=").append(P7SpyStatistics.formatMillis(total))
+				.append(" avg=").append(P7SpyStatistics.formatMillis(count == 0 ? 0 : total / count))
+				.append(" : ").append(s.getCallSite())
+				.append(" : ").append(s.getSql());
+		}
+		logger.info(sb.toString());
+	}
+
+}
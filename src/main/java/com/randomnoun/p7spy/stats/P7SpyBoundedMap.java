@@ -0,0 +1,134 @@
+package com.randomnoun.p7spy.stats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/** A concurrent map holding a bounded number of statistics entries.
+ *
+ * <p>Existing entries are looked up without locking. New entries are added whilst holding this map's lock,
+ * and if the map is full, the least frequently used 10% of entries are evicted first, so the number of
+ * entries never exceeds the maximum, however many threads are adding entries.
+ *
+ * @param <K> the type of key
+ * @param <V> the type of statistics entry
+ *
+ * @author knoxg
+ */
+class P7SpyBoundedMap<K, V> {
+
+	/** The entries */
+	private final ConcurrentHashMap<K, V> map = new ConcurrentHashMap<K, V>();
+
+	/** Returns the frequency with which an entry is used; the least frequently used entries are evicted */
+	private final ToLongFunction<V> frequency;
+
+	/** Called for each entry which survives an eviction, or null */
+	private final Consumer<V> decay;
+
+	/** Maximum number of entries */
+	private volatile int maxSize;
+
+	/** Number of entries evicted */
+	private final LongAdder evictedCount = new LongAdder();
+
+	/** Create a new bounded map
+	 *
+	 * @param maxSize the maximum number of entries
+	 * @param frequency returns the frequency with which an entry is used
+	 * @param decay called for each entry which survives an eviction (e.g. to reduce its frequency), or null
+	 */
+	P7SpyBoundedMap(int maxSize, ToLongFunction<V> frequency, Consumer<V> decay) {
+		this.maxSize = maxSize;
+		this.frequency = frequency;
+		this.decay = decay;
+	}
+
+	/** Set the maximum number of entries. If more entries than this are already held, they are evicted
+	 * when the next new entry is added.
+	 *
+	 * @param maxSize the maximum number of entries
+	 */
+	void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/** Returns the entry for a key, adding a new entry if there isn't one
+	 *
+	 * @param key the key
+	 * @param factory creates the entry for a key
+	 *
+	 * @return the entry for the key
+	 */
+	V get(K key, Function<K, V> factory) {
+		V value = map.get(key);
+		if (value != null) { return value; }
+		synchronized (this) {
+			value = map.get(key);
+			if (value == null) {
+				while (map.size() >= maxSize) {
+					evict();
+				}
+				value = factory.apply(key);
+				map.put(key, value);
+			}
+			return value;
+		}
+	}
+
+	/** Remove the least frequently used 10% of entries, and decay the remainder. Must be called whilst
+	 * holding this map's lock. */
+	private void evict() {
+		List<Map.Entry<K, V>> entries = new ArrayList<Map.Entry<K, V>>(map.entrySet());
+		if (entries.isEmpty()) { return; }
+		// frequencies are read once, so that at least one entry is evicted even if they change concurrently
+		long[] counts = new long[entries.size()];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = frequency.applyAsLong(entries.get(i).getValue());
+		}
+		long[] sortedCounts = counts.clone();
+		Arrays.sort(sortedCounts);
+		int evictCount = Math.max(1, counts.length / 10);
+		long threshold = sortedCounts[evictCount - 1];
+		int evicted = 0;
+		for (int i = 0; i < counts.length; i++) {
+			Map.Entry<K, V> entry = entries.get(i);
+			if (evicted < evictCount && counts[i] <= threshold) {
+				map.remove(entry.getKey(), entry.getValue());
+				evicted++;
+			} else if (decay != null) {
+				decay.accept(entry.getValue());
+			}
+		}
+		evictedCount.add(evicted);
+	}
+
+	/** Returns the entries in this map */
+	Collection<V> values() {
+		return map.values();
+	}
+
+	/** Returns the number of entries in this map */
+	int size() {
+		return map.size();
+	}
+
+	/** Returns the number of entries that have been evicted */
+	long getEvictedCount() {
+		return evictedCount.sum();
+	}
+
+	/** Remove all entries, and reset the evicted count */
+	synchronized void clear() {
+		map.clear();
+		evictedCount.reset();
+	}
+
+}
@@ -0,0 +1,72 @@
+package com.randomnoun.p7spy.stats;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** Aggregated statistics for a single SQL statement executed from a single call site.
+ *
+ * <p>Only sampled executions are recorded; see {@link P7SpyAttribution}.
+ *
+ * @author knoxg
+ */
+public class P7SpyCallSiteStatistics {
+
+	/** The call site, in the same format as a stack trace element (e.g. "com.example.WishDao.findAll(WishDao.java:42)") */
+	private final String callSite;
+
+	/** The normalised SQL */
+	private final String sql;
+
+	/** Number of executions */
+	private final LongAdder count = new LongAdder();
+
+	/** Number of executions which threw an exception */
+	private final LongAdder errorCount = new LongAdder();
+
+	/** Number of rows affected by updates */
+	private final LongAdder rowsAffected = new LongAdder();
+
+	/** Total execution time, in nanoseconds */
+	private final LongAdder totalNanos = new LongAdder();
+
+	/** Create a new statistics entry
+	 *
+	 * @param callSite the call site
+	 * @param sql the normalised SQL
+	 */
+	public P7SpyCallSiteStatistics(String callSite, String sql) {
+		this.callSite = callSite;
+		this.sql = sql;
+	}
+
+	/** Record an execution
+	 *
+	 * @param durationNanos the execution time, in nanoseconds
+	 * @param rowCount the number of rows affected, or -1 if not known
+	 * @param error true if the execution threw an exception
+	 */
+	public void record(long durationNanos, long rowCount, boolean error) {
+		count.increment();
+		totalNanos.add(durationNanos);
+		if (rowCount > 0) { rowsAffected.add(rowCount); }
+		if (error) { errorCount.increment(); }
+	}
+
+	/** Returns the call site, in the same format as a stack trace element */
+	public String getCallSite() { return callSite; }
+
+	/** Returns the normalised SQL */
+	public String getSql() { return sql; }
+
+	/** Returns the number of executions */
+	public long getCount() { return count.sum(); }
+
+	/** Returns the number of executions which threw an exception */
+	public long getErrorCount() { return errorCount.sum(); }
+
+	/** Returns the number of rows affected by updates */
+	public long getRowsAffected() { return rowsAffected.sum(); }
+
+	/** Returns the total execution time, in nanoseconds */
+	public long getTotalNanos() { return totalNanos.sum(); }
+
+}
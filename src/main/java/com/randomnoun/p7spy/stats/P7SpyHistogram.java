@@ -0,0 +1,123 @@
+package com.randomnoun.p7spy.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A lock-free histogram of durations, used to estimate percentiles.
+ *
+ * <p>Values are recorded into log-linear buckets: each power of two is divided into 8 sub-buckets,
+ * so percentiles are accurate to within 12.5%. Values up to 2^40 nanoseconds (about 18 minutes) are
+ * recorded; larger values are recorded in the highest bucket.
+ *
+ * <p>To reduce contention when the same histogram is updated from many threads, bucket counts are
+ * striped across several arrays, selected by thread id; the stripes are summed when a percentile is
+ * requested.
+ *
+ * @author knoxg
+ */
+public class P7SpyHistogram {
+
+	/** Number of bits used to select a sub-bucket within each power of two */
+	private static final int SUB_BUCKET_BITS = 3;
+
+	/** Number of sub-buckets within each power of two */
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+	/** Largest power of two recorded */
+	private static final int MAX_EXPONENT = 40;
+
+	/** Number of buckets in each stripe */
+	static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+	/** Number of stripes; a power of two */
+	private static final int STRIPE_COUNT = Math.min(4, Integer.highestOneBit(Runtime.getRuntime().availableProcessors()));
+
+	/** Bucket counts; stripe n occupies indexes [n * BUCKET_COUNT, (n + 1) * BUCKET_COUNT) */
+	private final AtomicLongArray buckets = new AtomicLongArray(STRIPE_COUNT * BUCKET_COUNT);
+
+	/** Record a value
+	 *
+	 * @param value the value to record, in nanoseconds
+	 */
+	public void record(long value) {
+		int stripe = (int) Thread.currentThread().getId() & (STRIPE_COUNT - 1);
+		buckets.incrementAndGet(stripe * BUCKET_COUNT + getBucketIndex(value));
+	}
+
+	/** Add the values recorded in another histogram to this one
+	 *
+	 * @param other the histogram to add
+	 */
+	public void merge(P7SpyHistogram other) {
+		long[] counts = other.getCounts();
+		int stripe = (int) Thread.currentThread().getId() & (STRIPE_COUNT - 1);
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] != 0) {
+				buckets.addAndGet(stripe * BUCKET_COUNT + i, counts[i]);
+			}
+		}
+	}
+
+	/** Returns the bucket that a value is recorded in */
+	static int getBucketIndex(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return value < 0 ? 0 : (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKET_COUNT - 1;
+		}
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+	}
+
+	/** Returns the largest value recorded in a bucket */
+	static long getBucketUpperBound(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+		long subBucket = index % SUB_BUCKET_COUNT;
+		long lowerBound = (SUB_BUCKET_COUNT + subBucket) << (exponent - SUB_BUCKET_BITS);
+		return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+	/** Returns the number of values recorded in each bucket, summed across all stripes */
+	private long[] getCounts() {
+		long[] counts = new long[BUCKET_COUNT];
+		for (int i = 0; i < buckets.length(); i++) {
+			counts[i % BUCKET_COUNT] += buckets.get(i);
+		}
+		return counts;
+	}
+
+	/** Returns the estimated values at the supplied percentiles. Values are recorded concurrently
+	 * with this method, so the result is approximate.
+	 *
+	 * @param percentiles percentiles to estimate, in ascending order, in the range 0.0 to 100.0
+	 *
+	 * @return an array of values, in nanoseconds, corresponding to the supplied percentiles,
+	 *   or an array of zeros if no values have been recorded
+	 */
+	public long[] getPercentiles(double... percentiles) {
+		long[] counts = getCounts();
+		long total = 0;
+		for (int i = 0; i < counts.length; i++) {
+			total += counts[i];
+		}
+		long[] result = new long[percentiles.length];
+		if (total == 0) { return result; }
+		int p = 0;
+		long cumulative = 0;
+		for (int i = 0; i < counts.length && p < percentiles.length; i++) {
+			cumulative += counts[i];
+			while (p < percentiles.length && cumulative >= Math.ceil(percentiles[p] / 100.0 * total)) {
+				result[p++] = getBucketUpperBound(i);
+			}
+		}
+		while (p < percentiles.length) {
+			result[p++] = getBucketUpperBound(BUCKET_COUNT - 1);
+		}
+		return result;
+	}
+
+}
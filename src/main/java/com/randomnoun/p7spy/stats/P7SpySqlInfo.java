@@ -0,0 +1,82 @@
+package com.randomnoun.p7spy.stats;
+
+/** Information extracted from a SQL string by {@link P7SpySqlParser}: the normalised SQL, the
+ * type of statement, and the tables that it references.
+ *
+ * <p>Instances are immutable and cached, so the same instance is returned for each execution of
+ * the same SQL.
+ *
+ * @author knoxg
+ */
+public class P7SpySqlInfo {
+
+	/** Types of SQL statement */
+	public enum StatementType {
+		SELECT, INSERT, UPDATE, DELETE, MERGE, DDL, CALL, OTHER
+	}
+
+	/** The normalised SQL */
+	private final String normalizedSql;
+
+	/** The type of statement */
+	private final StatementType statementType;
+
+	/** Tables referenced by the statement, in the order they first appear */
+	private final String[] tables;
+
+	/** For each table in {@link #tables}, true if the table is modified by the statement */
+	private final boolean[] written;
+
+	/** Create a new SqlInfo object
+	 *
+	 * @param normalizedSql the normalised SQL
+	 * @param statementType the type of statement
+	 * @param tables tables referenced by the statement
+	 * @param written for each table, true if the table is modified by the statement
+	 */
+	P7SpySqlInfo(String normalizedSql, StatementType statementType, String[] tables, boolean[] written) {
+		this.normalizedSql = normalizedSql;
+		this.statementType = statementType;
+		this.tables = tables;
+		this.written = written;
+	}
+
+	/** Returns the normalised SQL */
+	public String getNormalizedSql() { return normalizedSql; }
+
+	/** Returns the type of statement */
+	public StatementType getStatementType() { return statementType; }
+
+	/** Returns the number of distinct tables referenced by the statement */
+	public int getTableCount() { return tables.length; }
+
+	/** Returns the name of a table referenced by the statement. Unquoted identifiers are converted
+	 * to lower case; quoted identifiers are returned without their quotes.
+	 *
+	 * @param index the table index, between 0 and {@link #getTableCount()} - 1
+	 *
+	 * @return the table name, including any schema or catalog qualifiers
+	 */
+	public String getTable(int index) { return tables[index]; }
+
+	/** Returns true if a table is modified by the statement (i.e. it is the target of an
+	 * INSERT, UPDATE, DELETE, MERGE or DDL statement), or false if it is only read.
+	 *
+	 * @param index the table index, between 0 and {@link #getTableCount()} - 1
+	 *
+	 * @return true if the table is modified by the statement
+	 */
+	public boolean isWritten(int index) { return written[index]; }
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(statementType).append(" [");
+		for (int i = 0; i < tables.length; i++) {
+			if (i > 0) { sb.append(", "); }
+			sb.append(written[i] ? "w:" : "r:").append(tables[i]);
+		}
+		sb.append("] ").append(normalizedSql);
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,211 @@
+package com.randomnoun.p7spy.stats;
+
+/** Converts SQL into a normalised form, so that statements which differ only in their literal values
+ * can be grouped together.
+ *
+ * <p>Normalisation replaces string and numeric literals (including negative numbers, e.g. '<tt>IN (-1, -2)</tt>')
+ * with '<tt>?</tt>', collapses runs of whitespace
+ * into a single space, and collapses the placeholders in an IN list (e.g. '<tt>IN (?, ?, ?)</tt>') into a single
+ * placeholder (so that IN lists of different lengths are grouped together). Other lists of placeholders, such as 
+ * VALUES lists, function arguments and select lists, are not collapsed, as their length is part of the statement's
+ * structure. Quoted identifiers and comments are left as-is. e.g.
+ *
+ * <pre>
+ * SELECT *   FROM tblThing WHERE id = 5 AND name='bob' AND type IN (1, 2, 3)
+ * </pre>
+ *
+ * is normalised to
+ *
+ * <pre>
+ * SELECT * FROM tblThing WHERE id = ? AND name=? AND type IN (?)
+ * </pre>
+ *
+ * <p>Normalised SQL is cached by {@link P7SpySqlParser}, along with the other information extracted
+ * from the SQL.
+ *
+ * @author knoxg
+ */
+public class P7SpySqlNormalizer {
+
+	/** Returns the normalised form of the supplied SQL, from the cache if possible
+	 *
+	 * @param sql the SQL to normalise
+	 *
+	 * @return the normalised form of the SQL
+	 */
+	public static String normalize(String sql) {
+		return P7SpySqlParser.parse(sql).getNormalizedSql();
+	}
+
+	/** Returns the normalised form of the supplied SQL
+	 *
+	 * @param sql the SQL to normalise
+	 *
+	 * @return the normalised form of the SQL
+	 */
+	public static String normalizeUncached(String sql) {
+		int len = sql.length();
+		StringBuilder sb = new StringBuilder(len);
+		int i = 0;
+		// bit n is set if the parenthesis at depth n+1 encloses an IN list; deeper parentheses are never IN lists
+		long inLists = 0;
+		int depth = 0;
+		while (i < len) {
+			char ch = sql.charAt(i);
+			if (ch == '\'') {
+				// string literal; '' is an escaped quote
+				i++;
+				while (i < len) {
+					if (sql.charAt(i) == '\'') {
+						if (i + 1 < len && sql.charAt(i + 1) == '\'') { i += 2; }
+						else { break; }
+					} else {
+						i++;
+					}
+				}
+				i++;
+				appendPlaceholder(sb, isInList(inLists, depth));
+			} else if (ch == '"' || ch == '`') {
+				// quoted identifier
+				int end = sql.indexOf(ch, i + 1);
+				end = (end == -1) ? len : end + 1;
+				sb.append(sql, i, end);
+				i = end;
+			} else if (ch == '-' && i + 1 < len && sql.charAt(i + 1) == '-') {
+				// line comment
+				int end = sql.indexOf('\n', i);
+				end = (end == -1) ? len : end;
+				sb.append(sql, i, end);
+				i = end;
+			} else if (ch == '/' && i + 1 < len && sql.charAt(i + 1) == '*') {
+				// block comment (may contain optimiser hints)
+				int end = sql.indexOf("*/", i + 2);
+				end = (end == -1) ? len : end + 2;
+				sb.append(sql, i, end);
+				i = end;
+			} else if (ch == '-' && isNegativeSign(sql, i, sb)) {
+				// sign of a negative numeric literal, which is replaced along with the literal
+				i++;
+			} else if (Character.isWhitespace(ch)) {
+				while (i < len && Character.isWhitespace(sql.charAt(i))) { i++; }
+				if (sb.length() > 0) { sb.append(' '); }
+			} else if (Character.isDigit(ch) || (ch == '.' && i + 1 < len && Character.isDigit(sql.charAt(i + 1)))) {
+				if (sb.length() > 0 && isIdentifierChar(sb.charAt(sb.length() - 1))) {
+					// part of an identifier (e.g. 'table1')
+					sb.append(ch);
+					i++;
+				} else {
+					// numeric literal, including decimals, exponents and hex (e.g. 1.5e10, 0x1F)
+					i++;
+					while (i < len && (isIdentifierChar(sql.charAt(i)) || sql.charAt(i) == '.' ||
+						((sql.charAt(i) == '+' || sql.charAt(i) == '-') && (sql.charAt(i - 1) == 'e' || sql.charAt(i - 1) == 'E'))))
+					{
+						i++;
+					}
+					appendPlaceholder(sb, isInList(inLists, depth));
+				}
+			} else if (ch == '?') {
+				appendPlaceholder(sb, isInList(inLists, depth));
+				i++;
+			} else if (ch == '(') {
+				if (depth < 64) {
+					if (followsIn(sb)) { inLists |= 1L << depth; }
+					else { inLists &= ~(1L << depth); }
+				}
+				depth++;
+				sb.append(ch);
+				i++;
+			} else if (ch == ')') {
+				if (depth > 0) { depth--; }
+				sb.append(ch);
+				i++;
+			} else {
+				if (isIdentifierChar(ch) && depth > 0 && depth <= 64) {
+					// a subquery or expression, rather than a list of values
+					inLists &= ~(1L << (depth - 1));
+				}
+				sb.append(ch);
+				i++;
+			}
+		}
+		// trim trailing space
+		int sbLen = sb.length();
+		if (sbLen > 0 && sb.charAt(sbLen - 1) == ' ') {
+			sb.setLength(sbLen - 1);
+		}
+		return sb.toString();
+	}
+
+	/** Returns true if the innermost parenthesis at the current position encloses an IN list
+	 *
+	 * @param inLists bit n is set if the parenthesis at depth n+1 encloses an IN list
+	 * @param depth the current parenthesis depth
+	 */
+	private static boolean isInList(long inLists, int depth) {
+		return depth > 0 && depth <= 64 && (inLists & (1L << (depth - 1))) != 0;
+	}
+
+	/** Returns true if the normalised SQL ends with the keyword IN (optionally followed by a space), 
+	 * i.e. an opening parenthesis appended next would start an IN list
+	 *
+	 * @param sb the normalised SQL
+	 */
+	private static boolean followsIn(StringBuilder sb) {
+		int j = sb.length() - 1;
+		if (j >= 0 && sb.charAt(j) == ' ') { j--; }
+		return j >= 1 && 
+			(sb.charAt(j) == 'n' || sb.charAt(j) == 'N') &&
+			(sb.charAt(j - 1) == 'i' || sb.charAt(j - 1) == 'I') &&
+			(j == 1 || !isIdentifierChar(sb.charAt(j - 2)));
+	}
+
+	/** Append a placeholder to the normalised SQL. Within an IN list, a list of placeholders (e.g. "?, ?, ?")
+	 * is collapsed into a single placeholder.
+	 *
+	 * @param sb the normalised SQL
+	 * @param collapse true if the placeholder is within an IN list
+	 */
+	private static void appendPlaceholder(StringBuilder sb, boolean collapse) {
+		if (!collapse) {
+			sb.append('?');
+			return;
+		}
+		int j = sb.length() - 1;
+		if (j >= 0 && sb.charAt(j) == ' ') { j--; }
+		if (j >= 0 && sb.charAt(j) == ',') {
+			j--;
+			if (j >= 0 && sb.charAt(j) == ' ') { j--; }
+			if (j >= 0 && sb.charAt(j) == '?') {
+				sb.setLength(j + 1);
+				return;
+			}
+		}
+		sb.append('?');
+	}
+
+	/** Returns true if the minus sign at the supplied position is the sign of a numeric literal, rather than a
+	 * subtraction, i.e. it is immediately followed by a number and follows an operator, comma or opening
+	 * parenthesis
+	 *
+	 * @param sql the SQL being normalised
+	 * @param i the position of the minus sign
+	 * @param sb the normalised SQL so far
+	 */
+	private static boolean isNegativeSign(String sql, int i, StringBuilder sb) {
+		int len = sql.length();
+		if (!(i + 1 < len && (Character.isDigit(sql.charAt(i + 1)) ||
+			(sql.charAt(i + 1) == '.' && i + 2 < len && Character.isDigit(sql.charAt(i + 2))))))
+		{
+			return false;
+		}
+		int j = sb.length() - 1;
+		if (j >= 0 && sb.charAt(j) == ' ') { j--; }
+		return j < 0 || "(,=<>+-*/%".indexOf(sb.charAt(j)) != -1;
+	}
+
+	/** Returns true if the supplied character can be part of an unquoted identifier */
+	private static boolean isIdentifierChar(char ch) {
+		return Character.isLetterOrDigit(ch) || ch == '_' || ch == '$' || ch == '#';
+	}
+
+}
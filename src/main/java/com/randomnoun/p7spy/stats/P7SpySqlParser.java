@@ -0,0 +1,312 @@
+package com.randomnoun.p7spy.stats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.randomnoun.p7spy.stats.P7SpySqlInfo.StatementType;
+
+/** A lightweight SQL tokenizer which determines the type of a SQL statement and the tables
+ * that it references.
+ *
+ * <p>This is not a full SQL parser; it looks for the table names that follow keywords such as
+ * <tt>FROM</tt>, <tt>JOIN</tt>, <tt>INTO</tt>, <tt>UPDATE</tt> and <tt>TABLE</tt>, and skips over
+ * string literals, comments and common table expression names. It copes with the SQL typically
+ * generated by applications and ORMs, but may miss tables referenced in unusual vendor-specific syntax.
+ *
+ * <p>Tables that are the target of an INSERT, UPDATE, DELETE, MERGE or DDL statement are recorded
+ * as being written; all other tables are recorded as being read. e.g.
+ *
+ * <pre>
+ * INSERT INTO audit (id, name) SELECT id, name FROM Customer c JOIN "Order" o ON c.id = o.cust_id
+ * </pre>
+ *
+ * is an INSERT statement which writes to <tt>audit</tt> and reads from <tt>customer</tt> and
+ * <tt>Order</tt>.
+ *
+ * <p>Parsed SQL is cached, since the same SQL is typically executed many times.
+ *
+ * @author knoxg
+ */
+public class P7SpySqlParser {
+
+	/** Maximum number of entries in the cache before it is cleared */
+	private static final int MAX_CACHE_SIZE = 4096;
+
+	/** Cache of parsed SQL, keyed by the original SQL */
+	private static final ConcurrentHashMap<String, P7SpySqlInfo> cache = new ConcurrentHashMap<String, P7SpySqlInfo>();
+
+	/** Keywords which can't be table names or aliases */
+	private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList(
+		"ADD", "ALL", "ALTER", "AND", "AS", "BY", "CASCADE", "CHECK", "COLUMN", "CONNECT", "CONSTRAINT",
+		"CROSS", "DEFAULT", "DELETE", "DISTINCT", "DROP", "DUPLICATE", "ELSE", "END", "EXCEPT", "EXISTS",
+		"FETCH", "FOR", "FOREIGN", "FROM", "FULL", "GROUP", "HAVING", "IF", "IN", "INNER", "INSERT", "INTERSECT",
+		"INTO", "IS", "JOIN", "KEY", "LATERAL", "LEFT", "LIMIT", "LOCK", "MATCHED", "MERGE", "MINUS", "MODIFY",
+		"NATURAL", "NOT", "NULL", "OFFSET", "ON", "ONLY", "OR", "ORDER", "OUTER", "PARTITION", "PRIMARY",
+		"QUALIFY", "REFERENCES", "RENAME", "RESTRICT", "RETURNING", "RIGHT", "SELECT", "SET", "START",
+		"STRAIGHT_JOIN", "TABLE", "TABLESAMPLE", "THEN", "UNION", "UNIQUE", "UPDATE", "USING", "VALUES",
+		"WHEN", "WHERE", "WINDOW", "WITH"));
+
+	/** A token in a SQL statement */
+	private static class Token {
+		/** 'w' for an unquoted word, 'q' for a quoted identifier, or the punctuation character */
+		char kind;
+		/** For words, the upper-case text; for quoted identifiers, the identifier without quotes */
+		String text;
+		Token(char kind, String text) {
+			this.kind = kind;
+			this.text = text;
+		}
+		/** Returns true if this token is the supplied keyword */
+		boolean is(String keyword) {
+			return kind == 'w' && text.equals(keyword);
+		}
+		/** Returns true if this token could be the name of a table or alias */
+		boolean isName() {
+			return kind == 'q' || (kind == 'w' && !KEYWORDS.contains(text));
+		}
+		/** Returns the name of a table; unquoted identifiers are converted to lower case */
+		String getName() {
+			return kind == 'q' ? text : text.toLowerCase(Locale.ROOT);
+		}
+	}
+
+	/** Returns information about the supplied SQL, from the cache if possible
+	 *
+	 * @param sql the SQL to parse
+	 *
+	 * @return information about the SQL
+	 */
+	public static P7SpySqlInfo parse(String sql) {
+		P7SpySqlInfo info = cache.get(sql);
+		if (info == null) {
+			info = parseUncached(sql);
+			if (cache.size() >= MAX_CACHE_SIZE) {
+				// SQL with embedded literals will churn the cache; just start again
+				cache.clear();
+			}
+			cache.put(sql, info);
+		}
+		return info;
+	}
+
+	/** Returns information about the supplied SQL
+	 *
+	 * @param sql the SQL to parse
+	 *
+	 * @return information about the SQL
+	 */
+	public static P7SpySqlInfo parseUncached(String sql) {
+		List<Token> tokens = tokenize(sql);
+		Set<String> cteNames = new HashSet<String>();
+		StatementType type = getStatementType(tokens, cteNames);
+
+		Map<String, Boolean> tables = new LinkedHashMap<String, Boolean>();
+		boolean index = false;
+		// set bits indicate parentheses enclosing function arguments, e.g. EXTRACT(YEAR FROM d)
+		BitSet functionArgs = new BitSet();
+		int depth = 0;
+		Token prev = null;
+		int i = 0;
+		while (i < tokens.size()) {
+			Token t = tokens.get(i++);
+			int next = i;
+			if (t.kind == '(') {
+				depth++;
+				functionArgs.set(depth, prev != null && prev.isName());
+			} else if (t.kind == ')') {
+				if (depth > 0) { depth--; }
+			} else if (t.kind == 'w') {
+				if (t.is("FROM")) {
+					// not EXTRACT(... FROM ...), TRIM(... FROM ...) etc
+					if (!functionArgs.get(depth)) {
+						next = readTables(tokens, i, prev != null && prev.is("DELETE"), true, cteNames, tables);
+					}
+				} else if (t.is("JOIN") || t.is("USING")) {
+					next = readTables(tokens, i, false, t.is("USING"), cteNames, tables);
+				} else if (t.is("INTO")) {
+					if (type == StatementType.INSERT || type == StatementType.MERGE) {
+						next = readTables(tokens, i, true, false, cteNames, tables);
+					}
+				} else if (t.is("UPDATE")) {
+					// not SELECT ... FOR UPDATE, INSERT ... ON DUPLICATE KEY UPDATE, or ON UPDATE CASCADE
+					if (prev == null || !(prev.is("FOR") || prev.is("KEY") || prev.is("ON"))) {
+						next = readTables(tokens, i, true, false, cteNames, tables);
+					}
+				} else if (t.is("DELETE") || t.is("TRUNCATE")) {
+					// DELETE FROM is handled above; this is for DELETE table WHERE ... and TRUNCATE table
+					if (prev == null || !prev.is("ON")) {
+						next = readTables(tokens, i, true, false, cteNames, tables);
+					}
+				} else if (type == StatementType.DDL) {
+					if (t.is("TABLE") || t.is("VIEW")) {
+						next = readTables(tokens, i, true, false, cteNames, tables);
+					} else if (t.is("INDEX")) {
+						index = true;
+					} else if (t.is("ON") && index) {
+						next = readTables(tokens, i, true, false, cteNames, tables);
+						index = false;
+					} else if (t.is("REFERENCES")) {
+						next = readTables(tokens, i, false, false, cteNames, tables);
+					}
+				}
+			}
+			if (next == i) {
+				prev = t;
+			} else {
+				prev = null;
+				i = next;
+			}
+		}
+
+		String[] tableNames = new String[tables.size()];
+		boolean[] written = new boolean[tables.size()];
+		int j = 0;
+		for (Map.Entry<String, Boolean> e : tables.entrySet()) {
+			tableNames[j] = e.getKey();
+			written[j] = e.getValue();
+			j++;
+		}
+		return new P7SpySqlInfo(P7SpySqlNormalizer.normalizeUncached(sql), type, tableNames, written);
+	}
+
+	/** Determines the type of statement, and collects the names of any common table expressions
+	 *
+	 * @param tokens the tokenized SQL
+	 * @param cteNames a set which will be populated with the names of any common table expressions
+	 *
+	 * @return the type of statement
+	 */
+	private static StatementType getStatementType(List<Token> tokens, Set<String> cteNames) {
+		int i = 0;
+		// skip JDBC escape syntax and parenthesised selects
+		while (i < tokens.size() && (tokens.get(i).kind == '{' || tokens.get(i).kind == '(')) { i++; }
+		if (i == tokens.size() || tokens.get(i).kind != 'w') { return StatementType.OTHER; }
+		String keyword = tokens.get(i).text;
+		if (keyword.equals("WITH")) {
+			// WITH [RECURSIVE] name [(columns)] AS (query), ... statement
+			int depth = 0;
+			for (i = i + 1; i < tokens.size(); i++) {
+				Token t = tokens.get(i);
+				if (t.kind == '(') { depth++; }
+				else if (t.kind == ')') { depth--; }
+				else if (depth == 0 && t.kind == 'w' &&
+					(t.is("SELECT") || t.is("INSERT") || t.is("UPDATE") || t.is("DELETE") || t.is("MERGE")))
+				{
+					keyword = t.text;
+					break;
+				} else if (depth == 0 && (t.kind == 'q' || (t.kind == 'w' && !t.is("RECURSIVE") && !t.is("AS")))) {
+					cteNames.add(t.getName());
+				}
+			}
+		}
+		if (keyword.equals("SELECT")) { return StatementType.SELECT; }
+		if (keyword.equals("INSERT") || keyword.equals("REPLACE") || keyword.equals("UPSERT")) { return StatementType.INSERT; }
+		if (keyword.equals("UPDATE")) { return StatementType.UPDATE; }
+		if (keyword.equals("DELETE")) { return StatementType.DELETE; }
+		if (keyword.equals("MERGE")) { return StatementType.MERGE; }
+		if (keyword.equals("CREATE") || keyword.equals("ALTER") || keyword.equals("DROP") ||
+			keyword.equals("TRUNCATE") || keyword.equals("RENAME")) { return StatementType.DDL; }
+		if (keyword.equals("CALL") || keyword.equals("EXEC") || keyword.equals("EXECUTE")) { return StatementType.CALL; }
+		return StatementType.OTHER;
+	}
+
+	/** Reads a table name (or a comma-separated list of table names), each of which may be qualified
+	 * and followed by an alias.
+	 *
+	 * @param tokens the tokenized SQL
+	 * @param i the index of the first token to read
+	 * @param write true if the tables are written to by the statement
+	 * @param list true if a comma-separated list of tables is permitted
+	 * @param cteNames names of common table expressions, which are not recorded as tables
+	 * @param tables map of table names to a 'written' flag, which will be updated with the tables read
+	 *
+	 * @return the index of the first token following the table names
+	 */
+	private static int readTables(List<Token> tokens, int i, boolean write, boolean list, Set<String> cteNames, Map<String, Boolean> tables) {
+		int n = tokens.size();
+		while (true) {
+			// IF [NOT] EXISTS, ONLY
+			while (i < n && (tokens.get(i).is("IF") || tokens.get(i).is("NOT") || tokens.get(i).is("EXISTS") || tokens.get(i).is("ONLY"))) { i++; }
+			if (i == n || !tokens.get(i).isName()) { return i; }
+			String name = tokens.get(i++).getName();
+			while (i + 1 < n && tokens.get(i).kind == '.' && (tokens.get(i + 1).kind == 'w' || tokens.get(i + 1).kind == 'q')) {
+				name = name + "." + tokens.get(i + 1).getName();
+				i += 2;
+			}
+			if (!cteNames.contains(name)) {
+				Boolean written = tables.get(name);
+				tables.put(name, (written != null && written) || write);
+			}
+			// alias
+			if (i < n && tokens.get(i).is("AS")) { i++; }
+			if (i < n && tokens.get(i).isName()) { i++; }
+			if (!list || i == n || tokens.get(i).kind != ',') { return i; }
+			i++;
+		}
+	}
+
+	/** Splits SQL into words, quoted identifiers and punctuation. String literals, numbers,
+	 * comments and whitespace are discarded.
+	 *
+	 * @param sql the SQL to tokenize
+	 *
+	 * @return a list of tokens
+	 */
+	private static List<Token> tokenize(String sql) {
+		List<Token> tokens = new ArrayList<Token>();
+		int len = sql.length();
+		int i = 0;
+		while (i < len) {
+			char ch = sql.charAt(i);
+			if (ch == '\'') {
+				// string literal; '' is an escaped quote
+				i++;
+				while (i < len) {
+					if (sql.charAt(i) == '\'') {
+						if (i + 1 < len && sql.charAt(i + 1) == '\'') { i += 2; }
+						else { break; }
+					} else {
+						i++;
+					}
+				}
+				i++;
+			} else if (ch == '"' || ch == '`') {
+				int end = sql.indexOf(ch, i + 1);
+				end = (end == -1) ? len : end;
+				tokens.add(new Token('q', sql.substring(i + 1, end)));
+				i = end + 1;
+			} else if (ch == '-' && i + 1 < len && sql.charAt(i + 1) == '-') {
+				int end = sql.indexOf('\n', i);
+				i = (end == -1) ? len : end;
+			} else if (ch == '/' && i + 1 < len && sql.charAt(i + 1) == '*') {
+				int end = sql.indexOf("*/", i + 2);
+				i = (end == -1) ? len : end + 2;
+			} else if (Character.isWhitespace(ch)) {
+				i++;
+			} else if (Character.isDigit(ch)) {
+				while (i < len && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.')) { i++; }
+			} else if (Character.isLetter(ch) || ch == '_' || ch == '$' || ch == '#' || ch == '@') {
+				int start = i;
+				while (i < len && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '_' || sql.charAt(i) == '$' ||
+					sql.charAt(i) == '#' || sql.charAt(i) == '@'))
+				{
+					i++;
+				}
+				tokens.add(new Token('w', sql.substring(start, i).toUpperCase(Locale.ROOT)));
+			} else {
+				tokens.add(new Token(ch, null));
+				i++;
+			}
+		}
+		return tokens;
+	}
+
+}
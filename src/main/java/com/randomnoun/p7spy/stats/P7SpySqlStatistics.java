@@ -0,0 +1,117 @@
+package com.randomnoun.p7spy.stats;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Aggregated statistics for a single normalised SQL statement.
+ *
+ * <p>All counters are striped (LongAdder / LongAccumulator), so that the same statement can be
+ * recorded from many threads without contention.
+ *
+ * @author knoxg
+ */
+public class P7SpySqlStatistics {
+
+	/** The normalised SQL */
+	private final String sql;
+
+	/** Number of executions */
+	private final LongAdder count = new LongAdder();
+
+	/** Number of executions, halved each time statements are evicted; used to select statements for eviction */
+	private final LongAdder frequency = new LongAdder();
+
+	/** Number of executions that threw an exception */
+	private final LongAdder errorCount = new LongAdder();
+
+	/** Total execution time, in nanoseconds */
+	private final LongAdder totalNanos = new LongAdder();
+
+	/** Minimum execution time, in nanoseconds */
+	private final LongAccumulator minNanos = new LongAccumulator(Math::min, Long.MAX_VALUE);
+
+	/** Maximum execution time, in nanoseconds */
+	private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+	/** Execution time histogram */
+	private final P7SpyHistogram histogram = new P7SpyHistogram();
+
+	/** Create a new statistics entry
+	 *
+	 * @param sql the normalised SQL
+	 */
+	public P7SpySqlStatistics(String sql) {
+		this.sql = sql;
+	}
+
+	/** Record an execution of this statement
+	 *
+	 * @param durationNanos the execution time, in nanoseconds
+	 * @param error true if the execution threw an exception
+	 */
+	public void record(long durationNanos, boolean error) {
+		count.increment();
+		frequency.increment();
+		if (error) { errorCount.increment(); }
+		totalNanos.add(durationNanos);
+		minNanos.accumulate(durationNanos);
+		maxNanos.accumulate(durationNanos);
+		histogram.record(durationNanos);
+	}
+
+	/** Add the executions recorded in another statistics entry to this one
+	 *
+	 * @param other the statistics to add
+	 */
+	public void merge(P7SpySqlStatistics other) {
+		count.add(other.getCount());
+		frequency.add(other.getFrequency());
+		errorCount.add(other.getErrorCount());
+		totalNanos.add(other.getTotalNanos());
+		minNanos.accumulate(other.minNanos.get());
+		maxNanos.accumulate(other.getMaxNanos());
+		histogram.merge(other.histogram);
+	}
+
+	/** Returns the normalised SQL */
+	public String getSql() { return sql; }
+
+	/** Returns the number of executions */
+	public long getCount() { return count.sum(); }
+
+	/** Returns the number of recent executions, where each execution counts half as much each time
+	 * statements are evicted */
+	long getFrequency() { return frequency.sum(); }
+
+	/** Halve the number of recent executions, so that statements which are no longer executed
+	 * eventually become candidates for eviction */
+	void decayFrequency() {
+		frequency.add(-(frequency.sum() / 2));
+	}
+
+	/** Returns the number of executions that threw an exception */
+	public long getErrorCount() { return errorCount.sum(); }
+
+	/** Returns the total execution time, in nanoseconds */
+	public long getTotalNanos() { return totalNanos.sum(); }
+
+	/** Returns the minimum execution time, in nanoseconds, or 0 if there have been no executions */
+	public long getMinNanos() {
+		long min = minNanos.get();
+		return min == Long.MAX_VALUE ? 0 : min;
+	}
+
+	/** Returns the maximum execution time, in nanoseconds */
+	public long getMaxNanos() { return maxNanos.get(); }
+
+	/** Returns the estimated execution times, in nanoseconds, at the supplied percentiles
+	 *
+	 * @param percentiles percentiles to estimate, in ascending order, in the range 0.0 to 100.0
+	 *
+	 * @return estimated execution times at those percentiles
+	 */
+	public long[] getPercentiles(double... percentiles) {
+		return histogram.getPercentiles(percentiles);
+	}
+
+}
@@ -0,0 +1,296 @@
+package com.randomnoun.p7spy.stats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+import com.randomnoun.p7spy.P7SpyScheduler;
+import com.randomnoun.p7spy.P7SpyTrace;
+import com.randomnoun.p7spy.stats.P7SpySqlInfo.StatementType;
+
+/** Aggregates execution statistics for each SQL statement, and each table, accessed through p7spy.
+ *
+ * <p>SQL is normalised using {@link P7SpySqlNormalizer}, so that statements differing only in their
+ * literal values are grouped together. For each statement, the number of executions, number of errors,
+ * total, minimum and maximum execution time, and the 50th, 95th and 99th percentile execution times are
+ * recorded.
+ *
+ * <p>The number of statements tracked is bounded; when the limit is reached, the least frequently
+ * executed statements are evicted. Execution frequencies are halved after each eviction, so that a statement
+ * which was executed often in the past, but is no longer executed, is eventually evicted. The execution
+ * counts reported are not affected.
+ *
+ * <p>Statistics can also be aggregated by table, using the table names extracted from the SQL by
+ * {@link P7SpySqlParser}. For each table, the number of statements which read from and wrote to the table,
+ * the number of rows affected by <tt>executeUpdate</tt> and <tt>executeBatch</tt> methods, and the total
+ * execution time are recorded.
+ *
+ * <p>A report of the statements and tables with the highest total execution time is periodically logged
+ * at INFO level through this class's logger.
+ *
+ * <p>The following system properties are read when this class is loaded:
+ * <ul>
+ * <li><tt>p7spy.stats</tt> - if <tt>true</tt>, per-statement statistics are collected. Defaults to <tt>false</tt>.
+ * <li><tt>p7spy.stats.tables</tt> - if <tt>true</tt>, per-table statistics are collected. Defaults to <tt>false</tt>.
+ * <li><tt>p7spy.stats.maxTables</tt> - the maximum number of distinct tables tracked. Defaults to 1000.
+ * <li><tt>p7spy.stats.maxStatements</tt> - the maximum number of distinct statements tracked. Defaults to 500.
+ * <li><tt>p7spy.stats.reportInterval</tt> - the time between reports, in seconds, or 0 to disable reporting. Defaults to 60.
+ * <li><tt>p7spy.stats.topN</tt> - the number of statements and tables included in each report. Defaults to 20.
+ * </ul>
+ *
+ * @author knoxg
+ */
+public class P7SpyStatistics {
+
+	/** Logger instance for this class */
+	static Logger logger = Logger.getLogger(P7SpyStatistics.class);
+
+	/** Percentiles included in reports */
+	private static final double[] REPORT_PERCENTILES = { 50, 95, 99 };
+
+	/** If true, per-statement statistics are being collected */
+	private static volatile boolean enabled;
+
+	/** If true, per-table statistics are being collected */
+	private static volatile boolean tablesEnabled;
+
+	/** Maximum number of tables tracked */
+	private static int maxTables = Integer.getInteger("p7spy.stats.maxTables", 1000);
+
+	/** Number of statements and tables included in each report */
+	private static int topN = Integer.getInteger("p7spy.stats.topN", 20);
+
+	/** Statistics, keyed by normalised SQL */
+	private static final P7SpyBoundedMap<String, P7SpySqlStatistics> statistics = new P7SpyBoundedMap<String, P7SpySqlStatistics>(
+		Integer.getInteger("p7spy.stats.maxStatements", 500), P7SpySqlStatistics::getFrequency, P7SpySqlStatistics::decayFrequency);
+
+	/** Table statistics, keyed by table name */
+	private static final ConcurrentHashMap<String, P7SpyTableStatistics> tableStatistics = new ConcurrentHashMap<String, P7SpyTableStatistics>();
+
+	/** Number of table accesses that were not recorded because {@link #maxTables} was reached */
+	private static final LongAdder untrackedTableCount = new LongAdder();
+
+	/** Executor used to generate periodic reports */
+	private static ScheduledExecutorService reportExecutor;
+
+	static {
+		if (Boolean.getBoolean("p7spy.stats")) {
+			setEnabled(true);
+		}
+		if (Boolean.getBoolean("p7spy.stats.tables")) {
+			setTablesEnabled(true);
+		}
+	}
+
+	/** Returns true if per-statement statistics are being collected
+	 *
+	 * @return true if per-statement statistics are being collected
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/** Enable or disable per-statement statistics collection. Periodic reporting is started the first time
+	 * statistics are enabled.
+	 *
+	 * @param enabled if true, per-statement statistics will be collected
+	 */
+	public static synchronized void setEnabled(boolean enabled) {
+		if (enabled) { startReporting(); }
+		P7SpyStatistics.enabled = enabled;
+		P7SpyTrace.setFeatureEnabled(P7SpyTrace.FEATURE_STATISTICS, enabled);
+	}
+
+	/** Returns true if per-table statistics are being collected
+	 *
+	 * @return true if per-table statistics are being collected
+	 */
+	public static boolean isTablesEnabled() {
+		return tablesEnabled;
+	}
+
+	/** Enable or disable per-table statistics collection. Periodic reporting is started the first time
+	 * statistics are enabled.
+	 *
+	 * @param tablesEnabled if true, per-table statistics will be collected
+	 */
+	public static synchronized void setTablesEnabled(boolean tablesEnabled) {
+		if (tablesEnabled) { startReporting(); }
+		P7SpyStatistics.tablesEnabled = tablesEnabled;
+		P7SpyTrace.setFeatureEnabled(P7SpyTrace.FEATURE_TABLE_STATISTICS, tablesEnabled);
+	}
+
+	/** Set the maximum number of distinct statements tracked. If more statements than this are already
+	 * tracked, they are evicted when the next new statement is executed.
+	 *
+	 * @param maxStatements the maximum number of distinct statements tracked
+	 *
+	 * @throws IllegalArgumentException if maxStatements is less than 1
+	 */
+	public static void setMaxStatements(int maxStatements) {
+		if (maxStatements < 1) { throw new IllegalArgumentException("Invalid maxStatements " + maxStatements); }
+		statistics.setMaxSize(maxStatements);
+	}
+
+	/** Start the periodic report thread, if it hasn't already been started */
+	private static synchronized void startReporting() {
+		if (reportExecutor == null) {
+			long reportInterval = Long.getLong("p7spy.stats.reportInterval", 60);
+			if (reportInterval > 0) {
+				reportExecutor = P7SpyScheduler.scheduleAtFixedRate("p7spy-statistics", reportInterval, new Runnable() {
+					public void run() {
+						if (P7SpyStatistics.enabled) { report(); }
+						if (P7SpyStatistics.tablesEnabled) { reportTables(); }
+					}
+				});
+			}
+		}
+	}
+
+	/** Record an execution of a SQL statement
+	 *
+	 * @param sql the SQL executed; if null, nothing is recorded
+	 * @param durationNanos the execution time, in nanoseconds
+	 * @param rowCount the number of rows affected by the statement, or -1 if not known
+	 * @param error true if the execution threw an exception
+	 */
+	public static void record(String sql, long durationNanos, long rowCount, boolean error) {
+		if (sql == null) { return; }
+		P7SpySqlInfo info = P7SpySqlParser.parse(sql);
+		if (enabled) {
+			String normalizedSql = info.getNormalizedSql();
+			P7SpySqlStatistics sqlStatistics = statistics.get(normalizedSql, P7SpySqlStatistics::new);
+			sqlStatistics.record(durationNanos, error);
+		}
+		if (tablesEnabled) {
+			for (int i = 0; i < info.getTableCount(); i++) {
+				String table = info.getTable(i);
+				P7SpyTableStatistics ts = tableStatistics.get(table);
+				if (ts == null) {
+					if (tableStatistics.size() >= maxTables) {
+						untrackedTableCount.increment();
+						continue;
+					}
+					ts = tableStatistics.computeIfAbsent(table, P7SpyTableStatistics::new);
+				}
+				ts.record(info.getStatementType(), info.isWritten(i), durationNanos, rowCount, error);
+			}
+		}
+	}
+
+	/** Returns a snapshot of the statistics collected, ordered by total execution time, descending
+	 *
+	 * @return a list of statistics
+	 */
+	public static List<P7SpySqlStatistics> getStatistics() {
+		List<P7SpySqlStatistics> result = new ArrayList<P7SpySqlStatistics>(statistics.values());
+		final Map<P7SpySqlStatistics, Long> totals = new IdentityHashMap<P7SpySqlStatistics, Long>();
+		for (P7SpySqlStatistics s : result) { totals.put(s, s.getTotalNanos()); }
+		Collections.sort(result, new Comparator<P7SpySqlStatistics>() {
+			public int compare(P7SpySqlStatistics a, P7SpySqlStatistics b) {
+				return Long.compare(totals.get(b), totals.get(a));
+			}
+		});
+		return result;
+	}
+
+	/** Returns a snapshot of the table statistics collected, ordered by total execution time, descending
+	 *
+	 * @return a list of table statistics
+	 */
+	public static List<P7SpyTableStatistics> getTableStatistics() {
+		List<P7SpyTableStatistics> result = new ArrayList<P7SpyTableStatistics>(tableStatistics.values());
+		final Map<P7SpyTableStatistics, Long> totals = new IdentityHashMap<P7SpyTableStatistics, Long>();
+		for (P7SpyTableStatistics s : result) { totals.put(s, s.getTotalNanos()); }
+		Collections.sort(result, new Comparator<P7SpyTableStatistics>() {
+			public int compare(P7SpyTableStatistics a, P7SpyTableStatistics b) {
+				return Long.compare(totals.get(b), totals.get(a));
+			}
+		});
+		return result;
+	}
+
+	/** Returns the number of statements that have been evicted
+	 *
+	 * @return the number of statements that have been evicted
+	 */
+	public static long getEvictedCount() {
+		return statistics.getEvictedCount();
+	}
+
+	/** Discard all statistics collected so far */
+	public static void reset() {
+		statistics.clear();
+		tableStatistics.clear();
+		untrackedTableCount.reset();
+	}
+
+	/** Log the statements with the highest total execution time */
+	public static void report() {
+		List<P7SpySqlStatistics> list = getStatistics();
+		int n = Math.min(topN, list.size());
+		StringBuilder sb = new StringBuilder();
+		sb.append("p7spy SQL statistics: top ").append(n).append(" of ").append(list.size())
+			.append(" statements by total time (times in msec)");
+		long evicted = statistics.getEvictedCount();
+		if (evicted > 0) {
+			sb.append("; ").append(evicted).append(" infrequent statements evicted");
+		}
+		for (int i = 0; i < n; i++) {
+			P7SpySqlStatistics s = list.get(i);
+			long[] percentiles = s.getPercentiles(REPORT_PERCENTILES);
+			sb.append("\n  count=").append(s.getCount())
+				.append(" errors=").append(s.getErrorCount())
+				.append(" total=").append(formatMillis(s.getTotalNanos()))
+				.append(" min=").append(formatMillis(s.getMinNanos()))
+				.append(" max=").append(formatMillis(s.getMaxNanos()))
+				.append(" p50=").append(formatMillis(percentiles[0]))
+				.append(" p95=").append(formatMillis(percentiles[1]))
+				.append(" p99=").append(formatMillis(percentiles[2]))
+				.append(" : ").append(s.getSql());
+		}
+		logger.info(sb.toString());
+	}
+
+	/** Log the tables with the highest total execution time */
+	public static void reportTables() {
+		List<P7SpyTableStatistics> list = getTableStatistics();
+		int n = Math.min(topN, list.size());
+		StringBuilder sb = new StringBuilder();
+		sb.append("p7spy table statistics: top ").append(n).append(" of ").append(list.size())
+			.append(" tables by total time (times in msec)");
+		long untracked = untrackedTableCount.sum();
+		if (untracked > 0) {
+			sb.append("; ").append(untracked).append(" accesses to untracked tables");
+		}
+		for (int i = 0; i < n; i++) {
+			P7SpyTableStatistics s = list.get(i);
+			sb.append("\n  reads=").append(s.getReadCount())
+				.append(" writes=").append(s.getWriteCount())
+				.append(" rows=").append(s.getRowsAffected())
+				.append(" errors=").append(s.getErrorCount())
+				.append(" total=").append(formatMillis(s.getTotalNanos()))
+				.append(" :");
+			for (StatementType type : StatementType.values()) {
+				long count = s.getCount(type);
+				if (count > 0) { sb.append(' ').append(type).append('=').append(count); }
+			}
+			sb.append(" : ").append(s.getTable());
+		}
+		logger.info(sb.toString());
+	}
+
+	/** Format a duration in nanoseconds as milliseconds, to 3 decimal places */
+	static String formatMillis(long nanos) {
+		return String.format("%.3f", nanos / 1000000.0);
+	}
+
+}
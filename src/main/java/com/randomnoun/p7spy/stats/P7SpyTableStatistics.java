@@ -0,0 +1,89 @@
+package com.randomnoun.p7spy.stats;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import com.randomnoun.p7spy.stats.P7SpySqlInfo.StatementType;
+
+/** Aggregated statistics for a single table.
+ *
+ * <p>A statement which references several tables is recorded against each of them, so the execution
+ * times of different tables will overlap.
+ *
+ * @author knoxg
+ */
+public class P7SpyTableStatistics {
+
+	/** The table name */
+	private final String table;
+
+	/** Number of statements which read from this table */
+	private final LongAdder readCount = new LongAdder();
+
+	/** Number of statements which wrote to this table */
+	private final LongAdder writeCount = new LongAdder();
+
+	/** Number of statements which threw an exception */
+	private final LongAdder errorCount = new LongAdder();
+
+	/** Number of rows affected by statements which wrote to this table */
+	private final LongAdder rowsAffected = new LongAdder();
+
+	/** Total execution time, in nanoseconds */
+	private final LongAdder totalNanos = new LongAdder();
+
+	/** Number of statements, indexed by StatementType ordinal */
+	private final LongAdder[] typeCounts = new LongAdder[StatementType.values().length];
+
+	/** Create a new statistics entry
+	 *
+	 * @param table the table name
+	 */
+	public P7SpyTableStatistics(String table) {
+		this.table = table;
+		for (int i = 0; i < typeCounts.length; i++) {
+			typeCounts[i] = new LongAdder();
+		}
+	}
+
+	/** Record a statement which referenced this table
+	 *
+	 * @param type the type of statement
+	 * @param written true if the statement wrote to this table
+	 * @param durationNanos the execution time, in nanoseconds
+	 * @param rowCount the number of rows affected, or -1 if not known
+	 * @param error true if the execution threw an exception
+	 */
+	public void record(StatementType type, boolean written, long durationNanos, long rowCount, boolean error) {
+		if (written) {
+			writeCount.increment();
+			if (rowCount > 0) { rowsAffected.add(rowCount); }
+		} else {
+			readCount.increment();
+		}
+		if (error) { errorCount.increment(); }
+		totalNanos.add(durationNanos);
+		typeCounts[type.ordinal()].increment();
+	}
+
+	/** Returns the table name */
+	public String getTable() { return table; }
+
+	/** Returns the number of statements which read from this table */
+	public long getReadCount() { return readCount.sum(); }
+
+	/** Returns the number of statements which wrote to this table */
+	public long getWriteCount() { return writeCount.sum(); }
+
+	/** Returns the number of statements which threw an exception */
+	public long getErrorCount() { return errorCount.sum(); }
+
+	/** Returns the number of rows affected by statements which wrote to this table */
+	public long getRowsAffected() { return rowsAffected.sum(); }
+
+	/** Returns the total execution time, in nanoseconds */
+	public long getTotalNanos() { return totalNanos.sum(); }
+
+	/** Returns the number of statements of the supplied type which referenced this table */
+	public long getCount(StatementType type) { return typeCounts[type.ordinal()].sum(); }
+
+}
@@ -0,0 +1,103 @@
+package com.randomnoun.p7spy.stream;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.log4j.Logger;
+
+/** An InputStream which counts the bytes read from the stream it wraps, and logs its throughput when it is
+ * closed or the end of the stream is reached. See {@link P7SpyStreams}.
+ *
+ * <p>Instances are not thread-safe, which matches the streams returned by JDBC drivers.
+ *
+ * @author knoxg
+ */
+public class P7SpyInputStream extends FilterInputStream {
+
+	/** The logger of the JDBC wrapper that supplied this stream */
+	private final Logger logger;
+
+	/** The JDBC wrapper that supplied this stream */
+	private final Object wrapper;
+
+	/** Description of the method that supplied this stream */
+	private final String name;
+
+	/** The time this stream was wrapped, as returned by System.nanoTime() */
+	private final long startTime = System.nanoTime();
+
+	/** Bytes read or skipped */
+	private long bytes;
+
+	/** Read and skip calls */
+	private long calls;
+
+	/** Time spent inside read and skip calls, in nanoseconds */
+	private long stallNanos;
+
+	/** True if this stream's throughput has been logged */
+	private boolean reported;
+
+	/** Create a new stream wrapper
+	 *
+	 * @param in the stream to wrap
+	 * @param logger the logger of the JDBC wrapper that supplied the stream
+	 * @param wrapper the JDBC wrapper that supplied the stream
+	 * @param name a description of the method that supplied the stream
+	 */
+	public P7SpyInputStream(InputStream in, Logger logger, Object wrapper, String name) {
+		super(in);
+		this.logger = logger;
+		this.wrapper = wrapper;
+		this.name = name;
+	}
+
+	@Override
+	public int read() throws IOException {
+		long start = System.nanoTime();
+		int b = in.read();
+		stallNanos += System.nanoTime() - start;
+		calls++;
+		if (b == -1) { report(); } else { bytes++; }
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		long start = System.nanoTime();
+		int n = in.read(b, off, len);
+		stallNanos += System.nanoTime() - start;
+		calls++;
+		if (n == -1) { report(); } else { bytes += n; }
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long start = System.nanoTime();
+		long skipped = in.skip(n);
+		stallNanos += System.nanoTime() - start;
+		calls++;
+		bytes += skipped;
+		return skipped;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			in.close();
+		} finally {
+			report();
+		}
+	}
+
+	/** Log this stream's throughput, if it hasn't been logged already */
+	private void report() {
+		if (!reported) {
+			reported = true;
+			P7SpyStreams.report(logger, wrapper, name, "read", bytes, -1, calls, stallNanos, System.nanoTime() - startTime);
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+package com.randomnoun.p7spy.stream;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.log4j.Logger;
+
+/** An OutputStream which counts the bytes written to the stream it wraps, and logs its throughput when it is
+ * closed. See {@link P7SpyStreams}.
+ *
+ * <p>Unlike FilterOutputStream, arrays are passed to the wrapped stream as-is, rather than one byte at a time.
+ * Instances are not thread-safe, which matches the streams returned by JDBC drivers.
+ *
+ * @author knoxg
+ */
+public class P7SpyOutputStream extends FilterOutputStream {
+
+	/** The logger of the JDBC wrapper that supplied this stream */
+	private final Logger logger;
+
+	/** The JDBC wrapper that supplied this stream */
+	private final Object wrapper;
+
+	/** Description of the method that supplied this stream */
+	private final String name;
+
+	/** The time this stream was wrapped, as returned by System.nanoTime() */
+	private final long startTime = System.nanoTime();
+
+	/** Bytes written */
+	private long bytes;
+
+	/** Write calls */
+	private long calls;
+
+	/** Time spent inside write calls, in nanoseconds */
+	private long stallNanos;
+
+	/** True if this stream's throughput has been logged */
+	private boolean reported;
+
+	/** Create a new stream wrapper
+	 *
+	 * @param out the stream to wrap
+	 * @param logger the logger of the JDBC wrapper that supplied the stream
+	 * @param wrapper the JDBC wrapper that supplied the stream
+	 * @param name a description of the method that supplied the stream
+	 */
+	public P7SpyOutputStream(OutputStream out, Logger logger, Object wrapper, String name) {
+		super(out);
+		this.logger = logger;
+		this.wrapper = wrapper;
+		this.name = name;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		long start = System.nanoTime();
+		out.write(b);
+		stallNanos += System.nanoTime() - start;
+		calls++;
+		bytes++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		long start = System.nanoTime();
+		out.write(b, off, len);
+		stallNanos += System.nanoTime() - start;
+		calls++;
+		bytes += len;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		long start = System.nanoTime();
+		out.flush();
+		stallNanos += System.nanoTime() - start;
+	}
+
+	@Override
+	public void close() throws IOException {
+		long start = System.nanoTime();
+		try {
+			out.close();
+		} finally {
+			stallNanos += System.nanoTime() - start;
+			if (!reported) {
+				reported = true;
+				P7SpyStreams.report(logger, wrapper, name, "write", bytes, -1, calls, stallNanos, System.nanoTime() - startTime);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,103 @@
+package com.randomnoun.p7spy.stream;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+
+import org.apache.log4j.Logger;
+
+/** A Reader which counts the characters read from the reader it wraps, and logs its throughput when it is
+ * closed or the end of the stream is reached. See {@link P7SpyStreams}.
+ *
+ * <p>Instances are not thread-safe, which matches the readers returned by JDBC drivers.
+ *
+ * @author knoxg
+ */
+public class P7SpyReader extends FilterReader {
+
+	/** The logger of the JDBC wrapper that supplied this reader */
+	private final Logger logger;
+
+	/** The JDBC wrapper that supplied this reader */
+	private final Object wrapper;
+
+	/** Description of the method that supplied this reader */
+	private final String name;
+
+	/** The time this reader was wrapped, as returned by System.nanoTime() */
+	private final long startTime = System.nanoTime();
+
+	/** Characters read or skipped */
+	private long chars;
+
+	/** Read and skip calls */
+	private long calls;
+
+	/** Time spent inside read and skip calls, in nanoseconds */
+	private long stallNanos;
+
+	/** True if this reader's throughput has been logged */
+	private boolean reported;
+
+	/** Create a new reader wrapper
+	 *
+	 * @param in the reader to wrap
+	 * @param logger the logger of the JDBC wrapper that supplied the reader
+	 * @param wrapper the JDBC wrapper that supplied the reader
+	 * @param name a description of the method that supplied the reader
+	 */
+	public P7SpyReader(Reader in, Logger logger, Object wrapper, String name) {
+		super(in);
+		this.logger = logger;
+		this.wrapper = wrapper;
+		this.name = name;
+	}
+
+	@Override
+	public int read() throws IOException {
+		long start = System.nanoTime();
+		int c = in.read();
+		stallNanos += System.nanoTime() - start;
+		calls++;
+		if (c == -1) { report(); } else { chars++; }
+		return c;
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		long start = System.nanoTime();
+		int n = in.read(cbuf, off, len);
+		stallNanos += System.nanoTime() - start;
+		calls++;
+		if (n == -1) { report(); } else { chars += n; }
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long start = System.nanoTime();
+		long skipped = in.skip(n);
+		stallNanos += System.nanoTime() - start;
+		calls++;
+		chars += skipped;
+		return skipped;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			in.close();
+		} finally {
+			report();
+		}
+	}
+
+	/** Log this reader's throughput, if it hasn't been logged already */
+	private void report() {
+		if (!reported) {
+			reported = true;
+			P7SpyStreams.report(logger, wrapper, name, "read", -1, chars, calls, stallNanos, System.nanoTime() - startTime);
+		}
+	}
+
+}
@@ -0,0 +1,166 @@
+package com.randomnoun.p7spy.stream;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+
+import com.randomnoun.p7spy.P7SpyTrace;
+import com.randomnoun.p7spy.listener.P7SpyListeners;
+
+/** Wraps the streams passed to and returned from JDBC methods, and reports their throughput.
+ *
+ * <p>The generated wrapper classes call the <tt>wrap()</tt> methods in this class for every InputStream, Reader,
+ * OutputStream or Writer that is returned by a JDBC method (e.g. <tt>ResultSet.getBinaryStream()</tt>,
+ * <tt>Blob.setBinaryStream()</tt>) or passed to a JDBC method (e.g. <tt>PreparedStatement.setCharacterStream()</tt>)
+ * whilst DEBUG logging is enabled. The stream wrappers count the bytes or characters transferred, the number of
+ * read or write calls, and the time spent inside those calls (the 'stall time'), without buffering or copying any
+ * data. When the stream is closed, or the end of an input stream is reached, a single line is logged to the logger
+ * of the JDBC wrapper that created it; e.g.
+ * <pre>
+ * getBinaryStream(1) read: bytes=1048576, calls=256, stallTime=12, elapsedTime=40, 83.33MB/s
+ * </pre>
+ * 
+ * <p>The 'p7Id' MDC variable is set to the id of the JDBC wrapper whilst this line is logged, and the 'p7Duration'
+ * MDC variable to the elapsed time; both are restored afterwards. Bytes or characters skipped with 
+ * <tt>skip()</tt> are counted as read.
+ *
+ * <p>Throughput is calculated from the stall time, so it measures how quickly the driver supplied or consumed data,
+ * rather than how quickly the application processed it. Characters are counted as two bytes.
+ *
+ * @author knoxg
+ */
+public class P7SpyStreams {
+
+	/** Bytes per megabyte, as used in throughput calculations */
+	private static final double MEGABYTE = 1024 * 1024;
+
+	/** Wrap an InputStream
+	 *
+	 * @param in the stream to wrap
+	 * @param logger the logger of the JDBC wrapper
+	 * @param wrapper the JDBC wrapper
+	 * @param name a description of the method that supplied the stream, used in the log message
+	 *
+	 * @return a stream which reports its throughput, or null if <tt>in</tt> is null
+	 */
+	public static InputStream wrap(InputStream in, Logger logger, Object wrapper, String name) {
+		return in == null || in instanceof P7SpyInputStream ? in : new P7SpyInputStream(in, logger, wrapper, name);
+	}
+
+	/** Wrap a Reader
+	 *
+	 * @param in the reader to wrap
+	 * @param logger the logger of the JDBC wrapper
+	 * @param wrapper the JDBC wrapper
+	 * @param name a description of the method that supplied the reader, used in the log message
+	 *
+	 * @return a reader which reports its throughput, or null if <tt>in</tt> is null
+	 */
+	public static Reader wrap(Reader in, Logger logger, Object wrapper, String name) {
+		return in == null || in instanceof P7SpyReader ? in : new P7SpyReader(in, logger, wrapper, name);
+	}
+
+	/** Wrap an OutputStream
+	 *
+	 * @param out the stream to wrap
+	 * @param logger the logger of the JDBC wrapper
+	 * @param wrapper the JDBC wrapper
+	 * @param name a description of the method that supplied the stream, used in the log message
+	 *
+	 * @return a stream which reports its throughput, or null if <tt>out</tt> is null
+	 */
+	public static OutputStream wrap(OutputStream out, Logger logger, Object wrapper, String name) {
+		return out == null || out instanceof P7SpyOutputStream ? out : new P7SpyOutputStream(out, logger, wrapper, name);
+	}
+
+	/** Wrap a Writer
+	 *
+	 * @param out the writer to wrap
+	 * @param logger the logger of the JDBC wrapper
+	 * @param wrapper the JDBC wrapper
+	 * @param name a description of the method that supplied the writer, used in the log message
+	 *
+	 * @return a writer which reports its throughput, or null if <tt>out</tt> is null
+	 */
+	public static Writer wrap(Writer out, Logger logger, Object wrapper, String name) {
+		return out == null || out instanceof P7SpyWriter ? out : new P7SpyWriter(out, logger, wrapper, name);
+	}
+
+	/** Log the throughput of a stream
+	 *
+	 * @param logger the logger of the JDBC wrapper that supplied the stream
+	 * @param wrapper the JDBC wrapper that supplied the stream
+	 * @param name a description of the method that supplied the stream
+	 * @param operation "read" or "write"
+	 * @param bytes the number of bytes transferred, or -1 if characters were transferred
+	 * @param chars the number of characters transferred, or -1 if bytes were transferred
+	 * @param calls the number of read or write calls
+	 * @param stallNanos the time spent inside read or write calls, in nanoseconds
+	 * @param elapsedNanos the time between the stream being wrapped and the stream being closed, in nanoseconds
+	 */
+	static void report(Logger logger, Object wrapper, String name, String operation, long bytes, long chars, long calls,
+		long stallNanos, long elapsedNanos)
+	{
+		if (!logger.isDebugEnabled()) { return; }
+		StringBuilder sb = new StringBuilder(name);
+		sb.append(' ').append(operation).append(": ");
+		if (chars == -1) {
+			sb.append("bytes=").append(bytes);
+		} else {
+			sb.append("chars=").append(chars);
+			bytes = chars * 2;
+		}
+		sb.append(", calls=").append(calls);
+		sb.append(", stallTime=").append(P7SpyTrace.formatDuration(stallNanos));
+		sb.append(", elapsedTime=").append(P7SpyTrace.formatDuration(elapsedNanos));
+		appendMegabytesPerSecond(sb.append(", "), bytes, stallNanos);
+		Object oldId = MDC.get("p7Id");
+		Object oldDuration = MDC.get("p7Duration");
+		MDC.put("p7Id", P7SpyListeners.getWrapperId(wrapper));
+		MDC.put("p7Duration", P7SpyTrace.formatDuration(elapsedNanos));
+		try {
+			logger.debug(sb.toString());
+		} finally {
+			restoreMDC("p7Id", oldId);
+			restoreMDC("p7Duration", oldDuration);
+		}
+	}
+
+	/** Restore an MDC variable to its previous value */
+	private static void restoreMDC(String key, Object value) {
+		if (value == null) { MDC.remove(key); } else { MDC.put(key, value); }
+	}
+
+	/** Append the throughput of a LOB method to its log message
+	 *
+	 * @param logText the log message of the method, or null if it is not being logged synchronously
+	 * @param bytes the number of bytes transferred by the method
+	 * @param nanos the duration of the method, in nanoseconds
+	 *
+	 * @return the log message, with the number of bytes transferred and throughput appended
+	 */
+	public static String appendThroughput(String logText, long bytes, long nanos) {
+		if (logText == null) { return null; }
+		StringBuilder sb = new StringBuilder(logText.length() + 32).append(logText);
+		sb.append(" [").append(bytes).append(" bytes");
+		if (nanos > 0) {
+			appendMegabytesPerSecond(sb.append(", "), bytes, nanos);
+		}
+		return sb.append(']').toString();
+	}
+
+	/** Append a throughput, in MB/s, to the supplied StringBuilder */
+	private static void appendMegabytesPerSecond(StringBuilder sb, long bytes, long nanos) {
+		if (nanos <= 0) {
+			sb.append("-MB/s");
+		} else {
+			double rate = (bytes / MEGABYTE) / (nanos / 1000000000.0);
+			sb.append(Math.round(rate * 100) / 100.0).append("MB/s");
+		}
+	}
+
+}
@@ -0,0 +1,104 @@
+package com.randomnoun.p7spy.stream;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import org.apache.log4j.Logger;
+
+/** A Writer which counts the characters written to the writer it wraps, and logs its throughput when it is
+ * closed. See {@link P7SpyStreams}.
+ *
+ * <p>Instances are not thread-safe, which matches the writers returned by JDBC drivers.
+ *
+ * @author knoxg
+ */
+public class P7SpyWriter extends FilterWriter {
+
+	/** The logger of the JDBC wrapper that supplied this writer */
+	private final Logger logger;
+
+	/** The JDBC wrapper that supplied this writer */
+	private final Object wrapper;
+
+	/** Description of the method that supplied this writer */
+	private final String name;
+
+	/** The time this writer was wrapped, as returned by System.nanoTime() */
+	private final long startTime = System.nanoTime();
+
+	/** Characters written */
+	private long chars;
+
+	/** Write calls */
+	private long calls;
+
+	/** Time spent inside write calls, in nanoseconds */
+	private long stallNanos;
+
+	/** True if this writer's throughput has been logged */
+	private boolean reported;
+
+	/** Create a new writer wrapper
+	 *
+	 * @param out the writer to wrap
+	 * @param logger the logger of the JDBC wrapper that supplied the writer
+	 * @param wrapper the JDBC wrapper that supplied the writer
+	 * @param name a description of the method that supplied the writer
+	 */
+	public P7SpyWriter(Writer out, Logger logger, Object wrapper, String name) {
+		super(out);
+		this.logger = logger;
+		this.wrapper = wrapper;
+		this.name = name;
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		long start = System.nanoTime();
+		out.write(c);
+		stallNanos += System.nanoTime() - start;
+		calls++;
+		chars++;
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		long start = System.nanoTime();
+		out.write(cbuf, off, len);
+		stallNanos += System.nanoTime() - start;
+		calls++;
+		chars += len;
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		long start = System.nanoTime();
+		out.write(str, off, len);
+		stallNanos += System.nanoTime() - start;
+		calls++;
+		chars += len;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		long start = System.nanoTime();
+		out.flush();
+		stallNanos += System.nanoTime() - start;
+	}
+
+	@Override
+	public void close() throws IOException {
+		long start = System.nanoTime();
+		try {
+			out.close();
+		} finally {
+			stallNanos += System.nanoTime() - start;
+			if (!reported) {
+				reported = true;
+				P7SpyStreams.report(logger, wrapper, name, "write", -1, chars, calls, stallNanos, System.nanoTime() - startTime);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,133 @@
+package com.randomnoun.p7spy.trap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Finds which of a set of literal strings occur in a piece of text, in a single pass over
+ * the text, using the Aho-Corasick algorithm.
+ *
+ * <p>The automaton is compiled into a transition table when this object is created, so the
+ * time taken to search a string depends only on the length of the string, and not on the number
+ * of literals. Instances are immutable and can be used by any number of threads.
+ *
+ * @author knoxg
+ */
+public class P7SpyLiteralMatcher {
+
+	/** Character class for each ASCII character; 0 for characters that don't appear in any literal */
+	private final int[] asciiClasses = new int[128];
+
+	/** Character class for each non-ASCII character that appears in a literal */
+	private final Map<Character, Integer> otherClasses = new HashMap<Character, Integer>();
+
+	/** Transition table, indexed by state and character class */
+	private final int[][] transitions;
+
+	/** Ids of the literals which end at each state, or null if none do */
+	private final int[][] outputs;
+
+	/** Create a new matcher
+	 *
+	 * @param literals the literals to search for. A literal's id is its index in this array; null
+	 *   elements are ignored.
+	 */
+	public P7SpyLiteralMatcher(String[] literals) {
+		// assign a character class to each character appearing in the literals
+		int classCount = 1;
+		for (String literal : literals) {
+			if (literal == null) { continue; }
+			for (int i = 0; i < literal.length(); i++) {
+				char ch = literal.charAt(i);
+				if (getCharClass(ch) == 0) {
+					if (ch < 128) { asciiClasses[ch] = classCount++; }
+					else { otherClasses.put(ch, classCount++); }
+				}
+			}
+		}
+
+		// build the trie
+		List<int[]> gotos = new ArrayList<int[]>();
+		List<List<Integer>> outputList = new ArrayList<List<Integer>>();
+		gotos.add(new int[classCount]);
+		outputList.add(new ArrayList<Integer>());
+		for (int id = 0; id < literals.length; id++) {
+			String literal = literals[id];
+			if (literal == null || literal.length() == 0) { continue; }
+			int state = 0;
+			for (int i = 0; i < literal.length(); i++) {
+				int c = getCharClass(literal.charAt(i));
+				if (gotos.get(state)[c] == 0) {
+					gotos.get(state)[c] = gotos.size();
+					gotos.add(new int[classCount]);
+					outputList.add(new ArrayList<Integer>());
+				}
+				state = gotos.get(state)[c];
+			}
+			outputList.get(state).add(id);
+		}
+
+		// compute failure links breadth-first, converting the trie into a DFA
+		int stateCount = gotos.size();
+		int[] failure = new int[stateCount];
+		int[] queue = new int[stateCount];
+		int head = 0, tail = 0;
+		transitions = new int[stateCount][];
+		transitions[0] = gotos.get(0);
+		for (int c = 1; c < classCount; c++) {
+			int next = transitions[0][c];
+			if (next != 0) { queue[tail++] = next; }
+		}
+		while (head < tail) {
+			int state = queue[head++];
+			int[] row = gotos.get(state);
+			transitions[state] = row;
+			outputList.get(state).addAll(outputList.get(failure[state]));
+			for (int c = 1; c < classCount; c++) {
+				int next = row[c];
+				if (next != 0) {
+					failure[next] = transitions[failure[state]][c];
+					queue[tail++] = next;
+				} else {
+					row[c] = transitions[failure[state]][c];
+				}
+			}
+		}
+
+		outputs = new int[stateCount][];
+		for (int state = 0; state < stateCount; state++) {
+			List<Integer> ids = outputList.get(state);
+			if (!ids.isEmpty()) {
+				outputs[state] = new int[ids.size()];
+				for (int i = 0; i < ids.size(); i++) { outputs[state][i] = ids.get(i); }
+			}
+		}
+	}
+
+	/** Returns the character class of a character, or 0 if it doesn't appear in any literal */
+	private int getCharClass(char ch) {
+		if (ch < 128) { return asciiClasses[ch]; }
+		Integer c = otherClasses.get(ch);
+		return c == null ? 0 : c;
+	}
+
+	/** Search for the literals in some text
+	 *
+	 * @param text the text to search
+	 * @param found an array, indexed by literal id, whose elements are set to true for each literal
+	 *   found in the text. Elements for literals that weren't found are left unchanged.
+	 */
+	public void match(CharSequence text, boolean[] found) {
+		int state = 0;
+		int len = text.length();
+		for (int i = 0; i < len; i++) {
+			state = transitions[state][getCharClass(text.charAt(i))];
+			int[] ids = outputs[state];
+			if (ids != null) {
+				for (int id : ids) { found[id] = true; }
+			}
+		}
+	}
+
+}
@@ -0,0 +1,274 @@
+package com.randomnoun.p7spy.trap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/** A single SQL trap: a regular expression which is matched against SQL, and the action
+ * to perform when it matches.
+ *
+ * <p>Hit counts, the stacks at which the trap has matched (see {@link P7SpyTrapStack}), and whether a 'once'
+ * trap has already been logged, are held for the lifetime of this object; traps are recreated (and their
+ * counts reset) whenever the configuration file is reloaded.
+ *
+ * @author knoxg
+ */
+public class P7SpyTrap {
+
+	/** What to do when a trap matches */
+	public enum Action {
+		/** Log a stack trace each time the trap matches */
+		STACK,
+		/** Only count the number of times the trap matches */
+		COUNT,
+		/** Log a stack trace the first time the trap matches, and count subsequent matches */
+		ONCE
+	}
+
+	/** Matches embedded flags which enable the COMMENTS flag */
+	private static final Pattern COMMENTS_FLAG = Pattern.compile("\\(\\?[a-zA-Z]*x");
+
+	/** Matches embedded flags which mention the CASE_INSENSITIVE flag, e.g. <tt>(?i)</tt>, <tt>(?si)</tt>
+	 * or <tt>(?s-i)</tt>. Comparing in lower case is only ever looser than the regex, so this doesn't
+	 * need to distinguish flags being set from flags being cleared. */
+	private static final Pattern CASE_INSENSITIVE_FLAG = Pattern.compile("\\(\\?[a-zA-Z]*-?[a-zA-Z]*i");
+
+	/** Matches embedded flags which enable the UNICODE_CASE flag */
+	private static final Pattern UNICODE_CASE_FLAG = Pattern.compile("\\(\\?[a-zA-Z]*u");
+
+	/** The trap name, or null for the unnamed <tt>matchText</tt> trap */
+	private final String name;
+
+	/** The regex used to test against SQL */
+	private final String regex;
+
+	/** The compiled form of {@link #regex} */
+	private final Pattern pattern;
+
+	/** The action performed when this trap matches */
+	private final Action action;
+
+	/** A string which must appear in any SQL matched by this trap, or null */
+	private final String literal;
+
+	/** If true, {@link #literal} is in lower case and should be compared against lower-cased SQL */
+	private final boolean caseInsensitive;
+
+	/** Number of times this trap has matched */
+	private final LongAdder hitCount = new LongAdder();
+
+	/** Set when a 'once' trap has been logged */
+	private final AtomicBoolean logged = new AtomicBoolean();
+
+	/** The stacks at which this trap has matched */
+	private final ConcurrentHashMap<P7SpyTrapStack, P7SpyTrapStack> stacks = new ConcurrentHashMap<P7SpyTrapStack, P7SpyTrapStack>();
+
+	/** Create a new trap
+	 *
+	 * @param name the trap name, or null for the unnamed <tt>matchText</tt> trap
+	 * @param regex the regex used to test against SQL
+	 * @param action the action performed when this trap matches
+	 *
+	 * @throws PatternSyntaxException if the regex is invalid
+	 */
+	public P7SpyTrap(String name, String regex, Action action) {
+		this.name = name;
+		this.regex = regex;
+		this.pattern = Pattern.compile(regex);
+		this.action = action;
+		this.caseInsensitive = CASE_INSENSITIVE_FLAG.matcher(regex).find();
+		// whitespace in the regex isn't literal if the COMMENTS flag is set, and unicode case folding
+		// doesn't always agree with String.toLowerCase()
+		String lit = COMMENTS_FLAG.matcher(regex).find() || UNICODE_CASE_FLAG.matcher(regex).find() ? null : getRequiredLiteral(regex);
+		this.literal = (lit != null && caseInsensitive) ? lit.toLowerCase(Locale.ROOT) : lit;
+	}
+
+	/** Convert a matchAction property value into an Action
+	 *
+	 * @param action one of "stack", "count" or "once", or null
+	 *
+	 * @return the Action for that value, or Action.STACK if it is null
+	 *
+	 * @throws IllegalArgumentException if the action could not be parsed
+	 */
+	public static Action parseAction(String action) {
+		if (action == null || action.equalsIgnoreCase("stack")) { return Action.STACK; }
+		else if (action.equalsIgnoreCase("count")) { return Action.COUNT; }
+		else if (action.equalsIgnoreCase("once")) { return Action.ONCE; }
+		throw new IllegalArgumentException("Unknown matchAction '" + action + "'");
+	}
+
+	/** Returns the longest string that must appear in any text matched by the supplied regex, or null
+	 * if none could be determined, or it is too short to be worth searching for.
+	 *
+	 * <p>Only literal characters at the top level of the regex are considered; groups, character
+	 * classes and escape sequences such as <tt>\s</tt> are skipped, and regexes containing a top-level
+	 * alternation, or an escape sequence longer than two characters (e.g. <tt>\x20</tt>, <tt>\u0054</tt>,
+	 * <tt>\p{Lu}</tt> or a backreference), have no required literal.
+	 *
+	 * @param regex a regular expression
+	 *
+	 * @return a literal string, or null
+	 */
+	static String getRequiredLiteral(String regex) {
+		String best = "";
+		StringBuilder run = new StringBuilder();
+		int len = regex.length();
+		int i = 0;
+		while (i < len) {
+			char ch = regex.charAt(i);
+			String literal = null; // the literal text of this element, or null if it isn't a literal
+			if (ch == '|') {
+				return null;
+			} else if (ch == '\\' && i + 1 < len && regex.charAt(i + 1) == 'Q') {
+				int end = regex.indexOf("\\E", i + 2);
+				end = (end == -1) ? len : end;
+				literal = regex.substring(i + 2, end);
+				i = Math.min(len, end + 2);
+			} else if (ch == '\\' && i + 1 < len) {
+				char next = regex.charAt(i + 1);
+				if (Character.isDigit(next) || "xucpPkN".indexOf(next) != -1) {
+					// hex, unicode, octal and control escapes, properties and backreferences
+					return null;
+				}
+				if (!Character.isLetterOrDigit(next)) { literal = String.valueOf(next); }
+				i += 2;
+			} else if (ch == '[') {
+				i = skipClass(regex, i);
+			} else if (ch == '(') {
+				i = skipGroup(regex, i);
+			} else if (ch == '.' || ch == '^' || ch == '$' || ch == ')') {
+				i++;
+			} else {
+				literal = String.valueOf(ch);
+				i++;
+			}
+
+			char quantifier = i < len ? regex.charAt(i) : 0;
+			if (quantifier == '*' || quantifier == '?' || quantifier == '{' || quantifier == '+') {
+				if (quantifier == '{') {
+					int end = regex.indexOf('}', i);
+					i = (end == -1) ? len : end + 1;
+				} else {
+					i++;
+				}
+				// lazy or possessive quantifiers
+				if (i < len && (regex.charAt(i) == '?' || regex.charAt(i) == '+')) { i++; }
+				if (literal != null) {
+					// the last character is optional, unless it is repeated one or more times
+					run.append(literal, 0, quantifier == '+' ? literal.length() : literal.length() - 1);
+				}
+			} else if (literal != null) {
+				run.append(literal);
+				continue;
+			}
+			if (run.length() > best.length()) { best = run.toString(); }
+			run.setLength(0);
+		}
+		if (run.length() > best.length()) { best = run.toString(); }
+		return best.length() < 3 ? null : best;
+	}
+
+	/** Returns the index following the character class starting at the supplied index */
+	private static int skipClass(String regex, int i) {
+		int depth = 0;
+		int len = regex.length();
+		while (i < len) {
+			char ch = regex.charAt(i);
+			if (ch == '\\') { i += 2; continue; }
+			if (ch == '[') { depth++; }
+			else if (ch == ']' && --depth == 0) { return i + 1; }
+			i++;
+		}
+		return len;
+	}
+
+	/** Returns the index following the group starting at the supplied index */
+	private static int skipGroup(String regex, int i) {
+		int depth = 0;
+		int len = regex.length();
+		while (i < len) {
+			char ch = regex.charAt(i);
+			if (ch == '\\') { i += 2; continue; }
+			if (ch == '[') { i = skipClass(regex, i); continue; }
+			if (ch == '(') { depth++; }
+			else if (ch == ')' && --depth == 0) { return i + 1; }
+			i++;
+		}
+		return len;
+	}
+
+	/** Returns true if this trap matches the supplied SQL
+	 *
+	 * @param sql the SQL to test
+	 *
+	 * @return true if this trap matches the supplied SQL
+	 */
+	public boolean matches(String sql) {
+		return pattern.matcher(sql).matches();
+	}
+
+	/** Record a match of this trap
+	 *
+	 * @return true if a stack trace should be logged for this match
+	 */
+	public boolean hit() {
+		hitCount.increment();
+		switch (action) {
+			case STACK: return true;
+			case ONCE: return !logged.get() && logged.compareAndSet(false, true);
+			default: return false;
+		}
+	}
+
+	/** Returns the stack recorded by this trap which is equal to the supplied stack, recording it if this
+	 * trap hasn't matched at that stack before, so that matches can be counted per stack.
+	 *
+	 * @param stack the stack at which the trap matched
+	 *
+	 * @return the recorded stack, or the supplied stack if the maximum number of stacks has been recorded
+	 */
+	public P7SpyTrapStack getStack(P7SpyTrapStack stack) {
+		P7SpyTrapStack recorded = stacks.get(stack);
+		if (recorded == null) {
+			if (stacks.size() < P7SpyTrapStack.getMaxStacks()) {
+				recorded = stacks.putIfAbsent(stack, stack);
+			}
+			if (recorded == null) { recorded = stack; }
+		}
+		return recorded;
+	}
+
+	/** Returns the stacks at which this trap has matched */
+	public Collection<P7SpyTrapStack> getStacks() {
+		return new ArrayList<P7SpyTrapStack>(stacks.values());
+	}
+
+	/** Returns the trap name, or null for the unnamed <tt>matchText</tt> trap */
+	public String getName() { return name; }
+
+	/** Returns the regex used to test against SQL */
+	public String getRegex() { return regex; }
+
+	/** Returns the action performed when this trap matches */
+	public Action getAction() { return action; }
+
+	/** Returns a string which must appear in any SQL matched by this trap, or null */
+	public String getLiteral() { return literal; }
+
+	/** Returns true if {@link #getLiteral()} should be compared against lower-cased SQL */
+	public boolean isCaseInsensitive() { return caseInsensitive; }
+
+	/** Returns the number of times this trap has matched */
+	public long getHitCount() { return hitCount.sum(); }
+
+	public String toString() {
+		return (name == null ? "matchText" : name) + "=" + regex + " (" + action.name().toLowerCase() + ")";
+	}
+
+}
@@ -0,0 +1,130 @@
+package com.randomnoun.p7spy.trap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Matches SQL against a set of {@link P7SpyTrap}s.
+ *
+ * <p>Rather than evaluating every trap's regular expression against every SQL string, the
+ * literal text that each regex requires (e.g. the table name in <tt>.*FROM\s+tblThing.*</tt>) is
+ * searched for in a single pass using a {@link P7SpyLiteralMatcher}, and only the traps whose literals
+ * are present (or which have no usable literal) are evaluated.
+ *
+ * <p>Since the same SQL is typically executed many times, the traps matched by each SQL string
+ * are cached. The cache is bounded, and is discarded when the configuration is reloaded.
+ *
+ * @author knoxg
+ */
+public class P7SpyTrapMatcher {
+
+	/** Maximum number of entries in the cache before it is cleared */
+	private static final int MAX_CACHE_SIZE = 4096;
+
+	/** Returned when no traps match */
+	private static final P7SpyTrap[] NO_TRAPS = new P7SpyTrap[0];
+
+	/** A matcher with no traps */
+	public static final P7SpyTrapMatcher EMPTY = new P7SpyTrapMatcher(Collections.<P7SpyTrap>emptyList());
+
+	/** The traps, in the order they were defined */
+	private final P7SpyTrap[] traps;
+
+	/** Searches for the case-sensitive literals of each trap, or null if there are none */
+	private final P7SpyLiteralMatcher literalMatcher;
+
+	/** Searches for the case-insensitive literals of each trap, or null if there are none */
+	private final P7SpyLiteralMatcher lowerCaseLiteralMatcher;
+
+	/** Cache of matched traps, keyed by SQL */
+	private final ConcurrentHashMap<String, P7SpyTrap[]> cache = new ConcurrentHashMap<String, P7SpyTrap[]>();
+
+	/** Create a new matcher
+	 *
+	 * @param traps the traps to match
+	 */
+	public P7SpyTrapMatcher(List<P7SpyTrap> traps) {
+		this.traps = traps.toArray(new P7SpyTrap[traps.size()]);
+		String[] literals = new String[this.traps.length];
+		String[] lowerCaseLiterals = new String[this.traps.length];
+		boolean hasLiterals = false, hasLowerCaseLiterals = false;
+		for (int i = 0; i < this.traps.length; i++) {
+			P7SpyTrap trap = this.traps[i];
+			if (trap.getLiteral() == null) { continue; }
+			if (trap.isCaseInsensitive()) {
+				lowerCaseLiterals[i] = trap.getLiteral();
+				hasLowerCaseLiterals = true;
+			} else {
+				literals[i] = trap.getLiteral();
+				hasLiterals = true;
+			}
+		}
+		literalMatcher = hasLiterals ? new P7SpyLiteralMatcher(literals) : null;
+		lowerCaseLiteralMatcher = hasLowerCaseLiterals ? new P7SpyLiteralMatcher(lowerCaseLiterals) : null;
+	}
+
+	/** Returns the traps, in the order they were defined
+	 *
+	 * @return the traps
+	 */
+	public List<P7SpyTrap> getTraps() {
+		return Collections.unmodifiableList(Arrays.asList(traps));
+	}
+
+	/** Returns true if there are no traps
+	 *
+	 * @return true if there are no traps
+	 */
+	public boolean isEmpty() {
+		return traps.length == 0;
+	}
+
+	/** Returns the traps that match the supplied SQL, from the cache if possible
+	 *
+	 * @param sql the SQL to test
+	 *
+	 * @return the traps that match, or an empty array if none do. The returned array must not be modified.
+	 */
+	public P7SpyTrap[] match(String sql) {
+		if (traps.length == 0) { return NO_TRAPS; }
+		P7SpyTrap[] matched = cache.get(sql);
+		if (matched == null) {
+			matched = matchUncached(sql);
+			if (cache.size() >= MAX_CACHE_SIZE) {
+				// SQL with embedded literals will churn the cache; just start again
+				cache.clear();
+			}
+			cache.put(sql, matched);
+		}
+		return matched;
+	}
+
+	/** Returns the traps that match the supplied SQL
+	 *
+	 * @param sql the SQL to test
+	 *
+	 * @return the traps that match, or an empty array if none do
+	 */
+	P7SpyTrap[] matchUncached(String sql) {
+		boolean[] candidates = new boolean[traps.length];
+		if (literalMatcher != null) {
+			literalMatcher.match(sql, candidates);
+		}
+		if (lowerCaseLiteralMatcher != null) {
+			lowerCaseLiteralMatcher.match(sql.toLowerCase(Locale.ROOT), candidates);
+		}
+		List<P7SpyTrap> matched = null;
+		for (int i = 0; i < traps.length; i++) {
+			P7SpyTrap trap = traps[i];
+			if ((trap.getLiteral() == null || candidates[i]) && trap.matches(sql)) {
+				if (matched == null) { matched = new ArrayList<P7SpyTrap>(); }
+				matched.add(trap);
+			}
+		}
+		return matched == null ? NO_TRAPS : matched.toArray(new P7SpyTrap[matched.size()]);
+	}
+
+}
@@ -0,0 +1,165 @@
+package com.randomnoun.p7spy.trap;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.randomnoun.p7spy.P7SpyStacks;
+
+/** The call stack of an SQL execution matched by a trap.
+ *
+ * <p>Stacks are captured with a {@link StackWalker}, rather than by creating an exception, so only the
+ * frames that are needed are materialised. Frames from p7spy itself, Spring's <tt>JdbcTemplate</tt> and
+ * related classes, connection pools and reflection are filtered out, so that the stack starts at
+ * the code that issued the SQL; the remaining frames are limited to a fixed depth.
+ *
+ * <p>Frames are held as {@link StackTraceElement}s, which don't refer to the classes they describe.
+ * Stacks are equal if they contain the same methods at the same lines, so each
+ * {@link P7SpyTrap} can keep a single instance per call site, identified by a short hash, and count the
+ * number of times the trap matched there.
+ *
+ * <p>The following system properties are read when this class is loaded:
+ * <ul>
+ * <li><tt>p7spy.trap.stackDepth</tt> - the maximum number of frames in each stack. Defaults to 32.
+ * <li><tt>p7spy.trap.maxStacks</tt> - the maximum number of distinct stacks counted by each trap; stacks
+ *   matched after this limit is reached are logged in full each time. Defaults to 1000.
+ * </ul>
+ *
+ * @author knoxg
+ */
+public class P7SpyTrapStack {
+
+	/** Prefixes of classes whose frames are excluded from stacks */
+	private static final String[] EXCLUDED_CLASS_PREFIXES = {
+		"com.randomnoun.p7spy.jdbc_4_3.",
+		"com.randomnoun.p7spy.trap.",
+		"com.randomnoun.p7spy.datasource.",
+		"com.randomnoun.p7spy.P7SpyTrace",
+		"org.springframework.jdbc.core.",
+		"org.springframework.jdbc.datasource.",
+		"com.zaxxer.hikari.",
+		"org.apache.commons.dbcp",
+		"org.apache.tomcat.dbcp.",
+		"org.apache.tomcat.jdbc.pool.",
+		"com.mchange.v2.c3p0.",
+		"java.lang.reflect.",
+		"jdk.internal.reflect.",
+		"com.sun.proxy.",
+		"jdk.proxy"
+	};
+
+	/** Maximum number of frames in each stack */
+	private static volatile int stackDepth;
+
+	/** Maximum number of distinct stacks counted by each trap */
+	private static volatile int maxStacks;
+
+	static {
+		setStackDepth(Integer.getInteger("p7spy.trap.stackDepth", 32));
+		setMaxStacks(Integer.getInteger("p7spy.trap.maxStacks", 1000));
+	}
+
+	/** The frames of this stack, innermost first */
+	private final StackTraceElement[] frames;
+
+	/** Hash of the frames */
+	private final int hash;
+
+	/** Number of times a trap has matched at this stack */
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private P7SpyTrapStack(StackTraceElement[] frames) {
+		this.frames = frames;
+		this.hash = Arrays.hashCode(frames);
+	}
+
+	/** Set the maximum number of frames in each stack
+	 *
+	 * @param depth the maximum number of frames
+	 *
+	 * @throws IllegalArgumentException if depth is less than 1
+	 */
+	public static void setStackDepth(int depth) {
+		if (depth < 1) { throw new IllegalArgumentException("Invalid trap stack depth " + depth); }
+		stackDepth = depth;
+	}
+
+	/** Set the maximum number of distinct stacks counted by each trap
+	 *
+	 * @param max the maximum number of stacks
+	 *
+	 * @throws IllegalArgumentException if max is negative
+	 */
+	public static void setMaxStacks(int max) {
+		if (max < 0) { throw new IllegalArgumentException("Invalid trap stack limit " + max); }
+		maxStacks = max;
+	}
+
+	/** Returns the maximum number of distinct stacks counted by each trap */
+	static int getMaxStacks() {
+		return maxStacks;
+	}
+
+	/** Capture the stack of the current thread
+	 *
+	 * @return the stack of the current thread, excluding p7spy, JdbcTemplate and pool frames
+	 */
+	public static P7SpyTrapStack capture() {
+		final int depth = stackDepth;
+		return new P7SpyTrapStack(StackWalker.getInstance().walk(s -> s
+			.filter(f -> !P7SpyStacks.isExcluded(EXCLUDED_CLASS_PREFIXES, f.getClassName()))
+			.limit(depth)
+			.map(StackWalker.StackFrame::toStackTraceElement)
+			.toArray(StackTraceElement[]::new)));
+	}
+
+	/** Record a match at this stack
+	 *
+	 * @return the number of matches at this stack, including this one
+	 */
+	public long hit() {
+		return hitCount.incrementAndGet();
+	}
+
+	/** Returns an exception whose stack trace is this stack, so that it can be logged in the usual format
+	 *
+	 * @param message the exception message
+	 *
+	 * @return an exception containing this stack
+	 */
+	public RuntimeException toException(String message) {
+		RuntimeException e = new RuntimeException(message);
+		e.setStackTrace(getStackTrace());
+		return e;
+	}
+
+	/** Returns the frames of this stack, innermost first */
+	public StackTraceElement[] getStackTrace() {
+		return frames.clone();
+	}
+
+	/** Returns the short hash used to refer to this stack in log messages */
+	public String getId() {
+		return String.format("%08x", hash);
+	}
+
+	/** Returns the number of times a trap has matched at this stack */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public int hashCode() {
+		return hash;
+	}
+
+	public boolean equals(Object obj) {
+		if (this == obj) { return true; }
+		if (!(obj instanceof P7SpyTrapStack)) { return false; }
+		P7SpyTrapStack other = (P7SpyTrapStack) obj;
+		return hash == other.hash && Arrays.equals(frames, other.frames);
+	}
+
+	public String toString() {
+		return getId();
+	}
+
+}
@@ -0,0 +1,206 @@
+package com.randomnoun.p7spy.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.randomnoun.p7spy.analyzer.P7SpyAnalysis;
+import com.randomnoun.p7spy.analyzer.P7SpyAnalyzer;
+import com.randomnoun.p7spy.analyzer.P7SpyLogLine;
+import com.randomnoun.p7spy.stats.P7SpySqlStatistics;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the p7spy log analyzer
+ */
+public class P7SpyAnalyzerTest
+    extends TestCase
+{
+
+	File logDir;
+
+	/**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public P7SpyAnalyzerTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( P7SpyAnalyzerTest.class );
+    }
+
+    public void setUp() throws IOException {
+    	logDir = Files.createTempDirectory("p7spy-analyzer").toFile();
+    }
+
+    public void tearDown() {
+    	for (File f : logDir.listFiles()) {
+    		f.delete();
+    	}
+    	logDir.delete();
+    }
+
+    /** Returns a log line in the format used by the unit tests */
+    private static String line(long millis, String id, long duration, String message) {
+    	String time = String.format("%02d:%02d:%02d,%03d", millis / 3600000, millis / 60000 % 60, millis / 1000 % 60, millis % 1000);
+    	return String.format("%s, DEBUG [%-30s] [%5s] %s", time, id, duration == -1 ? "" : String.valueOf(duration), message);
+    }
+
+    /** Write a log containing a transaction, a repeated statement, a failed statement and an unclosed statement */
+    private File writeLog(String name, long start) throws IOException {
+    	List<String> lines = new ArrayList<String>();
+    	long t = start;
+    	String conn = "P7Connection@18b0930f";
+    	String ps = "P7PreparedStatement@4c7a078";
+    	String rs = "P7ResultSet@654c1a54";
+    	String pkg = "com.randomnoun.p7spy.jdbc_4_3.";
+    	lines.add("16:50:02,098, INFO  [                              ] [     ] P7Spy driver major version: 2");
+    	lines.add(line(t++, conn, -1, "new Connection()"));
+    	lines.add(line(t++, conn, 0, "setAutoCommit(false)"));
+    	lines.add(line(t += 10, ps, -1, "new PreparedStatement()"));
+    	lines.add(line(t++, conn, 3, "prepareStatement(\"SELECT wish_item FROM wish_list WHERE wish_id = ?\"): " + pkg + ps));
+    	for (int i = 0; i < 12; i++) {
+    		lines.add(line(t++, ps, 0, "setInt(1, " + i + ")"));
+    		lines.add(line(t++, ps, i == 11 ? 50 : 2, "executeQuery(): " + pkg + rs));
+    		lines.add(line(t++, rs, 0, "next(): true"));
+    		lines.add(line(t++, rs, 0, "getString(1): \"thing " + i + "\""));
+    		lines.add(line(t++, rs, 0, "close()"));
+    	}
+    	lines.add(line(t++, ps, 0, "close()"));
+    	lines.add(line(t++, "P7Statement@29df4d43", -1, "new Statement()"));
+    	lines.add(line(t++, conn, 0, "createStatement(): " + pkg + "P7Statement@29df4d43"));
+    	lines.add(line(t++, "P7Statement@29df4d43", 7, "executeUpdate(\"UPDATE wish_list SET wish_item = \\'x\\' WHERE wish_id = 1\"): 1"));
+    	lines.add(line(t++, "P7Statement@29df4d43", 4, "executeUpdate(\"DELETE FROM nonexistent\")"));
+    	lines.add("java.sql.SQLSyntaxErrorException: Table/View 'NONEXISTENT' does not exist.");
+    	lines.add("\tat org.apache.derby.impl.jdbc.SQLExceptionFactory.getSQLException(Unknown Source)");
+    	t += 500;
+    	lines.add(line(t++, conn, 1, "commit()"));
+    	Files.write(new File(logDir, name).toPath(), lines, StandardCharsets.UTF_8);
+    	return new File(logDir, name);
+    }
+
+    public void testParse() {
+    	P7SpyLogLine line = P7SpyLogLine.parse("16:50:03,888, DEBUG [P7Connection@18b0930f         ] [  106] prepareStatement(\"INSERT INTO t VALUES ( \\'a\\', ? )\"): com.randomnoun.p7spy.jdbc_4_3.P7PreparedStatement@4c7a078", TimeUnit.MILLISECONDS);
+    	assertEquals(((16 * 60 + 50) * 60 + 3) * 1000L + 888, line.getTimestamp());
+    	assertEquals("P7Connection@18b0930f", line.getId());
+    	assertEquals("Connection", line.getInterfaceName());
+    	assertEquals(106000000L, line.getDurationNanos());
+    	assertEquals("prepareStatement", line.getMethodName());
+    	assertEquals("INSERT INTO t VALUES ( 'a', ? )", line.getSql());
+    	assertEquals("P7PreparedStatement@4c7a078", line.getResultId());
+
+    	line = P7SpyLogLine.parse("2020-01-02 10:00:00,000 DEBUG [P7PreparedStatement@4c7a078   ] [    1] executeUpdate() sql=\"INSERT INTO t VALUES (?)\" parameters={1=\"x\"}: 1", TimeUnit.MICROSECONDS);
+    	assertEquals(1000L, line.getDurationNanos());
+    	assertEquals("executeUpdate", line.getMethodName());
+    	assertEquals("INSERT INTO t VALUES (?)", line.getSql());
+    	assertEquals("1", line.getResult());
+    	assertNull(line.getResultId());
+
+    	assertNull(P7SpyLogLine.parse("16:50:02,098, INFO  [                              ] [     ] P7Spy driver major version: 2", TimeUnit.MILLISECONDS));
+    	assertEquals("<init>", P7SpyLogLine.parse("[P7ResultSet@1 ] [    ] new ResultSet()", TimeUnit.MILLISECONDS).getMethodName());
+    }
+
+    private void checkAnalysis(P7SpyAnalysis analysis, int files, boolean chunked) {
+    	List<P7SpySqlStatistics> statements = analysis.getStatementsByTotalTime();
+    	assertEquals(3, statements.size());
+    	P7SpySqlStatistics select = statements.get(0);
+    	assertEquals("SELECT wish_item FROM wish_list WHERE wish_id = ?", select.getSql());
+    	assertEquals(12 * files, select.getCount());
+    	assertEquals(72000000L * files, select.getTotalNanos());
+    	assertEquals("SELECT wish_item FROM wish_list WHERE wish_id = ?", analysis.getStatementsByP99().get(0).getSql());
+    	assertEquals("UPDATE wish_list SET wish_item = ? WHERE wish_id = ?", statements.get(1).getSql());
+    	assertEquals(0, statements.get(1).getErrorCount());
+    	assertEquals("DELETE FROM nonexistent", statements.get(2).getSql());
+    	assertEquals(files, statements.get(2).getErrorCount());
+
+    	assertEquals(12 * files, analysis.getMethods().get("PreparedStatement.executeQuery").getCount());
+    	assertEquals(12 * files, analysis.getMethods().get("ResultSet.close").getCount());
+    	assertEquals(files, analysis.getConnections().size());
+    	assertEquals(2, analysis.getConnections().get(0).getStatements());
+    	assertEquals(files, analysis.getTransactionCount());
+    	assertEquals(files, analysis.getLongTransactions().size());
+    	// from the first call after setAutoCommit(false) to the commit
+    	assertEquals(566, analysis.getLongTransactions().get(0).getValue());
+    	if (!chunked) {
+    		// executions of statements created in an earlier chunk aren't included in runs
+    		assertEquals(files, analysis.getRepeatedStatements().size());
+    		assertEquals(12, analysis.getRepeatedStatements().get(0).getValue());
+    	}
+    	// the Statement and the Connection are never closed
+    	assertEquals(2 * files, analysis.getUnclosedCount());
+    }
+
+    public void testAnalyze() throws IOException {
+    	File log = writeLog("app.log", 0);
+    	P7SpyAnalyzer analyzer = new P7SpyAnalyzer();
+    	analyzer.setDurationUnit(TimeUnit.MILLISECONDS);
+    	checkAnalysis(analyzer.analyze(Arrays.asList(log)), 1, false);
+
+    	// the same results when the log is split into chunks of varying sizes
+    	for (int chunkSize : new int[] { 1, 100, 333, 1000 }) {
+    		analyzer.setChunkSize(chunkSize);
+    		analyzer.setThreads(3);
+    		checkAnalysis(analyzer.analyze(Arrays.asList(log)), 1, true);
+    	}
+
+    	// two JVMs
+    	analyzer.setChunkSize(64 * 1024 * 1024);
+    	File log2 = writeLog("app2.log", 300);
+    	P7SpyAnalysis analysis = analyzer.analyze(Arrays.asList(log, log2));
+    	checkAnalysis(analysis, 2, false);
+    	assertTrue(analysis.getConnections().get(0).getId().matches("app2?\\.log:P7Connection@18b0930f"));
+
+    	StringWriter sw = new StringWriter();
+    	analysis.report(new PrintWriter(sw), 5);
+    	String report = sw.toString();
+    	assertTrue(report, report.contains("Top 3 of 3 statements by total time"));
+    	assertTrue(report, report.contains("repeated statement (possible N+1 query): executed 12 times in succession on app.log:P7Connection@18b0930f"));
+    	assertTrue(report, report.contains("statement failed 2 of 2 times : DELETE FROM nonexistent"));
+    	assertTrue(report, report.contains("4 objects were not closed by the end of the log"));
+    }
+
+    public void testMerge() throws IOException {
+    	File log = writeLog("app.log", 0);
+    	File log2 = writeLog("app2.log", 300);
+    	P7SpyAnalyzer analyzer = new P7SpyAnalyzer();
+    	StringWriter sw = new StringWriter();
+    	analyzer.merge(Arrays.asList(log, log2), null, new PrintWriter(sw));
+    	String[] lines = sw.toString().split("\\r?\\n");
+    	assertEquals(2 * 72, lines.length);
+    	assertTrue(lines[0], lines[0].startsWith("app.log: 00:00:00,000, DEBUG [P7Connection@18b0930f"));
+    	long last = 0;
+    	for (String line : lines) {
+    		P7SpyLogLine logLine = P7SpyLogLine.parse(line.substring(line.indexOf(": ") + 2), TimeUnit.MILLISECONDS);
+    		if (logLine == null) { continue; }  // INFO line or stack trace
+    		long ts = logLine.getTimestamp();
+    		assertTrue(line, ts >= last);
+    		last = ts;
+    	}
+
+    	// a single connection, and the statements and result sets it created
+    	sw = new StringWriter();
+    	analyzer.merge(Arrays.asList(log), "P7Connection@18b0930f", new PrintWriter(sw));
+    	lines = sw.toString().split("\\r?\\n");
+    	// everything except the constructors of the two statements
+    	assertEquals(72 - 2, lines.length);
+    }
+
+}
@@ -0,0 +1,323 @@
+package com.randomnoun.p7spy.test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.randomnoun.p7spy.P7SpyMethods;
+import com.randomnoun.p7spy.P7SpyMethods.P7SpyMethod;
+import com.randomnoun.p7spy.async.P7SpyAsyncLogger;
+import com.randomnoun.p7spy.async.P7SpyEvent;
+import com.randomnoun.p7spy.async.P7SpyRingBuffer;
+import com.randomnoun.p7spy.async.P7SpyRingBuffer.FullPolicy;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for p7spy when logging asynchronously.
+ */
+public class P7SpyAsyncLoggerTest
+    extends TestCase
+{
+
+	P7SpyJdbc_3_0_Test p7SpyTest30 = new P7SpyJdbc_3_0_Test("P7SpyTests for JDK14");
+
+	/** An appender which blocks the consumer thread on the first event it receives, until released */
+	static class StalledAppender extends AppenderSkeleton {
+		CountDownLatch stalled = new CountDownLatch(1);
+		CountDownLatch released = new CountDownLatch(1);
+		List<String> messages = new ArrayList<String>();
+
+		protected void append(LoggingEvent event) {
+			synchronized (messages) {
+				messages.add(event.getRenderedMessage());
+			}
+			stalled.countDown();
+			try {
+				released.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		public void close() { }
+		public boolean requiresLayout() { return false; }
+	}
+
+	/** An appender which records the message, thread name and 'p7Id' and 'p7Duration' MDC variables of each event.
+	 * The MDC is read when the event is appended, as log4j falls back to the current thread's MDC
+	 * for events which haven't copied it. */
+	static class MDCAppender extends AppenderSkeleton {
+		List<String[]> events = new ArrayList<String[]>();
+		protected void append(LoggingEvent event) {
+			synchronized (events) {
+				events.add(new String[] { event.getRenderedMessage(), event.getThreadName(),
+					(String) MDC.get("p7Id"), (String) MDC.get("p7Duration") });
+			}
+		}
+		public void close() { }
+		public boolean requiresLayout() { return false; }
+	}
+
+	/** Records the arguments and result of each event drained from a ring buffer */
+	static class RecordingHandler implements Consumer<P7SpyEvent> {
+		List<String> events = new ArrayList<String>();
+		public void accept(P7SpyEvent event) {
+			events.add(Arrays.asList(event.getArgs()) + ": " + event.getResult());
+		}
+	}
+
+	/**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public P7SpyAsyncLoggerTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( P7SpyAsyncLoggerTest.class );
+    }
+
+    public void setUp() {
+    	p7SpyTest30.setUp();
+    	P7SpyAsyncLogger.setEnabled(true);
+    }
+
+    public void tearDown() {
+    	P7SpyAsyncLogger.setEnabled(false);
+    	System.clearProperty("p7spy.async.capacity");
+    	System.clearProperty("p7spy.async.fullPolicy");
+    }
+
+    /** Returns the id of a method of a wrapper class */
+    private static int getMethodId(String interfaceName, String methodName) throws ClassNotFoundException {
+    	Class.forName("com.randomnoun.p7spy.jdbc_4_3.P7" + interfaceName); // registers the method ids
+    	for (int i = 0; i < 10000; i++) {
+    		P7SpyMethod method = P7SpyMethods.getMethod(i);
+    		if (method != null && method.getInterfaceName().equals(interfaceName) && method.getMethodName().equals(methodName)) {
+    			return i;
+    		}
+    	}
+    	throw new IllegalArgumentException("No method " + interfaceName + "." + methodName);
+    }
+
+    /** Claim, fill in and publish an event */
+    private static boolean publish(P7SpyRingBuffer rb, int arg0, String arg1, boolean result) {
+    	P7SpyEvent event = rb.claim();
+    	if (event == null) { return false; }
+    	event.setArg(0, arg0);
+    	event.setArg(1, arg1);
+    	event.setResult(result);
+    	rb.publish(event);
+    	return true;
+    }
+
+    public void testCapacity() {
+    	assertEquals(2, new P7SpyRingBuffer(2, FullPolicy.BLOCK).getCapacity());
+    	assertEquals(8, new P7SpyRingBuffer(5, FullPolicy.BLOCK).getCapacity());
+    	assertEquals(8, new P7SpyRingBuffer(8, FullPolicy.BLOCK).getCapacity());
+    	assertEquals(1024, new P7SpyRingBuffer(1000, FullPolicy.DROP).getCapacity());
+    	try {
+    		new P7SpyRingBuffer(1, FullPolicy.BLOCK);
+    		fail("Expected IllegalArgumentException");
+    	} catch (IllegalArgumentException iae) {
+    		// expected
+    	}
+    }
+
+    public void testDropPolicies() {
+    	for (FullPolicy policy : new FullPolicy[] { FullPolicy.DROP, FullPolicy.DROP_AND_COUNT }) {
+    		// no consumer is draining the buffer
+    		P7SpyRingBuffer rb = new P7SpyRingBuffer(3, policy);
+    		assertEquals(4, rb.getCapacity());
+    		for (int i = 0; i < 4; i++) {
+    			assertTrue(publish(rb, i, "x" + i, i % 2 == 0));
+    		}
+    		assertFalse(publish(rb, 4, "x4", true));
+    		assertFalse(publish(rb, 5, "x5", true));
+    		assertEquals(4, rb.getPublishedCount());
+    		assertEquals(policy == FullPolicy.DROP_AND_COUNT ? 2 : 0, rb.getDroppedCount());
+
+    		// draining makes space available again
+    		RecordingHandler handler = new RecordingHandler();
+    		assertEquals(2, rb.drain(handler, 2));
+    		assertEquals("[[0, x0]: true, [1, x1]: false]", handler.events.toString());
+    		assertTrue(publish(rb, 6, "x6", false));
+    		assertTrue(publish(rb, 7, "x7", false));
+    		assertFalse(publish(rb, 8, "x8", false));
+    		assertEquals(policy == FullPolicy.DROP_AND_COUNT ? 3 : 0, rb.getDroppedCount());
+    		assertEquals(4, rb.drain(handler, 100));
+    		assertEquals("[[0, x0]: true, [1, x1]: false, [2, x2]: true, [3, x3]: false, [6, x6]: false, [7, x7]: false]", 
+    			handler.events.toString());
+    		assertTrue(rb.isEmpty());
+    		assertEquals(6, rb.getConsumedCount());
+    	}
+    }
+
+    public void testBlockPolicy() throws InterruptedException {
+    	final P7SpyRingBuffer rb = new P7SpyRingBuffer(2, FullPolicy.BLOCK);
+    	assertTrue(publish(rb, 0, "x0", true));
+    	assertTrue(publish(rb, 1, "x1", true));
+    	Thread producer = new Thread(new Runnable() {
+    		public void run() {
+    			publish(rb, 2, "x2", false);
+    		}
+    	});
+    	producer.start();
+    	producer.join(200);
+    	assertTrue(producer.isAlive()); // blocked until the consumer makes space available
+    	assertEquals(2, rb.getPublishedCount());
+
+    	RecordingHandler handler = new RecordingHandler();
+    	assertEquals(1, rb.drain(handler, 1));
+    	producer.join(5000);
+    	assertFalse(producer.isAlive());
+    	while (!rb.isEmpty()) { rb.drain(handler, 100); }
+    	assertEquals("[[0, x0]: true, [1, x1]: true, [2, x2]: false]", handler.events.toString());
+    	assertEquals(0, rb.getDroppedCount());
+    }
+
+    public void testStalledConsumer() throws Exception {
+    	int setInt = getMethodId("PreparedStatement", "setInt");
+    	Logger stalledLogger = Logger.getLogger("com.randomnoun.p7spy.test.stalled");
+    	StalledAppender appender = new StalledAppender();
+    	stalledLogger.addAppender(appender);
+    	stalledLogger.setAdditivity(false);
+    	stalledLogger.setLevel(Level.DEBUG);
+    	try {
+    		// restart the async logger with a small buffer
+    		P7SpyAsyncLogger.shutdown();
+    		System.setProperty("p7spy.async.capacity", "3");
+    		System.setProperty("p7spy.async.fullPolicy", "dropAndCount");
+    		P7SpyAsyncLogger.setEnabled(true);
+
+    		// the consumer stalls on the first event, which keeps its slot until it's been logged
+    		assertTrue(publishSetInt(stalledLogger, setInt, 0));
+    		assertTrue(appender.stalled.await(10, TimeUnit.SECONDS));
+    		for (int i = 1; i < 4; i++) {
+    			assertTrue(publishSetInt(stalledLogger, setInt, i));
+    		}
+    		for (int i = 4; i < 9; i++) {
+    			assertFalse(publishSetInt(stalledLogger, setInt, i));
+    		}
+    		assertEquals(5, P7SpyAsyncLogger.getDroppedCount());
+
+    		// events already queued are logged on shutdown
+    		appender.released.countDown();
+    		P7SpyAsyncLogger.shutdown();
+    		assertEquals(0, P7SpyAsyncLogger.getDroppedCount());
+    		assertEquals("[setInt(0, 0), setInt(1, 10), setInt(2, 20), setInt(3, 30)]", appender.messages.toString());
+    	} finally {
+    		appender.released.countDown();
+    		stalledLogger.removeAppender(appender);
+    		stalledLogger.setAdditivity(true);
+    		stalledLogger.setLevel(null);
+    	}
+    }
+
+    /** Publish a setInt() invocation to the async logger */
+    private boolean publishSetInt(Logger logger, int setInt, int i) {
+    	P7SpyEvent event = P7SpyAsyncLogger.claim(logger, this, setInt, null, System.nanoTime());
+    	if (event == null) { return false; }
+    	event.setArg(0, i);
+    	event.setArg(1, i * 10);
+    	P7SpyAsyncLogger.publish(event);
+    	return true;
+    }
+
+    public void testPublishAfterShutdown() throws Exception {
+    	int setInt = getMethodId("PreparedStatement", "setInt");
+    	Logger shutdownLogger = Logger.getLogger("com.randomnoun.p7spy.test.shutdown");
+    	MDCAppender appender = new MDCAppender();
+    	shutdownLogger.addAppender(appender);
+    	shutdownLogger.setAdditivity(false);
+    	shutdownLogger.setLevel(Level.DEBUG);
+    	MDC.put("p7Id", "previous");
+    	MDC.remove("p7Duration");
+    	try {
+    		// a wrapper which decided to log asynchronously before the shutdown logs synchronously instead
+    		P7SpyAsyncLogger.shutdown();
+    		assertTrue(publishSetInt(shutdownLogger, setInt, 1));
+    		assertEquals(1, appender.events.size());
+    		String[] event = appender.events.get(0);
+    		assertEquals("setInt(1, 10)", event[0]);
+    		assertEquals(Thread.currentThread().getName(), event[1]);
+    		assertEquals(P7SpyAsyncLoggerTest.class.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this)), event[2]);
+    		assertNotNull(event[3]);
+    		assertEquals("previous", MDC.get("p7Id"));
+    		assertNull(MDC.get("p7Duration"));
+    	} finally {
+    		MDC.remove("p7Id");
+    		shutdownLogger.removeAppender(appender);
+    		shutdownLogger.setAdditivity(true);
+    		shutdownLogger.setLevel(null);
+    	}
+    }
+
+    public void testAsyncLogging() throws SQLException {
+        String connectionURL = "jdbc:p7spy#org.apache.derby.iapi.jdbc.AutoloadedDriver:derby:memory:p7spyTestDB4;create=true";
+        Logger wrapperLogger = Logger.getLogger("com.randomnoun.p7spy.jdbc_4_3");
+        MDCAppender appender = new MDCAppender();
+        wrapperLogger.addAppender(appender);
+        try {
+            Connection conn = DriverManager.getConnection(connectionURL);
+            Statement s = conn.createStatement();
+            s.execute(P7SpyJdbc_3_0_Test.SQL_CREATE_TABLE);
+            s.close();
+            PreparedStatement ps = conn.prepareStatement(P7SpyJdbc_3_0_Test.SQL_CREATE_ITEM);
+            ps.setString(1, "thing");
+            ps.executeUpdate();
+            ps.close();
+            ps = conn.prepareStatement(P7SpyJdbc_3_0_Test.SQL_SELECT_ITEM);
+            ps.setString(1, "thing");
+            ResultSet rs = ps.executeQuery();
+            assertTrue(rs.next());
+            assertEquals("thing", rs.getString(1));
+            rs.close();
+            ps.close();
+            conn.close();
+
+            assertTrue(P7SpyAsyncLogger.flush(10000));
+        } finally {
+            wrapperLogger.removeAppender(appender);
+        }
+        String threadName = Thread.currentThread().getName();
+        boolean foundSetString = false;
+        synchronized (appender.events) {
+            for (String[] event : appender.events) {
+            	assertEquals(threadName, event[1]);
+            	assertNotNull(event[2]);
+            	assertNotNull(event[3]);
+            	if (event[0].equals("setString(1, \"thing\")")) {
+            		assertTrue(event[2].startsWith("P7PreparedStatement@"));
+            		foundSetString = true;
+            	}
+            }
+        }
+        assertTrue(foundSetString);
+    }
+
+}
@@ -0,0 +1,262 @@
+package com.randomnoun.p7spy.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.randomnoun.p7spy.P7SpyMethods;
+import com.randomnoun.p7spy.P7SpyMethods.P7SpyMethod;
+import com.randomnoun.p7spy.async.P7SpyAsyncLogger;
+import com.randomnoun.p7spy.async.P7SpyEvent;
+import com.randomnoun.p7spy.binary.P7SpyBinaryTrace;
+import com.randomnoun.p7spy.binary.P7SpyBinaryTraceReader;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for p7spy binary traces
+ */
+public class P7SpyBinaryTraceTest
+    extends TestCase
+{
+
+	P7SpyJdbc_3_0_Test p7SpyTest30 = new P7SpyJdbc_3_0_Test("P7SpyTests for JDK14");
+
+	File traceDir;
+
+	/** Logger passed with the invocations written to the trace by these tests */
+	static Logger logger = Logger.getLogger(P7SpyBinaryTraceTest.class);
+
+	/**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public P7SpyBinaryTraceTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( P7SpyBinaryTraceTest.class );
+    }
+
+    public void setUp() throws IOException {
+    	p7SpyTest30.setUp();
+    	traceDir = Files.createTempDirectory("p7spy-binary").toFile();
+    }
+
+    public void tearDown() {
+    	P7SpyBinaryTrace.close();
+    	for (File f : traceDir.listFiles()) {
+    		f.delete();
+    	}
+    	traceDir.delete();
+    }
+
+    /** Convert the trace to text using the supplied reader */
+    private String[] read(P7SpyBinaryTraceReader reader, String basePath) throws IOException {
+    	StringWriter sw = new StringWriter();
+    	PrintWriter pw = new PrintWriter(sw);
+    	for (File f : P7SpyBinaryTraceReader.getDataFiles(basePath)) {
+    		reader.read(f, pw);
+    	}
+    	return sw.toString().split("\\r?\\n");
+    }
+
+    private static int indexOf(String[] lines, String regex) {
+    	for (int i = 0; i < lines.length; i++) {
+    		if (lines[i].matches(regex)) { return i; }
+    	}
+    	return -1;
+    }
+
+    /** Returns the id of a method of a wrapper class */
+    private static int getMethodId(String interfaceName, String methodName) throws ClassNotFoundException {
+    	Class.forName("com.randomnoun.p7spy.jdbc_4_3.P7" + interfaceName); // registers the method ids
+    	for (int i = 0; i < 10000; i++) {
+    		P7SpyMethod method = P7SpyMethods.getMethod(i);
+    		if (method != null && method.getInterfaceName().equals(interfaceName) && method.getMethodName().equals(methodName)) {
+    			return i;
+    		}
+    	}
+    	throw new IllegalArgumentException("No method " + interfaceName + "." + methodName);
+    }
+
+    public void testTrace() throws SQLException, IOException {
+    	String basePath = new File(traceDir, "trace").getPath();
+    	P7SpyBinaryTrace.open(basePath, 1024 * 1024, 10);
+    	assertTrue(P7SpyBinaryTrace.isEnabled());
+
+        String connectionURL = "jdbc:p7spy#org.apache.derby.iapi.jdbc.AutoloadedDriver:derby:memory:p7spyTestDB17;create=true";
+        Connection conn = DriverManager.getConnection(connectionURL);
+        Statement s = conn.createStatement();
+        s.execute(P7SpyJdbc_3_0_Test.SQL_CREATE_TABLE);
+        s.close();
+        PreparedStatement ps = conn.prepareStatement(P7SpyJdbc_3_0_Test.SQL_CREATE_ITEM);
+        ps.setString(1, "thing");
+        ps.executeUpdate();
+        ps.close();
+        ps = conn.prepareStatement(P7SpyJdbc_3_0_Test.SQL_SELECT_ITEM);
+        ps.setString(1, "thing");
+        ResultSet rs = ps.executeQuery();
+        while (rs.next()) { rs.getString(1); }
+        rs.close();
+        ps.close();
+
+        Connection conn2 = DriverManager.getConnection(connectionURL);
+        s = conn2.createStatement();
+        s.executeQuery("SELECT COUNT(*) FROM wish_list").close();
+        s.close();
+        conn2.close();
+        conn.close();
+        P7SpyBinaryTrace.close();
+        assertFalse(P7SpyBinaryTrace.isEnabled());
+
+        String connId = "P7Connection@" + Integer.toHexString(System.identityHashCode(conn));
+        String conn2Id = "P7Connection@" + Integer.toHexString(System.identityHashCode(conn2));
+        String prefix = "\\d\\d:\\d\\d:\\d\\d,\\d\\d\\d, DEBUG \\[";
+
+        // everything
+        String[] lines = read(new P7SpyBinaryTraceReader(), basePath);
+        assertTrue(indexOf(lines, prefix + connId + " *\\] \\[ *\\d+\\] new Connection\\(\\)") != -1);
+        int prepareLine = indexOf(lines, prefix + connId + " *\\] \\[ *\\d+\\] prepareStatement\\(\"INSERT INTO wish_list \\( wish_item \\) VALUES \\( \\? \\)\"\\): com\\.randomnoun\\.p7spy\\.jdbc_4_3\\.P7PreparedStatement@[0-9a-f]+");
+        int setLine = indexOf(lines, prefix + "P7PreparedStatement@[0-9a-f]+ *\\] \\[ *\\d+\\] setString\\(1, \"thing\"\\)");
+        int updateLine = indexOf(lines, prefix + "P7PreparedStatement@[0-9a-f]+ *\\] \\[ *\\d+\\] executeUpdate\\(\\): 1");
+        assertTrue(prepareLine != -1);
+        assertTrue(setLine > prepareLine);
+        assertTrue(updateLine > setLine);
+        assertTrue(indexOf(lines, prefix + "P7ResultSet@[0-9a-f]+ *\\] \\[ *\\d+\\] getString\\(1\\): \"thing\"") != -1);
+        assertTrue(indexOf(lines, prefix + conn2Id + " *\\] \\[ *\\d+\\] close\\(\\)") != -1);
+
+        // filtered by SQL
+        P7SpyBinaryTraceReader reader = new P7SpyBinaryTraceReader();
+        reader.setSql("SELECT wish_item");
+        lines = read(reader, basePath);
+        assertTrue(indexOf(lines, ".*prepareStatement\\(\"SELECT wish_item.*") != -1);
+        assertTrue(indexOf(lines, ".*P7ResultSet@.*next\\(\\): true") != -1);
+        assertEquals(-1, indexOf(lines, ".*INSERT.*"));
+        assertEquals(-1, indexOf(lines, ".*COUNT.*"));
+        assertEquals(-1, indexOf(lines, ".*new Connection.*"));
+
+        // filtered by connection
+        reader = new P7SpyBinaryTraceReader();
+        reader.setConnection(conn2Id);
+        lines = read(reader, basePath);
+        assertTrue(indexOf(lines, ".*executeQuery\\(\"SELECT COUNT\\(\\*\\) FROM wish_list\"\\): .*") != -1);
+        assertTrue(indexOf(lines, ".*P7ResultSet@[0-9a-f]+ *\\] \\[ *\\d+\\] close\\(\\)") != -1);
+        assertEquals(-1, indexOf(lines, ".*wish_item.*"));
+        assertEquals(-1, indexOf(lines, ".*" + connId + ".*"));
+
+        // filtered by time
+        reader = new P7SpyBinaryTraceReader();
+        reader.setFrom(System.currentTimeMillis() + 60000);
+        lines = read(reader, basePath);
+        assertEquals(1, lines.length);
+        assertEquals("", lines[0]);
+    }
+
+    public void testRotation() throws Exception {
+    	String basePath = new File(traceDir, "rotate").getPath();
+    	// one region per file, so each thread that writes starts a new file
+    	P7SpyBinaryTrace.open(basePath, P7SpyBinaryTrace.HEADER_SIZE + P7SpyBinaryTrace.REGION_SIZE, 2);
+    	for (int i = 0; i < 4; i++) {
+    		Thread t = new Thread(new Runnable() {
+    			public void run() {
+    				P7SpyAsyncLogger.publish(logger, this, 0, null, null, null, System.nanoTime());
+    			}
+    		});
+    		t.start();
+    		t.join();
+    	}
+    	File[] files = P7SpyBinaryTrace.getFiles();
+    	assertEquals(2, files.length);
+    	assertTrue(files[1].getName(), files[1].getName().equals("rotate.000003.p7b"));
+    	P7SpyBinaryTrace.close();
+    	List<File> dataFiles = P7SpyBinaryTraceReader.getDataFiles(basePath);
+    	assertEquals(2, dataFiles.size());
+    	assertEquals("rotate.000002.p7b", dataFiles.get(0).getName());
+    	assertFalse(new File(traceDir, "rotate.000000.p7s").exists());
+    }
+
+    public void testInlineValues() throws Exception {
+    	String basePath = new File(traceDir, "inline").getPath();
+    	int setString = getMethodId("PreparedStatement", "setString");
+    	int setObject = getMethodId("PreparedStatement", "setObject");
+    	int getLong = getMethodId("ResultSet", "getLong");
+    	P7SpyBinaryTrace.open(basePath, 1024 * 1024, 10);
+    	for (int i = 0; i < 1000; i++) {
+    		P7SpyAsyncLogger.publish(logger, this, setString, new Object[] { 1, "value " + i }, null, null, System.nanoTime());
+    	}
+    	StringBuilder longValue = new StringBuilder();
+    	for (int i = 0; i < 100; i++) { longValue.append("long\n"); }
+    	P7SpyAsyncLogger.publish(logger, this, setString, new Object[] { 2, longValue.toString() }, null, null, System.nanoTime());
+    	// primitives recorded in the event's slots, as per the generated wrappers
+    	P7SpyEvent event = P7SpyAsyncLogger.claim(logger, this, setObject, null, System.nanoTime());
+    	event.setArg(0, 3);
+    	event.setArg(1, new BigDecimal("1.50"));
+    	event.setArg(2, 2.5d);
+    	event.setArg(3, 'x');
+    	P7SpyAsyncLogger.publish(event);
+    	event = P7SpyAsyncLogger.claim(logger, this, getLong, null, System.nanoTime());
+    	event.setArg(0, "id");
+    	event.setResult(Long.MAX_VALUE);
+    	P7SpyAsyncLogger.publish(event);
+    	P7SpyBinaryTrace.close();
+
+    	// bind values are stored in the records rather than the string table
+    	assertTrue(new File(basePath + ".000000.p7s").length() < 4096);
+    	String[] lines = read(new P7SpyBinaryTraceReader(), basePath);
+    	assertEquals(1003, lines.length);
+    	assertTrue(lines[0], lines[0].endsWith("setString(1, \"value 0\")"));
+    	assertTrue(lines[999], lines[999].endsWith("setString(1, \"value 999\")"));
+    	StringBuilder truncated = new StringBuilder();
+    	for (int i = 0; i < 40; i++) { truncated.append("long\\n"); }
+    	assertTrue(lines[1000], lines[1000].endsWith("setString(2, \"" + truncated + "\"...)"));
+    	assertTrue(lines[1001], lines[1001].endsWith("setObject(3, 1.50, 2.5, x)"));
+    	assertTrue(lines[1002], lines[1002].endsWith("getLong(\"id\"): " + Long.MAX_VALUE));
+    }
+
+    public void testStringTableRotation() throws Exception {
+    	String basePath = new File(traceDir, "strings").getPath();
+    	int executeQuery = getMethodId("Statement", "executeQuery");
+    	P7SpyBinaryTrace.open(basePath, P7SpyBinaryTrace.HEADER_SIZE + 4 * P7SpyBinaryTrace.REGION_SIZE, 10);
+    	// every statement has different SQL, so the string table fills before the data file does
+    	String padding = "AND 1 = 1 AND 2 = 2 AND 3 = 3 AND 4 = 4 AND 5 = 5 AND 6 = 6 AND 7 = 7 AND 8 = 8";
+    	for (int i = 0; i < 2000; i++) {
+    		P7SpyAsyncLogger.publish(logger, this, executeQuery, new Object[] { "SELECT * FROM t WHERE id = " + i + " " + padding },
+    			null, null, System.nanoTime());
+    	}
+    	File[] files = P7SpyBinaryTrace.getFiles();
+    	P7SpyBinaryTrace.close();
+    	assertTrue(files.length > 1);
+    	for (File f : files) {
+    		File stringsFile = new File(f.getPath().replace(".p7b", ".p7s"));
+    		assertTrue(stringsFile.length() <= P7SpyBinaryTrace.REGION_SIZE + 4096 * 3 + 7);
+    	}
+    	String[] lines = read(new P7SpyBinaryTraceReader(), basePath);
+    	assertEquals(2000, lines.length);
+    	for (int i = 0; i < 2000; i++) {
+    		assertTrue(lines[i], lines[i].endsWith("executeQuery(\"SELECT * FROM t WHERE id = " + i + " " + padding + "\"): null"));
+    	}
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.randomnoun.p7spy.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.randomnoun.p7spy.P7SpyConfig;
+import com.randomnoun.p7spy.P7SpyConfigWatcher;
+import com.randomnoun.p7spy.P7SpyTrace;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for reloading the p7spy configuration file
+ */
+public class P7SpyConfigTest
+    extends TestCase
+{
+
+	File originalConfigFile;
+
+	File configFile;
+
+	/**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public P7SpyConfigTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( P7SpyConfigTest.class );
+    }
+
+    public void setUp() throws IOException {
+    	// ensure the trace class (and watcher thread) is initialised
+    	P7SpyTrace.getConfig();
+    	originalConfigFile = P7SpyConfigWatcher.getConfigFile();
+    	File dir = new File("target/p7spy-config-test");
+    	dir.mkdirs();
+    	configFile = new File(dir, "p7spy-config.properties");
+    	configFile.delete();
+    }
+
+    public void tearDown() {
+    	configFile.delete();
+    	P7SpyConfigWatcher.setConfigFile(originalConfigFile);
+    }
+
+    private void write(String text) throws IOException {
+    	OutputStream os = new FileOutputStream(configFile);
+    	os.write(text.getBytes("ISO-8859-1"));
+    	os.close();
+    }
+
+    /** Wait for the watcher thread to publish a configuration with the supplied matchText */
+    private void waitForMatchText(String matchText) throws InterruptedException {
+    	long end = System.currentTimeMillis() + 10000;
+    	while (System.currentTimeMillis() < end) {
+    		String current = P7SpyTrace.getConfig().getMatchText();
+    		if (matchText == null ? current == null : matchText.equals(current)) { return; }
+    		Thread.sleep(50);
+    	}
+    	fail("Configuration not reloaded; matchText is '" + P7SpyTrace.getConfig().getMatchText() + "'");
+    }
+
+    public void testReload() throws Exception {
+    	P7SpyConfigWatcher.setConfigFile(configFile);
+    	assertSame(P7SpyConfig.EMPTY, P7SpyTrace.getConfig());
+    	assertFalse(P7SpyTrace.matchesArg("SELECT * FROM tblThing"));
+
+    	write("matchText=.*FROM\\\\s+tblThing.*\n");
+    	waitForMatchText(".*FROM\\s+tblThing.*");
+    	assertTrue(P7SpyTrace.matchesArg("SELECT * FROM tblThing"));
+    	assertFalse(P7SpyTrace.matchesArg("SELECT * FROM tblOther"));
+
+    	// invalid patterns retain the previous configuration
+    	P7SpyConfig config = P7SpyTrace.getConfig();
+    	write("matchText=(unclosed\n");
+    	P7SpyConfigWatcher.reload();
+    	assertSame(config, P7SpyTrace.getConfig());
+
+    	write("matchText=.*tblOther.*\n");
+    	waitForMatchText(".*tblOther.*");
+    	assertTrue(P7SpyTrace.matchesArg("SELECT * FROM tblOther"));
+
+    	configFile.delete();
+    	waitForMatchText(null);
+    	assertFalse(P7SpyTrace.matchesArg("SELECT * FROM tblOther"));
+    }
+
+}
@@ -0,0 +1,255 @@
+package com.randomnoun.p7spy.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.ConnectionPoolDataSource;
+import javax.sql.PooledConnection;
+import javax.sql.StatementEvent;
+import javax.sql.StatementEventListener;
+import javax.sql.XAConnection;
+import javax.sql.XADataSource;
+import javax.transaction.xa.XAResource;
+
+
+import com.randomnoun.p7spy.P7SpyDriver;
+import com.randomnoun.p7spy.P7SpyWrapper;
+import com.randomnoun.p7spy.datasource.P7SpyConnectionPoolDataSource;
+import com.randomnoun.p7spy.datasource.P7SpyDataSource;
+import com.randomnoun.p7spy.datasource.P7SpyDataSourceStatistics;
+import com.randomnoun.p7spy.datasource.P7SpyXADataSource;
+import com.randomnoun.p7spy.jdbc_4_3.P7Connection;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for p7spy DataSource wrappers
+ */
+public class P7SpyDataSourceTest
+    extends TestCase
+{
+
+	P7SpyJdbc_3_0_Test p7SpyTest30 = new P7SpyJdbc_3_0_Test("P7SpyTests for JDK14");
+
+	/**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public P7SpyDataSourceTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( P7SpyDataSourceTest.class );
+    }
+
+    public void setUp() {
+    	p7SpyTest30.setUp();
+    	P7SpyDataSourceStatistics.reset();
+    }
+
+    /** A minimal XAConnection over a derby connection, as the derby DataSource classes aren't on the test classpath */
+    static class TestXAConnection implements XAConnection {
+    	Connection physicalConnection;
+    	List<ConnectionEventListener> listeners = new ArrayList<ConnectionEventListener>();
+    	List<StatementEventListener> statementListeners = new ArrayList<StatementEventListener>();
+    	TestXAConnection() throws SQLException {
+    		physicalConnection = DriverManager.getConnection("jdbc:derby:memory:p7spyTestDB14;create=true");
+    	}
+    	public Connection getConnection() throws SQLException {
+    		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[] { Connection.class }, new InvocationHandler() {
+    			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    				if (method.getName().equals("close")) {
+    					for (ConnectionEventListener listener : new ArrayList<ConnectionEventListener>(listeners)) {
+    						listener.connectionClosed(new ConnectionEvent(TestXAConnection.this));
+    					}
+    					return null;
+    				} else if (method.getName().equals("prepareStatement")) {
+    					return prepareStatement((PreparedStatement) method.invoke(physicalConnection, args));
+    				}
+    				return method.invoke(physicalConnection, args);
+    			}
+    		});
+    	}
+    	public void close() throws SQLException { physicalConnection.close(); }
+    	public void addConnectionEventListener(ConnectionEventListener listener) { listeners.add(listener); }
+    	public void removeConnectionEventListener(ConnectionEventListener listener) { listeners.remove(listener); }
+    	public void addStatementEventListener(StatementEventListener listener) { statementListeners.add(listener); }
+    	public void removeStatementEventListener(StatementEventListener listener) { statementListeners.remove(listener); }
+    	/** Returns a PreparedStatement which raises a StatementEvent when it is closed */
+    	private PreparedStatement prepareStatement(final PreparedStatement physicalStatement) {
+    		return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class[] { PreparedStatement.class }, new InvocationHandler() {
+    			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    				if (method.getName().equals("close")) {
+    					for (StatementEventListener listener : new ArrayList<StatementEventListener>(statementListeners)) {
+    						listener.statementClosed(new StatementEvent(TestXAConnection.this, (PreparedStatement) proxy));
+    					}
+    				}
+    				return method.invoke(physicalStatement, args);
+    			}
+    		});
+    	}
+    	public XAResource getXAResource() throws SQLException { return (XAResource) Proxy.newProxyInstance(
+    		XAResource.class.getClassLoader(), new Class[] { XAResource.class }, new InvocationHandler() {
+    			public Object invoke(Object proxy, Method method, Object[] args) { return null; }
+    		}); }
+    }
+
+    /** Returns a DataSource of the supplied type, which supplies TestXAConnections */
+    @SuppressWarnings("unchecked")
+    private <T> T getTestDataSource(Class<T> dataSourceClass) {
+    	return (T) Proxy.newProxyInstance(dataSourceClass.getClassLoader(), new Class[] { dataSourceClass }, new InvocationHandler() {
+    		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    			return new TestXAConnection();
+    		}
+    	});
+    }
+
+    /** Run a query through a connection, and check that it was wrapped */
+    private void query(Connection conn) throws SQLException {
+    	assertTrue(conn instanceof P7Connection);
+    	Statement s = conn.createStatement();
+    	assertTrue(s instanceof P7SpyWrapper);
+    	ResultSet rs = s.executeQuery("VALUES 1");
+    	assertTrue(rs.next());
+    	assertEquals(1, rs.getInt(1));
+    	rs.close();
+    	s.close();
+    }
+
+    public void testDataSource() throws SQLException {
+    	P7SpyDataSource urlDataSource = new P7SpyDataSource();
+    	urlDataSource.setUrl("jdbc:derby:memory:p7spyTestDB14;create=true");
+    	Connection conn = urlDataSource.getConnection();
+    	query(conn);
+    	conn.close();
+    	assertEquals(1, P7SpyDataSourceStatistics.getPhysicalConnectionCount());
+    	assertEquals(0, P7SpyDataSourceStatistics.getLogicalConnectionCount());
+
+    	P7SpyDataSource dataSource = new P7SpyDataSource(urlDataSource);
+    	assertSame(dataSource, dataSource.unwrap(P7SpyDataSource.class));
+    	conn = dataSource.getConnection();
+    	query(conn);
+    	conn.close();
+    	assertEquals(2, P7SpyDataSourceStatistics.getPhysicalConnectionCount());
+    	assertEquals(1, P7SpyDataSourceStatistics.getLogicalConnectionCount());
+    	assertTrue(P7SpyDataSourceStatistics.getAcquireTime().getPercentiles(100.0)[0] > 0);
+
+    	urlDataSource.setUrl("jdbc:nosuchdriver:test");
+    	try {
+    		urlDataSource.getConnection();
+    		fail("expected SQLException");
+    	} catch (SQLException sqle) {
+    		assertEquals("08001", sqle.getSQLState());
+    	}
+    	assertEquals(1, P7SpyDataSourceStatistics.getErrorCount());
+    }
+
+    public void testPooledConnection() throws SQLException {
+    	P7SpyConnectionPoolDataSource dataSource = new P7SpyConnectionPoolDataSource(getTestDataSource(ConnectionPoolDataSource.class));
+    	final List<Object> closedSources = new ArrayList<Object>();
+    	ConnectionEventListener listener = new ConnectionEventListener() {
+    		public void connectionClosed(ConnectionEvent event) { closedSources.add(event.getSource()); }
+    		public void connectionErrorOccurred(ConnectionEvent event) { }
+    	};
+
+    	PooledConnection pooledConnection = dataSource.getPooledConnection();
+    	pooledConnection.addConnectionEventListener(listener);
+    	for (int i = 0; i < 2; i++) {
+    		Connection conn = pooledConnection.getConnection();
+    		query(conn);
+    		conn.close();
+    	}
+    	assertEquals(2, closedSources.size());
+    	assertSame(pooledConnection, closedSources.get(0));
+    	pooledConnection.removeConnectionEventListener(listener);
+    	pooledConnection.getConnection().close();
+    	assertEquals(2, closedSources.size());
+    	pooledConnection.close();
+    	assertEquals(1, P7SpyDataSourceStatistics.getPhysicalConnectionCount());
+    	assertEquals(3, P7SpyDataSourceStatistics.getLogicalConnectionCount());
+    }
+
+    public void testStatementEvents() throws SQLException {
+    	PooledConnection pooledConnection = new P7SpyConnectionPoolDataSource(getTestDataSource(ConnectionPoolDataSource.class)).getPooledConnection();
+    	final List<StatementEvent> events = new ArrayList<StatementEvent>();
+    	pooledConnection.addStatementEventListener(new StatementEventListener() {
+    		public void statementClosed(StatementEvent event) { events.add(event); }
+    		public void statementErrorOccurred(StatementEvent event) { }
+    	});
+    	Connection conn = pooledConnection.getConnection();
+    	PreparedStatement ps = conn.prepareStatement("VALUES 1");
+    	assertTrue(ps instanceof P7SpyWrapper);
+    	ps.close();
+    	conn.close();
+    	pooledConnection.close();
+    	// the event refers to the wrapper that the application was given
+    	assertEquals(1, events.size());
+    	assertSame(pooledConnection, events.get(0).getSource());
+    	assertSame(ps, events.get(0).getStatement());
+    }
+
+    public void testXAConnection() throws SQLException {
+    	XAConnection xaConnection = new P7SpyXADataSource(getTestDataSource(XADataSource.class)).getXAConnection();
+    	assertNotNull(xaConnection.getXAResource());
+    	Connection conn = xaConnection.getConnection();
+    	query(conn);
+    	conn.close();
+    	xaConnection.close();
+    	assertEquals(1, P7SpyDataSourceStatistics.getPhysicalConnectionCount());
+    	assertEquals(1, P7SpyDataSourceStatistics.getLogicalConnectionCount());
+    }
+
+    /** A driver which accepts 'jdbc:p7spyTestDriver:' URLs, but doesn't create connections */
+    public static class TestDriver implements Driver {
+    	public Connection connect(String url, Properties info) { return null; }
+    	public boolean acceptsURL(String url) { return url.startsWith("jdbc:p7spyTestDriver:"); }
+    	public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) { return new DriverPropertyInfo[0]; }
+    	public int getMajorVersion() { return 1; }
+    	public int getMinorVersion() { return 0; }
+    	public boolean jdbcCompliant() { return false; }
+    	public Logger getParentLogger() { return null; }
+    }
+
+    public void testDriverCache() throws SQLException {
+    	TestDriver driver = new TestDriver();
+    	DriverManager.registerDriver(driver);
+    	try {
+    		assertSame(driver, P7SpyDriver.getDriver("jdbc:p7spyTestDriver:one"));
+    		assertSame(driver, P7SpyDriver.getDriver("jdbc:p7spyTestDriver:two"));
+    	} finally {
+    		DriverManager.deregisterDriver(driver);
+    	}
+    	// deregistered drivers aren't returned from the cache
+    	try {
+    		P7SpyDriver.getDriver("jdbc:p7spyTestDriver:one");
+    		fail("Expected SQLException");
+    	} catch (SQLException sqle) {
+    		// expected
+    	}
+    }
+
+}
@@ -0,0 +1,113 @@
+package com.randomnoun.p7spy.test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.randomnoun.p7spy.P7SpyTrace;
+import com.randomnoun.p7spy.listener.P7SpyListener;
+import com.randomnoun.p7spy.listener.P7SpyListeners;
+import com.randomnoun.p7spy.metrics.P7SpyMetrics;
+import com.randomnoun.p7spy.stats.P7SpyStatistics;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for p7spy when tracing is disabled; the wrappers should still be
+ * created, but no log events should be generated.
+ */
+public class P7SpyDisabledTraceTest
+    extends TestCase
+{
+
+	P7SpyJdbc_3_0_Test p7SpyTest30 = new P7SpyJdbc_3_0_Test("P7SpyTests for JDK14");
+
+	/**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public P7SpyDisabledTraceTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( P7SpyDisabledTraceTest.class );
+    }
+
+    public void setUp() {
+    	p7SpyTest30.setUp();
+    	Logger.getLogger("com.randomnoun.p7spy").setLevel(Level.INFO);
+    }
+
+    public void tearDown() {
+    	Logger.getLogger("com.randomnoun.p7spy").setLevel(Level.DEBUG);
+    }
+
+    public void testDisabledTrace() throws SQLException {
+        String connectionURL = "jdbc:p7spy#org.apache.derby.iapi.jdbc.AutoloadedDriver:derby:memory:p7spyTestDB3;create=true";
+        P7SpyJdbc_3_0_Test.MemoryAppender memoryAppender = (P7SpyJdbc_3_0_Test.MemoryAppender) Logger.getRootLogger().getAppender("MEMORY");
+        memoryAppender.clear();
+
+        Connection conn = DriverManager.getConnection(connectionURL);
+        assertTrue(conn.getClass().getName().startsWith("com.randomnoun.p7spy."));
+        Statement s = conn.createStatement();
+        s.execute(P7SpyJdbc_3_0_Test.SQL_CREATE_TABLE);
+        s.close();
+
+        PreparedStatement ps = conn.prepareStatement(P7SpyJdbc_3_0_Test.SQL_CREATE_ITEM);
+        assertTrue(ps.getClass().getName().startsWith("com.randomnoun.p7spy."));
+        ps.setString(1, "thing");
+        assertEquals(1, ps.executeUpdate());
+        ps.close();
+
+        ps = conn.prepareStatement(P7SpyJdbc_3_0_Test.SQL_SELECT_ITEM);
+        ps.setString(1, "thing");
+        ResultSet rs = ps.executeQuery();
+        assertTrue(rs.getClass().getName().startsWith("com.randomnoun.p7spy."));
+        assertTrue(rs.next());
+        assertEquals("thing", rs.getString(1));
+        assertFalse(rs.next());
+        rs.close();
+        ps.close();
+        conn.close();
+
+        List events = memoryAppender.getLoggingEvents();
+        assertEquals(0, events.size());
+    }
+
+    public void testActiveFlag() throws SQLException {
+    	// load the feature classes
+    	DriverManager.getConnection("jdbc:p7spy#org.apache.derby.iapi.jdbc.AutoloadedDriver:derby:memory:p7spyTestDB22;create=true").close();
+    	assertFalse(P7SpyTrace.isActive());
+
+    	P7SpyMetrics.setCollecting(true);
+    	assertTrue(P7SpyTrace.isActive());
+    	P7SpyStatistics.setEnabled(true);
+    	P7SpyMetrics.setCollecting(false);
+    	assertTrue(P7SpyTrace.isActive());
+    	P7SpyStatistics.setEnabled(false);
+    	assertFalse(P7SpyTrace.isActive());
+
+    	P7SpyListener listener = (wrapper, methodId, args, result, throwable, startNanos, endNanos) -> { };
+    	P7SpyListeners.add(listener);
+    	assertTrue(P7SpyTrace.isActive());
+    	P7SpyListeners.remove(listener);
+    	assertFalse(P7SpyTrace.isActive());
+    }
+
+}
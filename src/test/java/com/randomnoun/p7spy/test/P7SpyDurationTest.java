@@ -0,0 +1,178 @@
+package com.randomnoun.p7spy.test;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.randomnoun.p7spy.P7SpyTrace;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the p7spy.durationUnit and p7spy.cpuTime settings
+ */
+public class P7SpyDurationTest
+    extends TestCase
+{
+
+	P7SpyJdbc_3_0_Test p7SpyTest30 = new P7SpyJdbc_3_0_Test("P7SpyTests for JDK14");
+
+	public static String CONNECTION_URL = "jdbc:p7spy#org.apache.derby.iapi.jdbc.AutoloadedDriver:derby:memory:p7spyTestDB21;create=true";
+
+	/** An appender which records the message and 'p7CpuTime' MDC variable of each event.
+	 * The MDC is read when the event is appended, as log4j falls back to the current thread's MDC
+	 * for events which haven't copied it. */
+	static class CpuTimeAppender extends AppenderSkeleton {
+		List<String[]> events = Collections.synchronizedList(new ArrayList<String[]>());
+		protected void append(LoggingEvent event) {
+			events.add(new String[] { String.valueOf(event.getMessage()), (String) MDC.get("p7CpuTime") });
+		}
+		public void close() { }
+		public boolean requiresLayout() { return false; }
+	}
+
+	/**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public P7SpyDurationTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( P7SpyDurationTest.class );
+    }
+
+    public void setUp() throws SQLException {
+    	p7SpyTest30.setUp();
+    	Connection conn = DriverManager.getConnection(CONNECTION_URL);
+    	if (!conn.getMetaData().getTables(null, null, "WISH_LIST", null).next()) {
+    		Statement s = conn.createStatement();
+    		s.execute(P7SpyJdbc_3_0_Test.SQL_CREATE_TABLE);
+    		s.close();
+    	}
+    	conn.close();
+    }
+
+    public void tearDown() {
+    	P7SpyTrace.setDurationUnit(TimeUnit.MILLISECONDS);
+    	P7SpyTrace.setCpuTime(false);
+    	MDC.remove("p7CpuTime");
+    }
+
+    /** Returns the warnings logged by P7SpyTrace */
+    private List<String> getWarnings() {
+        P7SpyJdbc_3_0_Test.MemoryAppender memoryAppender = (P7SpyJdbc_3_0_Test.MemoryAppender) Logger.getRootLogger().getAppender("MEMORY");
+    	List<String> warnings = new ArrayList<String>();
+    	synchronized (memoryAppender) {
+	        for (Object o : memoryAppender.getLoggingEvents()) {
+	        	LoggingEvent event = (LoggingEvent) o;
+	        	if (event.getLoggerName().equals(P7SpyTrace.class.getName()) && event.getLevel() == Level.WARN) {
+	        		warnings.add((String) event.getMessage());
+	        	}
+	        }
+	        memoryAppender.clear();
+    	}
+        return warnings;
+    }
+
+    public void testParseTimeUnit() {
+    	getWarnings();
+    	assertEquals(TimeUnit.NANOSECONDS, P7SpyTrace.parseTimeUnit("ns"));
+    	assertEquals(TimeUnit.MICROSECONDS, P7SpyTrace.parseTimeUnit("us"));
+    	assertEquals(TimeUnit.MICROSECONDS, P7SpyTrace.parseTimeUnit("\u00b5s"));
+    	assertEquals(TimeUnit.MILLISECONDS, P7SpyTrace.parseTimeUnit("ms"));
+    	assertEquals(0, getWarnings().size());
+
+    	// unknown units fall back to milliseconds, with a warning
+    	assertEquals(TimeUnit.MILLISECONDS, P7SpyTrace.parseTimeUnit("s"));
+    	assertEquals(TimeUnit.MILLISECONDS, P7SpyTrace.parseTimeUnit("MS"));
+    	assertEquals(TimeUnit.MILLISECONDS, P7SpyTrace.parseTimeUnit(""));
+    	List<String> warnings = getWarnings();
+    	assertEquals(3, warnings.size());
+    	assertEquals("Unknown p7spy.durationUnit 's'; using 'ms'", warnings.get(0));
+    	assertEquals("Unknown p7spy.durationUnit 'MS'; using 'ms'", warnings.get(1));
+    }
+
+    public void testFormatDuration() {
+    	assertEquals(TimeUnit.MILLISECONDS, P7SpyTrace.getDurationUnit());
+    	assertEquals("1", P7SpyTrace.formatDuration(1234567));
+    	assertEquals("0", P7SpyTrace.formatDuration(999999));
+    	P7SpyTrace.setDurationUnit(TimeUnit.MICROSECONDS);
+    	assertEquals("1234", P7SpyTrace.formatDuration(1234567));
+    	assertEquals("0", P7SpyTrace.formatDuration(999));
+    	P7SpyTrace.setDurationUnit(TimeUnit.NANOSECONDS);
+    	assertEquals("1234567", P7SpyTrace.formatDuration(1234567));
+    	assertEquals("0", P7SpyTrace.formatDuration(0));
+    }
+
+    /** Prepare a statement and set a parameter on it, returning the 'p7CpuTime' MDC variable of each event logged */
+    private List<String[]> runStatement() throws SQLException {
+    	Logger wrapperLogger = Logger.getLogger("com.randomnoun.p7spy.jdbc_4_3");
+    	CpuTimeAppender appender = new CpuTimeAppender();
+    	wrapperLogger.addAppender(appender);
+    	try {
+	    	Connection conn = DriverManager.getConnection(CONNECTION_URL);
+	    	PreparedStatement ps = conn.prepareStatement(P7SpyJdbc_3_0_Test.SQL_SELECT_ITEM);
+	    	ps.setString(1, "cpu time");
+	    	ps.close();
+	    	conn.close();
+    	} finally {
+    		wrapperLogger.removeAppender(appender);
+    	}
+    	return appender.events;
+    }
+
+    public void testCpuTime() throws SQLException {
+    	P7SpyTrace.setCpuTime(false);
+    	assertEquals(-1, P7SpyTrace.getThreadCpuTime());
+    	List<String[]> events = runStatement();
+    	assertTrue(events.size() > 0);
+    	for (String[] event : events) {
+    		assertNull(event[0], event[1]);
+    	}
+
+    	if (!ManagementFactory.getThreadMXBean().isCurrentThreadCpuTimeSupported()) { return; }
+    	P7SpyTrace.setCpuTime(true);
+    	assertTrue(P7SpyTrace.getThreadCpuTime() >= 0);
+    	events = runStatement();
+    	boolean found = false;
+    	for (String[] event : events) {
+    		if (event[0].startsWith("setString(")) {
+    			assertNotNull(event[0], event[1]);
+    			assertTrue(event[1], Long.parseLong(event[1]) >= 0);
+    			found = true;
+    		}
+    	}
+    	assertTrue(found);
+
+    	// and not set once it's turned off again
+    	P7SpyTrace.setCpuTime(false);
+    	events = runStatement();
+    	for (String[] event : events) {
+    		assertNull(event[0], event[1]);
+    	}
+    }
+
+}
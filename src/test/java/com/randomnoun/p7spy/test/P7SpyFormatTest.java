@@ -0,0 +1,107 @@
+package com.randomnoun.p7spy.test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.randomnoun.p7spy.P7SpyTrace;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for p7spy parameter formatting
+ */
+public class P7SpyFormatTest
+    extends TestCase
+{
+
+	P7SpyJdbc_3_0_Test p7SpyTest30 = new P7SpyJdbc_3_0_Test("P7SpyTests for JDK14");
+
+	/**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public P7SpyFormatTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( P7SpyFormatTest.class );
+    }
+
+    public void setUp() {
+    	p7SpyTest30.setUp();
+    }
+
+    public void testFormatResult() {
+    	assertEquals("null", P7SpyTrace.formatResult(null));
+    	assertEquals("\"it\\'s a \\\"test\\\"\\n\"", P7SpyTrace.formatResult("it's a \"test\"\n"));
+    	assertEquals("\"caf\\u00e9 \\u20ac\\u0001\"", P7SpyTrace.formatResult("caf\u00e9 \u20ac\u0001"));
+    	assertEquals("12", P7SpyTrace.formatResult(12));
+    	assertEquals("-12", P7SpyTrace.formatResult(-12L));
+    	assertEquals("true", P7SpyTrace.formatResult(true));
+    	assertEquals("1.5", P7SpyTrace.formatResult(1.5d));
+    	assertEquals("x", P7SpyTrace.formatResult('x'));
+    	assertEquals("[]", P7SpyTrace.formatResult(new java.util.ArrayList<Object>()));
+
+    	StringBuilder sb = P7SpyTrace.getStringBuilder();
+    	assertEquals(0, sb.length());
+    	P7SpyTrace.appendResult(sb, (byte) 7);
+    	sb.append(", ");
+    	P7SpyTrace.appendResult(sb, "a\tb");
+    	assertEquals("7, \"a\\tb\"", sb.toString());
+    	assertSame(sb, P7SpyTrace.getStringBuilder());
+    }
+
+    public void testAppendSql() {
+    	String sql = new String("SELECT 'x' FROM \"table\"");
+    	StringBuilder sb = new StringBuilder();
+    	P7SpyTrace.appendSql(sb, sql);
+    	String expected = "\"SELECT \\'x\\' FROM \\\"table\\\"\"";
+    	assertEquals(expected, sb.toString());
+    	// cached by identity; an equal String instance produces the same output
+    	sb.setLength(0);
+    	P7SpyTrace.appendSql(sb, sql);
+    	P7SpyTrace.appendSql(sb, new String(sql));
+    	P7SpyTrace.appendSql(sb, null);
+    	assertEquals(expected + expected + "null", sb.toString());
+    }
+
+    public void testLoggedArguments() throws SQLException {
+        String connectionURL = "jdbc:p7spy#org.apache.derby.iapi.jdbc.AutoloadedDriver:derby:memory:p7spyTestDB7;create=true";
+        Connection conn = DriverManager.getConnection(connectionURL);
+        Statement s = conn.createStatement();
+        s.execute(P7SpyJdbc_3_0_Test.SQL_CREATE_TABLE);
+        s.close();
+        P7SpyJdbc_3_0_Test.MemoryAppender memoryAppender = (P7SpyJdbc_3_0_Test.MemoryAppender) Logger.getRootLogger().getAppender("MEMORY");
+        memoryAppender.clear();
+        PreparedStatement ps = conn.prepareStatement("SELECT wish_id FROM wish_list WHERE wish_id = ? OR wish_item = ?");
+        ps.setInt(1, 42);
+        ps.setString(2, "\u00fcber");
+        ps.close();
+        conn.close();
+
+        boolean foundSetInt = false, foundSetString = false;
+        for (Object o : memoryAppender.getLoggingEvents()) {
+        	LoggingEvent event = (LoggingEvent) o;
+        	if ("setInt(1, 42)".equals(event.getMessage())) { foundSetInt = true; }
+        	if ("setString(2, \"\\u00fcber\")".equals(event.getMessage())) { foundSetString = true; }
+        }
+        assertTrue(foundSetInt);
+        assertTrue(foundSetString);
+    }
+
+}
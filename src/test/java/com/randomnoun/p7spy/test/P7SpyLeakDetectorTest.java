@@ -0,0 +1,138 @@
+package com.randomnoun.p7spy.test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.randomnoun.p7spy.leak.P7SpyLeakDetector;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for p7spy leak detection
+ */
+public class P7SpyLeakDetectorTest
+    extends TestCase
+{
+
+	P7SpyJdbc_3_0_Test p7SpyTest30 = new P7SpyJdbc_3_0_Test("P7SpyTests for JDK14");
+
+	public static String CONNECTION_URL = "jdbc:p7spy#org.apache.derby.iapi.jdbc.AutoloadedDriver:derby:memory:p7spyTestDB15;create=true";
+
+	/**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public P7SpyLeakDetectorTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( P7SpyLeakDetectorTest.class );
+    }
+
+    public void setUp() {
+    	p7SpyTest30.setUp();
+    	P7SpyLeakDetector.reset();
+    	P7SpyLeakDetector.setSampleRate(1);
+    }
+
+    public void tearDown() {
+    	P7SpyLeakDetector.setSampleRate(0);
+    }
+
+    /** Returns the warnings logged by the leak detector */
+    private List<String> getLeakMessages() {
+        P7SpyJdbc_3_0_Test.MemoryAppender memoryAppender = (P7SpyJdbc_3_0_Test.MemoryAppender) Logger.getRootLogger().getAppender("MEMORY");
+    	List<String> messages = new ArrayList<String>();
+    	synchronized (memoryAppender) {
+	        for (Object o : memoryAppender.getLoggingEvents()) {
+	        	LoggingEvent event = (LoggingEvent) o;
+	        	if (event.getLoggerName().equals(P7SpyLeakDetector.class.getName())) {
+	        		assertEquals(Level.WARN, event.getLevel());
+	        		messages.add((String) event.getMessage());
+	        	}
+	        }
+	        memoryAppender.clear();
+    	}
+        return messages;
+    }
+
+    public void testClosedWithOpenChildren() throws SQLException {
+        Connection conn = DriverManager.getConnection(CONNECTION_URL);
+        Statement s = conn.createStatement();
+        s.executeQuery("VALUES 1").close();
+        s.close();
+        PreparedStatement ps = conn.prepareStatement("VALUES 2");
+        ResultSet rs = ps.executeQuery();
+        // re-executing closes the previous result set
+        rs = ps.executeQuery();
+        getLeakMessages();
+        conn.close();
+
+        List<String> messages = getLeakMessages();
+        assertEquals(1, messages.size());
+        String message = messages.get(0);
+        assertTrue(message, message.matches("(?s)P7PreparedStatement@[0-9a-f]+ sql=\"VALUES 2\" was still open when " +
+        	"P7Connection@[0-9a-f]+ was closed; created [0-9]+ms ago on thread '.*' at\n" +
+        	"\tat com\\.randomnoun\\.p7spy\\.test\\.P7SpyLeakDetectorTest\\.testClosedWithOpenChildren\\(P7SpyLeakDetectorTest\\.java:[0-9]+\\)\n.*"));
+        assertEquals(1, P7SpyLeakDetector.getOpenChildCount());
+        assertEquals(6, P7SpyLeakDetector.getTrackedCount());
+        rs.close();
+        ps.close();
+        assertEquals(0, getLeakMessages().size());
+    }
+
+    /** Create a statement which is not closed */
+    private void leakStatement(Connection conn) throws SQLException {
+    	Statement s = conn.createStatement();
+    	s.executeQuery("VALUES 1");
+    }
+
+    public void testUnclosed() throws Exception {
+    	P7SpyLeakDetector.setStackDepth(2);
+        Connection conn = DriverManager.getConnection(CONNECTION_URL);
+        leakStatement(conn);
+        long timeout = System.currentTimeMillis() + 10000;
+        while (P7SpyLeakDetector.getUnclosedCount() < 2 && System.currentTimeMillis() < timeout) {
+        	System.gc();
+        	Thread.sleep(50);
+        }
+        P7SpyLeakDetector.setStackDepth(16);
+        List<String> messages = getLeakMessages();
+        assertEquals(2, messages.size());
+        int statements = 0;
+        for (String message : messages) {
+        	if (message.startsWith("P7Statement@")) {
+        		statements++;
+        		assertTrue(message, message.matches("(?s)P7Statement@[0-9a-f]+ was not closed before it was garbage collected; .* at\n" +
+        			"\tat com\\.randomnoun\\.p7spy\\.test\\.P7SpyLeakDetectorTest\\.leakStatement\\(.*\\)\n" +
+        			"\tat com\\.randomnoun\\.p7spy\\.test\\.P7SpyLeakDetectorTest\\.testUnclosed\\(.*\\)"));
+        	} else {
+        		assertTrue(message, message.startsWith("P7ResultSet@"));
+        		assertTrue(message, message.contains(" sql=\"VALUES 1\" was not closed"));
+        	}
+        }
+        assertEquals(1, statements);
+        conn.close();
+        assertEquals(0, getLeakMessages().size());
+    }
+
+}
@@ -0,0 +1,286 @@
+package com.randomnoun.p7spy.test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.randomnoun.p7spy.P7SpyConfig;
+import com.randomnoun.p7spy.P7SpyMethods;
+import com.randomnoun.p7spy.P7SpyMethods.P7SpyMethod;
+import com.randomnoun.p7spy.P7SpyTrace;
+import com.randomnoun.p7spy.jdbc_4_3.P7ResultSet;
+import com.randomnoun.p7spy.listener.P7SpyListener;
+import com.randomnoun.p7spy.listener.P7SpyListeners;
+import com.randomnoun.p7spy.listener.P7SpyLog4jListener;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the p7spy listener SPI
+ */
+public class P7SpyListenerTest
+    extends TestCase
+{
+
+	P7SpyJdbc_3_0_Test p7SpyTest30 = new P7SpyJdbc_3_0_Test("P7SpyTests for JDK14");
+
+	public static String CONNECTION_URL = "jdbc:p7spy#org.apache.derby.iapi.jdbc.AutoloadedDriver:derby:memory:p7spyTestDB20;create=true";
+
+	/** A listener which records the invocations of the methods of a single interface */
+	static class RecordingListener implements P7SpyListener {
+		String interfaceName;
+		List<Object[]> invocations = Collections.synchronizedList(new ArrayList<Object[]>());
+
+		RecordingListener(String interfaceName) {
+			this.interfaceName = interfaceName;
+		}
+
+		public boolean isInterested(P7SpyMethod method) {
+			return method.getInterfaceName().equals(interfaceName);
+		}
+
+		public void onInvocation(Object wrapper, int methodId, Object[] args, Object result, Throwable throwable,
+			long startNanos, long endNanos)
+		{
+			assertTrue(endNanos >= startNanos);
+			invocations.add(new Object[] { wrapper, P7SpyMethods.getMethod(methodId), args, result, throwable });
+		}
+
+		/** Returns the names of the methods invoked */
+		List<String> getMethodNames() {
+			List<String> names = new ArrayList<String>();
+			for (Object[] invocation : invocations) {
+				names.add(((P7SpyMethod) invocation[1]).getMethodName());
+			}
+			return names;
+		}
+	}
+
+	/**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public P7SpyListenerTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( P7SpyListenerTest.class );
+    }
+
+    public void setUp() throws SQLException {
+    	p7SpyTest30.setUp();
+    	Connection conn = DriverManager.getConnection(CONNECTION_URL);
+    	if (!conn.getMetaData().getTables(null, null, "WISH_LIST", null).next()) {
+    		Statement s = conn.createStatement();
+    		s.execute(P7SpyJdbc_3_0_Test.SQL_CREATE_TABLE);
+    		s.close();
+    	}
+    	conn.close();
+    }
+
+    public void tearDown() {
+    	Logger.getLogger("com.randomnoun.p7spy.jdbc_4_3").setLevel(null);
+    	Logger.getLogger(P7SpyLog4jListener.class).setLevel(null);
+    	for (P7SpyListener listener : P7SpyListeners.getListeners()) {
+    		P7SpyListeners.remove(listener);
+    	}
+    }
+
+    /** Returns the messages logged by the supplied logger */
+    private List<String> getMessages(String loggerName) {
+        P7SpyJdbc_3_0_Test.MemoryAppender memoryAppender = (P7SpyJdbc_3_0_Test.MemoryAppender) Logger.getRootLogger().getAppender("MEMORY");
+    	List<String> messages = new ArrayList<String>();
+    	synchronized (memoryAppender) {
+	        for (Object o : memoryAppender.getLoggingEvents()) {
+	        	LoggingEvent event = (LoggingEvent) o;
+	        	if (event.getLoggerName().equals(loggerName)) {
+	        		messages.add((String) event.getMessage());
+	        	}
+	        }
+	        memoryAppender.clear();
+    	}
+        return messages;
+    }
+
+    /** Insert and select an item, and attempt to execute some invalid SQL */
+    private void runStatements(Connection conn) throws SQLException {
+    	PreparedStatement ps = conn.prepareStatement(P7SpyJdbc_3_0_Test.SQL_CREATE_ITEM);
+    	ps.setString(1, "listened item");
+    	assertEquals(1, ps.executeUpdate());
+    	ps.close();
+    	ps = conn.prepareStatement(P7SpyJdbc_3_0_Test.SQL_SELECT_ITEM);
+    	ps.setString(1, "listened item");
+    	ResultSet rs = ps.executeQuery();
+    	assertTrue(rs.next());
+    	rs.close();
+    	ps.close();
+    	try {
+    		conn.prepareStatement("SELECT * FROM no_such_table");
+    		fail("Expected SQLException");
+    	} catch (SQLException sqle) {
+    		// expected
+    	}
+    }
+
+    public void testListener() throws SQLException {
+    	assertFalse(P7SpyListeners.isInterested(0));
+    	RecordingListener psListener = new RecordingListener("PreparedStatement");
+    	RecordingListener connListener = new RecordingListener("Connection");
+    	P7SpyListeners.add(psListener);
+    	P7SpyListeners.add(connListener);
+
+    	// listeners are notified regardless of whether invocations are being logged
+    	for (Level level : new Level[] { Level.DEBUG, Level.INFO }) {
+    		Logger.getLogger("com.randomnoun.p7spy").setLevel(level);
+    		psListener.invocations.clear();
+    		connListener.invocations.clear();
+    		Connection conn = DriverManager.getConnection(CONNECTION_URL);
+    		runStatements(conn);
+    		conn.close();
+
+    		assertEquals(level.toString(), "[setString, executeUpdate, close, setString, executeQuery, close]", psListener.getMethodNames().toString());
+    		Object[] setString = psListener.invocations.get(0);
+    		assertEquals("[1, listened item]", Arrays.asList((Object[]) setString[2]).toString());
+    		assertNull(setString[3]);
+    		assertEquals(Integer.valueOf(1), psListener.invocations.get(1)[3]);
+    		assertTrue(psListener.invocations.get(4)[3] instanceof P7ResultSet);
+    		assertNull(psListener.invocations.get(4)[2]);
+    		assertSame(setString[0], psListener.invocations.get(1)[0]);
+
+    		assertEquals(level.toString(), "[prepareStatement, prepareStatement, prepareStatement, close]", connListener.getMethodNames().toString());
+    		Object[] failed = connListener.invocations.get(2);
+    		assertEquals("SELECT * FROM no_such_table", ((Object[]) failed[2])[0]);
+    		assertNull(failed[3]);
+    		assertTrue(failed[4] instanceof SQLException);
+    		assertEquals(P7SpyListeners.getWrapperId(failed[0]), "P7Connection@" + Integer.toHexString(System.identityHashCode(conn)));
+    	}
+
+    	// no events once a listener is removed
+    	assertTrue(P7SpyListeners.remove(psListener));
+    	assertFalse(P7SpyListeners.remove(psListener));
+    	psListener.invocations.clear();
+    	Connection conn = DriverManager.getConnection(CONNECTION_URL);
+    	runStatements(conn);
+    	conn.close();
+    	assertEquals(0, psListener.invocations.size());
+    	assertEquals(8, connListener.invocations.size());
+    }
+
+    /** Returns the id of a registered method of the supplied interface */
+    private int getMethodId(String interfaceName, String methodName) {
+    	for (int i = 0; i < 4096; i++) {
+    		P7SpyMethod method = P7SpyMethods.getMethod(i);
+    		if (method != null && method.getInterfaceName().equals(interfaceName) && method.getMethodName().equals(methodName)) {
+    			return i;
+    		}
+    	}
+    	throw new IllegalStateException("No method " + interfaceName + "." + methodName);
+    }
+
+    public void testListenerChanges() throws Exception {
+    	// load the wrapper classes, registering their methods
+    	Connection conn = DriverManager.getConnection(CONNECTION_URL);
+    	runStatements(conn);
+    	conn.close();
+    	final int connMethodId = getMethodId("Connection", "prepareStatement");
+    	final int psMethodId = getMethodId("PreparedStatement", "setString");
+
+    	// swap the positions of two listeners whilst invocations are being fired; each listener should
+    	// only ever be notified of the methods it's interested in
+    	final RecordingListener psListener = new RecordingListener("PreparedStatement");
+    	final RecordingListener connListener = new RecordingListener("Connection");
+    	P7SpyListeners.add(psListener);
+    	P7SpyListeners.add(connListener);
+    	final boolean[] done = new boolean[1];
+    	Thread changer = new Thread() {
+    		public void run() {
+    			for (int i = 0; i < 20000; i++) {
+    				RecordingListener listener = (i % 2 == 0) ? psListener : connListener;
+    				P7SpyListeners.remove(listener);
+    				P7SpyListeners.add(listener);
+    			}
+    			synchronized (done) { done[0] = true; }
+    		}
+    	};
+    	changer.start();
+    	Object wrapper = new Object();
+    	while (true) {
+    		synchronized (done) { if (done[0]) { break; } }
+    		for (int methodId : new int[] { connMethodId, psMethodId }) {
+    			if (P7SpyListeners.isInterested(methodId)) {
+    				P7SpyListeners.fire(wrapper, methodId, null, null, null, System.nanoTime());
+    			}
+    		}
+    	}
+    	changer.join();
+    	for (Object[] invocation : psListener.invocations) {
+    		assertEquals("PreparedStatement", ((P7SpyMethod) invocation[1]).getInterfaceName());
+    	}
+    	for (Object[] invocation : connListener.invocations) {
+    		assertEquals("Connection", ((P7SpyMethod) invocation[1]).getInterfaceName());
+    	}
+    }
+
+    public void testLog4jListener() throws SQLException {
+    	P7SpyListeners.add(new P7SpyLog4jListener());
+    	Logger.getLogger("com.randomnoun.p7spy.jdbc_4_3").setLevel(Level.INFO);
+    	getMessages(P7SpyLog4jListener.class.getName());
+    	Connection conn = DriverManager.getConnection(CONNECTION_URL);
+    	runStatements(conn);
+    	conn.close();
+    	List<String> messages = getMessages(P7SpyLog4jListener.class.getName());
+    	assertTrue(messages.toString(), messages.get(0).startsWith("prepareStatement(\"INSERT INTO wish_list ( wish_item ) VALUES ( ? )\"): " +
+    		"com.randomnoun.p7spy.jdbc_4_3.P7PreparedStatement@"));
+    	assertTrue(messages.toString(), messages.contains("setString(1, \"listened item\")"));
+    	assertTrue(messages.toString(), messages.contains("executeUpdate(): 1"));
+    	assertTrue(messages.toString(), messages.contains("prepareStatement(\"SELECT * FROM no_such_table\")"));
+
+    	// SQL traps are checked
+    	Properties props = new Properties();
+    	props.put("matchText.listened", ".*INSERT INTO wish_list.*");
+    	P7SpyConfig originalConfig = P7SpyTrace.getConfig();
+    	P7SpyTrace.setConfig(new P7SpyConfig(props));
+    	try {
+    		conn = DriverManager.getConnection(CONNECTION_URL);
+    		runStatements(conn);
+    		conn.close();
+    	} finally {
+    		P7SpyTrace.setConfig(originalConfig);
+    	}
+    	messages = getMessages(P7SpyLog4jListener.class.getName());
+    	assertTrue(messages.toString(), messages.get(0).startsWith("SQL trap 'listened' triggered at stack "));
+
+    	// the listener logs nothing if its logger isn't at DEBUG
+    	Logger.getLogger(P7SpyLog4jListener.class).setLevel(Level.INFO);
+    	conn = DriverManager.getConnection(CONNECTION_URL);
+    	runStatements(conn);
+    	conn.close();
+    	assertEquals(0, getMessages(P7SpyLog4jListener.class.getName()).size());
+
+    	// and isn't interested in any methods once the listeners are refreshed, so arguments aren't boxed
+    	P7SpyListeners.refresh();
+    	assertFalse(P7SpyListeners.isInterested(0));
+    }
+
+}
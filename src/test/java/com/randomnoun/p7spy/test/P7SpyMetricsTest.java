@@ -0,0 +1,231 @@
+package com.randomnoun.p7spy.test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.randomnoun.p7spy.P7SpyConfig;
+import com.randomnoun.p7spy.P7SpyTrace;
+import com.randomnoun.p7spy.metrics.P7SpyMetrics;
+import com.randomnoun.p7spy.metrics.P7SpyPrometheusExporter;
+import com.randomnoun.p7spy.trap.P7SpyTrap;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for p7spy metrics
+ */
+public class P7SpyMetricsTest
+    extends TestCase
+{
+
+	P7SpyJdbc_3_0_Test p7SpyTest30 = new P7SpyJdbc_3_0_Test("P7SpyTests for JDK14");
+
+	public static String CONNECTION_URL = "jdbc:p7spy#org.apache.derby.iapi.jdbc.AutoloadedDriver:derby:memory:p7spyTestDB16;create=true";
+
+	P7SpyConfig originalConfig;
+
+	/**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public P7SpyMetricsTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( P7SpyMetricsTest.class );
+    }
+
+    public void setUp() {
+    	p7SpyTest30.setUp();
+    	originalConfig = P7SpyTrace.getConfig();
+    	P7SpyMetrics.setCollecting(true);
+    	P7SpyMetrics.getInstance().reset();
+    }
+
+    public void tearDown() {
+    	P7SpyMetrics.setCollecting(false);
+    	P7SpyPrometheusExporter.stop();
+    	P7SpyTrace.setConfig(originalConfig);
+    }
+
+    public void testMetrics() throws Exception {
+    	P7SpyMetrics metrics = P7SpyMetrics.getInstance();
+    	long openConnections = metrics.getOpenConnections();
+    	long openStatements = metrics.getOpenStatements();
+    	long openResultSets = metrics.getOpenResultSets();
+
+        Connection conn = DriverManager.getConnection(CONNECTION_URL);
+        Statement s = conn.createStatement();
+        ResultSet rs = s.executeQuery("VALUES 1");
+        rs.next();
+        assertEquals(openConnections + 1, metrics.getOpenConnections());
+        assertEquals(openStatements + 1, metrics.getOpenStatements());
+        assertEquals(openResultSets + 1, metrics.getOpenResultSets());
+        rs.close();
+        rs.close();
+        try {
+        	s.executeQuery("SELECT * FROM no_such_table");
+        	fail("expected SQLException");
+        } catch (SQLException sqle) {
+        	// expected
+        }
+        s.close();
+        conn.close();
+        assertEquals(openConnections, metrics.getOpenConnections());
+        assertEquals(openStatements, metrics.getOpenStatements());
+        assertEquals(openResultSets, metrics.getOpenResultSets());
+
+        assertEquals(Long.valueOf(2), metrics.getCallCounts().get("Statement.executeQuery"));
+        assertEquals(Long.valueOf(1), metrics.getCallCounts().get("ResultSet.next"));
+        assertEquals(Long.valueOf(2), metrics.getCallCounts().get("ResultSet.close"));
+        assertEquals(Long.valueOf(1), metrics.getErrorCounts().get("42X05"));
+        long[] percentiles = metrics.getLatencyPercentiles().get("Statement.executeQuery");
+        assertEquals(4, percentiles.length);
+        assertTrue(percentiles[3] > 0);
+
+        // attributes are available through JMX
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(P7SpyMetrics.OBJECT_NAME);
+        assertTrue(server.isRegistered(name));
+        assertEquals(Long.valueOf(openConnections), server.getAttribute(name, "OpenConnections"));
+
+        String text = metrics.getPrometheusText();
+        assertTrue(text, text.contains("# TYPE p7spy_calls_total counter\n"));
+        assertTrue(text, text.contains("\np7spy_calls_total{interface=\"Statement\",method=\"executeQuery\"} 2\n"));
+        assertTrue(text, text.contains("\np7spy_errors_total{sqlstate=\"42X05\"} 1\n"));
+        assertTrue(text, text.contains("\np7spy_call_duration_seconds_count{interface=\"Statement\",method=\"executeQuery\"} 2\n"));
+        assertTrue(text, text.matches("(?s).*\np7spy_call_duration_seconds\\{interface=\"Statement\",method=\"executeQuery\",quantile=\"0.99\"\\} [0-9.E-]+\n.*"));
+
+        // disabled metrics aren't collected
+        metrics.setEnabled(false);
+        conn = DriverManager.getConnection(CONNECTION_URL);
+        conn.close();
+        assertEquals(openConnections, metrics.getOpenConnections());
+        assertEquals(Long.valueOf(1), metrics.getCallCounts().get("Connection.close"));
+    }
+
+    public void testImplicitlyClosedResultSets() throws Exception {
+    	P7SpyMetrics metrics = P7SpyMetrics.getInstance();
+    	long openResultSets = metrics.getOpenResultSets();
+
+        Connection conn = DriverManager.getConnection(CONNECTION_URL);
+        Statement s = conn.createStatement();
+        s.executeQuery("VALUES 1");
+        assertEquals(openResultSets + 1, metrics.getOpenResultSets());
+        // re-executing the statement closes its result set
+        ResultSet rs = s.executeQuery("VALUES 2");
+        assertEquals(openResultSets + 1, metrics.getOpenResultSets());
+        // as does closing the statement
+        s.close();
+        assertEquals(openResultSets, metrics.getOpenResultSets());
+        // closing the result set afterwards isn't counted twice
+        rs.close();
+        assertEquals(openResultSets, metrics.getOpenResultSets());
+
+        PreparedStatement ps = conn.prepareStatement("VALUES 1");
+        ps.executeQuery();
+        ps.execute();
+        ps.getResultSet();
+        assertEquals(openResultSets + 1, metrics.getOpenResultSets());
+        ps.close();
+        assertEquals(openResultSets, metrics.getOpenResultSets());
+        conn.close();
+    }
+
+    public void testOverloadedMethods() throws Exception {
+    	P7SpyMetrics metrics = P7SpyMetrics.getInstance();
+        Connection conn = DriverManager.getConnection(CONNECTION_URL);
+        PreparedStatement ps = conn.prepareStatement("VALUES CAST(? AS INTEGER)");
+        ps.setObject(1, 1);
+        ps.setObject(1, 2, Types.INTEGER);
+        ps.setObject(1, 3, Types.INTEGER, 0);
+        ps.close();
+        conn.close();
+
+        // overloads are counted together
+        assertEquals(Long.valueOf(3), metrics.getCallCounts().get("PreparedStatement.setObject"));
+        String text = metrics.getPrometheusText();
+        String series = "p7spy_calls_total{interface=\"PreparedStatement\",method=\"setObject\"}";
+        assertTrue(text, text.contains("\n" + series + " 3\n"));
+        assertEquals(text, text.indexOf(series), text.lastIndexOf(series));
+        assertTrue(text, text.contains("\np7spy_call_duration_seconds_count{interface=\"PreparedStatement\",method=\"setObject\"} 3\n"));
+        assertTrue(metrics.getLatencyPercentiles().get("PreparedStatement.setObject")[3] > 0);
+    }
+
+    public void testExporters() throws Exception {
+    	File file = File.createTempFile("p7spy-metrics", ".prom");
+    	try {
+    		P7SpyPrometheusExporter.writeFile(file);
+    		String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    		assertTrue(text, text.startsWith("# HELP p7spy_open_objects "));
+    	} finally {
+    		file.delete();
+    	}
+
+    	int port = P7SpyPrometheusExporter.startHttp(0);
+    	HttpURLConnection http = (HttpURLConnection) new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), port, "/metrics").openConnection();
+    	assertEquals(200, http.getResponseCode());
+    	assertEquals(P7SpyPrometheusExporter.CONTENT_TYPE, http.getContentType());
+    	try (InputStream is = http.getInputStream()) {
+    		String text = new String(is.readAllBytes(), StandardCharsets.UTF_8);
+    		assertTrue(text, text.contains("p7spy_open_objects{type=\"Connection\"}"));
+    	}
+    }
+
+    public void testConfiguration() {
+    	P7SpyMetrics metrics = P7SpyMetrics.getInstance();
+    	Logger traceLogger = Logger.getLogger("com.randomnoun.p7spy.jdbc_4_3");
+    	Level originalLevel = traceLogger.getLevel();
+    	try {
+    		metrics.setTraceLevel("INFO");
+    		assertEquals(Level.INFO, traceLogger.getLevel());
+    		assertEquals("INFO", metrics.getTraceLevel());
+    		try {
+    			metrics.setTraceLevel("LOUD");
+    			fail("expected IllegalArgumentException");
+    		} catch (IllegalArgumentException iae) {
+    			// expected
+    		}
+    	} finally {
+    		traceLogger.setLevel(originalLevel);
+    	}
+
+    	metrics.setTrapPattern("mbean", "SELECT .* FROM wish_list", "count");
+    	assertEquals("SELECT .* FROM wish_list", metrics.getTrapPatterns().get("mbean"));
+    	P7SpyTrap trap = P7SpyTrace.getConfig().getTrapMatcher().getTraps().get(0);
+    	assertEquals(P7SpyTrap.Action.COUNT, trap.getAction());
+    	assertTrue(P7SpyTrace.matchesArg("SELECT wish_item FROM wish_list"));
+    	metrics.removeTrapPattern("mbean");
+    	assertFalse(metrics.getTrapPatterns().containsKey("mbean"));
+    	assertFalse(P7SpyTrace.matchesArg("SELECT wish_item FROM wish_list"));
+    }
+
+}
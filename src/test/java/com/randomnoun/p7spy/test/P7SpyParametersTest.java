@@ -0,0 +1,142 @@
+package com.randomnoun.p7spy.test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.randomnoun.p7spy.P7SpyParameters;
+import com.randomnoun.p7spy.P7SpyParameters.LogMode;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for p7spy parameter logging
+ */
+public class P7SpyParametersTest
+    extends TestCase
+{
+
+	P7SpyJdbc_3_0_Test p7SpyTest30 = new P7SpyJdbc_3_0_Test("P7SpyTests for JDK14");
+
+	/**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public P7SpyParametersTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( P7SpyParametersTest.class );
+    }
+
+    public void setUp() {
+    	p7SpyTest30.setUp();
+    }
+
+    public void tearDown() {
+    	P7SpyParameters.setLogMode(LogMode.OFF);
+    }
+
+    public void testParameters() {
+    	P7SpyParameters params = new P7SpyParameters();
+    	params.set(1, 42);
+    	params.set(2, "it's");
+    	params.set(3, 1.5d);
+    	params.set(4, true);
+    	params.setNull(5);
+    	params.set(12, (short) 7);
+    	assertEquals(12, params.size());
+    	assertEquals(Integer.valueOf(42), params.get(1));
+    	assertEquals(Short.valueOf((short) 7), params.get(12));
+    	assertFalse(params.isSet(6));
+
+    	StringBuilder sb = new StringBuilder();
+    	params.appendTo(sb);
+    	assertEquals("{1=42, 2=\"it\\'s\", 3=1.5, 4=true, 5=null, 12=7}", sb.toString());
+
+    	sb.setLength(0);
+    	params.appendInlined(sb, "SELECT '?', \"a?\" FROM t -- ?\nWHERE a = ? AND b = ? /* ? */ AND c = ? AND d = ? AND e IS ? AND f = ?");
+    	assertEquals("SELECT '?', \"a?\" FROM t -- ?\nWHERE a = 42 AND b = 'it''s' /* ? */ AND c = 1.5 AND d = TRUE AND e IS NULL AND f = ?", sb.toString());
+
+    	params.clear();
+    	assertEquals(0, params.size());
+    	params.set(1, java.sql.Date.valueOf("2020-01-02"));
+    	params.set(2, new byte[] { 1, (byte) 0xab });
+    	params.set(3, new java.io.ByteArrayInputStream(new byte[0]));
+    	sb.setLength(0);
+    	params.appendInlined(sb, "VALUES (?, ?, ?, ?)");
+    	assertEquals("VALUES (DATE '2020-01-02', X'01ab', ?, ?)", sb.toString());
+    }
+
+    private List<String> getWrapperMessages() {
+        P7SpyJdbc_3_0_Test.MemoryAppender memoryAppender = (P7SpyJdbc_3_0_Test.MemoryAppender) Logger.getRootLogger().getAppender("MEMORY");
+    	List<String> messages = new ArrayList<String>();
+        for (Object o : memoryAppender.getLoggingEvents()) {
+        	LoggingEvent event = (LoggingEvent) o;
+        	if (event.getLoggerName().startsWith("com.randomnoun.p7spy.jdbc_4_3.P7PreparedStatement")) {
+        		messages.add((String) event.getMessage());
+        	}
+        }
+        return messages;
+    }
+
+    public void testLogModes() throws SQLException {
+        String connectionURL = "jdbc:p7spy#org.apache.derby.iapi.jdbc.AutoloadedDriver:derby:memory:p7spyTestDB10;create=true";
+        Connection conn = DriverManager.getConnection(connectionURL);
+        Statement s = conn.createStatement();
+        s.execute(P7SpyJdbc_3_0_Test.SQL_CREATE_TABLE);
+        s.close();
+        P7SpyJdbc_3_0_Test.MemoryAppender memoryAppender = (P7SpyJdbc_3_0_Test.MemoryAppender) Logger.getRootLogger().getAppender("MEMORY");
+
+        P7SpyParameters.setLogMode(LogMode.LIST);
+        memoryAppender.clear();
+        PreparedStatement ps = conn.prepareStatement(P7SpyJdbc_3_0_Test.SQL_CREATE_ITEM);
+        ps.setString(1, "thing");
+        ps.executeUpdate();
+        ps.clearParameters();
+        ps.setString(1, "other thing");
+        ps.addBatch();
+        ps.executeBatch();
+        List<String> messages = getWrapperMessages();
+        assertEquals(4, messages.size());
+        assertEquals("new PreparedStatement()", messages.get(0));
+        assertEquals("executeUpdate() sql=\"" + P7SpyJdbc_3_0_Test.SQL_CREATE_ITEM + "\" parameters={1=\"thing\"}: 1", messages.get(1));
+        assertEquals("addBatch() sql=\"" + P7SpyJdbc_3_0_Test.SQL_CREATE_ITEM + "\" parameters={1=\"other thing\"}", messages.get(2));
+
+        P7SpyParameters.setLogMode(LogMode.INLINE);
+        memoryAppender.clear();
+        ps.setString(1, "wizard's hat");
+        ps.executeUpdate();
+        ps.close();
+        messages = getWrapperMessages();
+        assertEquals("executeUpdate() [INSERT INTO wish_list ( wish_item ) VALUES ( 'wizard''s hat' )]: 1", messages.get(0));
+
+        P7SpyParameters.setLogMode(LogMode.OFF);
+        memoryAppender.clear();
+        ps = conn.prepareStatement(P7SpyJdbc_3_0_Test.SQL_CREATE_ITEM);
+        ps.setString(1, "thing");
+        ps.executeUpdate();
+        ps.close();
+        conn.close();
+        messages = getWrapperMessages();
+        assertEquals("setString(1, \"thing\")", messages.get(1));
+        assertEquals("executeUpdate(): 1", messages.get(2));
+    }
+
+}
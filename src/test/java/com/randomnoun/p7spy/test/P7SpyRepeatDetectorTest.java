@@ -0,0 +1,148 @@
+package com.randomnoun.p7spy.test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.randomnoun.p7spy.repeat.P7SpyRepeatDetector;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for p7spy repeated statement (N+1 query) detection
+ */
+public class P7SpyRepeatDetectorTest
+    extends TestCase
+{
+
+	P7SpyJdbc_3_0_Test p7SpyTest30 = new P7SpyJdbc_3_0_Test("P7SpyTests for JDK14");
+
+	public static String CONNECTION_URL = "jdbc:p7spy#org.apache.derby.iapi.jdbc.AutoloadedDriver:derby:memory:p7spyTestDB18;create=true";
+
+	/**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public P7SpyRepeatDetectorTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( P7SpyRepeatDetectorTest.class );
+    }
+
+    public void setUp() throws SQLException {
+    	p7SpyTest30.setUp();
+    	Connection conn = DriverManager.getConnection(CONNECTION_URL);
+    	if (!conn.getMetaData().getTables(null, null, "WISH_LIST", null).next()) {
+    		Statement s = conn.createStatement();
+    		s.execute(P7SpyJdbc_3_0_Test.SQL_CREATE_TABLE);
+    		s.close();
+    	}
+    	conn.close();
+    	P7SpyRepeatDetector.reset();
+    	P7SpyRepeatDetector.setThreshold(5);
+    	P7SpyRepeatDetector.setWindow(60000);
+    }
+
+    public void tearDown() {
+    	P7SpyRepeatDetector.flush();
+    	P7SpyRepeatDetector.setThreshold(0);
+    	P7SpyRepeatDetector.setWindow(1000);
+    }
+
+    /** Returns the warnings logged by the repeat detector */
+    private List<String> getRepeatMessages() {
+        P7SpyJdbc_3_0_Test.MemoryAppender memoryAppender = (P7SpyJdbc_3_0_Test.MemoryAppender) Logger.getRootLogger().getAppender("MEMORY");
+    	List<String> messages = new ArrayList<String>();
+    	synchronized (memoryAppender) {
+	        for (Object o : memoryAppender.getLoggingEvents()) {
+	        	LoggingEvent event = (LoggingEvent) o;
+	        	if (event.getLoggerName().equals(P7SpyRepeatDetector.class.getName())) {
+	        		assertEquals(Level.WARN, event.getLevel());
+	        		messages.add((String) event.getMessage());
+	        	}
+	        }
+	        memoryAppender.clear();
+    	}
+        return messages;
+    }
+
+    /** Execute a query once per item */
+    private void selectItems(Connection conn, int count) throws SQLException {
+    	PreparedStatement ps = conn.prepareStatement(P7SpyJdbc_3_0_Test.SQL_SELECT_ITEM);
+    	for (int i = 0; i < count; i++) {
+    		ps.setString(1, "item " + i);
+    		ps.executeQuery().close();
+    	}
+    	ps.close();
+    }
+
+    public void testRepeated() throws SQLException {
+        Connection conn = DriverManager.getConnection(CONNECTION_URL);
+        Statement s = conn.createStatement();
+        selectItems(conn, 12);
+        // literals are normalised, so these are the same statement
+        for (int i = 0; i < 3; i++) {
+        	s.executeQuery("SELECT wish_item FROM wish_list WHERE wish_item = 'item " + i + "'").close();
+        }
+        s.close();
+        assertEquals(0, getRepeatMessages().size());
+
+        P7SpyRepeatDetector.flush();
+        List<String> messages = getRepeatMessages();
+        assertEquals(1, messages.size());
+        String message = messages.get(0);
+        assertTrue(message, message.matches("(?s)possible N\\+1 query: executed 15 times in [0-9]+ms on P7Connection@[0-9a-f]+, " +
+        	"total duration [0-9]+ms, sql=\"SELECT wish_item FROM wish_list WHERE wish_item = \\?\"; sampled at\n" +
+        	"\tat com\\.randomnoun\\.p7spy\\.test\\.P7SpyRepeatDetectorTest\\.selectItems\\(P7SpyRepeatDetectorTest\\.java:[0-9]+\\)\n" +
+        	"\tat com\\.randomnoun\\.p7spy\\.test\\.P7SpyRepeatDetectorTest\\.testRepeated\\(.*"));
+        assertEquals(1, P7SpyRepeatDetector.getReportedCount());
+
+        // under the threshold
+        selectItems(conn, 5);
+        P7SpyRepeatDetector.flush();
+        assertEquals(0, getRepeatMessages().size());
+        conn.close();
+    }
+
+    public void testWindowAndConnections() throws Exception {
+        Connection conn = DriverManager.getConnection(CONNECTION_URL);
+        Connection conn2 = DriverManager.getConnection(CONNECTION_URL);
+        // executions on different connections are counted separately
+        selectItems(conn, 4);
+        selectItems(conn2, 4);
+        P7SpyRepeatDetector.flush();
+        assertEquals(0, getRepeatMessages().size());
+
+        // the run ends when the window has elapsed, and is reported by the next execution
+        P7SpyRepeatDetector.setWindow(500);
+        selectItems(conn, 6);
+        Thread.sleep(600);
+        assertEquals(0, getRepeatMessages().size());
+        selectItems(conn2, 1);
+        List<String> messages = getRepeatMessages();
+        assertEquals(1, messages.size());
+        assertTrue(messages.get(0), messages.get(0).startsWith("possible N+1 query: executed 6 times in "));
+        assertTrue(messages.get(0), messages.get(0).contains(" on P7Connection@" + Integer.toHexString(System.identityHashCode(conn)) + ","));
+        conn2.close();
+        conn.close();
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.randomnoun.p7spy.test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.randomnoun.p7spy.P7SpyResultSetSummary;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for p7spy result set summaries
+ */
+public class P7SpyResultSetSummaryTest
+    extends TestCase
+{
+
+	P7SpyJdbc_3_0_Test p7SpyTest30 = new P7SpyJdbc_3_0_Test("P7SpyTests for JDK14");
+
+	public static String SQL_SELECT_ALL = "SELECT wish_id, wish_item FROM wish_list";
+
+	/**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public P7SpyResultSetSummaryTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( P7SpyResultSetSummaryTest.class );
+    }
+
+    public void setUp() {
+    	p7SpyTest30.setUp();
+    }
+
+    public void tearDown() {
+    	P7SpyResultSetSummary.setEnabled(false);
+    }
+
+    public void testSizeOf() {
+    	assertEquals(0, P7SpyResultSetSummary.sizeOf((String) null));
+    	assertEquals(10, P7SpyResultSetSummary.sizeOf("thing"));
+    	assertEquals(10, P7SpyResultSetSummary.sizeOf((Object) "thing"));
+    	assertEquals(3, P7SpyResultSetSummary.sizeOf(new byte[3]));
+    	assertEquals(4, P7SpyResultSetSummary.sizeOf((Object) Integer.valueOf(42)));
+    	assertEquals(12, P7SpyResultSetSummary.sizeOf((Object) new java.sql.Timestamp(0)));
+    	assertEquals(0, P7SpyResultSetSummary.sizeOf(new Object()));
+
+    	StringBuilder sb = new StringBuilder();
+    	P7SpyResultSetSummary.appendSummary(sb, 0, 0, -1, 0, 0, 0, 0, 0, 0);
+    	assertEquals("summary: rows=0, columnReads=0, nextTime=0, bytes={}", sb.toString());
+    }
+
+    /** Returns the messages logged by the ResultSet wrapper */
+    private List<String> getResultSetMessages() {
+        P7SpyJdbc_3_0_Test.MemoryAppender memoryAppender = (P7SpyJdbc_3_0_Test.MemoryAppender) Logger.getRootLogger().getAppender("MEMORY");
+    	List<String> messages = new ArrayList<String>();
+        for (Object o : memoryAppender.getLoggingEvents()) {
+        	LoggingEvent event = (LoggingEvent) o;
+        	if (event.getLoggerName().equals("com.randomnoun.p7spy.jdbc_4_3.P7ResultSet")) {
+        		messages.add((String) event.getMessage());
+        	}
+        }
+        memoryAppender.clear();
+        return messages;
+    }
+
+    /** Read all rows from a result set */
+    private void readAll(ResultSet rs) throws SQLException {
+    	while (rs.next()) {
+    		rs.getInt(1);
+    		rs.getString("wish_item");
+    		rs.wasNull();
+    	}
+    }
+
+    public void testSummary() throws SQLException {
+        String connectionURL = "jdbc:p7spy#org.apache.derby.iapi.jdbc.AutoloadedDriver:derby:memory:p7spyTestDB11;create=true";
+        Connection conn = DriverManager.getConnection(connectionURL);
+        Statement s = conn.createStatement();
+        s.execute(P7SpyJdbc_3_0_Test.SQL_CREATE_TABLE);
+        s.close();
+        PreparedStatement ps = conn.prepareStatement(P7SpyJdbc_3_0_Test.SQL_CREATE_ITEM);
+        for (String item : new String[] { "thing", "other thing", "wizard hat" }) {
+        	ps.setString(1, item);
+        	ps.executeUpdate();
+        }
+        ps.close();
+        P7SpyResultSetSummary.setEnabled(true);
+        getResultSetMessages();
+
+        // summary logged when the result set is closed
+        ps = conn.prepareStatement(SQL_SELECT_ALL);
+        ResultSet rs = ps.executeQuery();
+        readAll(rs);
+        rs.close();
+        List<String> messages = getResultSetMessages();
+        assertEquals(3, messages.size());
+        assertEquals("new ResultSet()", messages.get(0));
+        assertTrue(messages.get(1), messages.get(1).matches(
+        	"summary: rows=3, columnReads=6, firstRowTime=\\d+, nextTime=\\d+, bytes=\\{string=52, number=12\\}"));
+        assertEquals("close()", messages.get(2));
+
+        // summary logged when the statement is re-executed, and then when it is closed
+        readAll(ps.executeQuery());
+        ps.executeQuery().next();
+        ps.close();
+        messages = getResultSetMessages();
+        assertEquals(4, messages.size());
+        assertEquals("new ResultSet()", messages.get(1));
+        assertTrue(messages.get(2), messages.get(2).startsWith("summary: rows=3, columnReads=6,"));
+        assertTrue(messages.get(3), messages.get(3).startsWith("summary: rows=1, columnReads=0,"));
+
+        // summary logged when the connection is closed
+        s = conn.createStatement();
+        readAll(s.executeQuery(SQL_SELECT_ALL));
+        conn.close();
+        messages = getResultSetMessages();
+        assertEquals(2, messages.size());
+        assertTrue(messages.get(1), messages.get(1).startsWith("summary: rows=3, columnReads=6,"));
+    }
+
+}
@@ -0,0 +1,159 @@
+package com.randomnoun.p7spy.test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.randomnoun.p7spy.sample.P7SpySampler;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for p7spy sampling and rate limiting
+ */
+public class P7SpySamplerTest
+    extends TestCase
+{
+
+	P7SpyJdbc_3_0_Test p7SpyTest30 = new P7SpyJdbc_3_0_Test("P7SpyTests for JDK14");
+
+	static final String CONNECTION_URL = "jdbc:p7spy#org.apache.derby.iapi.jdbc.AutoloadedDriver:derby:memory:p7spyTestDB8;create=true";
+
+	/**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public P7SpySamplerTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( P7SpySamplerTest.class );
+    }
+
+    public void setUp() throws SQLException {
+    	p7SpyTest30.setUp();
+        Connection conn = DriverManager.getConnection(CONNECTION_URL);
+        Statement s = conn.createStatement();
+        try {
+        	s.execute(P7SpyJdbc_3_0_Test.SQL_CREATE_TABLE);
+        } catch (SQLException sqle) {
+        	// table already exists
+        }
+        s.close();
+        conn.close();
+    	P7SpySampler.reset();
+    }
+
+    public void tearDown() {
+    	P7SpySampler.setConnectionSampleRate(1);
+    	P7SpySampler.setStatementSampleRate(1);
+    	P7SpySampler.setMaxLinesPerSecond(0);
+    }
+
+    private int countMessages(String message) {
+        P7SpyJdbc_3_0_Test.MemoryAppender memoryAppender = (P7SpyJdbc_3_0_Test.MemoryAppender) Logger.getRootLogger().getAppender("MEMORY");
+        int count = 0;
+        for (Object o : memoryAppender.getLoggingEvents()) {
+        	if (message.equals(((LoggingEvent) o).getMessage())) { count++; }
+        }
+        return count;
+    }
+
+    private void selectItem(Connection conn) throws SQLException {
+    	PreparedStatement ps = conn.prepareStatement(P7SpyJdbc_3_0_Test.SQL_SELECT_ITEM);
+    	ps.setInt(1, 1);
+    	ResultSet rs = ps.executeQuery();
+    	while (rs.next()) { rs.getString(1); }
+    	rs.close();
+    	ps.close();
+    }
+
+    public void testConnectionSampling() throws SQLException {
+    	P7SpySampler.setConnectionSampleRate(2);
+        P7SpyJdbc_3_0_Test.MemoryAppender memoryAppender = (P7SpyJdbc_3_0_Test.MemoryAppender) Logger.getRootLogger().getAppender("MEMORY");
+        memoryAppender.clear();
+        for (int i = 0; i < 4; i++) {
+        	Connection conn = DriverManager.getConnection(CONNECTION_URL);
+        	selectItem(conn);
+        	conn.close();
+        }
+        assertEquals(4, P7SpySampler.getConnectionCount());
+        assertEquals(2, P7SpySampler.getSampledConnectionCount());
+        assertEquals(2, countMessages("setInt(1, 1)"));
+        // every call on an unsampled connection and its children is skipped
+        assertTrue(P7SpySampler.getSkippedCalls() >= 2 * 6);
+        assertEquals(0, P7SpySampler.getRateLimitedCalls());
+    }
+
+    public void testStatementSampling() throws SQLException {
+    	P7SpySampler.setStatementSampleRate(3);
+        P7SpyJdbc_3_0_Test.MemoryAppender memoryAppender = (P7SpyJdbc_3_0_Test.MemoryAppender) Logger.getRootLogger().getAppender("MEMORY");
+        memoryAppender.clear();
+    	Connection conn = DriverManager.getConnection(CONNECTION_URL);
+        for (int i = 0; i < 6; i++) {
+        	selectItem(conn);
+        }
+        conn.close();
+        assertEquals(6, P7SpySampler.getStatementCount());
+        assertEquals(2, P7SpySampler.getSampledStatementCount());
+        assertEquals(2, countMessages("setInt(1, 1)"));
+    }
+
+    public void testNoSampling() throws SQLException {
+        P7SpyJdbc_3_0_Test.MemoryAppender memoryAppender = (P7SpyJdbc_3_0_Test.MemoryAppender) Logger.getRootLogger().getAppender("MEMORY");
+        memoryAppender.clear();
+        assertTrue(P7SpySampler.isTracingAll());
+    	Connection conn = DriverManager.getConnection(CONNECTION_URL);
+        for (int i = 0; i < 3; i++) {
+        	selectItem(conn);
+        }
+        conn.close();
+        // every object is traced, and nothing is counted whilst the sample rates are 1
+        assertEquals(3, countMessages("setInt(1, 1)"));
+        assertEquals(0, P7SpySampler.getConnectionCount());
+        assertEquals(0, P7SpySampler.getSampledConnectionCount());
+        assertEquals(0, P7SpySampler.getStatementCount());
+        assertEquals(0, P7SpySampler.getSampledStatementCount());
+        assertEquals(0, P7SpySampler.getSkippedCalls());
+        assertEquals(0, P7SpySampler.getTracedCalls());
+    }
+
+    public void testRateLimit() throws SQLException {
+    	P7SpySampler.setMaxLinesPerSecond(5);
+        P7SpyJdbc_3_0_Test.MemoryAppender memoryAppender = (P7SpyJdbc_3_0_Test.MemoryAppender) Logger.getRootLogger().getAppender("MEMORY");
+        memoryAppender.clear();
+    	Connection conn = DriverManager.getConnection(CONNECTION_URL);
+    	PreparedStatement ps = conn.prepareStatement(P7SpyJdbc_3_0_Test.SQL_SELECT_ITEM);
+        for (int i = 0; i < 100; i++) {
+        	ps.setInt(1, i);
+        }
+        ps.close();
+        conn.close();
+        // a second may have elapsed, allowing a few more
+        assertTrue(P7SpySampler.getTracedCalls() <= 15);
+        // two constructors, prepareStatement, 100 x setInt and two closes
+        assertEquals(105, P7SpySampler.getTracedCalls() + P7SpySampler.getRateLimitedCalls());
+        int logged = 0;
+        for (Object o : memoryAppender.getLoggingEvents()) {
+        	LoggingEvent event = (LoggingEvent) o;
+        	if (event.getLoggerName().startsWith("com.randomnoun.p7spy.jdbc_4_3.")) { logged++; }
+        }
+        assertEquals(P7SpySampler.getTracedCalls(), logged);
+    }
+
+}
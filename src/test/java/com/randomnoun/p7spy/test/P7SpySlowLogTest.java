@@ -0,0 +1,126 @@
+package com.randomnoun.p7spy.test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.randomnoun.p7spy.P7SpyConfig;
+import com.randomnoun.p7spy.P7SpyTrace;
+import com.randomnoun.p7spy.slow.P7SpySlowThresholds;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for p7spy slow-call logging
+ */
+public class P7SpySlowLogTest
+    extends TestCase
+{
+
+	P7SpyJdbc_3_0_Test p7SpyTest30 = new P7SpyJdbc_3_0_Test("P7SpyTests for JDK14");
+
+	P7SpyConfig originalConfig;
+
+	/**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public P7SpySlowLogTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( P7SpySlowLogTest.class );
+    }
+
+    public void setUp() {
+    	p7SpyTest30.setUp();
+    	originalConfig = P7SpyTrace.getConfig();
+    }
+
+    public void tearDown() {
+    	P7SpyTrace.setConfig(originalConfig);
+    	Logger.getLogger("com.randomnoun.p7spy.jdbc_4_3").setLevel(null);
+    }
+
+    public void testThresholds() {
+    	assertFalse(P7SpySlowThresholds.EMPTY.isEnabled());
+    	Properties props = new Properties();
+    	props.put("slowThreshold", "500");
+    	props.put("slowThreshold.PreparedStatement", "100");
+    	props.put("slowThreshold.PreparedStatement.executeQuery", "0.5");
+    	props.put("slowThreshold.ResultSet", "none");
+    	P7SpySlowThresholds thresholds = new P7SpySlowThresholds(props);
+    	assertTrue(thresholds.isEnabled());
+    	assertEquals(500000000L, thresholds.getThreshold("Connection", "commit"));
+    	assertEquals(100000000L, thresholds.getThreshold("PreparedStatement", "executeUpdate"));
+    	assertEquals(500000L, thresholds.getThreshold("PreparedStatement", "executeQuery"));
+    	assertEquals(P7SpySlowThresholds.NONE, thresholds.getThreshold("ResultSet", "next"));
+
+    	props.clear();
+    	props.put("slowThreshold", "none");
+    	assertFalse(new P7SpySlowThresholds(props).isEnabled());
+    	props.put("slowThreshold", "fast");
+    	try {
+    		new P7SpySlowThresholds(props);
+    		fail("expected IllegalArgumentException");
+    	} catch (IllegalArgumentException iae) {
+    		// expected
+    	}
+    }
+
+    public void testSlowLog() throws SQLException {
+    	Properties props = new Properties();
+    	props.put("slowThreshold", "none");
+    	props.put("slowThreshold.PreparedStatement.executeQuery", "0");
+    	P7SpyTrace.setConfig(new P7SpyConfig(props));
+    	Logger.getLogger("com.randomnoun.p7spy.jdbc_4_3").setLevel(Level.INFO);
+
+        String connectionURL = "jdbc:p7spy#org.apache.derby.iapi.jdbc.AutoloadedDriver:derby:memory:p7spyTestDB9;create=true";
+        Connection conn = DriverManager.getConnection(connectionURL);
+        Statement s = conn.createStatement();
+        s.execute(P7SpyJdbc_3_0_Test.SQL_CREATE_TABLE);
+        s.close();
+        P7SpyJdbc_3_0_Test.MemoryAppender memoryAppender = (P7SpyJdbc_3_0_Test.MemoryAppender) Logger.getRootLogger().getAppender("MEMORY");
+        memoryAppender.clear();
+        PreparedStatement ps = conn.prepareStatement(P7SpyJdbc_3_0_Test.SQL_SELECT_ITEM);
+        ps.setInt(1, 42);
+        ResultSet rs = ps.executeQuery();
+        while (rs.next()) { }
+        rs.close();
+        ps.clearParameters();
+        ps.setNull(1, java.sql.Types.INTEGER);
+        ps.executeQuery().close();
+        ps.close();
+        conn.close();
+
+        int slowCount = 0;
+        for (Object o : memoryAppender.getLoggingEvents()) {
+        	LoggingEvent event = (LoggingEvent) o;
+        	if (!event.getLoggerName().startsWith("com.randomnoun.p7spy.jdbc_4_3.")) { continue; }
+        	assertEquals(Level.INFO, event.getLevel());
+        	String expected = "slow executeQuery() sql=\"" + P7SpyJdbc_3_0_Test.SQL_SELECT_ITEM + "\" parameters={1=" + (slowCount == 0 ? "42" : "null") + "}";
+        	assertEquals(expected, event.getMessage());
+        	assertNotNull(event.getMDC("p7Duration"));
+        	slowCount++;
+        }
+        assertEquals(2, slowCount);
+    }
+
+}
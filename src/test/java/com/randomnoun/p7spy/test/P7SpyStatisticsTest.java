@@ -0,0 +1,293 @@
+package com.randomnoun.p7spy.test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.randomnoun.p7spy.stats.P7SpyAttribution;
+import com.randomnoun.p7spy.stats.P7SpyCallSiteStatistics;
+import com.randomnoun.p7spy.stats.P7SpySqlNormalizer;
+import com.randomnoun.p7spy.stats.P7SpySqlParser;
+import com.randomnoun.p7spy.stats.P7SpySqlStatistics;
+import com.randomnoun.p7spy.stats.P7SpyStatistics;
+import com.randomnoun.p7spy.stats.P7SpyTableStatistics;
+import com.randomnoun.p7spy.stats.P7SpySqlInfo.StatementType;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for p7spy SQL statistics
+ */
+public class P7SpyStatisticsTest
+    extends TestCase
+{
+
+	P7SpyJdbc_3_0_Test p7SpyTest30 = new P7SpyJdbc_3_0_Test("P7SpyTests for JDK14");
+
+	/**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public P7SpyStatisticsTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( P7SpyStatisticsTest.class );
+    }
+
+    public void setUp() {
+    	p7SpyTest30.setUp();
+    	// statistics are collected even when method logging is disabled
+    	Logger.getLogger("com.randomnoun.p7spy").setLevel(Level.INFO);
+    	P7SpyStatistics.reset();
+    	P7SpyStatistics.setEnabled(true);
+    	P7SpyStatistics.setTablesEnabled(true);
+    }
+
+    public void tearDown() {
+    	P7SpyStatistics.setEnabled(false);
+    	P7SpyStatistics.setTablesEnabled(false);
+    	P7SpyStatistics.setMaxStatements(500);
+    	P7SpyStatistics.reset();
+    	P7SpyAttribution.setSampleRate(0);
+    	P7SpyAttribution.reset();
+    	Logger.getLogger("com.randomnoun.p7spy").setLevel(Level.DEBUG);
+    }
+
+    public void testNormalize() {
+    	assertEquals("SELECT * FROM tblThing WHERE id = ? AND name=? AND type IN (?)",
+    		P7SpySqlNormalizer.normalizeUncached("SELECT *   FROM tblThing WHERE id = 5 AND name='bob' AND type IN (1, 2, 3)"));
+    	assertEquals("SELECT col1 FROM table2 WHERE x=? AND y IN (?)",
+    		P7SpySqlNormalizer.normalizeUncached(" SELECT col1\n  FROM table2\n WHERE x='it''s' AND y IN (?,?,?) "));
+    	assertEquals("SELECT \"Col 5\" FROM t WHERE a > ? AND b < ?",
+    		P7SpySqlNormalizer.normalizeUncached("SELECT \"Col 5\" FROM t WHERE a > 1.5e-3 AND b < 0x1F"));
+    	// only IN lists are collapsed
+    	assertEquals("INSERT INTO t (a, b, c) VALUES (?, ?, ?)",
+    		P7SpySqlNormalizer.normalizeUncached("INSERT INTO t (a, b, c) VALUES (?, ?, ?)"));
+    	assertEquals("SELECT ?, ?", P7SpySqlNormalizer.normalizeUncached("SELECT 1, 2"));
+    	assertEquals("SELECT substr(x, ?, ?) FROM t LIMIT ?, ?",
+    		P7SpySqlNormalizer.normalizeUncached("SELECT substr(x, 1, 2) FROM t LIMIT 10, 20"));
+    	assertEquals("SELECT * FROM t WHERE a NOT IN (?) AND (b, c) IN ((?, ?), (?, ?)) AND d in(?) AND f(e, ?) = ?",
+    		P7SpySqlNormalizer.normalizeUncached("SELECT * FROM t WHERE a NOT IN ('x', 'y') AND (b, c) IN ((1, 2), (3, 4)) AND d in(?,?) AND f(e, 1) = 2"));
+    	assertEquals("SELECT * FROM t WHERE id IN (SELECT id FROM u WHERE x IN (?)) AND pin (?, ?)",
+    		P7SpySqlNormalizer.normalizeUncached("SELECT * FROM t WHERE id IN (SELECT id FROM u WHERE x IN (1, 2)) AND pin (1, 2)"));
+    	assertEquals("SELECT * FROM t WHERE id IN (SELECT ?, ? FROM u)",
+    		P7SpySqlNormalizer.normalizeUncached("SELECT * FROM t WHERE id IN (SELECT 1, 2 FROM u)"));
+    	// negative numbers are literals, but subtractions are not
+    	assertEquals("SELECT * FROM t WHERE a IN (?) AND b = ? AND c > ? AND d-? < e - ?",
+    		P7SpySqlNormalizer.normalizeUncached("SELECT * FROM t WHERE a IN (-1, -2) AND b = -.5 AND c > -1e-3 AND d-1 < e - -2"));
+    	assertEquals(P7SpySqlNormalizer.normalizeUncached("SELECT * FROM t WHERE a IN (1, 2) AND f(x, 3) = 4"),
+    		P7SpySqlNormalizer.normalizeUncached("SELECT * FROM t WHERE a IN (-1,-2) AND f(x, -3) = -4"));
+    	assertEquals("SELECT * FROM t WHERE a = ? -- -1", P7SpySqlNormalizer.normalizeUncached("SELECT * FROM t WHERE a = 1 -- -1"));
+    }
+
+    public void testParse() {
+    	assertEquals("SELECT [r:customer, r:Order]",
+    		tables("SELECT * FROM Customer c LEFT OUTER JOIN \"Order\" o ON c.id = o.cust_id WHERE c.name LIKE 'x%'"));
+    	assertEquals("SELECT [r:b, r:app.a, r:d]",
+    		tables("SELECT EXTRACT(YEAR FROM x.dt), (SELECT max(y) FROM b) FROM app.a x, (SELECT * FROM d) e FOR UPDATE"));
+    	assertEquals("INSERT [w:audit, r:customer]", tables("INSERT INTO audit (id, name) SELECT id, name FROM customer"));
+    	assertEquals("UPDATE [w:t1, r:t2]", tables("UPDATE t1 SET x = (SELECT y FROM t2 WHERE t2.id = t1.id)"));
+    	assertEquals("DELETE [w:t1, r:t2]", tables("DELETE FROM t1 WHERE id IN (SELECT id FROM t2)"));
+    	assertEquals("MERGE [w:t, r:s]", tables("MERGE INTO t USING s ON (t.id = s.id) WHEN MATCHED THEN UPDATE SET t.x = s.x WHEN NOT MATCHED THEN INSERT (id, x) VALUES (s.id, s.x)"));
+    	assertEquals("SELECT [r:orders]", tables("WITH recent AS (SELECT * FROM orders WHERE dt > ?) SELECT * FROM recent"));
+    	assertEquals("DDL [w:wish_list]", tables("CREATE TABLE IF NOT EXISTS wish_list (id INT, item VARCHAR(32))"));
+    	assertEquals("DDL [w:t, r:u]", tables("ALTER TABLE t ADD CONSTRAINT fk FOREIGN KEY (uid) REFERENCES u (id) ON DELETE NO ACTION"));
+    	assertEquals("DDL [w:t]", tables("CREATE INDEX idx_t ON t (a, b)"));
+    	assertEquals("CALL []", tables("{call do_thing(?)}"));
+    	assertSame(P7SpySqlParser.parse("SELECT 1 FROM t"), P7SpySqlParser.parse("SELECT 1 FROM t"));
+    }
+
+    /** Returns the statement type and tables of some SQL */
+    private String tables(String sql) {
+    	String s = P7SpySqlParser.parseUncached(sql).toString();
+    	return s.substring(0, s.indexOf(']') + 1);
+    }
+
+    public void testStatistics() throws SQLException {
+        String connectionURL = "jdbc:p7spy#org.apache.derby.iapi.jdbc.AutoloadedDriver:derby:memory:p7spyTestDB5;create=true";
+        Connection conn = DriverManager.getConnection(connectionURL);
+        Statement s = conn.createStatement();
+        s.execute(P7SpyJdbc_3_0_Test.SQL_CREATE_TABLE);
+        s.close();
+
+        PreparedStatement ps = conn.prepareStatement(P7SpyJdbc_3_0_Test.SQL_CREATE_ITEM);
+        for (int i = 0; i < 3; i++) {
+        	ps.setString(1, "thing" + i);
+        	ps.executeUpdate();
+        }
+        ps.close();
+
+        s = conn.createStatement();
+        for (int i = 1; i <= 2; i++) {
+        	ResultSet rs = s.executeQuery("SELECT wish_item FROM wish_list WHERE wish_id = " + i);
+        	assertTrue(rs.next());
+        	rs.close();
+        }
+        try {
+        	s.executeQuery("SELECT no_such_column FROM wish_list WHERE wish_id = 3");
+        	fail("Expected SQLException");
+        } catch (SQLException sqle) {
+        	// expected
+        }
+        s.close();
+        conn.close();
+
+        P7SpySqlStatistics insertStats = null, selectStats = null, errorStats = null;
+        List<P7SpySqlStatistics> statistics = P7SpyStatistics.getStatistics();
+        for (P7SpySqlStatistics stats : statistics) {
+        	if (stats.getSql().equals("INSERT INTO wish_list ( wish_item ) VALUES ( ? )")) { insertStats = stats; }
+        	if (stats.getSql().equals("SELECT wish_item FROM wish_list WHERE wish_id = ?")) { selectStats = stats; }
+        	if (stats.getSql().equals("SELECT no_such_column FROM wish_list WHERE wish_id = ?")) { errorStats = stats; }
+        }
+        assertNotNull(insertStats);
+        assertEquals(3, insertStats.getCount());
+        assertNotNull(selectStats);
+        assertEquals(2, selectStats.getCount());
+        assertEquals(0, selectStats.getErrorCount());
+        assertTrue(selectStats.getMaxNanos() >= selectStats.getMinNanos());
+        long[] percentiles = selectStats.getPercentiles(50, 99);
+        assertTrue(percentiles[1] >= percentiles[0]);
+        assertNotNull(errorStats);
+        assertEquals(1, errorStats.getErrorCount());
+
+        P7SpyTableStatistics tableStats = null;
+        for (P7SpyTableStatistics stats : P7SpyStatistics.getTableStatistics()) {
+        	if (stats.getTable().equals("wish_list")) { tableStats = stats; }
+        }
+        assertNotNull(tableStats);
+        assertEquals(1, tableStats.getCount(StatementType.DDL));
+        assertEquals(3, tableStats.getCount(StatementType.INSERT));
+        assertEquals(3, tableStats.getCount(StatementType.SELECT));
+        assertEquals(4, tableStats.getWriteCount());
+        assertEquals(3, tableStats.getReadCount());
+        assertEquals(3, tableStats.getRowsAffected());
+        assertEquals(1, tableStats.getErrorCount());
+
+        P7SpyStatistics.report();
+        P7SpyStatistics.reportTables();
+    }
+
+    /** Returns the statistics for a normalised statement, or null if it isn't being tracked */
+    private P7SpySqlStatistics getStatistics(String sql) {
+    	for (P7SpySqlStatistics stats : P7SpyStatistics.getStatistics()) {
+    		if (stats.getSql().equals(sql)) { return stats; }
+    	}
+    	return null;
+    }
+
+    public void testEviction() {
+    	P7SpyStatistics.setMaxStatements(10);
+    	for (int i = 0; i < 10000; i++) {
+    		P7SpyStatistics.record("SELECT * FROM old", 1000, -1, false);
+    	}
+    	for (int j = 1; j <= 30; j++) {
+    		for (int i = 0; i < 1000; i++) {
+    			P7SpyStatistics.record("SELECT * FROM new" + j, 1000, -1, false);
+    		}
+    		assertTrue(P7SpyStatistics.getStatistics().size() <= 10);
+    		if (j == 12) {
+    			// statements executed less often than the old statement are evicted first
+    			assertEquals(3, P7SpyStatistics.getEvictedCount());
+    			assertNotNull(getStatistics("SELECT * FROM old"));
+    			assertEquals(10000, getStatistics("SELECT * FROM old").getCount());
+    		}
+    	}
+    	// the old statement's frequency decays with each eviction, until it is evicted
+    	assertNull(getStatistics("SELECT * FROM old"));
+    	assertEquals(1000, getStatistics("SELECT * FROM new30").getCount());
+    	assertEquals(21, P7SpyStatistics.getEvictedCount());
+    }
+
+    public void testConcurrentEviction() throws InterruptedException {
+    	P7SpyStatistics.setMaxStatements(10);
+    	Thread[] threads = new Thread[8];
+    	for (int t = 0; t < threads.length; t++) {
+    		final String table = "tbl" + (char) ('a' + t);
+    		threads[t] = new Thread() {
+    			public void run() {
+    				for (int i = 0; i < 2000; i++) {
+    					P7SpyStatistics.record("SELECT * FROM " + table + "_" + Integer.toString(i, 26).replace('0', 'z'), 1000, -1, false);
+    				}
+    			}
+    		};
+    		threads[t].start();
+    	}
+    	for (Thread t : threads) { t.join(); }
+    	// new statements are added whilst holding a lock, so every statement is either tracked or evicted,
+    	// and the limit is never exceeded
+    	List<P7SpySqlStatistics> statistics = P7SpyStatistics.getStatistics();
+    	assertTrue(String.valueOf(statistics.size()), statistics.size() <= 10);
+    	assertEquals(16000 - statistics.size(), P7SpyStatistics.getEvictedCount());
+    }
+
+    /** Insert some items; the call site of these executions is this method */
+    private void insertItems(Connection conn, int count) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement(P7SpyJdbc_3_0_Test.SQL_CREATE_ITEM);
+        for (int i = 0; i < count; i++) {
+        	ps.setString(1, "thing" + i);
+        	ps.executeUpdate();
+        }
+        ps.close();
+    }
+
+    public void testAttribution() throws SQLException {
+    	P7SpyStatistics.setEnabled(false);
+    	P7SpyStatistics.setTablesEnabled(false);
+    	P7SpyAttribution.setSampleRate(1);
+        String connectionURL = "jdbc:p7spy#org.apache.derby.iapi.jdbc.AutoloadedDriver:derby:memory:p7spyTestDB19;create=true";
+        Connection conn = DriverManager.getConnection(connectionURL);
+        Statement s = conn.createStatement();
+        s.execute(P7SpyJdbc_3_0_Test.SQL_CREATE_TABLE);
+        insertItems(conn, 3);
+        for (int i = 1; i <= 2; i++) {
+        	s.executeQuery("SELECT wish_item FROM wish_list WHERE wish_id = " + i).close();
+        }
+        s.close();
+        conn.close();
+
+        P7SpyCallSiteStatistics insertStats = null, selectStats = null;
+        for (P7SpyCallSiteStatistics stats : P7SpyAttribution.getStatistics()) {
+        	if (stats.getSql().equals("INSERT INTO wish_list ( wish_item ) VALUES ( ? )")) { insertStats = stats; }
+        	if (stats.getSql().equals("SELECT wish_item FROM wish_list WHERE wish_id = ?")) { selectStats = stats; }
+        }
+        assertNotNull(insertStats);
+        assertTrue(insertStats.getCallSite(), insertStats.getCallSite().matches("com\\.randomnoun\\.p7spy\\.test\\.P7SpyStatisticsTest\\.insertItems\\(P7SpyStatisticsTest\\.java:[0-9]+\\)"));
+        assertEquals(3, insertStats.getCount());
+        assertEquals(3, insertStats.getRowsAffected());
+        assertNotNull(selectStats);
+        assertTrue(selectStats.getCallSite(), selectStats.getCallSite().startsWith("com.randomnoun.p7spy.test.P7SpyStatisticsTest.testAttribution("));
+        assertEquals(2, selectStats.getCount());
+
+        // frames in excluded packages are skipped
+        P7SpyAttribution.reset();
+        P7SpyAttribution.setExcludedPackages("com.randomnoun.p7spy.test.P7SpyStatisticsTest");
+        try {
+        	conn = DriverManager.getConnection(connectionURL);
+        	insertItems(conn, 1);
+        	conn.close();
+        } finally {
+        	P7SpyAttribution.setExcludedPackages(null);
+        }
+        String callSite = P7SpyAttribution.getStatistics().get(0).getCallSite();
+        assertFalse(callSite, callSite.startsWith("com.randomnoun.p7spy.test.P7SpyStatisticsTest"));
+        P7SpyAttribution.report();
+    }
+
+}
@@ -0,0 +1,185 @@
+package com.randomnoun.p7spy.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.sql.Blob;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.randomnoun.p7spy.P7SpyWrapper;
+import com.randomnoun.p7spy.stream.P7SpyInputStream;
+import com.randomnoun.p7spy.stream.P7SpyStreams;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for p7spy LOB and stream wrappers
+ */
+public class P7SpyStreamsTest
+    extends TestCase
+{
+
+	P7SpyJdbc_3_0_Test p7SpyTest30 = new P7SpyJdbc_3_0_Test("P7SpyTests for JDK14");
+
+	/**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public P7SpyStreamsTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( P7SpyStreamsTest.class );
+    }
+
+    public void setUp() {
+    	p7SpyTest30.setUp();
+    }
+
+    /** Returns the messages logged since the memory appender was last cleared */
+    private List<String> getMessages() {
+        P7SpyJdbc_3_0_Test.MemoryAppender memoryAppender = (P7SpyJdbc_3_0_Test.MemoryAppender) Logger.getRootLogger().getAppender("MEMORY");
+    	List<String> messages = new ArrayList<String>();
+        for (Object o : memoryAppender.getLoggingEvents()) {
+        	messages.add((String) ((LoggingEvent) o).getMessage());
+        }
+        memoryAppender.clear();
+        return messages;
+    }
+
+    public void testStreams() throws IOException {
+    	Logger logger = Logger.getLogger(P7SpyStreamsTest.class);
+    	Object wrapper = new Object();
+    	getMessages();
+    	InputStream is = P7SpyStreams.wrap(new ByteArrayInputStream(new byte[1000]), logger, wrapper, "getBinaryStream(1)");
+    	assertTrue(is instanceof P7SpyInputStream);
+    	assertSame(is, P7SpyStreams.wrap(is, logger, wrapper, "getBinaryStream(1)"));
+    	assertNull(P7SpyStreams.wrap((InputStream) null, logger, wrapper, "getBinaryStream(1)"));
+    	byte[] buf = new byte[300];
+    	while (is.read(buf) != -1) { }
+    	assertEquals(0, is.available());
+    	is.close(); // already reported at end of stream
+    	List<String> messages = getMessages();
+    	assertEquals(1, messages.size());
+    	assertTrue(messages.get(0), messages.get(0).matches(
+    		"getBinaryStream\\(1\\) read: bytes=1000, calls=5, stallTime=\\d+, elapsedTime=\\d+, ([0-9.]+|-)MB/s"));
+
+    	Reader r = P7SpyStreams.wrap(new StringReader("thing"), logger, wrapper, "getCharacterStream(1)");
+    	assertEquals('t', r.read());
+    	r.close();
+    	messages = getMessages();
+    	assertTrue(messages.get(0), messages.get(0).startsWith("getCharacterStream(1) read: chars=1, calls=1,"));
+
+    	// skipped bytes and characters are counted
+    	is = P7SpyStreams.wrap(new ByteArrayInputStream(new byte[1000]), logger, wrapper, "getBinaryStream(1)");
+    	assertEquals(600, is.skip(600));
+    	assertEquals(100, is.read(new byte[100]));
+    	is.close();
+    	r = P7SpyStreams.wrap(new StringReader("thing"), logger, wrapper, "getCharacterStream(1)");
+    	assertEquals(2, r.skip(2));
+    	assertEquals('i', r.read());
+    	r.close();
+    	messages = getMessages();
+    	assertTrue(messages.get(0), messages.get(0).startsWith("getBinaryStream(1) read: bytes=700, calls=2,"));
+    	assertTrue(messages.get(1), messages.get(1).startsWith("getCharacterStream(1) read: chars=3, calls=2,"));
+
+    	// the wrapper's id is placed in the MDC whilst the throughput is logged, and then restored
+    	final List<Object> ids = new ArrayList<Object>();
+    	AppenderSkeleton appender = new AppenderSkeleton() {
+    		protected void append(LoggingEvent event) { ids.add(MDC.get("p7Id")); }
+    		public void close() { }
+    		public boolean requiresLayout() { return false; }
+    	};
+    	logger.addAppender(appender);
+    	MDC.put("p7Id", "previous");
+    	try {
+    		is = P7SpyStreams.wrap(new ByteArrayInputStream(new byte[10]), logger, wrapper, "getBinaryStream(1)");
+    		is.close();
+    		assertEquals("previous", MDC.get("p7Id"));
+    	} finally {
+    		logger.removeAppender(appender);
+    		MDC.remove("p7Id");
+    	}
+    	assertEquals(Collections.singletonList("Object@" + Integer.toHexString(System.identityHashCode(wrapper))), ids);
+
+    	assertEquals("getBytes(1, 10) [10 bytes]", P7SpyStreams.appendThroughput("getBytes(1, 10)", 10, 0));
+    	assertTrue(P7SpyStreams.appendThroughput("getBytes(1, 10)", 1048576, 1000000000L).endsWith("[1048576 bytes, 1.0MB/s]"));
+    	assertNull(P7SpyStreams.appendThroughput(null, 10, 10));
+    }
+
+    public void testBlob() throws SQLException, IOException {
+        String connectionURL = "jdbc:p7spy#org.apache.derby.iapi.jdbc.AutoloadedDriver:derby:memory:p7spyTestDB13;create=true";
+        Connection conn = DriverManager.getConnection(connectionURL);
+        Statement s = conn.createStatement();
+        s.execute("CREATE TABLE blob_list (blob_id INT NOT NULL, blob_data BLOB(1M))");
+        s.close();
+        conn.setAutoCommit(false);
+
+        getMessages();
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO blob_list (blob_id, blob_data) VALUES (?, ?)");
+        ps.setInt(1, 1);
+        ps.setBinaryStream(2, new ByteArrayInputStream(new byte[10000]), 10000);
+        ps.executeUpdate();
+        ps.close();
+        boolean reported = false;
+        for (String message : getMessages()) {
+        	reported |= message.startsWith("setBinaryStream(2, ") && message.contains(" read: bytes=10000,");
+        }
+        assertTrue(reported);
+
+        ps = conn.prepareStatement("SELECT blob_data FROM blob_list WHERE blob_id = ?");
+        ps.setInt(1, 1);
+        ResultSet rs = ps.executeQuery();
+        assertTrue(rs.next());
+        Blob blob = rs.getBlob(1);
+        assertTrue(blob instanceof P7SpyWrapper);
+        assertEquals(100, blob.getBytes(1, 100).length);
+        InputStream is = blob.getBinaryStream();
+        byte[] buf = new byte[4096];
+        while (is.read(buf) != -1) { }
+        is.close();
+        List<String> messages = getMessages();
+        int throughputCount = 0;
+        for (String message : messages) {
+        	if (message.startsWith("getBytes(1, 100) [100 bytes") ||
+        		message.startsWith("getBinaryStream() read: bytes=10000,")) { throughputCount++; }
+        }
+        assertEquals(messages.toString(), 2, throughputCount);
+
+        // wrapped Blobs are unwrapped before being passed back to the driver
+        PreparedStatement insert = conn.prepareStatement("INSERT INTO blob_list (blob_id, blob_data) VALUES (?, ?)");
+        insert.setInt(1, 2);
+        insert.setBlob(2, blob);
+        assertEquals(1, insert.executeUpdate());
+        insert.close();
+        rs.close();
+        ps.close();
+        conn.commit();
+        conn.close();
+    }
+
+}
@@ -0,0 +1,223 @@
+package com.randomnoun.p7spy.test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.randomnoun.p7spy.P7SpyConfig;
+import com.randomnoun.p7spy.P7SpyTrace;
+import com.randomnoun.p7spy.trap.P7SpyTrap;
+import com.randomnoun.p7spy.trap.P7SpyTrap.Action;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for p7spy SQL traps
+ */
+public class P7SpyTrapTest
+    extends TestCase
+{
+
+	P7SpyJdbc_3_0_Test p7SpyTest30 = new P7SpyJdbc_3_0_Test("P7SpyTests for JDK14");
+
+	P7SpyConfig originalConfig;
+
+	/**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public P7SpyTrapTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( P7SpyTrapTest.class );
+    }
+
+    public void setUp() {
+    	p7SpyTest30.setUp();
+    	originalConfig = P7SpyTrace.getConfig();
+    }
+
+    public void tearDown() {
+    	P7SpyTrace.setConfig(originalConfig);
+    }
+
+    public void testRequiredLiteral() {
+    	assertEquals("tblThing", new P7SpyTrap("a", ".*FROM\\s+tblThing.*", Action.STACK).getLiteral());
+    	assertEquals("SELECT ", new P7SpyTrap("a", "SELECT .*", Action.STACK).getLiteral());
+    	assertEquals("abc", new P7SpyTrap("a", "abcd?e", Action.STACK).getLiteral());
+    	assertEquals("a.b.c", new P7SpyTrap("a", ".*\\Qa.b.c\\E.*", Action.STACK).getLiteral());
+    	assertEquals("orders", new P7SpyTrap("a", "(?i).*ORDERS.*", Action.STACK).getLiteral());
+    	assertTrue(new P7SpyTrap("a", "(?i).*ORDERS.*", Action.STACK).isCaseInsensitive());
+    	assertNull(new P7SpyTrap("a", ".*(tblThing|tblOther).*", Action.STACK).getLiteral());
+    	assertNull(new P7SpyTrap("a", "SELECT|UPDATE", Action.STACK).getLiteral());
+    	assertNull(new P7SpyTrap("a", "(?x) SELECT \\s+ tblThing", Action.STACK).getLiteral());
+
+    	// case-insensitive flags combined with other flags
+    	assertTrue(new P7SpyTrap("a", "(?si).*FROM\\s+tblThing.*", Action.STACK).isCaseInsensitive());
+    	assertTrue(new P7SpyTrap("a", "(?mi).*FROM\\s+tblThing.*", Action.STACK).isCaseInsensitive());
+    	assertTrue(new P7SpyTrap("a", "(?s-i).*FROM\\s+tblThing.*", Action.STACK).isCaseInsensitive());
+    	assertEquals("tblthing", new P7SpyTrap("a", "(?si).*FROM\\s+tblThing.*", Action.STACK).getLiteral());
+    	assertFalse(new P7SpyTrap("a", "(?s).*FROM\\s+tblThing.*", Action.STACK).isCaseInsensitive());
+    	assertNull(new P7SpyTrap("a", "(?iu).*FROM\\s+tblThing.*", Action.STACK).getLiteral());
+
+    	// escapes longer than two characters
+    	assertNull(new P7SpyTrap("a", ".*FROM\\x20tblThing.*", Action.STACK).getLiteral());
+    	assertNull(new P7SpyTrap("a", ".*tbl\\u0054hing.*", Action.STACK).getLiteral());
+    	assertNull(new P7SpyTrap("a", ".*tbl\\0124hing.*", Action.STACK).getLiteral());
+    	assertNull(new P7SpyTrap("a", ".*\\cJtblThing.*", Action.STACK).getLiteral());
+    	assertNull(new P7SpyTrap("a", ".*\\p{Lu}tblThing.*", Action.STACK).getLiteral());
+    	assertNull(new P7SpyTrap("a", ".*\\P{Lu}tblThing.*", Action.STACK).getLiteral());
+    	assertNull(new P7SpyTrap("a", ".*(?<t>tbl)\\k<t>Thing.*", Action.STACK).getLiteral());
+    	assertNull(new P7SpyTrap("a", ".*\\N{LATIN SMALL LETTER T}blThing.*", Action.STACK).getLiteral());
+    	assertNull(new P7SpyTrap("a", "(tbl)\\1Thing.*", Action.STACK).getLiteral());
+    	assertEquals("tblThing", new P7SpyTrap("a", ".*FROM\\stblThing.*", Action.STACK).getLiteral());
+    }
+
+    public void testMatcher() {
+    	Properties props = new Properties();
+    	props.put("matchText", ".*tblLegacy.*");
+    	props.put("matchText.2", "(?i).*from\\s+ORDERS.*");
+    	props.put("matchText.10", ".*(cust|supp)_id = \\?.*");
+    	props.put("matchText.1", ".*WHERE thing\\.id.*");
+    	P7SpyConfig config = new P7SpyConfig(props);
+    	List<P7SpyTrap> traps = config.getTrapMatcher().getTraps();
+    	assertEquals(4, traps.size());
+    	assertNull(traps.get(0).getName());
+    	assertEquals("1", traps.get(1).getName());
+    	assertEquals("2", traps.get(2).getName());
+    	assertEquals("10", traps.get(3).getName());
+
+    	assertEquals(0, config.getTrapMatcher().match("SELECT * FROM tblThing").length);
+    	P7SpyTrap[] matched = config.getTrapMatcher().match("SELECT * FROM Orders WHERE supp_id = ?");
+    	assertEquals(2, matched.length);
+    	assertEquals("2", matched[0].getName());
+    	assertEquals("10", matched[1].getName());
+    	assertSame(matched, config.getTrapMatcher().match("SELECT * FROM Orders WHERE supp_id = ?"));
+    	assertEquals(1, config.getTrapMatcher().match("SELECT * FROM thing WHERE thing.id = 1").length);
+    	assertEquals(1, config.getTrapMatcher().match("DELETE FROM tblLegacy").length);
+    }
+
+    /** Traps which match the plain regex must also match through the literal prefilter */
+    public void testPrefilterFalseNegatives() {
+    	String[][] cases = {
+    		{ "(?si).*FROM\\s+tblThing.*", "select * from TBLTHING" },
+    		{ "(?mi).*FROM\\s+tblThing.*", "select * from TBLTHING" },
+    		{ ".*FROM\\x20tblThing.*", "SELECT * FROM tblThing" },
+    		{ ".*tbl\\u0054hing.*", "SELECT * FROM tblThing" },
+    		{ ".*tbl\\0124hing.*", "SELECT * FROM tblThing" },
+    		{ ".*\\p{Lu}ROM tblThing.*", "SELECT * FROM tblThing" },
+    		{ "(?iu).*FROM\\s+tblThing.*", "select * from TBLTHING" }
+    	};
+    	for (String[] c : cases) {
+    		Properties props = new Properties();
+    		props.put("matchText", c[0]);
+    		P7SpyConfig config = new P7SpyConfig(props);
+    		assertTrue(c[0], Pattern.matches(c[0], c[1]));
+    		assertEquals(c[0], 1, config.getTrapMatcher().match(c[1]).length);
+    	}
+    }
+
+    public void testActions() throws SQLException {
+    	Properties props = new Properties();
+    	props.put("matchText.1", ".*INSERT INTO wish_list.*");
+    	props.put("matchAction.1", "once");
+    	props.put("matchText.2", ".*SELECT wish_item.*");
+    	props.put("matchAction.2", "count");
+    	props.put("matchText.3", ".*DELETE FROM wish_list.*");
+    	P7SpyTrace.setConfig(new P7SpyConfig(props));
+
+        String connectionURL = "jdbc:p7spy#org.apache.derby.iapi.jdbc.AutoloadedDriver:derby:memory:p7spyTestDB6;create=true";
+        Connection conn = DriverManager.getConnection(connectionURL);
+        Statement s = conn.createStatement();
+        s.execute(P7SpyJdbc_3_0_Test.SQL_CREATE_TABLE);
+        P7SpyJdbc_3_0_Test.MemoryAppender memoryAppender = (P7SpyJdbc_3_0_Test.MemoryAppender) Logger.getRootLogger().getAppender("MEMORY");
+        memoryAppender.clear();
+        for (int i = 0; i < 3; i++) {
+        	PreparedStatement ps = conn.prepareStatement(P7SpyJdbc_3_0_Test.SQL_CREATE_ITEM);
+        	ps.setString(1, "thing");
+        	ps.executeUpdate();
+        	ps.close();
+        	ps = conn.prepareStatement(P7SpyJdbc_3_0_Test.SQL_SELECT_ITEM);
+        	ps.close();
+        }
+        s.executeUpdate("DELETE FROM wish_list");
+        s.executeUpdate("DELETE FROM wish_list");
+        s.close();
+        conn.close();
+
+        int onceCount = 0, stackCount = 0;
+        for (Object o : memoryAppender.getLoggingEvents()) {
+        	LoggingEvent event = (LoggingEvent) o;
+        	String message = String.valueOf(event.getMessage());
+        	if (message.startsWith("SQL trap '1' triggered at stack ")) { onceCount++; assertNotNull(event.getThrowableInformation()); }
+        	if (message.startsWith("SQL trap '2' triggered")) { fail("count-only trap was logged"); }
+        	// two different call sites
+        	if (message.startsWith("SQL trap '3' triggered at stack ")) { stackCount++; assertNotNull(event.getThrowableInformation()); }
+        }
+        assertEquals(1, onceCount);
+        assertEquals(2, stackCount);
+        List<P7SpyTrap> traps = P7SpyTrace.getConfig().getTrapMatcher().getTraps();
+        assertEquals(3, traps.get(0).getHitCount());
+        assertEquals(3, traps.get(1).getHitCount());
+        assertEquals(2, traps.get(2).getHitCount());
+        assertEquals(2, traps.get(2).getStacks().size());
+    }
+
+    public void testStacks() throws SQLException {
+    	Properties props = new Properties();
+    	props.put("matchText", "VALUES 1");
+    	P7SpyTrace.setConfig(new P7SpyConfig(props));
+
+        String connectionURL = "jdbc:p7spy#org.apache.derby.iapi.jdbc.AutoloadedDriver:derby:memory:p7spyTestDB6;create=true";
+        Connection conn = DriverManager.getConnection(connectionURL);
+        P7SpyJdbc_3_0_Test.MemoryAppender memoryAppender = (P7SpyJdbc_3_0_Test.MemoryAppender) Logger.getRootLogger().getAppender("MEMORY");
+        memoryAppender.clear();
+        for (int i = 0; i < 3; i++) {
+        	conn.prepareStatement("VALUES 1").close();
+        }
+        conn.close();
+
+        List<String> messages = new ArrayList<String>();
+        for (Object o : memoryAppender.getLoggingEvents()) {
+        	LoggingEvent event = (LoggingEvent) o;
+        	String message = String.valueOf(event.getMessage());
+        	if (!message.startsWith("SQL trap")) { continue; }
+        	messages.add(message);
+        	if (messages.size() == 1) {
+        		// the first match at a stack is logged in full, excluding p7spy's frames
+        		StackTraceElement[] stack = event.getThrowableInformation().getThrowable().getStackTrace();
+        		assertEquals(P7SpyTrapTest.class.getName(), stack[0].getClassName());
+        		assertEquals("testStacks", stack[0].getMethodName());
+        	} else {
+        		assertNull(event.getThrowableInformation());
+        	}
+        }
+        assertEquals(3, messages.size());
+        assertTrue(messages.get(0), messages.get(0).matches("SQL trap triggered at stack [0-9a-f]{8}"));
+        assertEquals(messages.get(0) + " (2 hits)", messages.get(1));
+        assertEquals(messages.get(0) + " (3 hits)", messages.get(2));
+        P7SpyTrap trap = P7SpyTrace.getConfig().getTrapMatcher().getTraps().get(0);
+        assertEquals(1, trap.getStacks().size());
+        assertEquals(3, trap.getStacks().iterator().next().getHitCount());
+    }
+
+}
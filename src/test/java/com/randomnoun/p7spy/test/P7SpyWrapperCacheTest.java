@@ -0,0 +1,108 @@
+package com.randomnoun.p7spy.test;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.randomnoun.p7spy.P7SpyWrapper;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the p7spy wrapper cache
+ */
+public class P7SpyWrapperCacheTest
+    extends TestCase
+{
+
+	P7SpyJdbc_3_0_Test p7SpyTest30 = new P7SpyJdbc_3_0_Test("P7SpyTests for JDK14");
+
+	/**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public P7SpyWrapperCacheTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( P7SpyWrapperCacheTest.class );
+    }
+
+    public void setUp() {
+    	p7SpyTest30.setUp();
+    }
+
+    public void testIdentity() throws SQLException {
+        String connectionURL = "jdbc:p7spy#org.apache.derby.iapi.jdbc.AutoloadedDriver:derby:memory:p7spyTestDB12;create=true";
+        Connection conn = DriverManager.getConnection(connectionURL);
+        assertTrue(((P7SpyWrapper) conn).getWrappedObject() instanceof Connection);
+        assertFalse(((P7SpyWrapper) conn).getWrappedObject() instanceof P7SpyWrapper);
+
+        Statement s = conn.createStatement();
+        s.execute(P7SpyJdbc_3_0_Test.SQL_CREATE_TABLE);
+        assertNull(s.getResultSet());
+        assertSame(conn, s.getConnection());
+        s.close();
+
+        P7SpyJdbc_3_0_Test.MemoryAppender memoryAppender = (P7SpyJdbc_3_0_Test.MemoryAppender) Logger.getRootLogger().getAppender("MEMORY");
+        memoryAppender.clear();
+        DatabaseMetaData dmd = conn.getMetaData();
+        assertSame(dmd, conn.getMetaData());
+        assertSame(conn, dmd.getConnection());
+        int newCount = 0;
+        for (Object o : memoryAppender.getLoggingEvents()) {
+        	LoggingEvent event = (LoggingEvent) o;
+        	if ("new DatabaseMetaData()".equals(event.getMessage())) { newCount++; }
+        }
+        assertEquals(1, newCount);
+
+        PreparedStatement ps = conn.prepareStatement(P7SpyJdbc_3_0_Test.SQL_SELECT_ITEM);
+        ps.setString(1, "thing");
+        assertTrue(ps.execute());
+        ResultSet rs = ps.getResultSet();
+        assertSame(rs, ps.getResultSet());
+        assertSame(ps, rs.getStatement());
+        assertSame(rs.getMetaData(), rs.getMetaData());
+        assertSame(conn, ps.getConnection());
+        rs.close();
+
+        // the ResultSet returned by executeQuery() is also returned by getResultSet()
+        memoryAppender.clear();
+        ResultSet rs2 = ps.executeQuery();
+        assertNotSame(rs, rs2);
+        assertSame(rs2, ps.getResultSet());
+        assertSame(ps, rs2.getStatement());
+        int newResultSetCount = 0;
+        for (Object o : memoryAppender.getLoggingEvents()) {
+        	LoggingEvent event = (LoggingEvent) o;
+        	if ("new ResultSet()".equals(event.getMessage())) { newResultSetCount++; }
+        }
+        assertEquals(1, newResultSetCount);
+        rs2.close();
+        ps.close();
+
+        s = conn.createStatement();
+        rs = s.executeQuery("VALUES 1");
+        assertSame(rs, s.getResultSet());
+        rs.close();
+        s.close();
+        conn.close();
+    }
+
+}